@@ -1,16 +1,29 @@
 package app_kvEcs;
 
 import java.io.*;
+import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 import org.apache.log4j.Level;
 import logger.LogSetup;
 import org.apache.log4j.Logger;
-import org.apache.zookeeper.ZooKeeper;
 
 import common.HashRing;
 import common.HashRing.Server;
+import common.ZooKeeperCoordinator;
 import common.messages.*;
 import client.Client;
 import app_kvServer.KVServer;
@@ -21,12 +34,71 @@ public class ECS {
 	private File configFile;
 	private HashRing metadata;
 	private List<Server> allServers; //array of all servers in the system. This never changes.
-	private List<Process> allProcesses; //array of all processes in the system, one for each server (can be null if server is not running).
+	//starts and stops the servers, over ssh unless the config says otherwise
+	private ServerLauncher launcher;
 	private int totalNumNodes;
 	private KVServer.ServerStatus status;
 	private String metadataFile;
 	private String backupConfigFile;
 	private File m_lockFile;
+	//Shared by the ECS client and the failure detector. Every reconfiguration holds the write
+	//lock from reading the metadata to broadcasting it, so they are applied one at a time
+	private ReentrantReadWriteLock m_metadataLock;
+	//Modification time and length of the metadata file when it was last read or written. 
+	//It is only read again if another process changed it since
+	private long m_metadataFileStamp;
+	private long m_metadataFileLength;
+	//When true, data is moved between nodes by shipping snapshot segments instead of key-by-key puts
+	private boolean snapshotBootstrap;
+	//Number of points on the hash ring per server of weight 1, set by a "vnodes <n>" config line
+	private int virtualNodes;
+	//Epsilon of bounded-load mode set by a "bound <epsilon>" config line, 0 if the mode is off
+	private double loadBound;
+	//Function placing keys and servers on the ring, set by a "hash <md5|murmur3>" config line
+	private HashRing.HashFunction hashFunction;
+	//When true, set by a "proxy" config line, servers forward requests for keys they are not
+	//responsible for instead of redirecting the client
+	private boolean proxyMode;
+	//When true, set by a "mmap" config line, servers keep values in memory-mapped partition
+	//files instead of on the heap
+	private boolean mappedStorage;
+	//Megabytes of values servers cache off the heap, set by a "offheap <MB>" config line. 0 to
+	//use the on-heap cache of cache size pairs
+	private long offHeapCache;
+	//Copy of the metadata as last broadcast, later broadcasts only send the changes since
+	private HashRing lastBroadcast;
+	//Address of the ZooKeeper ensemble set by a "zookeeper <host:port>" config line. When set the
+	//metadata is stored in and broadcast through a znode and servers are live while their 
+	//ephemeral znode exists, instead of the metadata file, TCP broadcasts and TCP probes
+	private String zooKeeper;
+	private ZooKeeperCoordinator coordinator;
+	private static final int ZOOKEEPER_SESSION_TIMEOUT = 5000;
+	//Address servers send their heartbeats to, set by a "heartbeat <host:port> [interval ms] 
+	//[phi threshold]" config line. When set the failure detector suspects servers whose 
+	//heartbeats stop instead of probing them
+	private String heartbeatAddress;
+	private long heartbeatInterval = 1000;
+	private double phiThreshold = 8;
+	private HeartbeatMonitor heartbeatMonitor;
+	//how many data transfers may run at once when the ring changes
+	private int rebalanceParallelism = 4;
+	//keys and bytes per second each server may send when the ring changes, 0 for no limit
+	private long transferOps;
+	private long transferBytes;
+	//when the servers force their write-ahead logs to disk, "always", "never" or an interval in
+	//ms, set by a "fsync <policy>" config line. The servers' default if not set
+	private String syncPolicy;
+	//Broadcasts contact all servers at once from this pool, each with its own deadline
+	private final ExecutorService broadcastPool = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "ecs-broadcast");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	//Time a server is given to respond to a broadcast once it accepted the connection
+	private static final int BROADCAST_RESPONSE_TIMEOUT = 5000;
 	//These variables are used by the failure detector when it starts a new server to recover
 	//from failure. It must know what strategy and cache size the ECSClient is using
 	public static String replacementStrategy;
@@ -38,73 +110,214 @@ public class ECS {
 		// Argument is the path of the configuration file (ecs.config)
 		this.configFile = new File(configFile);
 		allServers = new ArrayList<Server>();
-		allProcesses = new ArrayList<Process>();
+		launcher = new SshLauncher();
 		// Initialize node (servers) number to zero, increment for each line of config file
 		totalNumNodes = 0;
 		status = KVServer.ServerStatus.STOPPED;
 		metadataFile = "ecs_metadata.txt";
 		backupConfigFile = "ecs_config_backup.txt";
 		this.m_lockFile = new File("ECSMetadataLock.txt");
-		this.metadata = new HashRing();
+		this.m_metadataLock = new ReentrantReadWriteLock();
+		this.m_metadataFileStamp = -1;
+		this.snapshotBootstrap = true;
+		this.virtualNodes = HashRing.DEFAULT_VNODES;
+		this.hashFunction = HashRing.HashFunction.MD5;
+		this.metadata = newMetadata();
 
 		BufferedReader FileReader = new BufferedReader(new FileReader(this.configFile));
 		try{
 			String currentLine;
 			while ((currentLine = FileReader.readLine()) != null) {
-				// Config file in format of "server_name server_address port"
-				// Each line is a server
-				String[] tokens = currentLine.split(" ");
+				// Config file in format of "server_name server_address port [weight]"
+				// Each line is a server, except for the optional "vnodes", "bound", "hash", "proxy",
+				// "zookeeper", "heartbeat", "launcher", "rebalance", "throttle", "fsync", "mmap" and "offheap" lines
+				String[] tokens = currentLine.trim().split("\\s+");
+				if ((tokens.length == 2 || tokens.length == 3) && tokens[0].equals("throttle")) {
+					transferOps = Long.parseLong(tokens[1]);
+					if (tokens.length == 3) {
+						transferBytes = Long.parseLong(tokens[2]);
+					}
+					continue;
+				}
+				if (tokens.length == 2 && tokens[0].equals("fsync")) {
+					if (!KVServer.isValidOption("fsync="+tokens[1])) {
+						throw new Exception("Invalid fsync policy "+tokens[1]+". Only always, never, and an interval in ms are accepted.");
+					}
+					syncPolicy = tokens[1];
+					continue;
+				}
+				if (tokens.length == 2 && tokens[0].equals("rebalance")) {
+					rebalanceParallelism = Math.max(Integer.parseInt(tokens[1]), 1);
+					continue;
+				}
+				if (tokens.length == 2 && tokens[0].equals("launcher")) {
+					launcher = newLauncher(tokens[1]);
+					continue;
+				}
+				if (tokens.length == 2 && tokens[0].equals("vnodes")) {
+					virtualNodes = Integer.parseInt(tokens[1]);
+					continue;
+				}
+				if (tokens.length == 2 && tokens[0].equals("bound")) {
+					loadBound = Double.parseDouble(tokens[1]);
+					continue;
+				}
+				if (tokens.length == 1 && tokens[0].equals("proxy")) {
+					proxyMode = true;
+					continue;
+				}
+				if (tokens.length == 2 && tokens[0].equals("offheap")) {
+					offHeapCache = Long.parseLong(tokens[1]);
+					continue;
+				}
+				if (tokens.length == 1 && tokens[0].equals("mmap")) {
+					mappedStorage = true;
+					continue;
+				}
+				if (tokens.length >= 2 && tokens.length <= 4 && tokens[0].equals("heartbeat")) {
+					heartbeatAddress = tokens[1];
+					if (tokens.length >= 3) {
+						heartbeatInterval = Long.parseLong(tokens[2]);
+					}
+					if (tokens.length == 4) {
+						phiThreshold = Double.parseDouble(tokens[3]);
+					}
+					continue;
+				}
+				if (tokens.length == 2 && tokens[0].equals("zookeeper")) {
+					zooKeeper = tokens[1];
+					continue;
+				}
+				if (tokens.length == 2 && tokens[0].equals("hash")) {
+					hashFunction = HashRing.HashFunction.fromName(tokens[1]);
+					continue;
+				}
+				if (tokens.length < 3) {
+					continue;
+				}
 				int port = Integer.parseInt(tokens[2]);
-				allServers.add(new Server(tokens[1], port, totalNumNodes));
+				Server server = new Server(tokens[1], port, totalNumNodes);
+				if (tokens.length >= 4) {
+					server.weight = Integer.parseInt(tokens[3]);
+				}
+				allServers.add(server);
 				totalNumNodes++;
 			}		
+			this.metadata = newMetadata();
 
 			checkConfig();
 			writeConfig();
 		}
 		catch (NumberFormatException e) {
-			logger.error("Error! All ports in config file must be integers");
+			logger.error("Error! All ports, weights and vnodes in config file must be integers");
 		}
 		FileReader.close();
 
-		for (int i=0; i < totalNumNodes; i++) {
-			// Add an empty process for each node
-			allProcesses.add(null);
+		if (zooKeeper != null) {
+			coordinator = new ZooKeeperCoordinator(zooKeeper, ZOOKEEPER_SESSION_TIMEOUT);
+		}
+		if (heartbeatAddress != null) {
+			int port = Integer.parseInt(heartbeatAddress.substring(heartbeatAddress.lastIndexOf(':') + 1));
+			heartbeatMonitor = new HeartbeatMonitor(port, new PhiAccrualDetector(phiThreshold, heartbeatInterval));
+			heartbeatMonitor.start();
 		}
 	}
 
-	public void LockMetadata() {
-		// Block read if metadata is locked
-		int tries = 0;
-		while(this.m_lockFile.isFile() && tries++ < 100){
-			try {
-				TimeUnit.SECONDS.sleep(1); 		
-			} catch (InterruptedException e){}
+	/**
+	 * Return the launcher for the "launcher" config line: "ssh" runs servers on their hosts,
+	 * "local" as processes on this machine and "thread" inside this JVM.
+	 */
+	private static ServerLauncher newLauncher(String name) {
+		if (name.equals("local")) {
+			return new ProcessLauncher();
 		}
-		if (tries >= 100) {
-			logger.warn("Failed to acquire metadata lock");
+		if (name.equals("thread")) {
+			return new ThreadLauncher();
 		}
-		else {
-			// LockMetadata the File by creating the lock file
-			//Ideally these functions should be atomic, but it's unlikely for a race condition
-			//to occur since there are only 2 ecs threads trying to access it
-			CreateLockFile();
+		if (!name.equals("ssh")) {
+			logger.warn("Unknown launcher "+name+", launching servers over ssh");
 		}
+		return new SshLauncher();
+	}
+
+	/**
+	 * Take the metadata write lock, eg to make several operations one atomic change.
+	 */
+	public void LockMetadata() {
+		m_metadataLock.writeLock().lock();
 	}
 	
+	/**
+	 * Release the metadata write lock if this thread holds it.
+	 */
 	public void UnlockMetadata() {
-		this.m_lockFile.delete();
+		if (m_metadataLock.isWriteLockedByCurrentThread()) {
+			m_metadataLock.writeLock().unlock();
+		}
 	}
-  
-	private void CreateLockFile() {
+
+	/**
+	 * Lock the lock file against other processes sharing the metadata file, eg an ECS started
+	 * from another shell. The lock is taken by the operating system atomically and released 
+	 * when this process dies. Only taken under the write lock, since a second lock on the same 
+	 * file from this process would throw an OverlappingFileLockException.
+	 */
+	private FileLock lockMetadataFile() throws IOException {
+		RandomAccessFile file = new RandomAccessFile(m_lockFile, "rw");
 		try {
-			this.m_lockFile.createNewFile();
+			return file.getChannel().lock();
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			//e.printStackTrace();
+			file.close();
+			throw e;
+		}
+	}
+
+	private void unlockMetadataFile(FileLock lock) {
+		try {
+			lock.release();
+			lock.channel().close();
+		} catch (IOException e) {
+			logger.warn("Could not release the metadata file lock");
 		}
 	}
 	
+	public ServerLauncher getLauncher() {
+		return launcher;
+	}
+
+	/**
+	 * Return the ZooKeeper connection, or null if this ECS does not use ZooKeeper.
+	 */
+	public ZooKeeperCoordinator getCoordinator() {
+		return coordinator;
+	}
+
+	/**
+	 * Return the detector fed by the servers' heartbeats, or null if this ECS does not use
+	 * heartbeats.
+	 */
+	public PhiAccrualDetector getHeartbeatDetector() {
+		return (heartbeatMonitor == null) ? null : heartbeatMonitor.getDetector();
+	}
+
+	public long getHeartbeatInterval() {
+		return heartbeatInterval;
+	}
+
+	/**
+	 * Release what this ECS holds open: the ZooKeeper session, the heartbeat port and the
+	 * broadcast threads. The servers keep running, see shutDown.
+	 */
+	public void close() {
+		if (coordinator != null) {
+			coordinator.close();
+		}
+		if (heartbeatMonitor != null) {
+			heartbeatMonitor.close();
+		}
+		broadcastPool.shutdownNow();
+	}
+
 	public HashRing getMetaData() {
 		try {
 			readMetadata();
@@ -114,15 +327,41 @@ public class ECS {
 		return this.metadata;
 	}
 
+	/**
+	 * Create an empty hash ring with the partitions, virtual nodes and hash function used by this ECS.
+	 */
+	private HashRing newMetadata() {
+		HashRing ring = new HashRing();
+		ring.setHashFunction(hashFunction);
+		ring.setPartitions(HashRing.DEFAULT_PARTITIONS);
+		ring.setVirtualNodes(virtualNodes);
+		ring.setLoadBound(loadBound);
+		return ring;
+	}
+
 	public void clearMetaData() {
-		this.metadata.ClearHashRing();
-		writeMetadata();
+		m_metadataLock.writeLock().lock();
+		try {
+			this.metadata.ClearHashRing();
+			writeMetadata();
+		} finally {
+			m_metadataLock.writeLock().unlock();
+		}
 	}
 
 	public List<Server> getAllServers() {
 		return this.allServers;
 	}
 
+	/**
+	 * Choose how addNode and removeNode move data between nodes. In snapshot mode the senders
+	 * ship point-in-time segments of the range (whole partition files where possible) and then
+	 * only the writes made after it, otherwise every key is sent with its own put.
+	 */
+	public void setSnapshotBootstrap(boolean snapshotBootstrap) {
+		this.snapshotBootstrap = snapshotBootstrap;
+	}
+
 	/**
 	 * Reads the previous configuration from the backup config file. 
 	 * If that configuration is different from the current one, deletes the metadata file
@@ -130,8 +369,9 @@ public class ECS {
 	 */
 	private void checkConfig() throws IOException{
 		boolean changed = false;
-		BufferedReader FileReader = new BufferedReader(new FileReader(backupConfigFile));
+		BufferedReader FileReader = null;
 		try {
+			FileReader = new BufferedReader(new FileReader(backupConfigFile));
 			//open file and parse it
 			String currentLine;
 			List<Server> backupServers = new ArrayList<Server>();
@@ -160,7 +400,9 @@ public class ECS {
 			logger.warn("Could not read backup config file. Starting from fresh state.");
 			changed = true;
 		}
-		FileReader.close();
+		if (FileReader != null) {
+			FileReader.close();
+		}
 
 		if (changed) {
 			File file = new File(metadataFile);
@@ -189,123 +431,134 @@ public class ECS {
 	 * the zookeeper object. 
 	 */
 	public void initService(int numberOfNodes, int cacheSize, String replacementStrategy) throws Exception {		
-		// Validity checking for arguments
-		if (numberOfNodes <= 0) {
-			throw new Exception("Number of nodes must be a positive integer");
-		}
-		if (numberOfNodes > totalNumNodes) {
-			throw new Exception("Cannot initialize service with "+numberOfNodes+" nodes."
-					+" Only "+totalNumNodes+" known nodes exist.");
-		}
-		if (!replacementStrategy.equals("FIFO") && !replacementStrategy.equals("LRU") && !replacementStrategy.equals("LFU")) {
-			throw new Exception("Invalid replacement strategy "+replacementStrategy+". Only FIFO, LRU, and LFU are accepted.");
-		}
+		m_metadataLock.writeLock().lock();
+		try {
+			// Validity checking for arguments
+			if (numberOfNodes <= 0) {
+				throw new Exception("Number of nodes must be a positive integer");
+			}
+			if (numberOfNodes > totalNumNodes) {
+				throw new Exception("Cannot initialize service with "+numberOfNodes+" nodes."
+						+" Only "+totalNumNodes+" known nodes exist.");
+			}
+			if (!replacementStrategy.equals("FIFO") && !replacementStrategy.equals("LRU") && !replacementStrategy.equals("LFU")) {
+				throw new Exception("Invalid replacement strategy "+replacementStrategy+". Only FIFO, LRU, and LFU are accepted.");
+			}
+
+			logger.info("Initializing service");
+			ECS.cacheSize = cacheSize;
+			ECS.replacementStrategy = replacementStrategy;
+
+			readMetadata();
 
-		logger.info("Initializing service");
-		ECS.cacheSize = cacheSize;
-		ECS.replacementStrategy = replacementStrategy;
+			// Generate numberOfNodes random indices from 1 to n
+			Integer[] indices = new Integer[totalNumNodes];
+			for (int i=0; i < indices.length; i++){
+				indices[i] = i;
+			}
+			// Randomize the list of indices
+			Collections.shuffle(Arrays.asList(indices)); 
+			List<Server> chosen = new ArrayList<Server>();
+			for (int i=0; i<numberOfNodes; i++){
+				chosen.add(allServers.get(indices[i]));
+			}
 
-		readMetadata();
+			//For proper persistency all the servers that were running when the ecs was last online
+			//must be started too, since they hold the data. Launch them and the chosen servers all
+			//at once and wait for all of them together.
+			HashRing before = new HashRing(metadata.toString());
+			List<Server> previousServers = before.getAllServers();
+			Set<Server> launching = new LinkedHashSet<Server>(previousServers);
+			launching.addAll(chosen);
+			List<Server> offline = launchAll(launching, 12000);
+			for (Server server : offline) {
+				logger.error("Server "+server.toString()+" did not come online");
+			}
 
-		//For proper persistency all the servers that were running when the ecs was last online
-		//must be started. Then transfer all their data to the newly initialized nodes
-		//with a series of add and remove operations. 
-		List<Server> previousServers = metadata.getAllServers();
-		if (previousServers.size() > 0) {
+			//Compute the final ring in one go: the chosen servers which came online
+			for (Server server : chosen) {
+				if (!offline.contains(server) && !metadata.contains(server)) {
+					metadata.addServer(server);
+				}
+			}
+			List<Server> retired = new ArrayList<Server>();
 			for (Server server : previousServers) {
-				runServer(server, cacheSize, replacementStrategy); 
-			}			
-			broadcast(new KVAdminMessage("metadata","METADATA_UPDATE","",metadata.toString()), 10);
-		}
-
-		// Generate numberOfNodes random indices from 1 to n
-		Integer[] indices = new Integer[totalNumNodes];
-		for (int i=0; i < indices.length; i++){
-			indices[i] = i;
-		}
-		// Randomize the list of indices
-		Collections.shuffle(Arrays.asList(indices)); 
-
-		//run the first numberOfNodes indices
-		for (int i=0; i<numberOfNodes; i++){
-			int idx = indices[i];
-			if (previousServers.size() > 0){
-				//check if this server is in previousServers (already running)
-				//Do O(N^2) search because there's no way the number of servers will be so large that it matters.
-				boolean found = false;
-				for (Server server : previousServers) {
-					if (server.id == idx){
-						found = true;
-						break;
-					}
+				if (offline.contains(server) || !chosen.contains(server)) {
+					removeFromRing(server);
 				}
-				if (!found){
-					addNode(idx, cacheSize, replacementStrategy);
+				if (!offline.contains(server) && !chosen.contains(server)) {
+					retired.add(server);
 				}
 			}
-			else{
-				//no previous servers. Forget about restoring state with addNode and just run it.
-				runServer(allServers.get(idx), cacheSize, replacementStrategy);
-			}
-		}
 
-		//remove previous servers which are not among the new servers
-		for (Server server : previousServers) {
-			//Do O(N^2) search because there's no way the number of servers will be so large that it matters.
-			boolean found = false;
-			for (int i=0; i<numberOfNodes; i++) {
-				if (server.id == indices[i]){
-					found = true;
-					break;
-				}
+			//Servers which are not part of the service any more still need the new ring to send 
+			//their data to its new holders, so they get the one broadcast as well
+			List<Server> recipients = new ArrayList<Server>(metadata.getAllServers());
+			recipients.addAll(retired);
+			broadcastMetadata(12, recipients);
+			if (executeMoves(RebalancePlanner.plan(before, metadata, offline))) {
+				cleanup();
 			}
-			if (!found){
-				removeNode(server.id);
+			for (Server server : retired) {
+				killServer(server.id);
 			}
+			writeMetadata();
+		} finally {
+			m_metadataLock.writeLock().unlock();
 		}
-
-		//connect to each server and send them the metadata
-		KVMessage message = new KVAdminMessage("metadata","METADATA_UPDATE","",metadata.toString());
-		broadcast(message, 12);
-		writeMetadata();
 	}
 
 	/**
 	 * Launch the storage servers chosen by initService
 	 */
 	public void start() {
-		logger.info("Starting");
-		//Send a start command to all active servers.
+		m_metadataLock.writeLock().lock();
 		try {
-			readMetadata();
-		} catch (IOException e) {
-			logger.error("Metadata reading error: " + e.toString());
+			logger.info("Starting");
+			//Send a start command to all active servers.
+			try {
+				readMetadata();
+			} catch (IOException e) {
+				logger.error("Metadata reading error: " + e.toString());
+			}
+			this.status = KVServer.ServerStatus.ACTIVE; 
+			broadcast(new KVAdminMessage("start","","",""), 3);
+		} finally {
+			m_metadataLock.writeLock().unlock();
 		}
-		this.status = KVServer.ServerStatus.ACTIVE; 
-		broadcast(new KVAdminMessage("start","","",""), 3);
 	}
 
 	/**
 	 * Stops all running servers in the service
 	 */
 	public void stop() {
-		logger.info("Stopping");
+		m_metadataLock.writeLock().lock();
 		try {
-			readMetadata();
-		} catch (IOException e) {
-			logger.error("Metadata reading error: " + e.toString());
+			logger.info("Stopping");
+			try {
+				readMetadata();
+			} catch (IOException e) {
+				logger.error("Metadata reading error: " + e.toString());
+			}
+			this.status = KVServer.ServerStatus.STOPPED;
+			broadcast(new KVAdminMessage("stop","","",""), 3);	
+		} finally {
+			m_metadataLock.writeLock().unlock();
 		}
-		this.status = KVServer.ServerStatus.STOPPED;
-		broadcast(new KVAdminMessage("stop","","",""), 3);	
 	}
 
 	/**
 	 * Stops all servers and shuts down the ECS client
 	 */
 	public void shutDown() {
-		logger.info("Shutting down");
-		for (int i=0; i<totalNumNodes; i++) {
-			killServer(i);			
+		m_metadataLock.writeLock().lock();
+		try {
+			logger.info("Shutting down");
+			for (int i=0; i<totalNumNodes; i++) {
+				killServer(i);			
+			}
+		} finally {
+			m_metadataLock.writeLock().unlock();
 		}
 	}
 
@@ -316,33 +569,38 @@ public class ECS {
 	 * This is the method which should be used by the ECS client.
 	 */
 	public boolean addRandomNode(int cacheSize, String replacementStrategy) {
+		m_metadataLock.writeLock().lock();
 		try {
-			readMetadata();
-		} catch (IOException e) {
-			logger.error("Metadata reading error: " + e.toString());
-		}
-		logger.info("Adding node "+cacheSize+" "+replacementStrategy);
+			try {
+				readMetadata();
+			} catch (IOException e) {
+				logger.error("Metadata reading error: " + e.toString());
+			}
+			logger.info("Adding node "+cacheSize+" "+replacementStrategy);
 
-		//determine which servers are not currently in the metadata
-		//List<Server> currentServers = metadata.getAllServers();
-		ArrayList<Integer> availableNodes = new ArrayList<Integer>();
-		for (int id=0; id<totalNumNodes; id++){
-			Server server = allServers.get(id);
-			if (!metadata.contains(server)){
-				availableNodes.add(server.id);
+			//determine which servers are not currently in the metadata
+			//List<Server> currentServers = metadata.getAllServers();
+			ArrayList<Integer> availableNodes = new ArrayList<Integer>();
+			for (int id=0; id<totalNumNodes; id++){
+				Server server = allServers.get(id);
+				if (!metadata.contains(server)){
+					availableNodes.add(server.id);
+				}
+			}
+			if (availableNodes.size() == 0){
+				logger.debug("metadata: "+metadata.toString());
+				logger.warn("There are no available nodes to add");
+				return false;
 			}
-		}
-		if (availableNodes.size() == 0){
-			logger.debug("metadata: "+metadata.toString());
-			logger.warn("There are no available nodes to add");
-			return false;
-		}
 
-		//pick a random value from available servers
-		Random random = new Random();
-		int i = random.nextInt(availableNodes.size());
-		int index = availableNodes.get(i);
-		return addNode(index, cacheSize, replacementStrategy);
+			//pick a random value from available servers
+			Random random = new Random();
+			int i = random.nextInt(availableNodes.size());
+			int index = availableNodes.get(i);
+			return addNode(index, cacheSize, replacementStrategy);
+		} finally {
+			m_metadataLock.writeLock().unlock();
+		}
 	}
 
 	/**
@@ -351,110 +609,241 @@ public class ECS {
 	 * If the given server is already running this does nothing and returns false.
 	 */
 	public boolean addNode(int index, int cacheSize, String replacementStrategy) {
-		Server newServer = allServers.get(index);
-		//check if new server is already in the system
-		if (metadata.contains(newServer)){
-			return false;
-		}
+		m_metadataLock.writeLock().lock();
+		try {
+			Server newServer = allServers.get(index);
+			//check if new server is already in the system
+			if (metadata.contains(newServer)){
+				return false;
+			}
 
-		logger.info("Adding new server "+newServer.toString());
-		runServer(newServer, cacheSize, replacementStrategy);
+			logger.info("Adding new server "+newServer.toString());
+			//The server only joins the metadata once it is online
+			if (!launchServer(newServer, cacheSize, replacementStrategy)) {
+				return false;
+			}
 
-		//We musn't proceed from here unless the new server is online. Try to connect to it 
-		//a few times to make sure it is. If after a certain number of tries it still isn't online
-		//then abort.
-		int numTries = 5;
-		boolean success = false;
-		for (int tries=0; tries<numTries && !success; tries++){
-			try {
-				Client client = new Client(newServer.ipAddress, newServer.port);
-				if(client.getResponse().getStatus().equals("CONNECT_SUCCESS")) {
-					// Only success on correct status message
-					success = true;
-				}
+			//We musn't proceed from here unless the new server is online. Wait for it to signal
+			//that it is listening. If it still isn't online after a few seconds then abort.
+			int timeoutMs = 5000;
+			if (!launcher.awaitReady(newServer, timeoutMs)) {
+				logger.error("Server "+newServer.toString()+" did not come online within "+timeoutMs+"ms. Aborting addNode.");
+				return false;
 			}
-			catch (IOException e) {
-				logger.debug("addNode: Unable to connect to server "+newServer.toString()+". Waiting 1 second and trying again.");
+
+			// broadcast metadata update
+			HashRing before = new HashRing(metadata.toString());
+			metadata.addServer(newServer);
+			writeMetadata();
+			broadcastMetadata(5);
+
+			// Move exactly the ranges which changed hands, each from one of its previous holders
+			if (executeMoves(RebalancePlanner.plan(before, metadata, new ArrayList<Server>()))) {
+				cleanup();
+			}
+
+			//start the new node
+			if (status ==  KVServer.ServerStatus.ACTIVE){
 				try {
-					TimeUnit.SECONDS.sleep(1); 		
-				} catch (InterruptedException ex){}
+					sendSingleMessage(newServer, new KVAdminMessage("start","","",""));
+				}
+				catch (Exception e){
+					logger.error("Unable to send start to new server. "+e.getMessage());
+					return false;
+				}
 			}
+
+			writeMetadata();
+			balanceLoad();
+			return true;
+		} finally {
+			m_metadataLock.writeLock().unlock();
 		}
-		if (!success) {
-			logger.error("Unable to connect to server "+newServer.toString()+" after "+numTries+" tries. Aborting addNode.");
-			metadata.removeServer(newServer); //this shouldn't be necessary, but there might be a bug... just in case.
-			return false;
+	}
+	
+	/**
+	 * Launch the given servers all at once and wait up to timeoutMs for them to come online,
+	 * each in its own thread, so starting many servers takes as long as the slowest one. The
+	 * servers are not added to the metadata. Returns the ones which did not come online.
+	 */
+	private List<Server> launchAll(Collection<Server> servers, final long timeoutMs) {
+		Map<Server, Future<Boolean>> pending = new LinkedHashMap<Server, Future<Boolean>>();
+		for (final Server server : servers) {
+			pending.put(server, broadcastPool.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return launchServer(server) && launcher.awaitReady(server, timeoutMs);
+				}
+			}));
 		}
-
-		// broadcast metadata update
-		metadata.addServer(newServer);
-		writeMetadata();
-		broadcast(new KVAdminMessage("metadata","","",metadata.toString()), 5);
-
-		// Tell the successor server to transfer the data to the new server.
-		// In case we are unable to do so (eg the successor has also crashed), try to have the next
-		// successors and predecessors send the data, who collectively have a full copy of the data due 
-		// to the replication scheme. 
-		
-		//First try to have the successors send the data. If it fails, try the next
-		//successor for up to 3 times. 
-		Server successor = metadata.getSuccessor(newServer);
-		int firstSuccess = 0;
-		for (; firstSuccess < 3; firstSuccess++) {
-			if (successor == null || sendAddNode(successor, newServer)) {
-				break;
+		List<Server> offline = new ArrayList<Server>();
+		for (Map.Entry<Server, Future<Boolean>> entry : pending.entrySet()) {
+			boolean online = false;
+			try {
+				online = entry.getValue().get();
+			} catch (Exception e) {
+				logger.debug(e.getMessage());
 			}
-			//try again with next successor
-			successor = metadata.getSuccessor(successor);
-		}
-		
-		//Now try have the predecessor send the data. The logic here is that the first successful server
-		//is how far down the chain of predecessors we need to go to get all the data.
-		//eg if first successor was successful then we don't need to send from any predecessors, if second
-		//server was successful then we need to send from first predecessor, etc.
-		Server predecessor = metadata.getPredecessor(newServer);
-		for (; firstSuccess>1; firstSuccess--) {
-			if (predecessor == null || sendAddNode(predecessor, newServer)) {
-				break;
+			if (!online) {
+				offline.add(entry.getKey());
 			}
-			//try again with next predecessor
-			predecessor = metadata.getPredecessor(predecessor);
 		}
+		return offline;
+	}
 
-		//start the new node
-		if (status ==  KVServer.ServerStatus.ACTIVE){
+	/**
+	 * Recover from the failure of several servers at once with a single ring change. The 
+	 * failed servers are removed and, if replace is set, as many inactive servers are launched
+	 * in their place. The new ring is broadcast once, then every server which must hold data 
+	 * it did not hold before is sent it by a surviving server which did, see planTransfers.
+	 * Transfers between different servers run in parallel. Returns true if all data could be 
+	 * restored and every replacement started.
+	 */
+	public boolean recoverServers(List<Server> failedServers, boolean replace) {
+		m_metadataLock.writeLock().lock();
+		try {
 			try {
-				sendSingleMessage(newServer, new KVAdminMessage("start","","",""));
+				readMetadata();
+			} catch (IOException e) {
+				logger.error("Metadata reading error: " + e.toString());
 			}
-			catch (Exception e){
-				logger.error("Unable to send start to new server. "+e.getMessage());
+			logger.info("Recovering from the failure of "+failedServers);
+			HashRing before = new HashRing(metadata.toString());
+			boolean success = true;
+			for (Server server : failedServers) {
+				removeFromRing(server);
+			}
+			if (replace) {
+				success = launchReplacements(failedServers.size());
+			}
+			if (metadata.getAllServers().isEmpty()) {
+				writeMetadata();
 				return false;
 			}
+			writeMetadata();
+			broadcastMetadata(5);
+
+			if (executeMoves(RebalancePlanner.plan(before, metadata, failedServers))) {
+				cleanup();
+			} else {
+				success = false;
+			}
+
+			if (status == KVServer.ServerStatus.ACTIVE) {
+				for (Server server : metadata.getAllServers()) {
+					if (!before.contains(server)) {
+						try {
+							sendSingleMessage(server, new KVAdminMessage("start","","",""));
+						} catch (Exception e) {
+							logger.error("Unable to send start to new server. "+e.getMessage());
+							success = false;
+						}
+					}
+				}
+			}
+			writeMetadata();
+			balanceLoad();
+			return success;
+		} finally {
+			m_metadataLock.writeLock().unlock();
 		}
+	}
 
-		writeMetadata();
-		return true;
+	/**
+	 * Launch up to count random inactive servers, wait for all of them at once to come online 
+	 * and leave the ones which did in the metadata. Returns true if count servers came online.
+	 */
+	private boolean launchReplacements(int count) {
+		List<Server> available = new ArrayList<Server>();
+		for (Server server : allServers) {
+			if (!metadata.contains(server)) {
+				available.add(server);
+			}
+		}
+		Collections.shuffle(available);
+		List<Server> launched = available.subList(0, Math.min(count, available.size()));
+		List<Server> offline = launchAll(launched, 5000);
+		boolean success = launched.size() == count && offline.isEmpty();
+		for (Server server : launched) {
+			if (offline.contains(server)) {
+				logger.error("Server "+server.toString()+" did not come online. Leaving it out of the service.");
+			} else {
+				logger.info("Adding new server "+server.toString());
+				metadata.addServer(server);
+			}
+		}
+		return success;
 	}
-	
-	/***
-	 * Helper function which sends an addNode message to server sender telling it to 
-	 * send data to server newServer.
+
+	/**
+	 * Run the moves of a rebalance plan, up to rebalanceParallelism at once. Servers keep
+	 * taking writes while they send and forward them at the end of each move. All transfers of
+	 * a server share its transfer throttle, so no server takes part in two moves at the same
+	 * time, as a second move would only slow the first down; a move starts as soon as both of
+	 * its servers are free. Returns true if all moves succeeded.
 	 */
-	private boolean sendAddNode(Server sender, Server newServer) {
-		logger.info("Sending addNode message to successor " + sender.toString());
-		try {
-			KVMessage response = sendSingleMessage(sender, new KVAdminMessage("addNode","",newServer.toString(),""));
-			if (!response.getStatus().equals("SUCCESS")) {
-				logger.info("Successor: Unable to transfer data to "+newServer.toString());
+	private boolean executeMoves(List<RebalancePlanner.Move> moves) {
+		final String mode = snapshotBootstrap ? "SNAPSHOT" : "";
+		List<RebalancePlanner.Move> pending = new ArrayList<RebalancePlanner.Move>(moves);
+		Map<Future<Boolean>, RebalancePlanner.Move> running = new HashMap<Future<Boolean>, RebalancePlanner.Move>();
+		CompletionService<Boolean> completion = new ExecutorCompletionService<Boolean>(broadcastPool);
+		Set<Server> busy = new HashSet<Server>();
+		boolean success = true;
+		while (!pending.isEmpty() || !running.isEmpty()) {
+			Iterator<RebalancePlanner.Move> it = pending.iterator();
+			while (running.size() < rebalanceParallelism && it.hasNext()) {
+				final RebalancePlanner.Move move = it.next();
+				if (busy.contains(move.source) || busy.contains(move.destination)) {
+					continue;
+				}
+				it.remove();
+				busy.add(move.source);
+				busy.add(move.destination);
+				running.put(completion.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						logger.info("Moving "+move.toString());
+						try {
+							KVMessage response = sendSingleMessage(move.source, new KVAdminMessage("removeNode",mode,move.destination.toString(),HashRing.formatRanges(move.ranges)));
+							return response != null && response.getStatus().equals("SUCCESS");
+						} catch (IOException e) {
+							return false;
+						}
+					}
+				}), move);
+			}
+			Future<Boolean> result;
+			try {
+				result = completion.take();
+			} catch (InterruptedException e) {
 				return false;
 			}
+			RebalancePlanner.Move move = running.remove(result);
+			busy.remove(move.source);
+			busy.remove(move.destination);
+			boolean done = false;
+			try {
+				done = result.get();
+			} catch (Exception e) {
+				logger.debug(e.getMessage());
+			}
+			if (!done) {
+				logger.error("Unable to move data from "+move.source.toString()+" to "+move.destination.toString());
+				success = false;
+			}
 		}
-		catch (Exception e) {
-			logger.info("Successor: Unable to send moveData message to server " + sender.toString()+
-					". Error: "+e.getMessage());
-			return false;
-		}
-		return true;
+		return success;
+	}
+
+	/**
+	 * Tell every server in the metadata to drop the keys it no longer owns or replicates, once
+	 * all moves of a change of the ring succeeded. After a failed move the keys stay where they
+	 * are, the previous holders may be the only servers which still have them.
+	 */
+	private void cleanup() {
+		KVMessage message = new KVAdminMessage("cleanup","","",String.valueOf(metadata.getEpoch()));
+		logger.info("Broadcasting "+message.getMsg());
+		warnUnsuccessful(broadcast(message, null, 5, metadata.getAllServers()), "the cleanup");
 	}
 
 	/**
@@ -463,21 +852,26 @@ public class ECS {
 	 */
 
 	public boolean removeNode(int index) {	
-		//validity checking
-		if (index < 0 || index >= totalNumNodes){
-			logger.error("index "+index+" out of range");
-			return false;
-		}
-		Server server = allServers.get(index);
-		if (!metadata.contains(server)){
-			logger.error("Server "+index+" is already offline");
-			return false;
-		}
+		m_metadataLock.writeLock().lock();
+		try {
+			//validity checking
+			if (index < 0 || index >= totalNumNodes){
+				logger.error("index "+index+" out of range");
+				return false;
+			}
+			Server server = allServers.get(index);
+			if (!metadata.contains(server)){
+				logger.error("Server "+index+" is already offline");
+				return false;
+			}
 
-		boolean success = removeNodeReconstruct(server);
+			boolean success = removeNodeReconstruct(server);
 
-		killServer(index);
-		return success;
+			killServer(index);
+			return success;
+		} finally {
+			m_metadataLock.writeLock().unlock();
+		}
 	}
 	
 	/**
@@ -486,201 +880,315 @@ public class ECS {
 	 * invariant.
 	 */
 	public boolean removeNodeReconstruct(Server server) {
+		m_metadataLock.writeLock().lock();
 		try {
-			readMetadata();
-		} catch (IOException e) {
-			logger.error("Metadata reading error: " + e.toString());
-		}
-		logger.info("Removing node "+server.toString());
-		
-		//update metadata
-		metadata.removeServer(server);
-		writeMetadata();
-		// Broadcast metadata first. getSuccessor/getPredecessor works with servers that
-		// are not in the hash ring by the way
-		broadcast(new KVAdminMessage("metadata","","",metadata.toString()), 5);
+			try {
+				readMetadata();
+			} catch (IOException e) {
+				logger.error("Metadata reading error: " + e.toString());
+			}
+			logger.info("Removing node "+server.toString());
 		
-		//More robust best effort implementation in case predecessors and/or successors have failed, we try to send 
-		//the data from the closest active predecessor to the closest active successor. 
-		// No point looking beyond 3 nodes - if they have all crashed then the data is lost. 	
+			//remember the ring before taking the server out of it
+			HashRing before = new HashRing(metadata.toString());
 		
-		Server pred = metadata.getPredecessor(server);
-		if (pred == null) {
-			return false;
-		}
-		boolean success = false;
+			//update metadata
+			removeFromRing(server);
+			writeMetadata();
+			// Broadcast metadata first, the servers work out the ranges they send from the new ring
+			broadcastMetadata(5);
 		
-		for (int i=0; i<3; i++) {
-			logger.info("removeNode: Trying to transfer data starting from predecessor "+pred.toString());
-			// When we remove a node, the SUCCESSOR of this node is now responsible for data of the DOUBLE PREDECESSOR
-			// of this node. Since we can grab that data from just the FIRST PREDECESSOR, that is enough
-			// Also up to this node's TRIPLE SUCCESSOR, they all are now responsible for some new data
-			Server successor = metadata.getSuccessor(server);
-			if (successor == null) {
+			if (metadata.getAllServers().isEmpty()) {
 				return false;
 			}
-			Server successor2 = metadata.getSuccessor(successor);
-			Server successor3 = metadata.getSuccessor(successor2);
-			
-			try {
-				KVMessage response = sendSingleMessage(pred, new KVAdminMessage("removeNode","",successor.toString(),""));
-				if (!response.getStatus().equals("SUCCESS")){
-					logger.info("removeNode1: Unable to transfer data from "+ pred.toString());
-					//return false;
-					//rather than giving up and returning false, try to transfer the data from the predecessor to next successor
-					successor = pred;
-				}
-				
-				response = sendSingleMessage(successor, new KVAdminMessage("removeNode","",successor2.toString(),""));
-				if (!response.getStatus().equals("SUCCESS")){
-					logger.info("removeNode2: Unable to transfer data from "+ successor.toString());
-					//return false;
-					//rather than giving up and returning false, try to transfer the data from the predecessor to next successor
-					successor2 = successor;
-				}
-				
-				response = sendSingleMessage(successor2, new KVAdminMessage("removeNode","",successor3.toString(),""));
-				if (!response.getStatus().equals("SUCCESS")){
-					logger.info("removeNode3: Unable to transfer data from "+ successor2.toString());
-					//return false;
-				}
-				success = true; //sort of
-				break;
+			// Every key of the removed server has two other holders, so the ranges which changed 
+			// hands are sent by those, whether or not the removed server is still alive
+			boolean success = executeMoves(RebalancePlanner.plan(before, metadata, Arrays.asList(server)));
+			if (success) {
+				cleanup();
 			}
-			catch (Exception e) {
-				logger.info("removeNode: Unable to connect to predecessor "+pred.toString());
-				//Try again with the next predecssor
-				pred = metadata.getPredecessor(pred);
-			}
-		}		
 		
-		writeMetadata();
-		return success;
+			writeMetadata();
+			balanceLoad();
+			return success;
+		} finally {
+			m_metadataLock.writeLock().unlock();
+		}
 	}
-
+	
 	/**
-	 * Get list of Client objects for every active server in the current metadata (i.e.
-	 * servers which can be connected to successfully). 
-	 * If a server can't be connected to, wait for 1 second and try again up to a maximum
-	 * of numTries times.
-	 * Any servers which can't still be connected to are removed from the metadata.
+	 * In bounded-load mode, collect the load of every virtual node from the servers, assign 
+	 * overloaded arcs to the next servers of their replica sets and broadcast the new metadata. 
+	 * Returns false if the mode is off.
 	 */
-	private ArrayList<Client> getActiveServers(int numTries) {
-		List<Server> activeServers = metadata.getAllServers();
-		ArrayList<Client> clients = new ArrayList<Client>();
-
-		for (int i = 0; i < activeServers.size(); ++i) {
-			Server server = activeServers.get(i);
-
-			boolean success=false;
-			int triesRemaining = numTries;
-			while (triesRemaining-- > 0){
-				//try connecting to this server 
+	public boolean balanceLoad() {
+		m_metadataLock.writeLock().lock();
+		try {
+			if (metadata.getLoadBound() <= 0) {
+				return false;
+			}
+			Map<BigInteger,Long> loads = new HashMap<BigInteger,Long>();
+			for (Server server : metadata.getAllServers()) {
 				try {
-					logger.debug("Trying to connect to server "+server.toString());
-					Client client = new Client(server.ipAddress, server.port);
-					//wait for "connection successful" response
-					KVMessage response = client.getResponse();
-					if (response != null){
-						success = true;
-						clients.add(client);
-						break;
+					KVMessage response = sendSingleMessage(server, new KVAdminMessage("load","","",""));
+					if (response == null || !response.getStatus().equals("SUCCESS")) {
+						logger.warn("balanceLoad: No load reported by server "+server.toString());
+						continue;
 					}
+					for (String load : response.getValue().trim().split("\\s+")) {
+						String[] pair = load.split(":");
+						if (pair.length == 2) {
+							loads.put(new BigInteger(pair[0]), Long.parseLong(pair[1]));
+						}
+					}
+				} catch (Exception e) {
+					logger.warn("balanceLoad: Unable to get load of server "+server.toString()+": "+e.getMessage());
 				}
-				catch (Exception e){
-					logger.debug(e.getMessage());
-					success = false;
+			}
+			metadata.assignBoundedLoads(loads);
+			writeMetadata();
+			broadcastMetadata(5);
+			return true;
+		} finally {
+			m_metadataLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Send the given message to all the given servers at the same time and return 
+	 * each server's response, or null for the servers which did not respond. Each server is 
+	 * given numTries seconds to accept the connection, retrying once a second, and then
+	 * BROADCAST_RESPONSE_TIMEOUT to respond, so a broadcast takes as long as the slowest 
+	 * server instead of the sum of all of them. A server which answers METADATA_STALE is sent
+	 * staleMessage, if there is one.
+	 */
+	private Map<Server, KVMessage> broadcast(final KVMessage message, final KVMessage staleMessage, int numTries, Collection<Server> servers) {
+		final long deadline = System.currentTimeMillis() + numTries * 1000L;
+		Map<Server, Future<KVMessage>> pending = new LinkedHashMap<Server, Future<KVMessage>>();
+		for (final Server server : servers) {
+			pending.put(server, broadcastPool.submit(new Callable<KVMessage>() {
+				@Override
+				public KVMessage call() {
+					return exchange(server, message, staleMessage, deadline);
 				}
+			}));
+		}
 
-				if (!success) {
-					if (triesRemaining > 0){
-						logger.debug("getActiveServers: Unable to connect to server "+server.toString()+". Waiting 1 second and trying again.");
-						try {
-							TimeUnit.SECONDS.sleep(1); 		
-						} catch (InterruptedException e){}
+		Map<Server, KVMessage> responses = new LinkedHashMap<Server, KVMessage>();
+		for (Map.Entry<Server, Future<KVMessage>> entry : pending.entrySet()) {
+			KVMessage response = null;
+			long remaining = deadline + BROADCAST_RESPONSE_TIMEOUT - System.currentTimeMillis();
+			try {
+				response = entry.getValue().get(Math.max(remaining, 1), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				entry.getValue().cancel(true);
+			} catch (Exception e) {
+				logger.debug(e.getMessage());
+			}
+			if (response == null) {
+				logger.error("Unable to reach server "+entry.getKey().toString()+" within "+numTries+" seconds.");
+			}
+			responses.put(entry.getKey(), response);
+		}
+		return responses;
+	}
+
+	/**
+	 * Connect to the server, retrying once a second until the deadline, and send it the 
+	 * message. Returns its response, or null if it could not be reached.
+	 */
+	private KVMessage exchange(Server server, KVMessage message, KVMessage staleMessage, long deadline) {
+		while (true) {
+			Client client = null;
+			try {
+				logger.debug("Trying to connect to server "+server.toString());
+				client = new Client(server.ipAddress, server.port, BROADCAST_RESPONSE_TIMEOUT);
+				//wait for "connection successful" response
+				KVMessage response = client.getResponse();
+				if (response.getStatus().equals("CONNECT_SUCCESS")) {
+					client.sendMessage(message);
+					response = client.getResponse();
+					if (staleMessage != null && response.getStatus().equals("METADATA_STALE")) {
+						client.sendMessage(staleMessage);
+						response = client.getResponse();
 					}
+					return response;
 				}
-				else {
-					logger.info("Connection successful to server "+server.toString());
-					break;
+			}
+			catch (IOException e) {
+				logger.debug(e.getMessage());
+			}
+			finally {
+				if (client != null) {
+					client.closeConnection();
 				}
 			}
-
-			//connected successfully or tried unsuccessfully numTries times
-			if (!success) {
-				//metadata.removeServer(server);
-				logger.error("Unable to connect to server "+server.toString()+" after "+numTries+" attempts.");
+			if (System.currentTimeMillis() + 1000 > deadline) {
+				return null;
 			}
-			else {
-				logger.info("Connection successful to server "+server.toString());
+			logger.debug("Unable to connect to server "+server.toString()+". Waiting 1 second and trying again.");
+			try {
+				TimeUnit.SECONDS.sleep(1);
+			} catch (InterruptedException e) {
+				return null;
 			}
 		}
-
-		return clients;
 	}
 
 	/**
-	 * Send the given message to all responsive servers in the metadata.
-	 * If unable to connect the the server, wait for 1 second and try again for 
-	 * a maximum of numTries times.
+	 * Send the given message to all responsive servers in the metadata and warn about the
+	 * ones which did not process it.
 	 */
 	private void broadcast(KVMessage message, int numTries) {
-		//connect to each server and send them the metadata
 		logger.info("Broadcasting "+message.getMsg());
-		ArrayList<Client> clients = getActiveServers(numTries);
-		if (clients.size() == 0){
+		warnUnsuccessful(broadcast(message, null, numTries, metadata.getAllServers()), "the request "+message.toString());
+	}
+
+	private void warnUnsuccessful(Map<Server, KVMessage> responses, String what) {
+		if (responses.isEmpty()) {
 			logger.warn("There does not appear to be any servers online.");
 		}
-		for (Client client : clients) {
-			try {
-				client.sendMessage(message);
-				KVMessage response = client.getResponse();
-				if (!response.getStatus().equals("SUCCESS")) {
-					logger.warn("A server did not successfully process the request "+message.toString());
-				}	
+		for (Map.Entry<Server, KVMessage> entry : responses.entrySet()) {
+			KVMessage response = entry.getValue();
+			if (response == null || !response.getStatus().equals("SUCCESS")) {
+				logger.warn("Server "+entry.getKey().toString()+" did not successfully process "+what);
 			}
-			catch (IOException e){
-				logger.warn("A server did not successfully process the request "+message.toString());
+		}
+	}
+
+	/**
+	 * Send the metadata to all responsive servers. After the first broadcast only a diff 
+	 * against the last broadcast ring is sent, and servers which do not have that ring 
+	 * (eg because they just started) reply METADATA_STALE and are sent the full ring.
+	 */
+	private void broadcastMetadata(int numTries) {
+		broadcastMetadata(numTries, metadata.getAllServers());
+	}
+
+	/**
+	 * Send the metadata to the given servers, which may include servers outside of it.
+	 */
+	private void broadcastMetadata(int numTries, Collection<Server> servers) {
+		if (coordinator != null) {
+			publishMetadata(numTries, servers);
+			return;
+		}
+		String full = metadata.toString();
+		KVMessage fullMessage = new KVAdminMessage("metadata","METADATA_UPDATE","",full);
+		KVMessage message = fullMessage;
+		if (lastBroadcast != null) {
+			message = new KVAdminMessage("metadata","METADATA_DIFF","",metadata.diff(lastBroadcast));
+		}
+		logger.info("Broadcasting metadata at epoch "+metadata.getEpoch());
+		warnUnsuccessful(broadcast(message, fullMessage, numTries, servers), "the metadata update");
+		lastBroadcast = new HashRing(full);
+	}
+
+	/**
+	 * Broadcast the metadata through ZooKeeper: publish it in the metadata znode, which every
+	 * server watches, and wait up to numTries seconds for the given live servers to acknowledge
+	 * its epoch. Servers which crashed are left to the failure detector.
+	 */
+	private void publishMetadata(int numTries, Collection<Server> servers) {
+		logger.info("Publishing metadata at epoch "+metadata.getEpoch());
+		if (!writeMetadata()) {
+			return;
+		}
+		List<Integer> ids = new ArrayList<Integer>();
+		for (Server server : servers) {
+			ids.add(server.id);
+		}
+		try {
+			List<Integer> behind = coordinator.awaitEpoch(ids, metadata.getEpoch(), numTries * 1000L);
+			if (!behind.isEmpty()) {
+				logger.warn("Servers "+behind+" did not acknowledge the metadata update");
 			}
-			client.closeConnection();
+		} catch (IOException e) {
+			logger.warn("Unable to confirm the metadata update: "+e.getMessage());
 		}
 	}
 
+	/**
+	 * Launch the server and add it to the metadata. The server is not necessarily online yet
+	 * when this returns, see ServerLauncher.awaitReady.
+	 */
 	public void runServer(Server server, int cacheSize, String replacementStrategy) {
+		if (launchServer(server, cacheSize, replacementStrategy)) {
+			metadata.addServer(server);
+		}
+	}
+
+	/**
+	 * Launch the server with the cache size and replacement strategy of the service. Safe to 
+	 * call from several threads at once.
+	 */
+	private boolean launchServer(Server server) {
+		return launchServer(server, ECS.cacheSize, ECS.replacementStrategy);
+	}
+
+	private boolean launchServer(Server server, int cacheSize, String replacementStrategy) {
 		logger.info("Launching server "+server.toString());
 
-		// Launch the server
-		String jarPath = new File(System.getProperty("user.dir"), "ms2-server.jar").toString();
-		String launchCmd = "java -jar "+jarPath+" "+server.port+" "+cacheSize+" "+replacementStrategy+" "+server.id; 
-		String sshCmd = "ssh -n "+server.ipAddress+" nohup "+launchCmd;
+		List<String> options = new ArrayList<String>();
+		if (proxyMode) {
+			options.add("proxy");
+		}
+		if (mappedStorage) {
+			options.add("mmap");
+		}
+		if (zooKeeper != null) {
+			options.add("zk="+zooKeeper);
+		}
+		if (heartbeatMonitor != null) {
+			options.add("hb="+heartbeatAddress);
+			options.add("hbms="+heartbeatInterval);
+			//suspect the server if its first heartbeat does not arrive
+			heartbeatMonitor.getDetector().expect(server.id, System.currentTimeMillis());
+		}
+		if (transferOps > 0) {
+			options.add("xferops="+transferOps);
+		}
+		if (transferBytes > 0) {
+			options.add("xferbytes="+transferBytes);
+		}
+		if (syncPolicy != null) {
+			options.add("fsync="+syncPolicy);
+		}
+		if (offHeapCache > 0) {
+			options.add("offheap="+offHeapCache);
+		}
 
-		// Use ssh to launch servers
 		try {
-			Process p = Runtime.getRuntime().exec(sshCmd);
-			allProcesses.set(server.id,  p);
-			metadata.addServer(server);
+			launcher.launch(server, cacheSize, replacementStrategy, options);
+			return true;
 		}
 		catch (IOException e){
-			logger.warn("Warning: Unable to ssh to server "+server.toString()+". Error: "+e.getMessage());
+			logger.warn("Warning: Unable to launch server "+server.toString()+". Error: "+e.getMessage());
+			return false;
 		}
 	}
 
 
 	private void killServer(int id) {		
-		Process p = allProcesses.get(id);
-		Server server = allServers.get(id);
-		logger.info("Killing server "+server.ipAddress+" "+server.port);
-		if (p != null){
-			p.destroy();
-		}
-		allProcesses.set(id, null);
+		launcher.kill(allServers.get(id));
+		forgetHeartbeats(id);
+	}
 
-		String killCmd = "ssh -n "+ server.ipAddress +" nohup fuser -k " + server.port + "/tcp";
-		try {
-			Process killing_p = Runtime.getRuntime().exec(killCmd);
-			//killing_p.destroy();
-		} catch (IOException e) {
-			System.out.println(e.getMessage()); 
+	/**
+	 * Take the server out of the ring and stop tracking its heartbeats.
+	 */
+	private void removeFromRing(Server server) {
+		metadata.removeServer(server);
+		forgetHeartbeats(server.id);
+	}
+
+	/**
+	 * Drop the heartbeat history of a server which left the service, so the detector neither
+	 * keeps it forever nor judges a server started later under the same id by stale intervals.
+	 */
+	private void forgetHeartbeats(int id) {
+		if (heartbeatMonitor != null) {
+			heartbeatMonitor.getDetector().remove(id);
 		}
 	}
 
@@ -727,55 +1235,116 @@ public class ECS {
 	}
 
 	/**
-	 * Write metadata to metadata file.
+	 * Write metadata to metadata file, or to the metadata znode when using ZooKeeper.
 	 */
 	public boolean writeMetadata() {
-		LockMetadata();
+		m_metadataLock.writeLock().lock();
 		try {
-			PrintWriter writer = new PrintWriter(metadataFile, "UTF-8");
+			return writeMetadataLocked();
+		} finally {
+			m_metadataLock.writeLock().unlock();
+		}
+	}
+
+	private boolean writeMetadataLocked() {
+		if (coordinator != null) {
+			try {
+				coordinator.publishMetadata(metadata.toString());
+				return true;
+			} catch (IOException e) {
+				logger.warn("Could not write metadata to ZooKeeper: "+e.getMessage());
+				return false;
+			}
+		}
+		FileLock lock = null;
+		try {
+			lock = lockMetadataFile();
+			// Write a temporary file and rename it over the metadata file, so other processes 
+			// read either the old or the new metadata and never a partial write
+			File temp = new File(metadataFile + ".tmp");
+			PrintWriter writer = new PrintWriter(temp, "UTF-8");
 			writer.println(metadata.toString());
 			writer.close();
-			// Release LockMetadata
-			UnlockMetadata();
+			Files.move(temp.toPath(), new File(metadataFile).toPath(), 
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			rememberMetadataFile();
 			return true;
 		}
 		catch (Exception e) {
 			logger.warn("Could not write metadata to file");
-			// Release LockMetadata if exception
-			UnlockMetadata();
 			return false;
 		}
+		finally {
+			if (lock != null) {
+				unlockMetadataFile(lock);
+			}
+		}
+	}
+
+	private void rememberMetadataFile() {
+		File file = new File(metadataFile);
+		m_metadataFileStamp = file.lastModified();
+		m_metadataFileLength = file.length();
+	}
+
+	private boolean metadataFileUnchanged() {
+		File file = new File(metadataFile);
+		return file.lastModified() == m_metadataFileStamp && file.length() == m_metadataFileLength;
 	}
 
 	/**
-	 * Read metadata from the metadata file and store it in this.metadata
+	 * Read metadata from the metadata file, or from the metadata znode when using ZooKeeper,
+	 * and store it in this.metadata. While the file is unchanged readers only share the read
+	 * lock, the write lock is taken to load a changed file or the znode.
 	 */
 	public String readMetadata() throws IOException{
-		LockMetadata();
-		
-		BufferedReader FileReader;
-		
-		try {
-			File metadataTest = new File(this.metadataFile);
-			if (metadataTest.isFile()) {
-				FileReader = new BufferedReader(new FileReader(metadataFile));
-				String data = FileReader.readLine();
-				FileReader.close();
-				metadata = new HashRing(data);
-			} else {
-				metadata = new HashRing();
+		// A thread in a reconfiguration already holds the write lock and reloads under it
+		if (coordinator == null && !m_metadataLock.isWriteLockedByCurrentThread()) {
+			m_metadataLock.readLock().lock();
+			try {
+				if (metadataFileUnchanged()) {
+					return metadata.toString();
+				}
+			} finally {
+				m_metadataLock.readLock().unlock();
 			}
-			// Release LockMetadata
-			UnlockMetadata();
 		}
-		catch (Exception e) {
-			logger.warn("Could not read metadata from file");
-			// Release lock if exception
-			UnlockMetadata();
-			//FileReader.close();
-			return null;
+		m_metadataLock.writeLock().lock();
+		try {
+			if (coordinator != null) {
+				String data = coordinator.readMetadata();
+				metadata = (data == null) ? newMetadata() : new HashRing(data);
+				return metadata.toString();
+			}
+			
+			BufferedReader FileReader;
+			
+			try {
+				File metadataTest = new File(this.metadataFile);
+				if (metadataFileUnchanged()) {
+					// Nobody changed the file since this ECS last read or wrote it, or another
+					// reader loaded it while this one waited for the write lock
+					return metadata.toString();
+				}
+				if (metadataTest.isFile()) {
+					FileReader = new BufferedReader(new FileReader(metadataFile));
+					String data = FileReader.readLine();
+					FileReader.close();
+					metadata = new HashRing(data);
+				} else {
+					metadata = newMetadata();
+				}
+				rememberMetadataFile();
+			}
+			catch (Exception e) {
+				logger.warn("Could not read metadata from file");
+				//FileReader.close();
+				return null;
+			}
+			return metadata.toString();
+		} finally {
+			m_metadataLock.writeLock().unlock();
 		}
-		return metadata.toString();
 	}
 
 	public void printState() {
@@ -785,6 +1354,15 @@ public class ECS {
 			logger.error("Metadata reading error: " + e.toString());
 		}
 		
+		m_metadataLock.readLock().lock();
+		try {
+			printStateLocked();
+		} finally {
+			m_metadataLock.readLock().unlock();
+		}
+	}
+
+	private void printStateLocked() {
 		System.out.println("\nStorage service current state");
 		System.out.println("==========================================");
 		System.out.println("Status: "+(status==ServerStatus.STOPPED ? "STOPPED" : "ACTIVE"));
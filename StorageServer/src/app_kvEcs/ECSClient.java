@@ -21,7 +21,7 @@ public class ECSClient {
 		stopECSClient = true;
 		try {
 			this.ecs = new ECS(configFile);
-			this.failureDetector = new ECSFailureDetect(configFile);
+			this.failureDetector = new ECSFailureDetect(this.ecs);
 			stopECSClient = false;
 		}
 		catch (IOException e){
@@ -69,6 +69,7 @@ public class ECSClient {
 		case "shutDown":
 		case "help":
 		case "printState":
+		case "balanceLoad":
 			expectedNumArgs = 0;
 			break;
 		case "addNode":
@@ -117,6 +118,7 @@ public class ECSClient {
 			stopECSClient = true;
 			ecs.shutDown();
 			failureDetector.stopFailureDetect();
+			ecs.close();
 			break;
 		case "help":
 			printHelp();
@@ -144,6 +146,11 @@ public class ECSClient {
 		case "printState":
 			ecs.printState();
 			break;
+		case "balanceLoad":
+			if (!ecs.balanceLoad()) {
+				printError("Bounded-load mode is off, add a \"bound <epsilon>\" line to the config file");
+			}
+			break;
 		}
 	}
 	
@@ -174,6 +181,8 @@ public class ECSClient {
 		sb.append("ALL | DEBUG | INFO | WARN | ERROR | FATAL | OFF \n");
 		sb.append("printState");
 		sb.append("\t\t\t\t Prints a list of all the servers and their current status\n");
+		sb.append("balanceLoad");
+		sb.append("\t\t\t\t Reassigns overloaded hash ranges (needs a bound line in the config file)\n");
 		System.out.println(sb.toString());
 	}
 	
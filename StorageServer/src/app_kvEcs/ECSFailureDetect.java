@@ -8,6 +8,11 @@ import java.net.BindException;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.log4j.Logger;
 
@@ -16,12 +21,24 @@ import app_kvServer.KVServer;
 import client.Client;
 import common.HashRing;
 import common.HashRing.Server;
+import common.ZooKeeperCoordinator;
 import common.messages.KVMessage;
 
 public class ECSFailureDetect extends Thread {
 
 	public boolean m_running;
 	private ECS m_ecs;
+	// Notified when a server's ephemeral znode appears or disappears, so that with ZooKeeper a
+	// crash is handled as soon as its session ends instead of at the next periodic check
+	private final Object m_membershipChanged = new Object();
+	private final ExecutorService m_probePool = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "failure-probe");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
 
 	/**
 	 * Constructs a new HeartBeat object for a given TCP socket.
@@ -30,8 +47,27 @@ public class ECSFailureDetect extends Thread {
 	 * @throws FileNotFoundException 
 	 */
 	public ECSFailureDetect(String configFile) throws FileNotFoundException, IOException, Exception {
-		this.m_ecs = new ECS(configFile);
+		this(new ECS(configFile));
+	}
+
+	/**
+	 * Constructs a failure detector working on the given ECS, which it shares with the ECS
+	 * client. The ECS serializes their reconfigurations with its metadata lock.
+	 */
+	public ECSFailureDetect(ECS ecs) throws IOException {
+		this.m_ecs = ecs;
 		this.m_running = true;
+		ZooKeeperCoordinator coordinator = m_ecs.getCoordinator();
+		if (coordinator != null) {
+			coordinator.watchServers(new ZooKeeperCoordinator.MembershipListener() {
+				@Override
+				public void membershipChanged(Collection<Integer> liveServers) {
+					synchronized (m_membershipChanged) {
+						m_membershipChanged.notifyAll();
+					}
+				}
+			});
+		}
 	}
 
 	/**
@@ -42,7 +78,10 @@ public class ECSFailureDetect extends Thread {
 		while (isRunning()) {
 			// Periodically check whether servers are alive using ECS funtion GetAllServers
 			try {
-				Thread.sleep(10000);
+				synchronized (m_membershipChanged) {
+					// With heartbeats checking is cheap, so check as often as they arrive
+					m_membershipChanged.wait(m_ecs.getHeartbeatDetector() != null ? m_ecs.getHeartbeatInterval() : 10000);
+				}
 			} catch (InterruptedException e) {}
 			List<Server> failedServers = detectFailures();
 			restoreService(failedServers);
@@ -59,71 +98,137 @@ public class ECSFailureDetect extends Thread {
 	
 	/**
 	 * Tries to connect to every server in the metadata and returns and list of all
-	 * servers which it could not connect to.
+	 * servers which it could not connect to. With ZooKeeper no connections are made, the
+	 * failed servers are the ones without an ephemeral znode. With heartbeats they are the
+	 * ones the phi accrual detector suspects.
 	 */
 	public List<Server> detectFailures() {
+		if (m_ecs.getCoordinator() != null) {
+			return detectFailuresZooKeeper();
+		}
+		if (m_ecs.getHeartbeatDetector() != null) {
+			return detectFailuresHeartbeat();
+		}
 		//System.out.println("Checking for server failures");
 		HashRing metadata = m_ecs.getMetaData();
 		List<Server> activeServers = metadata.getAllServers();
 		List<Server> failedServers = new ArrayList<Server>();
-		
-		for (Server server : activeServers) {
-			int triesRemaining = 3;
+
+		// Probe all servers at once, so checking takes as long as the slowest probe
+		List<Future<Boolean>> probes = new ArrayList<Future<Boolean>>();
+		for (final Server server : activeServers) {
+			probes.add(m_probePool.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return probe(server);
+				}
+			}));
+		}
+		for (int i = 0; i < activeServers.size(); i++) {
 			boolean success = false;
-			
-			//System.out.println("Checking if online: " + server.toString());
-			
-			while (triesRemaining-- > 0){
-				//try connecting to this server 
-				success = false;
-				try {
-					// Only a connection test, set a low timeout
-					Client client = new Client(server.ipAddress, server.port, 1000);
-					//wait for "connection successful" response
-					KVMessage response = client.getResponse();
-					client.closeConnection();
-					if (response.getStatus().equals("CONNECT_SUCCESS")) {
-						// Make sure it is connect success. Could also receive TIME_OUT
-						success = true;
-						break;
-					}
-				} catch (Exception e){}
-				//wait a bit before trying to connect again
+			try {
+				success = probes.get(i).get();
+			} catch (Exception e) {}
+			if (!success) {
+				failedServers.add(activeServers.get(i));
+			}
+		}
+		return failedServers;
+	}
+
+	/**
+	 * Try to connect to the server up to 3 times, 1 second apart. Returns true if it responded.
+	 */
+	private boolean probe(Server server) {
+		int triesRemaining = 3;
+		while (triesRemaining-- > 0){
+			//try connecting to this server 
+			try {
+				// Only a connection test, set a low timeout
+				Client client = new Client(server.ipAddress, server.port, 1000);
+				//wait for "connection successful" response
+				KVMessage response = client.getResponse();
+				client.closeConnection();
+				if (response.getStatus().equals("CONNECT_SUCCESS")) {
+					// Make sure it is connect success. Could also receive TIME_OUT
+					return true;
+				}
+			} catch (Exception e){}
+			//wait a bit before trying to connect again
+			if (triesRemaining > 0) {
 				try {
 					Thread.sleep(1000);
-				} catch (InterruptedException e) {}
+				} catch (InterruptedException e) {
+					return false;
+				}
 			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns the servers in the metadata whose ephemeral znode is missing. Like the tries of
+	 * the connection test, a server is given 3 seconds to register, since a server which was 
+	 * just launched may be in the metadata before its session is established.
+	 */
+	private List<Server> detectFailuresZooKeeper() {
+		ZooKeeperCoordinator coordinator = m_ecs.getCoordinator();
+		List<Server> failedServers = new ArrayList<Server>(m_ecs.getMetaData().getAllServers());
+		int triesRemaining = 3;
+		while (triesRemaining-- > 0) {
+			try {
+				Set<Integer> live = coordinator.liveServers().keySet();
+				Iterator<Server> it = failedServers.iterator();
+				while (it.hasNext()) {
+					if (live.contains(it.next().id)) {
+						it.remove();
+					}
+				}
+			} catch (IOException e) {
+				// Without ZooKeeper nothing is known about the servers, assume they are fine
+				return new ArrayList<Server>();
+			}
+			if (failedServers.isEmpty() || triesRemaining == 0) {
+				break;
+			}
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException e) {}
+		}
+		return failedServers;
+	}
 
-			if (!success) {
+	/**
+	 * Returns the servers in the metadata whose heartbeats stopped. A server this ECS has not
+	 * heard of yet, eg because the ECS was restarted, gets an interval from now to send one.
+	 */
+	private List<Server> detectFailuresHeartbeat() {
+		PhiAccrualDetector detector = m_ecs.getHeartbeatDetector();
+		List<Server> failedServers = new ArrayList<Server>();
+		long now = System.currentTimeMillis();
+		for (Server server : m_ecs.getMetaData().getAllServers()) {
+			if (!detector.isTracked(server.id)) {
+				detector.expect(server.id, now);
+			} else if (detector.isSuspected(server.id, now)) {
 				failedServers.add(server);
 			}
 		}
 		return failedServers;
 	}
-	
+
 	/**
 	 * Tries to reconstruct the service after failedServers servers have failed by transferring 
-	 * the data around to maintain the replication invariant defined in milestone 3.
+	 * the data around to maintain the replication invariant defined in milestone 3. All failed
+	 * servers are removed, and replaced if doAdd is set, in one change of the ring, so two 
+	 * servers failing together take about as long to recover from as one.
 	 */
 	public boolean restoreService(List<Server> failedServers, boolean doAdd) {
-		boolean success = true;
-		for (Server server : failedServers) {
-			//System.out.println("Server "+server+" appears to have crashed");
-			//This server seems to have failed. Handle it by calling ecs.removeNode
-			//Note that ecs.removeNode does not need the server to be alive to operate. It
-			//just moves around the data to account for the loss. 
-			if(!m_ecs.removeNodeReconstruct(server)) {
-		        success = false;
-		        //System.out.println("Remove node in Failure Detection FAILED!");
-		    }
-			//success = success && m_ecs.removeNodeReconstruct(server);	
-			//replace the dead server
-			if (doAdd) {
-				success = success && m_ecs.addRandomNode(ECS.cacheSize, ECS.replacementStrategy);
-			}
-			//Note: removeNode and addNode will update everyone's metadata			
+		if (failedServers.isEmpty()) {
+			return true;
 		}
-		return success;
+		//Note: recoverServers does not need the failed servers to be alive to operate. It
+		//just moves around the data to account for the loss and updates everyone's metadata
+		return m_ecs.recoverServers(failedServers, doAdd);
 	}
 
 	public boolean restoreService(List<Server> failedServers) {
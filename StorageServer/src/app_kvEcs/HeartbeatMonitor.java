@@ -0,0 +1,66 @@
+package app_kvEcs;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Receives the heartbeats servers send over UDP, "heartbeat <id>" datagrams, and records
+ * them in a phi accrual detector. A heartbeat is a single datagram with no connection and
+ * no response, so servers can send one every few hundred milliseconds and a failure is
+ * noticed within a few intervals instead of after a round of TCP probes.
+ */
+public class HeartbeatMonitor extends Thread {
+	private static Logger logger = Logger.getRootLogger();
+	public static final String HEARTBEAT = "heartbeat";
+	private final DatagramSocket m_socket;
+	private final PhiAccrualDetector m_detector;
+	private volatile boolean m_running = true;
+
+	public HeartbeatMonitor(int port, PhiAccrualDetector detector) throws SocketException {
+		super("heartbeat-monitor");
+		this.m_socket = new DatagramSocket(port);
+		this.m_detector = detector;
+		setDaemon(true);
+	}
+
+	public PhiAccrualDetector getDetector() {
+		return m_detector;
+	}
+
+	public int getPort() {
+		return m_socket.getLocalPort();
+	}
+
+	public void run() {
+		byte[] buffer = new byte[64];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		while (m_running) {
+			try {
+				packet.setLength(buffer.length);
+				m_socket.receive(packet);
+				String[] tokens = new String(packet.getData(), 0, packet.getLength(), "UTF-8").trim().split(" ");
+				if (tokens.length == 2 && tokens[0].equals(HEARTBEAT)) {
+					m_detector.heartbeat(Integer.parseInt(tokens[1]), System.currentTimeMillis());
+				}
+			} catch (NumberFormatException e) {
+				logger.debug("Ignoring malformed heartbeat");
+			} catch (IOException e) {
+				if (m_running) {
+					logger.error("Unable to receive heartbeats: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop receiving heartbeats and free the port.
+	 */
+	public void close() {
+		m_running = false;
+		m_socket.close();
+	}
+}
@@ -0,0 +1,162 @@
+package app_kvEcs;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The phi accrual failure detector of Hayashibara et al., as used by Cassandra and Akka.
+ * Instead of declaring a server dead after a fixed timeout, it keeps a window of the
+ * intervals between the server's last heartbeats and computes phi, the suspicion that the
+ * server has failed given how long ago its last heartbeat arrived. Phi is -log10 of the
+ * probability that a heartbeat arrives this late if the server is alive, assuming intervals
+ * are normally distributed, so a threshold of 8 means a 1 in 10^8 chance of a false
+ * suspicion. Servers with jittery heartbeats therefore get more time than regular ones.
+ * Times are in milliseconds and passed in, so the detector can be tested without waiting.
+ */
+public class PhiAccrualDetector {
+	// Suspicion above which a server is considered failed
+	private final double m_threshold;
+	// Number of intervals kept per server
+	private final int m_windowSize;
+	// Lower bound of the standard deviation, so perfectly regular heartbeats do not make
+	// the detector suspect a server after a few milliseconds of delay
+	private final double m_minStdDeviation;
+	// Delay added to the mean interval which is never suspicious, eg for garbage collection
+	private final double m_acceptablePause;
+	// Interval assumed for a server before its first heartbeats arrived
+	private final double m_firstInterval;
+	private final Map<Integer, History> m_histories = new HashMap<Integer, History>();
+
+	/**
+	 * The intervals between the last heartbeats of one server with their running sums.
+	 */
+	private static final class History {
+		final long[] intervals;
+		int count = 0;
+		int next = 0;
+		double sum = 0;
+		double sumSquares = 0;
+		long last;
+
+		History(int windowSize, long now) {
+			this.intervals = new long[windowSize];
+			this.last = now;
+		}
+
+		void add(long interval) {
+			if (count == intervals.length) {
+				long oldest = intervals[next];
+				sum -= oldest;
+				sumSquares -= (double) oldest * oldest;
+			} else {
+				count++;
+			}
+			intervals[next] = interval;
+			next = (next + 1) % intervals.length;
+			sum += interval;
+			sumSquares += (double) interval * interval;
+		}
+
+		double mean() {
+			return sum / count;
+		}
+
+		double stdDeviation() {
+			double mean = mean();
+			return Math.sqrt(Math.max(sumSquares / count - mean * mean, 0));
+		}
+	}
+
+	public PhiAccrualDetector(double threshold, int windowSize, double minStdDeviation, double acceptablePause, double firstInterval) {
+		this.m_threshold = threshold;
+		this.m_windowSize = windowSize;
+		this.m_minStdDeviation = minStdDeviation;
+		this.m_acceptablePause = acceptablePause;
+		this.m_firstInterval = firstInterval;
+	}
+
+	/**
+	 * A detector for servers sending a heartbeat every interval milliseconds.
+	 */
+	public PhiAccrualDetector(double threshold, long interval) {
+		this(threshold, 100, interval / 4.0, 0, interval);
+	}
+
+	/**
+	 * Start tracking a server as if it sent a heartbeat now, eg when it is launched, so that
+	 * it is suspected if it never sends one. The history is seeded with intervals around
+	 * the first interval estimate until real ones arrive.
+	 */
+	public synchronized void expect(int id, long now) {
+		History history = new History(m_windowSize, now);
+		double deviation = m_firstInterval / 4;
+		history.add(Math.round(m_firstInterval - deviation));
+		history.add(Math.round(m_firstInterval + deviation));
+		m_histories.put(id, history);
+	}
+
+	/**
+	 * Record a heartbeat from the server.
+	 */
+	public synchronized void heartbeat(int id, long now) {
+		History history = m_histories.get(id);
+		if (history == null) {
+			expect(id, now);
+			return;
+		}
+		if (now > history.last) {
+			history.add(now - history.last);
+		}
+		history.last = now;
+	}
+
+	/**
+	 * Stop tracking a server, eg after it was removed from the service.
+	 */
+	public synchronized void remove(int id) {
+		m_histories.remove(id);
+	}
+
+	/**
+	 * Return true if the server is tracked, ie it sent a heartbeat or is expected to.
+	 */
+	public synchronized boolean isTracked(int id) {
+		return m_histories.containsKey(id);
+	}
+
+	/**
+	 * Return the suspicion that the server has failed, 0 for servers which are not tracked.
+	 */
+	public synchronized double phi(int id, long now) {
+		History history = m_histories.get(id);
+		if (history == null) {
+			return 0;
+		}
+		return phi(now - history.last, history.mean() + m_acceptablePause, Math.max(history.stdDeviation(), m_minStdDeviation));
+	}
+
+	/**
+	 * Return true if the server's suspicion is above the threshold.
+	 */
+	public boolean isSuspected(int id, long now) {
+		return phi(id, now) > m_threshold;
+	}
+
+	public double getThreshold() {
+		return m_threshold;
+	}
+
+	/**
+	 * -log10 of the probability that a normally distributed interval is longer than elapsed,
+	 * using the logistic approximation of the normal distribution's CDF, which is accurate
+	 * to 10^-4 and, unlike the exact CDF, does not round to 1 far out in the tail.
+	 */
+	static double phi(long elapsed, double mean, double stdDeviation) {
+		double y = (elapsed - mean) / stdDeviation;
+		double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+		if (elapsed > mean) {
+			return -Math.log10(e / (1.0 + e));
+		}
+		return -Math.log10(1.0 - 1.0 / (1.0 + e));
+	}
+}
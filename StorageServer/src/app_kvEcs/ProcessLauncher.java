@@ -0,0 +1,124 @@
+package app_kvEcs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import app_kvServer.KVServer;
+import common.HashRing.Server;
+
+/**
+ * Launches each server as a separate java process on this machine. The server prints 
+ * KVServer.READY on its standard output once it is listening, which a thread reading the
+ * process's output pipe turns into the readiness signal. The thread keeps draining the
+ * output afterwards, so a chatty server never blocks on a full pipe.
+ */
+public class ProcessLauncher implements ServerLauncher {
+	private static Logger logger = Logger.getRootLogger();
+	private final Map<Server, Process> m_processes = new HashMap<Server, Process>();
+	private final Map<Server, Readiness> m_readiness = new HashMap<Server, Readiness>();
+
+	/**
+	 * Whether a server printed the ready line, known once the latch is released either by 
+	 * that line or by the end of the output.
+	 */
+	private static final class Readiness {
+		final CountDownLatch latch = new CountDownLatch(1);
+		volatile boolean ready = false;
+	}
+
+	/**
+	 * The command which runs the server. Runs the jar next to the ECS if there is one, 
+	 * otherwise the classes the ECS itself was loaded from.
+	 */
+	protected List<String> command(Server server, int cacheSize, String replacementStrategy, List<String> options) {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		File jar = new File(System.getProperty("user.dir"), "ms2-server.jar");
+		if (jar.exists()) {
+			command.add("-jar");
+			command.add(jar.getPath());
+		} else {
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(KVServer.class.getName());
+		}
+		command.add(Integer.toString(server.port));
+		command.add(Integer.toString(cacheSize));
+		command.add(replacementStrategy);
+		command.add(Integer.toString(server.id));
+		command.addAll(options);
+		return command;
+	}
+
+	@Override
+	public void launch(final Server server, int cacheSize, String replacementStrategy, List<String> options) throws IOException {
+		ProcessBuilder builder = new ProcessBuilder(command(server, cacheSize, replacementStrategy, options));
+		builder.redirectErrorStream(true);
+		final Process process = builder.start();
+		final Readiness readiness = new Readiness();
+		synchronized (this) {
+			m_processes.put(server, process);
+			m_readiness.put(server, readiness);
+		}
+		Thread reader = new Thread("launcher-" + server.id) {
+			public void run() {
+				try {
+					BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+					String line;
+					while ((line = output.readLine()) != null) {
+						if (!readiness.ready && line.startsWith(KVServer.READY)) {
+							readiness.ready = true;
+							readiness.latch.countDown();
+						}
+					}
+				} catch (IOException e) {
+					logger.debug("Lost the output of server " + server.toString() + ": " + e.getMessage());
+				} finally {
+					//the process exited, or at least closed its output, so it will not become ready
+					readiness.latch.countDown();
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	@Override
+	public boolean awaitReady(Server server, long timeoutMs) {
+		Readiness readiness;
+		synchronized (this) {
+			readiness = m_readiness.get(server);
+		}
+		if (readiness == null) {
+			return false;
+		}
+		try {
+			return readiness.latch.await(timeoutMs, TimeUnit.MILLISECONDS) && readiness.ready;
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public void kill(Server server) {
+		Process process;
+		synchronized (this) {
+			process = m_processes.remove(server);
+			m_readiness.remove(server);
+		}
+		logger.info("Killing server " + server.ipAddress + " " + server.port);
+		if (process != null) {
+			process.destroy();
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package app_kvEcs;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+import common.HashRing;
+import common.HashRing.Range;
+import common.HashRing.Server;
+
+/**
+ * Works out the data movement for a change of the ring by diffing the ring before and after
+ * it. The ring is cut at the tokens of both rings, so every piece between two cuts has the
+ * same three holders before and after the change. Each server which holds a piece after the
+ * change but did not before is sent exactly that piece, once, by one of the servers which
+ * held it before. Among those the least loaded one is chosen, ie the one which was planned
+ * to send the smallest share of the hash space so far, so the sending is spread over all
+ * replicas instead of falling on the first one. Adjacent pieces going the same way are merged,
+ * and all ranges between the same two servers make up one move.
+ */
+public class RebalancePlanner {
+	private static Logger logger = Logger.getRootLogger();
+
+	/**
+	 * The ranges of keys source must send to destination.
+	 */
+	public static class Move {
+		public final Server source;
+		public final Server destination;
+		public final List<Range> ranges = new ArrayList<Range>();
+
+		public Move(Server source, Server destination) {
+			this.source = source;
+			this.destination = destination;
+		}
+
+		/**
+		 * Return the number of hashes in the ranges of the move.
+		 */
+		public BigInteger width() {
+			BigInteger width = BigInteger.ZERO;
+			for (Range range : ranges) {
+				width = width.add(range.width());
+			}
+			return width;
+		}
+
+		public String toString() {
+			return source.toString()+" > "+destination.toString()+" "+ranges;
+		}
+	}
+
+	/**
+	 * Plan the moves which bring the data from the ring before to the ring after a change.
+	 * Servers in failedServers cannot send. Servers which are in before but not in after can,
+	 * as long as they are sent the new ring. Pieces whose holders have all failed are lost
+	 * and logged.
+	 */
+	public static List<Move> plan(HashRing before, HashRing after, Collection<Server> failedServers) {
+		TreeSet<BigInteger> cuts = new TreeSet<BigInteger>(before.getAllTokens());
+		cuts.addAll(after.getAllTokens());
+		Map<String, Move> moves = new LinkedHashMap<String, Move>();
+		if (cuts.isEmpty() || before.getAllServers().isEmpty()) {
+			return new ArrayList<Move>(moves.values());
+		}
+		Map<Server, BigInteger> sent = new HashMap<Server, BigInteger>();
+		BigInteger low = cuts.last();
+		for (BigInteger high : cuts) {
+			Range piece = new Range(low, high);
+			low = high;
+			List<Server> previousHolders = before.getHolders(high);
+			for (Server receiver : after.getHolders(high)) {
+				if (previousHolders.contains(receiver)) {
+					continue;
+				}
+				Server sender = leastLoaded(previousHolders, failedServers, sent);
+				if (sender == null) {
+					logger.error("Every holder of the keys in "+piece+" has failed, their data is lost");
+					break;
+				}
+				String pair = sender.toString()+" > "+receiver.toString();
+				Move move = moves.get(pair);
+				if (move == null) {
+					move = new Move(sender, receiver);
+					moves.put(pair, move);
+				}
+				add(move.ranges, piece);
+				BigInteger total = sent.get(sender);
+				sent.put(sender, (total == null ? BigInteger.ZERO : total).add(piece.width()));
+			}
+		}
+		for (Move move : moves.values()) {
+			mergeWrapAround(move.ranges);
+		}
+		return new ArrayList<Move>(moves.values());
+	}
+
+	/**
+	 * Return the holder which has not failed and was planned to send the least so far, the
+	 * first in ring order among equals. Returns null if every holder has failed.
+	 */
+	private static Server leastLoaded(List<Server> holders, Collection<Server> failedServers, Map<Server, BigInteger> sent) {
+		Server leastLoaded = null;
+		BigInteger leastSent = null;
+		for (Server holder : holders) {
+			if (failedServers.contains(holder)) {
+				continue;
+			}
+			BigInteger total = sent.containsKey(holder) ? sent.get(holder) : BigInteger.ZERO;
+			if (leastSent == null || total.compareTo(leastSent) < 0) {
+				leastLoaded = holder;
+				leastSent = total;
+			}
+		}
+		return leastLoaded;
+	}
+
+	/**
+	 * Add the piece to the ranges, extending the last range if the piece follows it.
+	 */
+	private static void add(List<Range> ranges, Range piece) {
+		if (!ranges.isEmpty()) {
+			Range last = ranges.get(ranges.size() - 1);
+			if (last.high.equals(piece.low)) {
+				ranges.set(ranges.size() - 1, new Range(last.low, piece.high));
+				return;
+			}
+		}
+		ranges.add(piece);
+	}
+
+	/**
+	 * The pieces are visited from the one wrapping around the top of the ring, so the first
+	 * and the last range are one range if the last ends where the first starts.
+	 */
+	private static void mergeWrapAround(List<Range> ranges) {
+		if (ranges.size() < 2) {
+			return;
+		}
+		Range first = ranges.get(0);
+		Range last = ranges.get(ranges.size() - 1);
+		if (last.high.equals(first.low)) {
+			ranges.set(0, new Range(last.low, first.high));
+			ranges.remove(ranges.size() - 1);
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package app_kvEcs;
+
+import java.io.IOException;
+import java.util.List;
+
+import common.HashRing.Server;
+
+/**
+ * Starts and stops the storage servers of the ECS. A server announces that it is listening
+ * as soon as its socket is open, so the ECS waits for that signal instead of trying to 
+ * connect once a second until the server answers.
+ */
+public interface ServerLauncher {
+
+	/**
+	 * Start the server with the given cache size, replacement strategy and the command line
+	 * options accepted by KVServer.main after the id. Returns once the server was started,
+	 * not once it is listening, see awaitReady.
+	 */
+	public void launch(Server server, int cacheSize, String replacementStrategy, List<String> options) throws IOException;
+
+	/**
+	 * Wait up to timeoutMs for a launched server to listen on its port. Returns false if it 
+	 * was not launched, exited or is still starting.
+	 */
+	public boolean awaitReady(Server server, long timeoutMs);
+
+	/**
+	 * Stop the server, whether or not it was launched by this launcher.
+	 */
+	public void kill(Server server);
+}
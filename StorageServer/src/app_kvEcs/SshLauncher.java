@@ -0,0 +1,49 @@
+package app_kvEcs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import common.HashRing.Server;
+
+/**
+ * Launches each server on its host over ssh, which is how the ECS ran servers from the
+ * start. ssh forwards the remote server's standard output, so the ready line arrives over
+ * the same pipe as with local processes. Killing a server also frees its port on the 
+ * remote host, in case it was started by an earlier ECS.
+ */
+public class SshLauncher extends ProcessLauncher {
+	private static Logger logger = Logger.getRootLogger();
+
+	@Override
+	protected List<String> command(Server server, int cacheSize, String replacementStrategy, List<String> options) {
+		List<String> command = new ArrayList<String>();
+		command.add("ssh");
+		command.add("-n");
+		command.add(server.ipAddress);
+		command.add("nohup");
+		command.add("java");
+		command.add("-jar");
+		command.add(new File(System.getProperty("user.dir"), "ms2-server.jar").toString());
+		command.add(Integer.toString(server.port));
+		command.add(Integer.toString(cacheSize));
+		command.add(replacementStrategy);
+		command.add(Integer.toString(server.id));
+		command.addAll(options);
+		return command;
+	}
+
+	@Override
+	public void kill(Server server) {
+		super.kill(server);
+		String killCmd = "ssh -n "+ server.ipAddress +" nohup fuser -k " + server.port + "/tcp";
+		try {
+			Runtime.getRuntime().exec(killCmd);
+		} catch (IOException e) {
+			logger.warn("Unable to free port " + server.port + " on " + server.ipAddress + ": " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package app_kvEcs;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import app_kvServer.KVServer;
+import common.HashRing.Server;
+
+/**
+ * Runs each server as a KVServer thread inside the ECS's own JVM. There is no process or 
+ * jar to start, so a whole service comes up in milliseconds, which is what the tests use.
+ * The ECS still talks to the servers over their sockets, exactly as to remote ones.
+ */
+public class ThreadLauncher implements ServerLauncher {
+	private static Logger logger = Logger.getRootLogger();
+	private final Map<Server, KVServer> m_servers = new HashMap<Server, KVServer>();
+
+	@Override
+	public void launch(Server server, int cacheSize, String replacementStrategy, List<String> options) throws IOException {
+		KVServer kvServer = new KVServer(server.port, cacheSize, replacementStrategy, server.id);
+		synchronized (this) {
+			m_servers.put(server, kvServer);
+		}
+		try {
+			kvServer.applyOptions(options);
+		} catch (IOException e) {
+			kill(server);
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean awaitReady(Server server, long timeoutMs) {
+		KVServer kvServer;
+		synchronized (this) {
+			kvServer = m_servers.get(server);
+		}
+		return kvServer != null && kvServer.awaitReady(timeoutMs);
+	}
+
+	@Override
+	public void kill(Server server) {
+		KVServer kvServer;
+		synchronized (this) {
+			kvServer = m_servers.remove(server);
+		}
+		if (kvServer != null) {
+			logger.info("Killing server " + server.ipAddress + " " + server.port);
+			kvServer.closeServer();
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package app_kvServer;
 
+import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -56,7 +57,13 @@ public class ClientConnection implements Runnable {
 					common.messages.KVMessage latestMsg = receiveMessage();
 					if (latestMsg.validityCheck() == null) {
 						// If it is valid Handle the message by calling the function in KVServer
-						common.messages.KVMessage returnMsg = m_server.handleClientMessage(latestMsg);
+						common.messages.KVMessage returnMsg;
+						if (latestMsg.getHeader().equals("snapshot")) {
+							// The segment bytes follow the snapshot message directly on the stream
+							returnMsg = receiveSnapshot(latestMsg);
+						} else {
+							returnMsg = m_server.handleClientMessage(latestMsg);
+						}
 						if (returnMsg.validityCheck() == null) {
 							// If returned KVMessage was valid send it back to the client
 							if (returnMsg.getStatus().equals("SERVER_STOPPED") || returnMsg.getStatus().equals("SERVER_WRITE_LOCK") || returnMsg.getStatus().equals("SERVER_NOT_RESPONSIBLE")){
@@ -80,7 +87,7 @@ public class ClientConnection implements Runnable {
 						// If it is a bad message output error and echo it back to the client
 						logger.debug("Message from Client was not valid, sending errorous message back to client");
 						logger.debug(latestMsg.getError());
-						sendMessage(new common.messages.KVAdminMessage(latestMsg.getHeader(), "FAILED", latestMsg.getKey(), latestMsg.getValue()));
+						sendMessage(new common.messages.KVAdminMessage(latestMsg.getHeader(), "FAILED", latestMsg.getKeyBytes(), latestMsg.getValueBytes()));
 					}
 				/* connection either terminated by the client or lost due to 
 				 * network problems*/	
@@ -117,12 +124,26 @@ public class ClientConnection implements Runnable {
 		byte[] msgBytes = msg.getMsgBytes();
 		output.write(msgBytes, 0, msgBytes.length);
 		output.flush();
-		logger.debug("SEND \t<" 
-				+ clientSocket.getInetAddress().getHostAddress() + ":" 
-				+ clientSocket.getPort() + ">: '" 
-				+ msg.getMsg() +"'");
+		if (logger.isDebugEnabled()) {
+			logger.debug("SEND \t<" 
+					+ clientSocket.getInetAddress().getHostAddress() + ":" 
+					+ clientSocket.getPort() + ">: '" 
+					+ msg.getMsg() +"'");
+		}
     }
 	
+	/**
+	 * Receive the segment announced by a snapshot message into a new segment file
+	 * and have the server load it.
+	 */
+	private common.messages.KVMessage receiveSnapshot(common.messages.KVMessage msg) throws IOException {
+		long length = Long.parseLong(msg.getKey());
+		File segment = m_server.createSegmentFile();
+		logger.info("Receiving " + length + " byte snapshot segment from server " + msg.getValue());
+		SegmentTransfer.receive(input, length, segment);
+		return m_server.handleSnapshot(msg, segment);
+	}
+	
 	// Modified to return to me a KV message
 	private common.messages.KVMessage receiveMessage() throws IOException {
 		
@@ -185,10 +206,12 @@ public class ClientConnection implements Runnable {
 		
 		/* build final String */
 		common.messages.KVMessage msg = new common.messages.KVAdminMessage(msgBytes);
-		logger.debug("RECEIVE \t<" 
-				+ clientSocket.getInetAddress().getHostAddress() + ":" 
-				+ clientSocket.getPort() + ">: '" 
-				+ msg.getMsg().trim() + "'");
+		if (logger.isDebugEnabled()) {
+			logger.debug("RECEIVE \t<" 
+					+ clientSocket.getInetAddress().getHostAddress() + ":" 
+					+ clientSocket.getPort() + ">: '" 
+					+ msg.getMsg().trim() + "'");
+		}
 		return msg;
     }
 	
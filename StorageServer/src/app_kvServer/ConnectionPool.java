@@ -0,0 +1,96 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import client.Client;
+import common.HashRing.Server;
+import common.messages.KVMessage;
+
+/**
+ * Keeps connections from this server to the other servers open between requests, so that
+ * forwarding a request does not cost a new connection and its connect handshake every time.
+ * A connection is only used by one thread at a time: it is taken with borrow() and given
+ * back with release() once its response has been read, or closed with discard() if it failed.
+ */
+public class ConnectionPool {
+	private static Logger logger = Logger.getRootLogger();
+	// Read timeout of pooled connections, long enough for the target to update its replicas
+	private static final int TIMEOUT = 5000;
+	// Idle connections kept open per server, more are closed when released
+	private final int m_maxIdle;
+	private final Map<Server, LinkedList<Client>> m_idle = new HashMap<Server, LinkedList<Client>>();
+	private boolean m_closed = false;
+
+	public ConnectionPool(int maxIdle) {
+		this.m_maxIdle = maxIdle;
+	}
+
+	/**
+	 * Return an idle connection to the server, or open a new one if there is none.
+	 */
+	public Client borrow(Server server) throws IOException {
+		synchronized (this) {
+			LinkedList<Client> idle = m_idle.get(server);
+			if (idle != null && !idle.isEmpty()) {
+				return idle.removeFirst();
+			}
+		}
+		Client client = new Client(server.ipAddress, server.port, TIMEOUT);
+		KVMessage response = client.getResponse();
+		if (!response.getStatus().equals("CONNECT_SUCCESS")) {
+			client.closeConnection();
+			throw new IOException("Unable to connect to server " + server.toString());
+		}
+		logger.debug("Opened pooled connection to " + server.toString());
+		return client;
+	}
+
+	/**
+	 * Give a connection back once its response has been read.
+	 */
+	public void release(Server server, Client client) {
+		synchronized (this) {
+			if (!m_closed && client.isRunning()) {
+				LinkedList<Client> idle = m_idle.get(server);
+				if (idle == null) {
+					idle = new LinkedList<Client>();
+					m_idle.put(server, idle);
+				}
+				if (idle.size() < m_maxIdle) {
+					idle.addLast(client);
+					return;
+				}
+			}
+		}
+		client.closeConnection();
+	}
+
+	/**
+	 * Close a connection which failed instead of giving it back.
+	 */
+	public void discard(Client client) {
+		client.closeConnection();
+	}
+
+	/**
+	 * Close every idle connection. Connections released afterwards are closed as well.
+	 */
+	public void closeAll() {
+		LinkedList<Client> clients = new LinkedList<Client>();
+		synchronized (this) {
+			m_closed = true;
+			for (LinkedList<Client> idle : m_idle.values()) {
+				clients.addAll(idle);
+			}
+			m_idle.clear();
+		}
+		for (Client client : clients) {
+			client.closeConnection();
+		}
+	}
+}
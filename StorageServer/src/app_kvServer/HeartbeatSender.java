@@ -0,0 +1,53 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sends a "heartbeat <id>" UDP datagram to the ecs every interval milliseconds for as long
+ * as the server runs. When the server dies the heartbeats stop and the ecs's failure
+ * detector suspects it within a few intervals.
+ */
+public class HeartbeatSender extends Thread {
+	private static Logger logger = Logger.getRootLogger();
+	private final DatagramSocket m_socket;
+	private final DatagramPacket m_packet;
+	private final long m_interval;
+	private volatile boolean m_running = true;
+
+	public HeartbeatSender(int id, String ecsHost, int ecsPort, long interval) throws IOException {
+		super("heartbeat-sender");
+		byte[] data = ("heartbeat " + id).getBytes("UTF-8");
+		this.m_socket = new DatagramSocket();
+		this.m_packet = new DatagramPacket(data, data.length, InetAddress.getByName(ecsHost), ecsPort);
+		this.m_interval = interval;
+		setDaemon(true);
+	}
+
+	public void run() {
+		while (m_running) {
+			try {
+				m_socket.send(m_packet);
+			} catch (IOException e) {
+				if (m_running) {
+					logger.warn("Unable to send heartbeat: " + e.getMessage());
+				}
+			}
+			try {
+				Thread.sleep(m_interval);
+			} catch (InterruptedException e) {
+				// Woken up by stopSending
+			}
+		}
+	}
+
+	public void stopSending() {
+		m_running = false;
+		interrupt();
+		m_socket.close();
+	}
+}
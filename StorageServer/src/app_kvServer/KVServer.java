@@ -24,6 +24,7 @@ import java.net.Socket;
  void putAll(Map m): Copies all the elements of a map to the another specified map.
  */
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.lang.*;
 import java.math.BigInteger;
@@ -36,6 +37,8 @@ import org.apache.log4j.Logger;
 
 import common.HashRing;
 import common.HashRing.Server;
+import common.Utf8Bytes;
+import common.ZooKeeperCoordinator;
 import common.messages.*;
 import app_kvServer.ClientConnection;
 import client.Client;
@@ -65,35 +68,68 @@ public class KVServer extends Thread {
 	private String m_hardDiskFilePath;
 	// This string stores the harddisk file name
 	private String m_hardDiskFileName;
-	// This variable tells whether at the beginning of execution a harddisk file exists
-	private boolean m_hardDiskFileExists;
-	// This is the File Instance for the hardDisk File
-	private File m_hardDiskFileInstance;
-	// This Writer is responsible for Writing to the harddisk file
-	private PrintWriter m_hardDiskFileWriter;
-	// This Reader is responsible for Reading the harddisk file
-	private BufferedReader m_hardDiskFileReader;
 	// This is the lock object for ensuring multiple clientconnections don't access hard disk entries at the same time 
 	private Object m_myLock;
+	// This lock serializes writes to the hard disk map and file, so snapshots see a consistent point in time
+	private final Object m_storageLock = new Object();
+	// One map per snapshot transfer in progress, holding the writes made after its snapshot was taken
+	private List<Map<Utf8Bytes, Utf8Bytes>> m_snapshotDeltas = new ArrayList<Map<Utf8Bytes, Utf8Bytes>>();
+	// Limits the rate at which all transfers of this server send data, see TransferThrottle
+	private volatile TransferThrottle m_transferThrottle = TransferThrottle.UNLIMITED;
+	// When the write-ahead log of the storage is forced to disk, see setSyncPolicy
+	private volatile WriteAheadLog.SyncPolicy m_syncPolicy = WriteAheadLog.SyncPolicy.INTERVAL;
+	private volatile long m_syncInterval = DEFAULT_SYNC_INTERVAL;
 
 	// Create three maps for cache and one map for harddisk file
 	// This map stores the cache key pairs with key, value
-	Map<String, String> m_cacheValueMap;
+	Map<Utf8Bytes, Utf8Bytes> m_cacheValueMap;
 	// This map stores the cache key  for FIFO
-	LinkedList<String> m_cacheFIFOList;
+	LinkedList<Utf8Bytes> m_cacheFIFOList;
 	// This map stores the cache  LRU
-	LinkedList<String> m_cacheLRUList;
+	LinkedList<Utf8Bytes> m_cacheLRUList;
 	// This map stores the cache key pairs with key, times used for LFU
-	Map<String, Integer> m_cacheLFUMap;
+	Map<Utf8Bytes, Integer> m_cacheLFUMap;
+	// When set, the cache keeps its pairs off the heap in this cache instead of the maps above,
+	// with its own LRU eviction by bytes rather than the strategy and entry count, see setOffHeapCache
+	private volatile OffHeapCache m_offHeapCache;
 
-	// This map stores the harddisk file key pairs with key, value
-	Map<String, String> m_hardDiskValueMap;
+	// This storage engine holds the harddisk file key pairs, indexed by hash ring position
+	KVStorage m_storage;
 
 	private ServerSocket serverSocket;
-	private boolean running;
-
-	private HashRing metadata;
+	private volatile boolean running;
+	// Set by closeServer, and checked under m_socketLock before the socket is bound
+	private boolean m_closed;
+	private final Object m_socketLock = new Object();
+
+	// Replaced as a whole on every update, so a request reads it once and sees one consistent ring
+	private volatile HashRing metadata;
+	// The last few rings by epoch, so clients with one of them can be sent a diff instead of the full ring
+	private final LinkedHashMap<Long, HashRing> m_ringHistory = new LinkedHashMap<Long, HashRing>();
+	private static final int RING_HISTORY = 8;
 	private int id;
+	// In proxy mode requests for keys this server is not responsible for are forwarded to the 
+	// responsible server instead of redirecting the client
+	private volatile boolean m_proxyMode = false;
+	// Status of a request forwarded by another server, which must not be forwarded again
+	public static final String FORWARDED = "FORWARDED";
+	// Putting this value deletes the key
+	private static final Utf8Bytes DELETE_VALUE = Utf8Bytes.of("null");
+	private final ConnectionPool m_forwardPool = new ConnectionPool(4);
+	// Set when the ecs coordinates through ZooKeeper: metadata then arrives through a watch on
+	// the metadata znode and liveness is an ephemeral znode instead of answering probes
+	private volatile ZooKeeperCoordinator m_coordinator;
+	private static final int ZOOKEEPER_SESSION_TIMEOUT = 5000;
+	// Set when the ecs detects failures by heartbeats instead of probing
+	private HeartbeatSender m_heartbeat;
+	private static final long DEFAULT_HEARTBEAT_INTERVAL = 1000;
+	// By default the write-ahead log is forced to disk once a second, so a crash of the machine
+	// loses at most the last second of writes while a put does not wait for the disk
+	private static final long DEFAULT_SYNC_INTERVAL = 1000;
+	// Printed on standard output once the server socket is listening, so whoever launched the
+	// server can wait for the line instead of polling the port
+	public static final String READY = "KVSERVER_READY";
+	private final CountDownLatch m_ready = new CountDownLatch(1);
 
 	/**
 	 * Constructs a KVServer object which listens to connection attempts 
@@ -120,7 +156,7 @@ public class KVServer extends Thread {
 		this.id = id;
 
 		// Initialize harddisk file information
-		this.m_hardDiskFileName = "storage_" + id + ".txt";
+		this.m_hardDiskFileName = "storage_" + id;
 		System.out.println("Initializing Hard Disk File Variables");
 		logger.info("Initializing Hard Disk File Variables");
 		// Get where the program is running from (where the project is)
@@ -128,25 +164,8 @@ public class KVServer extends Thread {
 		// Output harddisk file location and name for debugging
 		System.out.println("HardDiskFile Name is : " + m_hardDiskFileName + " HardDiskFile Path is : " + m_hardDiskFilePath);
 		logger.info("HardDiskFile Name is : " + m_hardDiskFileName + " HardDiskFile Path is : " + m_hardDiskFilePath);
-		// Initialize the harddisk File Instance
-		m_hardDiskFileInstance = new File(m_hardDiskFilePath + "/" + m_hardDiskFileName);
-		// Initialize a new harddisk file for writing or see if it already exists
-		try {
-			m_hardDiskFileExists = m_hardDiskFileInstance.createNewFile();
-		} catch (IOException e) {
-			System.out.println("Error when trying to initialize file instance");
-			e.printStackTrace();
-		}
-		if (m_hardDiskFileExists) {
-			System.out.println("Hard disk File already exists");
-		} else {
-			System.out.println("Created New Hard disk File");
-		}
-		// Initialize the file writer to null, assign when we write
-		// m_hardDiskFileWriter = new PrintWriter(m_hardDiskFileInstance);
-		m_hardDiskFileWriter = null;
-		// Initialize the file reader to null, assign when we read
-		m_hardDiskFileReader = null;
+		// Initialize the storage engine, which creates the harddisk directory if it doesn't exist yet
+		m_storage = new KVStorage(new File(m_hardDiskFilePath + "/" + m_hardDiskFileName));
 
 		//For now always create the server in the stopped state initially. May change this later.
 		this.status = ServerStatus.STOPPED;
@@ -161,7 +180,7 @@ public class KVServer extends Thread {
 	public KVServer(int port, int id) {
 		this.port = port;
 		this.id = id;
-		this.m_hardDiskFileName = "storage_" + id + ".txt";
+		this.m_hardDiskFileName = "storage_" + id;
 		// Initialize harddisk file information
 		System.out.println("Initializing Hard Disk File Variables");
 		logger.info("Initializing Hard Disk File Variables");
@@ -170,25 +189,8 @@ public class KVServer extends Thread {
 		// Output harddisk file location and name for debugging
 		System.out.println("HardDiskFile Name is : " + m_hardDiskFileName + " HardDiskFile Path is : " + m_hardDiskFilePath);
 		logger.info("HardDiskFile Name is : " + m_hardDiskFileName + " HardDiskFile Path is : " + m_hardDiskFilePath);
-		// Initialize the harddisk File Instance
-		m_hardDiskFileInstance = new File(m_hardDiskFilePath + "/" + m_hardDiskFileName);
-		// Initialize a new harddisk file for writing or see if it already exists
-		try {
-			m_hardDiskFileExists = m_hardDiskFileInstance.createNewFile();
-		} catch (IOException e) {
-			System.out.println("Error when trying to initialize file instance");
-			e.printStackTrace();
-		}
-		if (m_hardDiskFileExists) {
-			System.out.println("Hard disk File already exists");
-		} else {
-			System.out.println("Created New Hard disk File");
-		}
-		// Initialize the file writer to null, assign when we write
-		// m_hardDiskFileWriter = new PrintWriter(m_hardDiskFileInstance);
-		m_hardDiskFileWriter = null;
-		// Initialize the file reader to null, assign when we read
-		m_hardDiskFileReader = null;
+		// Initialize the storage engine, which creates the harddisk directory if it doesn't exist yet
+		m_storage = new KVStorage(new File(m_hardDiskFilePath + "/" + m_hardDiskFileName));
 
 		this.status = ServerStatus.STOPPED;
 	}
@@ -200,6 +202,7 @@ public class KVServer extends Thread {
 		this.m_cacheSize = cacheSize;
 		this.m_strategy = replacementStrategy;
 		this.metadata = new HashRing(metadata);
+		rememberRing(this.metadata);
 
 		this.m_currentCacheEntries = 0;
 		this.m_currentHardDiskEntries = 0;
@@ -207,17 +210,23 @@ public class KVServer extends Thread {
 		// Initialize the maps for the server object
 		System.out.println("Initializing Server Maps");
 		logger.info("Initializing Server Maps");
-		this.m_cacheValueMap = new HashMap<String, String>();
-		this.m_cacheFIFOList = new LinkedList<String>();
-		this.m_cacheLRUList = new LinkedList<String>();
-		this.m_cacheLFUMap = new HashMap<String, Integer>();
-		this.m_hardDiskValueMap = new HashMap<String, String>();
+		this.m_cacheValueMap = new HashMap<Utf8Bytes, Utf8Bytes>();
+		this.m_cacheFIFOList = new LinkedList<Utf8Bytes>();
+		this.m_cacheLRUList = new LinkedList<Utf8Bytes>();
+		this.m_cacheLFUMap = new HashMap<Utf8Bytes, Integer>();
 
 		//Initialize the lock
 		this.m_myLock = new Object();
 
-		//load data from hard disk file
-		repopulateHardDiskMap();
+		//load data from hard disk file, then log the changes from here on
+		this.m_storage.load();
+		this.m_currentHardDiskEntries = this.m_storage.size();
+		try {
+			this.m_storage.openLog(m_syncPolicy, m_syncInterval);
+		} catch (IOException e) {
+			logger.error("Unable to open the write-ahead log, rewriting partition files instead: " + e.getMessage());
+		}
+		hashStorageLike(this.metadata);
 
 		// Start the server object
 		System.out.println("Starting Server");
@@ -234,6 +243,9 @@ public class KVServer extends Thread {
 	public void startServer() {
 		this.status = ServerStatus.ACTIVE;
 	}
+	// Transfers no longer write lock the server, they forward the writes made meanwhile. A 
+	// locked server still answers puts with SERVER_WRITE_LOCK, which clients retry, and 
+	// KVStoreTest locks one to test those retries
 	public void lockWrite() {
 		this.status = ServerStatus.WRITE_LOCKED;
 	}
@@ -244,80 +256,6 @@ public class KVServer extends Thread {
 		return this.status.toString();
 	}
 
-	// This function is used to rewrite the harddisk file with the key value pairs from the harddisk map
-	// Returns boolean, true for success, false for failure
-	private boolean overwriteHardDiskFile() {
-		try {
-			System.out.println("Starting to overwrite Hard disk File from Hard Disc Map");
-			logger.info("Starting to overwrite Hard disk File from Hard Disc Map");
-			// Initialize the file writer with our file
-			this.m_hardDiskFileWriter = new PrintWriter(this.m_hardDiskFileInstance);
-			int linesWritten = 0;
-			// Iterate through all pairs of hard disk map
-			for ( Map.Entry<String, String> iteratorDummy : this.m_hardDiskValueMap.entrySet()) {
-				// For each key/value pair, print it and write it to the hard disc File as key first then value each on its own line
-				//System.out.println("Inserting Key: " + iteratorDummy.getKey());
-				this.m_hardDiskFileWriter.println(iteratorDummy.getKey());
-				//System.out.println("Inserting Value: " + iteratorDummy.getValue());
-				this.m_hardDiskFileWriter.println(iteratorDummy.getValue());
-				linesWritten = linesWritten + 2;
-			}
-			// Close the Writer when finished and return
-			this.m_hardDiskFileWriter.close();
-			return true;
-		} catch (Exception ex) {
-			System.out.println("Encountered Error while trying to overwrite hard disc map");
-			System.out.println(ex.getMessage());
-			this.m_hardDiskFileWriter.close();
-			return false;
-		}
-	}
-	// This function is used to repopulate the harddisk map with the key value pairs from the harddisk file
-	// Returns boolean, true for success, false for failure
-	private boolean repopulateHardDiskMap() {
-		try {
-			System.out.println("Starting to repopulate Hard disk Map from Hard Disc File");
-			logger.info("Starting to repopulate Hard disk Map from Hard Disc File");
-			// Initialize the file reader with our file
-			this.m_hardDiskFileReader = new BufferedReader(new FileReader(this.m_hardDiskFileInstance));
-			String CurrentLine;
-			String Key = null;
-			String Value = null;
-			int counter = 0;
-			// Read lines until end of file
-			while ((CurrentLine = this.m_hardDiskFileReader.readLine()) != null) {
-				// For each line read, print it and add it to the hard disc map as key first then value
-				if (counter % 2 == 0) {
-					// If counter is even the line is a key
-					//System.out.println("Key is: " + CurrentLine);
-					Key = CurrentLine;
-				} else {
-					// If counter is odd the line is a value and add it to the map
-					//System.out.println("Value is: " + CurrentLine);
-					Value = CurrentLine;
-					this.m_hardDiskValueMap.put(Key, Value);
-				}
-				// Increment the counter after every line is read
-				counter = counter + 1;
-			}
-			// Set map size and close
-			this.m_currentHardDiskEntries = this.m_hardDiskValueMap.size();
-			this.m_hardDiskFileReader.close();
-			return true;
-		} catch (Exception ex) {
-			System.out.println("Encountered Error while trying to repopulate hard disc map");
-			System.out.println(ex.getMessage());
-			try {
-				this.m_hardDiskFileReader.close();
-			} catch (IOException e) {
-				System.out.println("Encountered Error while trying to close file reader");
-				e.printStackTrace();
-			}
-			// Reset harddisk Cache 
-			this.m_hardDiskValueMap.clear();
-			return false;
-		}
-	}
 	// This function is the entry point for handling a client message, at this point the message is valid, first called in ClientConnection
 	public KVMessage handleClientMessage(KVMessage msg) {
 		String header = msg.getHeader();
@@ -366,6 +304,15 @@ public class KVServer extends Thread {
 		case "removeNode":
 			returnMsg = handleRemoveNode(msg);
 			break;
+		case "load":
+			returnMsg = handleLoad(msg);
+			break;
+		case "getMetadata":
+			returnMsg = handleGetMetadata(msg);
+			break;
+		case "cleanup":
+			returnMsg = handleCleanup(msg);
+			break;
 		default:
 			return returnMsg = new KVAdminMessage("", "", "", "");
 		}
@@ -392,15 +339,163 @@ public class KVServer extends Thread {
 
 	/**
 	 * Handle a metadata update message received from the ecs.
-	 * Metadata is stored in the value field. 
+	 * Metadata is stored in the value field, either in full or, with status METADATA_DIFF,
+	 * as a diff against the ring the ecs sent last. A diff against a different epoch than this
+	 * server's is answered with METADATA_STALE and the ecs sends the full ring instead.
 	 * This function is used when all necessary data transfers are already
 	 * complete, so we just need to update the internal metadata variable.
 	 */
 	public KVMessage handleMetadata(KVMessage msg) {
-		this.metadata = new HashRing(msg.getValue());
+		HashRing ring;
+		if (msg.getStatus().equals("METADATA_DIFF")) {
+			HashRing current = this.metadata;
+			try {
+				ring = current.applyDiff(msg.getValue());
+			} catch (IllegalArgumentException e) {
+				logger.info("Unable to apply metadata diff: " + e.getMessage());
+				return new KVAdminMessage("metadata","METADATA_STALE","",String.valueOf(current.getEpoch()));
+			}
+		} else {
+			ring = new HashRing(msg.getValue());
+		}
+		hashStorageLike(ring);
+		this.metadata = ring;
+		rememberRing(ring);
+		acknowledgeMetadata(ring);
 		return new KVAdminMessage("metadata","SUCCESS","","");
 	}
 
+	/**
+	 * Tell an ecs using ZooKeeper which metadata this server has applied, however it arrived.
+	 */
+	private void acknowledgeMetadata(HashRing ring) {
+		ZooKeeperCoordinator coordinator = m_coordinator;
+		if (coordinator == null) {
+			return;
+		}
+		try {
+			coordinator.acknowledgeEpoch(id, ring.getEpoch());
+		} catch (IOException e) {
+			logger.error("Unable to acknowledge metadata: " + e.getMessage());
+		}
+	}
+
+	private void rememberRing(HashRing ring) {
+		synchronized(m_ringHistory) {
+			m_ringHistory.put(ring.getEpoch(), ring);
+			Iterator<Long> oldest = m_ringHistory.keySet().iterator();
+			while (m_ringHistory.size() > RING_HISTORY) {
+				oldest.next();
+				oldest.remove();
+			}
+		}
+	}
+
+	/**
+	 * Handle a metadata fetch from a client, whose value is the epoch of the client's ring.
+	 * Replies METADATA_CURRENT if the client is up to date, METADATA_DIFF with a diff if this
+	 * server still has the client's ring, and METADATA_FULL with the whole ring otherwise.
+	 */
+	public KVMessage handleGetMetadata(KVMessage msg) {
+		HashRing ring = this.metadata;
+		long epoch;
+		try {
+			epoch = Long.parseLong(msg.getValue().trim());
+		} catch (NumberFormatException e) {
+			epoch = HashRing.UNKNOWN_EPOCH;
+		}
+		if (epoch == ring.getEpoch()) {
+			return new KVAdminMessage("getMetadata","METADATA_CURRENT","",String.valueOf(epoch));
+		}
+		HashRing older;
+		synchronized(m_ringHistory) {
+			older = m_ringHistory.get(epoch);
+		}
+		if (older != null) {
+			return new KVAdminMessage("getMetadata","METADATA_DIFF","",ring.diff(older));
+		}
+		return new KVAdminMessage("getMetadata","METADATA_FULL","",ring.toString());
+	}
+
+	/**
+	 * The storage indexes and partitions keys by their ring position, so it must hash keys
+	 * with the same function as the metadata and split the ring into as many partitions.
+	 * Rehashes and rewrites the storage if the metadata selects a different function or
+	 * partition count.
+	 */
+	private void hashStorageLike(HashRing ring) {
+		synchronized(m_storageLock) {
+			m_storage.setHashFunction(ring.getHashFunction());
+			m_storage.setPartitions(ring.getPartitions());
+			if (!m_storage.flush()) {
+				logger.error("Unable to rewrite the storage after changing hash function or partitions");
+			}
+		}
+	}
+
+	/**
+	 * Handle a cleanup message from the ecs, sent once every move of a rebalance succeeded.
+	 * Drops the keys in the ranges this server neither owns nor replicates in its current
+	 * metadata with a range delete in the storage, deleting the files of the partitions left
+	 * empty, and evicts them from the cache. Replies with the number of dropped keys.
+	 * The value holds the epoch of the ring the moves were made for. A server which has not
+	 * applied that ring yet answers METADATA_STALE and keeps its data, since it would drop
+	 * ranges it has just been sent.
+	 */
+	public KVMessage handleCleanup(KVMessage msg) {
+		HashRing ring = this.metadata;
+		if (!String.valueOf(ring.getEpoch()).equals(msg.getValue().trim())) {
+			return new KVAdminMessage("cleanup","METADATA_STALE","",String.valueOf(ring.getEpoch()));
+		}
+		Server self = null;
+		for (Server server : ring.getAllServers()) {
+			if (server.id == this.id) {
+				self = server;
+			}
+		}
+		if (self == null) {
+			//a server leaving the ring is shut down with its data
+			return new KVAdminMessage("cleanup","SUCCESS","","0");
+		}
+		List<HashRing.Range> dropped = HashRing.complement(ring.getReadRanges(self));
+		int removed;
+		boolean success;
+		synchronized(m_storageLock) {
+			removed = m_storage.removeRanges(dropped);
+			success = m_storage.checkpoint();
+			this.m_currentHardDiskEntries = m_storage.size();
+			synchronized(m_myLock) {
+				for (Utf8Bytes key : cachedKeys()) {
+					if (!m_storage.containsKey(key)) {
+						deleteFromCache(key, m_cacheValueMap.get(key));
+					}
+				}
+			}
+		}
+		logger.info("Cleanup dropped "+removed+" keys no longer held by this server");
+		if (!success) {
+			logger.error("Unable to rewrite the storage after cleanup");
+			return new KVAdminMessage("cleanup","ERROR","",String.valueOf(removed));
+		}
+		return new KVAdminMessage("cleanup","SUCCESS","",String.valueOf(removed));
+	}
+
+	/**
+	 * Report the load of this server to the ecs for bounded-load balancing: the number of 
+	 * keys stored in the arc of each of its virtual nodes, as space separated "<token>:<keys>".
+	 */
+	public KVMessage handleLoad(KVMessage msg) {
+		HashRing ring = this.metadata;
+		StringBuilder loads = new StringBuilder();
+		for (BigInteger token : ring.getTokens(this.id)) {
+			if (loads.length() > 0) {
+				loads.append(" ");
+			}
+			loads.append(token.toString()).append(":").append(m_storage.countRange(ring.getArc(token)));
+		}
+		return new KVAdminMessage("load","SUCCESS","",loads.toString());
+	}
+
 	// This function is used to handle a client connect request
 	public KVMessage handleConnect(KVMessage msg) {
 		System.out.println("Handling Connect, echo back nothing to do");
@@ -447,24 +542,36 @@ public class KVServer extends Thread {
 	// This function is used to handle a client get request
 	public KVMessage handleGet(KVMessage msg) {
 		if (status == ServerStatus.STOPPED){
-			return new KVAdminMessage("get","SERVER_STOPPED",msg.getKey(),msg.getValue());
+			return new KVAdminMessage("get","SERVER_STOPPED",msg.getKeyBytes(),msg.getValueBytes());
 		}		
 
 		System.out.println("Handling Get");
 		logger.info("Handling Get");
-		String Key = msg.getKey();
-		String Value = msg.getValue();
+		Utf8Bytes Key = msg.getKeyBytes();
+		Utf8Bytes Value = msg.getValueBytes();
 
 		//check if this server is responsible for this key
 		//Server responsible = metadata.getResponsible(Key);
-		if (!metadata.canGet(this.id, Key)){
-			return new KVAdminMessage("get","SERVER_NOT_RESPONSIBLE",msg.getKey(),metadata.toString());
+		HashRing ring = this.metadata;
+		if (!ring.canGet(this.id, Key)){
+			if (m_proxyMode && !msg.getStatus().equals(FORWARDED)) {
+				return forward(ring, ring.getResponsible(Key), msg);
+			}
+			return new KVAdminMessage("get","SERVER_NOT_RESPONSIBLE",msg.getKeyBytes(),Utf8Bytes.of(String.valueOf(ring.getEpoch())));
 		}
 
 		KVMessage returnMsg = new KVAdminMessage("get", "NOT_PROCESSED", Key, Value);
 		boolean success = false;
 		// First check whether the Key Value pair get wants is in the cache
-		boolean keyExists = this.m_cacheValueMap.containsKey(Key);
+		OffHeapCache offHeapCache = this.m_offHeapCache;
+		if (offHeapCache != null) {
+			Utf8Bytes cached = offHeapCache.get(Key);
+			if (cached != null) {
+				// Cache Hit, the off-heap cache moves the pair to the end of its LRU order itself
+				return new KVAdminMessage("get", "GET_SUCCESS", Key, cached);
+			}
+		}
+		boolean keyExists = offHeapCache == null && this.m_cacheValueMap.containsKey(Key);
 		if (keyExists) {
 			// Cache Hit, get the Value from the cacheMap
 			Value = this.m_cacheValueMap.get(Key);
@@ -480,23 +587,18 @@ public class KVServer extends Thread {
 			}
 		} else {
 			// Cache Miss
-			// Need to load from hard disk file into map
-			success = this.repopulateHardDiskMap();
-			if (!success) {
-				// If for some reason the load failed then return failure message
-				returnMsg = new KVAdminMessage("get", "GET_ERROR", Key, Value);
-				return returnMsg;
-			}
+			// The hard disk map was loaded at startup and is kept in sync with the partition files,
+			// in mapped mode it decodes the value from the mapped partition file
 			// Need to get the Key Value pair from hard disk map
 			// Check if it exists
-			keyExists = this.m_hardDiskValueMap.containsKey(Key);
+			keyExists = this.m_storage.containsKey(Key);
 			if (!keyExists) {
 				// If the pair does not exist in the hard disk file either
 				returnMsg = new KVAdminMessage("get", "GET_ERROR", Key, Value);
 				return returnMsg;
 			}
 			// Get the Value from hard disk map
-			Value = this.m_hardDiskValueMap.get(Key);
+			Value = this.m_storage.get(Key);
 			// Insert this Key Value Pair into the cache
 			success = this.insertIntoCache(Key, Value);
 			if (!success) {
@@ -515,28 +617,226 @@ public class KVServer extends Thread {
 		return port;
 	}
 
+	public void setProxyMode(boolean proxyMode) {
+		this.m_proxyMode = proxyMode;
+	}
+
+	/**
+	 * Wait up to timeoutMs for the server socket to be opened. Returns true if the server is 
+	 * listening, false if it could not open its socket or is still starting.
+	 */
+	public boolean awaitReady(long timeoutMs) {
+		try {
+			return m_ready.await(timeoutMs, TimeUnit.MILLISECONDS) && isRunning();
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Limit the rate at which this server sends data to other servers when the ring changes,
+	 * in keys and bytes per second, 0 for no limit. Applies to transfers started afterwards.
+	 */
+	public void setTransferLimit(long opsPerSecond, long bytesPerSecond) {
+		m_transferThrottle = new TransferThrottle(opsPerSecond, bytesPerSecond);
+	}
+
+	/**
+	 * Return the number of snapshot transfers which have taken their snapshot and are still
+	 * shipping it or forwarding the writes made since.
+	 */
+	public int getSnapshotTransfers() {
+		synchronized(m_storageLock) {
+			return m_snapshotDeltas.size();
+		}
+	}
+
+	/**
+	 * Set when the write-ahead log of the storage is forced to disk: after every write with
+	 * ALWAYS, where concurrent writers share fsyncs, every intervalMs milliseconds with
+	 * INTERVAL, or never with NEVER.
+	 */
+	public void setSyncPolicy(WriteAheadLog.SyncPolicy policy, long intervalMs) {
+		m_syncPolicy = policy;
+		m_syncInterval = intervalMs;
+		WriteAheadLog log = m_storage.getLog();
+		if (log != null) {
+			log.setSyncPolicy(policy, intervalMs);
+		}
+	}
+
+	/**
+	 * Keep the values of the storage in memory-mapped partition files instead of on the heap,
+	 * so a cache miss decodes the value from the mapped file and the heap only grows with the
+	 * number of keys. See KVStorage.setMapped.
+	 */
+	public void setMappedStorage(boolean mapped) {
+		synchronized(m_storageLock) {
+			if (!m_storage.setMapped(mapped)) {
+				logger.error("Unable to map all partition files, some values stay on the heap");
+			}
+		}
+	}
+
+	/**
+	 * Keep cached pairs in an off-heap cache of the given capacity instead of the on-heap cache,
+	 * or go back to the on-heap cache if capacityBytes is 0. Large on-heap caches fill the old
+	 * generation with values and lengthen garbage collection pauses, the off-heap cache only
+	 * keeps the keys and a handle per pair on the heap. It evicts the least recently used pairs
+	 * once its capacity is used up, the cache size and strategy then no longer apply. Either
+	 * cache starts out empty.
+	 */
+	public void setOffHeapCache(long capacityBytes) {
+		synchronized(m_myLock) {
+			this.m_offHeapCache = capacityBytes > 0 ? new OffHeapCache(capacityBytes) : null;
+			this.m_cacheValueMap.clear();
+			this.m_cacheLFUMap.clear();
+			this.m_cacheFIFOList.clear();
+			this.m_cacheLRUList.clear();
+			this.m_currentCacheEntries = 0;
+		}
+	}
+
+	/**
+	 * Return true if the argument is one of the options accepted after the id, see main.
+	 */
+	public static boolean isValidOption(String option) {
+		return option.equals("proxy") || option.equals("mmap") || option.startsWith("zk=") 
+				|| (option.startsWith("hb=") && option.contains(":")) || option.matches("hbms=\\d+")
+				|| option.matches("xferops=\\d+") || option.matches("xferbytes=\\d+")
+				|| option.matches("fsync=(always|never|\\d+)") || option.matches("offheap=\\d+");
+	}
+
+	/**
+	 * Apply the options given after the id, see main.
+	 */
+	public void applyOptions(List<String> options) throws IOException {
+		String zooKeeper = null, heartbeat = null;
+		long heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+		long transferOps = 0, transferBytes = 0;
+		for (String option : options) {
+			if (option.equals("proxy")) {
+				setProxyMode(true);
+			} else if (option.equals("mmap")) {
+				setMappedStorage(true);
+			} else if (option.startsWith("zk=")) {
+				zooKeeper = option.substring(3);
+			} else if (option.startsWith("hb=")) {
+				heartbeat = option.substring(3);
+			} else if (option.startsWith("hbms=")) {
+				heartbeatInterval = Long.parseLong(option.substring(5));
+			} else if (option.startsWith("xferops=")) {
+				transferOps = Long.parseLong(option.substring(8));
+			} else if (option.startsWith("xferbytes=")) {
+				transferBytes = Long.parseLong(option.substring(10));
+			} else if (option.equals("fsync=always")) {
+				setSyncPolicy(WriteAheadLog.SyncPolicy.ALWAYS, 0);
+			} else if (option.equals("fsync=never")) {
+				setSyncPolicy(WriteAheadLog.SyncPolicy.NEVER, 0);
+			} else if (option.startsWith("fsync=")) {
+				setSyncPolicy(WriteAheadLog.SyncPolicy.INTERVAL, Long.parseLong(option.substring(6)));
+			} else if (option.startsWith("offheap=")) {
+				setOffHeapCache(Long.parseLong(option.substring(8)) << 20);
+			}
+		}
+		setTransferLimit(transferOps, transferBytes);
+		if (zooKeeper != null) {
+			connectZooKeeper(zooKeeper);
+		}
+		if (heartbeat != null) {
+			int colon = heartbeat.lastIndexOf(':');
+			startHeartbeat(heartbeat.substring(0, colon), Integer.parseInt(heartbeat.substring(colon + 1)), heartbeatInterval);
+		}
+	}
+
+	/**
+	 * Send a heartbeat to the ecs at the given address every interval milliseconds until
+	 * the server is closed, see HeartbeatSender.
+	 */
+	public void startHeartbeat(String ecsHost, int ecsPort, long interval) throws IOException {
+		m_heartbeat = new HeartbeatSender(id, ecsHost, ecsPort, interval);
+		m_heartbeat.start();
+	}
+
+	/**
+	 * Join the ZooKeeper ensemble the ecs coordinates through. The server registers an 
+	 * ephemeral znode, which tells the ecs it is alive for as long as its session lasts, and 
+	 * watches the metadata znode. Every metadata the ecs publishes there is applied as if it 
+	 * had been sent in a METADATA_UPDATE, which acknowledges its epoch in the server's znode.
+	 */
+	public void connectZooKeeper(String connectString) throws IOException {
+		ZooKeeperCoordinator coordinator = new ZooKeeperCoordinator(connectString, ZOOKEEPER_SESSION_TIMEOUT);
+		coordinator.registerServer(id);
+		m_coordinator = coordinator;
+		coordinator.watchMetadata(new ZooKeeperCoordinator.MetadataListener() {
+			@Override
+			public void metadataChanged(String metadata) {
+				handleMetadata(new KVAdminMessage("metadata","METADATA_UPDATE","",metadata));
+			}
+		});
+	}
+
+	/**
+	 * Forward a client request to the server responsible for its key over a pooled connection
+	 * and return that server's response, with the epoch of this server's metadata as the hint
+	 * so the client can refresh its metadata when convenient. The request is marked as
+	 * forwarded so it is never forwarded again. If the responsible server cannot be reached the
+	 * client is redirected as without proxy mode.
+	 */
+	private KVMessage forward(HashRing ring, Server responsible, KVMessage msg) {
+		KVMessage request = new KVAdminMessage(msg.getHeader(), FORWARDED, msg.getKeyBytes(), msg.getValueBytes());
+		// A pooled connection may have been closed by the other side, so retry once with a new one
+		for (int attempt = 0; attempt < 2; attempt++) {
+			Client client = null;
+			try {
+				client = m_forwardPool.borrow(responsible);
+				client.sendMessage(request);
+				KVMessage response = client.getResponse();
+				if (response.getStatus().equals("TIME_OUT") || response.getStatus().equals("getResponse_NOT_PROCESSED")) {
+					m_forwardPool.discard(client);
+					continue;
+				}
+				m_forwardPool.release(responsible, client);
+				logger.debug("Forwarded "+msg.getHeader()+" of "+msg.getKey()+" to "+responsible.toString());
+				response.setHint(String.valueOf(ring.getEpoch()));
+				return response;
+			} catch (IOException e) {
+				logger.warn("Unable to forward request to "+responsible.toString()+": "+e.getMessage());
+				if (client != null) {
+					m_forwardPool.discard(client);
+				}
+			}
+		}
+		return new KVAdminMessage(msg.getHeader(),"SERVER_NOT_RESPONSIBLE",msg.getKeyBytes(),Utf8Bytes.of(String.valueOf(ring.getEpoch())));
+	}
+
 	// This function is used to handle a client put request
 	public KVMessage handlePut(KVMessage msg) {
 		if (status == ServerStatus.STOPPED){
-			return new KVAdminMessage("get","SERVER_STOPPED",msg.getKey(),msg.getValue());
+			return new KVAdminMessage("get","SERVER_STOPPED",msg.getKeyBytes(),msg.getValueBytes());
 		} else if (status == ServerStatus.WRITE_LOCKED){
-			return new KVAdminMessage("get","SERVER_WRITE_LOCK",msg.getKey(),msg.getValue());
+			//only set by lockWrite, see there
+			return new KVAdminMessage("get","SERVER_WRITE_LOCK",msg.getKeyBytes(),msg.getValueBytes());
 		}
 
 		System.out.println("Handling Put");
 		logger.info("Handling Put");
-		String Key = msg.getKey();
-		String Value = msg.getValue();
+		Utf8Bytes Key = msg.getKeyBytes();
+		Utf8Bytes Value = msg.getValueBytes();
 		//check if this server is responsible for this key		
-		Server responsible = metadata.getResponsible(Key);
+		HashRing ring = this.metadata;
+		Server responsible = ring.getResponsible(Key);
 		//System.out.println(Integer.toString(responsible.id));
 		//System.out.println(Integer.toString(this.id));
 		//System.out.println(Integer.toString(this.getPort()));
 		//System.out.println(this.metadata.toString());	
 		if (responsible.id != this.id){
-			return new KVAdminMessage("put","SERVER_NOT_RESPONSIBLE",msg.getKey(),metadata.toString());
+			if (m_proxyMode && !msg.getStatus().equals(FORWARDED)) {
+				return forward(ring, responsible, msg);
+			}
+			return new KVAdminMessage("put","SERVER_NOT_RESPONSIBLE",msg.getKeyBytes(),Utf8Bytes.of(String.valueOf(ring.getEpoch())));
 		}
-		if(!updateReplicas(msg)) {
+		if(!updateReplicas(ring, msg)) {
 			System.out.println("Responsible server: failed to update replicas!");
 			logger.error("Responsible server: failed to update replicas!");
 		}
@@ -556,30 +856,64 @@ public class KVServer extends Thread {
 			System.out.println("Handling Admin Put");
 			logger.info("Handling Admin Put");
 		}
-		String Key = msg.getKey();
-		String Value = msg.getValue();
+		Utf8Bytes Key = msg.getKeyBytes();
+		Utf8Bytes Value = msg.getValueBytes();
 		return doPut(Key,Value);
 	}
 
 	/**
-	 * Do the actual put operation on (Key, Value) pair
+	 * Do the actual put operation on (Key, Value) pair. Writes are serialized so that a
+	 * snapshot either contains a write or its delta map records it. 
 	 */
-	private KVMessage doPut(String Key, String Value) {
-		KVMessage returnMsg = new KVAdminMessage("put", "NOT_PROCESSED", Key, Value);
-		// first load the hard disk file into our map
-		boolean success = this.repopulateHardDiskMap();
-		if (!success) {
-			// If for some reason the load failed then return failure message
-			returnMsg = new KVAdminMessage("put", "PUT_ERROR", Key, Value);
-			return returnMsg;
+	private KVMessage doPut(Utf8Bytes Key, Utf8Bytes Value) {
+		KVMessage returnMsg;
+		long logPosition;
+		synchronized(m_storageLock) {
+			returnMsg = applyPut(Key, Value);
+			logPosition = m_storage.logPosition();
+			for (Map<Utf8Bytes, Utf8Bytes> delta : m_snapshotDeltas) {
+				delta.put(Key, Value);
+			}
+		}
+		// Wait for the write-ahead log outside the lock, so the writers which come in while
+		// it is forced to disk are all covered by the next fsync
+		try {
+			m_storage.awaitDurable(logPosition);
+		} catch (IOException e) {
+			logger.error("Unable to sync the write-ahead log: " + e.getMessage());
+			String error = Value.equals(DELETE_VALUE) ? "DELETE_ERROR" : "PUT_ERROR";
+			return new KVAdminMessage("put", error, Key, Value);
 		}
+		return returnMsg;
+	}
+
+	/**
+	 * Put the pair in the storage, or remove the key if Value is null, and make the change
+	 * recoverable. Returns false if it could not be logged or written.
+	 */
+	private boolean writeToStorage(Utf8Bytes Key, Utf8Bytes Value) {
+		try {
+			if (Value == null) {
+				this.m_storage.remove(Key);
+			} else {
+				this.m_storage.put(Key, Value);
+			}
+		} catch (IOException e) {
+			logger.error("Unable to log the change of " + Key + ": " + e.getMessage());
+			return false;
+		}
+		return this.m_storage.flush();
+	}
+
+	private KVMessage applyPut(Utf8Bytes Key, Utf8Bytes Value) {
+		KVMessage returnMsg = new KVAdminMessage("put", "NOT_PROCESSED", Key, Value);
+		boolean success;
 
 		// Decide whether it is a update, delete or add
-		if (Value.equals("null")) {
+		if (Value.equals(DELETE_VALUE)) {
 			// this is a delete operation, so remove Key Value pair from map
-			this.m_hardDiskValueMap.remove(Key);
-			// Rewrite hard Disk file
-			success = this.overwriteHardDiskFile();
+			// Log the removal, or rewrite the changed partition file without a log
+			success = this.writeToStorage(Key, null);
 			if (!success) {
 				// If for some reason the rewrite failed then return failure message
 				returnMsg = new KVAdminMessage("put", "DELETE_ERROR", Key, Value);
@@ -596,11 +930,10 @@ public class KVServer extends Thread {
 				returnMsg = new KVAdminMessage("put", "DELETE_SUCCESS", Key, Value);
 			}
 		}
-		else if (!this.m_hardDiskValueMap.containsKey(Key)) {
+		else if (!this.m_storage.containsKey(Key)) {
 			// This is an add operation, so add Key Value pair into map
-			this.m_hardDiskValueMap.put(Key, Value);
-			// Rewrite hard Disk file
-			success = this.overwriteHardDiskFile();
+			// Log the change, or rewrite the changed partition file without a log
+			success = this.writeToStorage(Key, Value);
 			if (!success) {
 				// If for some reason the rewrite failed then return failure message
 				returnMsg = new KVAdminMessage("put", "PUT_ERROR", Key, Value);
@@ -619,9 +952,8 @@ public class KVServer extends Thread {
 		} 
 		else {
 			// this is a update operation, so update the Key value Pair, put will update the original pair, or create one if it doesn't exist
-			this.m_hardDiskValueMap.put(Key, Value);
-			// Rewrite hard Disk file
-			success = this.overwriteHardDiskFile();
+			// Log the change, or rewrite the changed partition file without a log
+			success = this.writeToStorage(Key, Value);
 			if (!success) {
 				// If for some reason the rewrite failed then return failure message
 				returnMsg = new KVAdminMessage("put", "PUT_ERROR", Key, Value);
@@ -643,20 +975,27 @@ public class KVServer extends Thread {
 
 	/**
 	 * Handle the message of adding the server stored in the key field
-	 * This server is responsible for transferring data to it. 
+	 * This server is responsible for transferring data to it. The value holds the ranges to
+	 * transfer, see transferRanges.
 	 */
 	public KVMessage handleAddNode(KVMessage msg) {
-		ServerStatus prevStatus = this.status;
-		this.status = ServerStatus.WRITE_LOCKED;
-		//Note: there's no need to write lock the new server because it should be in the 
-		//stopped state so no client can write to it anyway. 
+		if (msg.getStatus().equals("SNAPSHOT")) {
+			return handleSnapshotAddNode(msg);
+		}
+		//Note: this server keeps accepting writes during the transfer, the ones made after 
+		//the keys to send were read are forwarded at the end, see transferData.
 
 		Server server = new Server(msg.getKey());
 		// Don't change metadata here, we broadcast from ECS
 		//metadata.addServer(server);
 
-		boolean success = transferData(server);		
-		this.status = prevStatus;
+		boolean success;
+		try {
+			success = transferData(server, transferRanges(msg, server));
+		} catch (NumberFormatException e) {
+			logger.error("Invalid transfer ranges: " + e.getMessage());
+			success = false;
+		}
 		if (success){
 			return new KVAdminMessage("addNode","SUCCESS",msg.getKey(),msg.getValue());
 		}
@@ -665,22 +1004,88 @@ public class KVServer extends Thread {
 		}
 	}
 
+	/**
+	 * Bootstrap the server stored in the key field from a snapshot of this server's data.
+	 * The keys it will be able to get are written to a segment file at a single point in time and
+	 * the file is shipped in bulk. Writes made after the snapshot are tracked and forwarded once
+	 * the segment has been loaded, so this server keeps accepting writes during the transfer.
+	 */
+	public KVMessage handleSnapshotAddNode(KVMessage msg) {
+		Server server = new Server(msg.getKey());
+		if (snapshotTransfer(server, msg)){
+			return new KVAdminMessage("addNode","SUCCESS",msg.getKey(),msg.getValue());
+		}
+		else{
+			return new KVAdminMessage("addNode","FAILED",msg.getKey(),msg.getValue());
+		}
+	}
+
+	/**
+	 * Load a segment shipped by another server's snapshot transfer into the hard disk map.
+	 * The segment file is deleted afterwards.
+	 */
+	public KVMessage handleSnapshot(KVMessage msg, File segment) {
+		logger.info("Loading snapshot segment from server "+msg.getValue());
+		Map<Utf8Bytes, Utf8Bytes> entries = new HashMap<Utf8Bytes, Utf8Bytes>();
+		boolean success = KVStorage.readSegment(segment, entries);
+		segment.delete();
+		if (!success) {
+			return new KVAdminMessage("snapshot","FAILED",msg.getKey(),msg.getValue());
+		}
+		synchronized(m_storageLock) {
+			this.m_storage.putAll(entries);
+			this.m_currentHardDiskEntries = this.m_storage.size();
+			// Write the segment to the partition files rather than copying it into the log
+			success = this.m_storage.checkpoint();
+			for (Map.Entry<Utf8Bytes, Utf8Bytes> entry : entries.entrySet()) {
+				// Only refresh keys which are already cached, loading a snapshot should not evict anything
+				if (success && this.isCached(entry.getKey())) {
+					success = this.insertIntoCache(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+		if (!success) {
+			return new KVAdminMessage("snapshot","FAILED",msg.getKey(),msg.getValue());
+		}
+		logger.info("Loaded "+entries.size()+" keys from snapshot segment");
+		return new KVAdminMessage("snapshot","SUCCESS",msg.getKey(),msg.getValue());
+	}
+
+	/**
+	 * Create an empty segment file next to the hard disk file.
+	 */
+	public File createSegmentFile() throws IOException {
+		return File.createTempFile("snapshot_" + id + "_", ".seg", new File(m_hardDiskFilePath));
+	}
+
 	/**
 	 * Remove this server from the system and transfer all of its
-	 * data to the server contained in the key. 
+	 * data to the server contained in the key. The value holds the ranges to transfer, see 
+	 * transferRanges.
 	 */
 	public KVMessage handleRemoveNode(KVMessage msg) {
-		ServerStatus prevStatus = this.status;
-		this.status = ServerStatus.WRITE_LOCKED;
-		//Note: there's no need to write lock the successor server that we're transferring to
-		//because it currently thinks it's not responsible for this part of the data (metadata update
-		//comes after all transferring is complete).
+		if (msg.getStatus().equals("SNAPSHOT")) {
+			Server successor = new Server(msg.getKey());
+			if (snapshotTransfer(successor, msg)){
+				return new KVAdminMessage("removeNode","SUCCESS",msg.getKey(),msg.getValue());
+			}
+			else{
+				return new KVAdminMessage("removeNode","FAILED",msg.getKey(),msg.getValue());
+			}
+		}
+		//Note: neither this server nor the successor is write locked, writes made during the
+		//transfer are forwarded at the end, see transferData.
 		Server successor = new Server(msg.getKey());
 		// Don't change metadata here, we broadcast from ECS
 		//metadata.removeServer(thisServer);
 
-		boolean success = transferData(successor);
-		this.status = prevStatus;
+		boolean success;
+		try {
+			success = transferData(successor, transferRanges(msg, successor));
+		} catch (NumberFormatException e) {
+			logger.error("Invalid transfer ranges: " + e.getMessage());
+			success = false;
+		}
 		if (success){
 			return new KVAdminMessage("removeNode","SUCCESS",msg.getKey(),msg.getValue());
 		}
@@ -690,10 +1095,38 @@ public class KVServer extends Thread {
 	}
 
 	/**
-	 * Locks this server and transfers data to another server.
-	 * Note that the metadata must be updated before calling this function
+	 * Return the ranges of keys a transfer message asks this server to send to server: the 
+	 * ranges in the message's value, as planned by the ecs, or all the keys server can get if
+	 * the value is empty. Throws NumberFormatException if the value is malformed.
+	 */
+	private List<HashRing.Range> transferRanges(KVMessage msg, Server server) {
+		String value = msg.getValue();
+		if (value == null || value.trim().isEmpty()) {
+			return metadata.getReadRanges(server);
+		}
+		return HashRing.parseRanges(value);
+	}
+
+	/**
+	 * Return true if the key's hash lies in one of the ranges.
 	 */
-	private boolean transferData(Server server) {
+	private boolean inRanges(Utf8Bytes key, List<HashRing.Range> ranges) {
+		BigInteger hash = metadata.objectHash(key);
+		for (HashRing.Range range : ranges) {
+			if (range.contains(hash)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Transfers the keys in the given ranges to another server one put at a time, within the
+	 * transfer throttle. The keys are read at a single point in time, like a snapshot, and 
+	 * the writes made after that are forwarded at the end, so this server does not need to be 
+	 * write locked. Note that the metadata must be updated before calling this function
+	 */
+	private boolean transferData(Server server, List<HashRing.Range> ranges) {
 		if (server.id == this.id){
 			//this can happen if there is only 1 server in the metadata. 
 			return true;
@@ -702,90 +1135,205 @@ public class KVServer extends Thread {
 		KVMessage response;
 
 		logger.info("Transferring data to server "+server.toString());
+		Map<Utf8Bytes, Utf8Bytes> delta = new LinkedHashMap<Utf8Bytes, Utf8Bytes>();
+		Client client = null;
 		try {
+			//scan the storage index for the keys in the ranges, and track the writes from then on
+			logger.debug("Transferring keys in ranges "+ranges);
+			Map<Utf8Bytes, Utf8Bytes> entries;
+			synchronized(m_storageLock) {
+				entries = m_storage.getRange(ranges);
+				m_snapshotDeltas.add(delta);
+			}
+
 			//connect to server as a client
-			Client client = new Client(server.ipAddress, server.port);
-			int triesRemaining = 5;
-			boolean success = false;
-			while (triesRemaining-- > 0){
-				//try connecting to this server 
-				try {
-					logger.info("Transfer data trying to connect to " + String.valueOf(server.port));
-					//wait for "connection successful" response
-					response = client.getResponse();
-					if (response.getStatus().equals("CONNECT_SUCCESS")){
-						logger.debug("Client: Connection successful to server "+String.valueOf(server.port));
-						success = true;
-						break;
+			client = connectForTransfer(server);
+			if(client == null) {
+				return false;
+			}
+
+			TransferThrottle throttle = m_transferThrottle;
+			for (Map.Entry<Utf8Bytes,Utf8Bytes> entry : entries.entrySet()){
+				Utf8Bytes key = entry.getKey();
+				Utf8Bytes value = entry.getValue();
+				throttle.acquire(1, key.length() + value.length());
+				logger.debug("Transferring "+key);
+				//send a special put message which overrides status and responsibility checking
+				KVMessage request = new KVAdminMessage("admin_put","",key,value);
+				client.sendMessage(request);
+				response = client.getResponse();
+				if(!"PUT_SUCCESS PUT_UPDATE".contains(response.getStatus())) {
+					logger.error("Erroneous response from updating server " + String.valueOf(server.port)+ ", message received: " + response.toString());
+					return false;
+				}
+			}
+
+			// The keys are not deleted here, this server may still replicate them. Once all moves
+			// of the rebalance are done the ecs sends a cleanup, see handleCleanup.
+			client.closeConnection();
+			client = null;
+			return forwardSnapshotDelta(server, ranges, delta);
+		} catch (Exception e){
+			logger.error("Error transferring data: " + e.toString());
+			return false;
+		} finally {
+			if (client != null) {
+				client.closeConnection();
+			}
+			synchronized(m_storageLock) {
+				m_snapshotDeltas.remove(delta);
+			}
+		}
+	}
+
+	/**
+	 * Connect to server as a client for a data transfer. Returns null if the server
+	 * does not accept the connection after 5 tries.
+	 */
+	private Client connectForTransfer(Server server) throws IOException {
+		Client client = new Client(server.ipAddress, server.port);
+		int triesRemaining = 5;
+		while (triesRemaining-- > 0){
+			//try connecting to this server 
+			try {
+				logger.info("Transfer data trying to connect to " + String.valueOf(server.port));
+				//wait for "connection successful" response
+				KVMessage response = client.getResponse();
+				if (response.getStatus().equals("CONNECT_SUCCESS")){
+					logger.debug("Client: Connection successful to server "+String.valueOf(server.port));
+					return client;
+				} else {
+					if (triesRemaining > 0){
+						logger.debug("Client: Unable to connect to server "+String.valueOf(server.port)+". Waiting 1 second and trying again.");
+						try {
+							TimeUnit.SECONDS.sleep(1); 		
+						} catch (InterruptedException e){}
+						client = new Client(server.ipAddress, server.port);
 					} else {
-						if (triesRemaining > 0){
-							logger.debug("Client: Unable to connect to server "+String.valueOf(server.port)+". Waiting 1 second and trying again.");
-							try {
-								TimeUnit.SECONDS.sleep(1); 		
-							} catch (InterruptedException e){}
-							client = new Client(server.ipAddress, server.port);
-						} else {
-							break;
-						}
+						break;
 					}
 				}
-				catch (Exception e){
-					logger.debug(e.getMessage());			
-				}
-			}	
-			if(!success) {
-				logger.error("Unable to connect to server port " + String.valueOf(server.port) + " for data transfer!");
+			}
+			catch (Exception e){
+				logger.debug(e.getMessage());			
+			}
+		}	
+		logger.error("Unable to connect to server port " + String.valueOf(server.port) + " for data transfer!");
+		return null;
+	}
+
+	/**
+	 * Snapshot the keys in the ranges asked for by the transfer message, ship the segments, 
+	 * then forward the writes that arrived after the snapshot was taken. Partitions wholly in 
+	 * the ranges are shipped as their partition files.
+	 */
+	private boolean snapshotTransfer(Server server, KVMessage msg) {
+		if (server.id == this.id){
+			//this can happen if there is only 1 server in the metadata. 
+			return true;
+		}
+		List<HashRing.Range> ranges;
+		try {
+			ranges = transferRanges(msg, server);
+		} catch (NumberFormatException e) {
+			logger.error("Invalid transfer ranges: " + e.getMessage());
+			return false;
+		}
+
+		logger.info("Snapshot transfer to server "+server.toString());
+		Map<Utf8Bytes, Utf8Bytes> delta = new LinkedHashMap<Utf8Bytes, Utf8Bytes>();
+		KVStorage.Snapshot snapshot = null;
+		try {
+			synchronized(m_storageLock) {
+				snapshot = m_storage.snapshot(ranges);
+				m_snapshotDeltas.add(delta);
+			}
+
+			logger.info("Snapshot of "+snapshot.size()+" keys taken, shipping "+snapshot.getSegments().size()+" segments to "+server.toString());
+			KVMessage response = SegmentTransfer.send(server, snapshot.getSegments(), String.valueOf(this.id), m_transferThrottle);
+			if (!response.getStatus().equals("SUCCESS")) {
+				logger.error("Server "+server.toString()+" could not load the snapshot segment: "+response.toString());
 				return false;
 			}
+			return forwardSnapshotDelta(server, ranges, delta);
+		} catch (IOException e) {
+			logger.error("Error shipping snapshot: " + e.toString());
+			return false;
+		} catch (InterruptedException e) {
+			logger.error("Interrupted while shipping snapshot");
+			return false;
+		} finally {
+			synchronized(m_storageLock) {
+				m_snapshotDeltas.remove(delta);
+			}
+			if (snapshot != null) {
+				snapshot.close();
+			}
+		}
+	}
 
-			//for every (key,value) pair, check whether the responsible server is the given server
-			ArrayList<String> movedKeys = new ArrayList<String>();
-			for (Map.Entry<String,String> entry : m_hardDiskValueMap.entrySet()){
-				String key = entry.getKey();
-				String value = entry.getValue();
-				Server responsible = metadata.getResponsible(key);
-				boolean secondary_responsible = metadata.canGet(server.id, key);
-				logger.debug("key = "+key+", responsible = "+responsible);
-
-				if (secondary_responsible){
-					movedKeys.add(key);
-					logger.debug("Transferring "+key);
-					//send a special put message which overrides status and responsibility checking
-					KVMessage request = new KVAdminMessage("admin_put","",key,value);
-					client.sendMessage(request);
-					response = client.getResponse();
-					if(!"PUT_SUCCESS PUT_UPDATE".contains(response.getStatus())) {
+	/**
+	 * Forward the writes recorded in delta to keys in the ranges to server until no new ones
+	 * arrive. The last check and the end of tracking happen under the storage lock so no 
+	 * write is missed.
+	 */
+	private boolean forwardSnapshotDelta(Server server, List<HashRing.Range> ranges, Map<Utf8Bytes, Utf8Bytes> delta) {
+		Client client = null;
+		try {
+			while (true) {
+				Map<Utf8Bytes, Utf8Bytes> batch;
+				synchronized(m_storageLock) {
+					if (delta.isEmpty()) {
+						m_snapshotDeltas.remove(delta);
+						return true;
+					}
+					batch = new LinkedHashMap<Utf8Bytes, Utf8Bytes>(delta);
+					delta.clear();
+				}
+				if (client == null) {
+					client = connectForTransfer(server);
+					if (client == null) {
+						return false;
+					}
+				}
+				logger.info("Forwarding "+batch.size()+" writes made since the snapshot to "+server.toString());
+				TransferThrottle throttle = m_transferThrottle;
+				for (Map.Entry<Utf8Bytes, Utf8Bytes> entry : batch.entrySet()) {
+					if (!inRanges(entry.getKey(), ranges)) {
+						continue;
+					}
+					throttle.acquire(1, entry.getKey().length() + entry.getValue().length());
+					client.sendMessage(new KVAdminMessage("admin_put","",entry.getKey(),entry.getValue()));
+					KVMessage response = client.getResponse();
+					if(!"PUT_SUCCESS PUT_UPDATE DELETE_SUCCESS".contains(response.getStatus())) {
 						logger.error("Erroneous response from updating server " + String.valueOf(server.port)+ ", message received: " + response.toString());
 						return false;
 					}
 				}
 			}
-
-			//delete all the moved keys from this server
-			/*
-			logger.debug("Deleting all transferred keys from this server");
-			for (String key : movedKeys) {
-				doPut(key, "null");
-			}
-			 */
-			// We don't actually need to delete here, for the sake of speed and replica stuff
-
-		} catch (Exception e){
-			logger.error("Error transferring data: " + e.toString());
+		} catch (IOException e) {
+			logger.error("Error forwarding snapshot writes: " + e.toString());
+			return false;
+		} catch (InterruptedException e) {
+			logger.error("Interrupted while forwarding snapshot writes");
 			return false;
+		} finally {
+			if (client != null) {
+				client.closeConnection();
+			}
 		}
-		return true;
 	}
 
 	/**
-	 * This method will send update messages to the replicas. Returns true on success
+	 * This method will send update messages to the replicas of the given ring, the same ring
+	 * the put was checked against. Returns true on success
 	 */
-	private boolean updateReplicas(KVMessage msg) {
-		String key = msg.getKey();
-		String value = msg.getValue();
+	private boolean updateReplicas(HashRing ring, KVMessage msg) {
+		Utf8Bytes key = msg.getKeyBytes();
+		Utf8Bytes value = msg.getValueBytes();
 
 		// Function in HashRing that pulls out the two servers we need to connect to
-		HashRing.Replicas replicas = metadata.getReplicas(key);
+		HashRing.Replicas replicas = ring.getReplicas(key);
 
 		// Construct the message
 		KVMessage request = new KVAdminMessage("admin_put", "PUT_REPLICA", key, value);
@@ -854,7 +1402,7 @@ public class KVServer extends Thread {
 	}
 
 	// This function is used to update the Cache Key Value Pair in case it was used
-	private boolean updateCacheHit(String key, String value) {
+	private boolean updateCacheHit(Utf8Bytes key, Utf8Bytes value) {
 		// When we call this function we know Cache has the key value pair
 		System.out.println("Got Hit from Cache, Pair was Key: " + key + " Value: " + value);
 		logger.info("Got Hit from Cache, Pair was Key: " + key + " Value: " + value);
@@ -868,8 +1416,33 @@ public class KVServer extends Thread {
 		// No change to current entries amount
 		return true;
 	}
+	// This function returns whether the key is in the cache
+	private boolean isCached(Utf8Bytes key) {
+		OffHeapCache offHeapCache = this.m_offHeapCache;
+		if (offHeapCache != null) {
+			return offHeapCache.containsKey(key);
+		}
+		synchronized(m_myLock) {
+			return this.m_cacheValueMap.containsKey(key);
+		}
+	}
+	// This function returns a copy of the keys in the cache
+	private List<Utf8Bytes> cachedKeys() {
+		OffHeapCache offHeapCache = this.m_offHeapCache;
+		if (offHeapCache != null) {
+			return offHeapCache.keys();
+		}
+		synchronized(m_myLock) {
+			return new ArrayList<Utf8Bytes>(this.m_cacheValueMap.keySet());
+		}
+	}
 	// This function is used to delete key value pair from the cache
-	private boolean deleteFromCache(String key, String value) {
+	private boolean deleteFromCache(Utf8Bytes key, Utf8Bytes value) {
+		OffHeapCache offHeapCache = this.m_offHeapCache;
+		if (offHeapCache != null) {
+			offHeapCache.remove(key);
+			return true;
+		}
 		// Insert Scoped Lock here
 		synchronized(m_myLock) {
 			// When we call this function we don't know if Cache has the Key Value Pair we want to delete
@@ -890,7 +1463,7 @@ public class KVServer extends Thread {
 		}
 	}
 	// This function is used to add a new key value pair into the cache
-	private void addToCache(String key, String value) {
+	private void addToCache(Utf8Bytes key, Utf8Bytes value) {
 		// add the pair to all the other maps and lists we need
 		// add value in cache value map
 		this.m_cacheValueMap.put(key, value);
@@ -904,7 +1477,13 @@ public class KVServer extends Thread {
 		this.m_currentCacheEntries = this.m_currentCacheEntries + 1;
 	}
 	// This function is used to put key value pair into the cache
-	private boolean insertIntoCache(String key, String value) {
+	private boolean insertIntoCache(Utf8Bytes key, Utf8Bytes value) {
+		OffHeapCache offHeapCache = this.m_offHeapCache;
+		if (offHeapCache != null) {
+			// The off-heap cache evicts by itself, a value larger than a slab is just not cached
+			offHeapCache.put(key, value);
+			return true;
+		}
 		// Insert Scoped Lock here
 		synchronized(m_myLock) {
 			// When we call this function we don't know if Cache is already Full or if that key value pair already exists in it
@@ -954,7 +1533,7 @@ public class KVServer extends Thread {
 	private boolean evictFIFO() {
 		// When we call this function we know Cache is already Full
 		// Find the key of the element we want to evict
-		String key = this.m_cacheFIFOList.getFirst();
+		Utf8Bytes key = this.m_cacheFIFOList.getFirst();
 		System.out.println("Evicting using FIFO from Cache Key: " + key);
 		logger.info("Evicting using FIFO from Cache Key: " + key);
 		// remove the pair to all the other maps and lists we need
@@ -975,7 +1554,7 @@ public class KVServer extends Thread {
 		// When we call this function we know Cache is already Full
 		// Find the key of the element we want to evict
 		// Iterate through all pairs of LFU map
-		String key = this.m_cacheLRUList.getFirst();
+		Utf8Bytes key = this.m_cacheLRUList.getFirst();
 		System.out.println("Evicting using LRU from Cache Key: " + key);
 		logger.info("Evicting using LRU from Cache Key: " + key);
 		// remove the pair to all the other maps and lists we need
@@ -995,9 +1574,9 @@ public class KVServer extends Thread {
 	private boolean evictLFU() {
 		// When we call this function we know Cache is already Full
 		// Find the key of the element we want to evict
-		String key = null;
+		Utf8Bytes key = null;
 		int frequency = 99999999;
-		for ( Map.Entry<String, Integer> iteratorDummy : this.m_cacheLFUMap.entrySet()) {
+		for ( Map.Entry<Utf8Bytes, Integer> iteratorDummy : this.m_cacheLFUMap.entrySet()) {
 			// For each key/value pair, see if it was less frequently used than the previous lowest
 			if (iteratorDummy.getValue() < frequency) {
 				key = iteratorDummy.getKey();
@@ -1028,7 +1607,15 @@ public class KVServer extends Thread {
 	 */
 	public void run() {
 
-		running = initializeSocket();
+		synchronized(m_socketLock) {
+			// A server closed before it got to bind must not start listening afterwards
+			running = !m_closed && initializeSocket();
+		}
+		if (running) {
+			System.out.println(READY + " " + id);
+			System.out.flush();
+		}
+		m_ready.countDown();
 
 		if(serverSocket != null) {
 			while(isRunning()){
@@ -1063,7 +1650,17 @@ public class KVServer extends Thread {
 	 */
 	public void closeServer(){
 		logger.info("Shutting down server");
-		running = false;
+		synchronized(m_socketLock) {
+			m_closed = true;
+			running = false;
+		}
+		m_forwardPool.closeAll();
+		if (m_coordinator != null) {
+			m_coordinator.close();
+		}
+		if (m_heartbeat != null) {
+			m_heartbeat.stopSending();
+		}
 		try {
 			if (serverSocket != null) {
 				serverSocket.close();
@@ -1072,6 +1669,9 @@ public class KVServer extends Thread {
 			logger.error("Error! " +
 					"Unable to close socket on port: " + port, e);
 		}
+		synchronized(m_storageLock) {
+			m_storage.closeLog();
+		}
 	}
 
 	/**
@@ -1099,6 +1699,7 @@ public class KVServer extends Thread {
 		System.out.println("\t<port> <id>");
 		System.out.println("\t<port> <cache size> <replacement strategy>");
 		System.out.println("\t<port> <cache size> <replacement strategy> <id>");
+		System.out.println("\t<port> <cache size> <replacement strategy> <id> [proxy] [mmap] [zk=<host:port>] [hb=<host:port>] [hbms=<interval>] [xferops=<n>] [xferbytes=<n>] [fsync=always|never|<ms>] [offheap=<MB>]");
 	}
 
 	/**
@@ -1107,10 +1708,29 @@ public class KVServer extends Thread {
 	 * 		<port> <id>
 	 * 		<port> <cache size> <replacement strategy>
 	 * 		<port> <cache size> <replacement strategy> <id>
+	 * 		<port> <cache size> <replacement strategy> <id> [proxy] [mmap] [zk=<host:port>] [hb=<host:port>] [hbms=<interval>] 
+	 * 			[xferops=<n>] [xferbytes=<n>] [fsync=always|never|<ms>] [offheap=<MB>]
+	 * The option mmap keeps values in memory-mapped files instead of on the heap, see
+	 * setMappedStorage.
+	 * The option zk= joins the ZooKeeper ensemble at the given address, see connectZooKeeper.
+	 * The option hb= sends heartbeats to the ecs at the given address every hbms milliseconds,
+	 * 1000 by default, see startHeartbeat.
+	 * The options xferops= and xferbytes= limit the keys and bytes per second the server sends
+	 * to other servers when the ring changes, see setTransferLimit.
+	 * The option fsync= sets when the write-ahead log is forced to disk, every 1000 milliseconds
+	 * by default, see setSyncPolicy.
+	 * The option offheap= caches up to the given megabytes of values off the heap instead of
+	 * caching cache size pairs on the heap, see setOffHeapCache.
 	 */
 	public static void main(String[] args) {
 		try {
 			String portStr="50000", strategy="FIFO", cacheSizeStr="1", idStr="0";
+			boolean validOptions = true;
+			List<String> options = new ArrayList<String>();
+			for (int i = 4; i < args.length; i++) {
+				options.add(args[i]);
+				validOptions = validOptions && isValidOption(args[i]);
+			}
 
 			//determine what each argument represents based on the number of arguments.
 			if (args.length == 2){
@@ -1124,8 +1744,10 @@ public class KVServer extends Thread {
 				cacheSizeStr = args[1];
 				strategy = args[2];
 			}
-			else if (args.length == 4){
-				//interpret 3 arguments as port, cache size, replacement strategy, and id
+			else if (args.length >= 4 && validOptions){
+				//interpret 4 arguments as port, cache size, replacement strategy, and id
+				//followed by the options "proxy", which turns on proxy mode, "mmap", "zk=<host:port>",
+				//"hb=<host:port>", "hbms=<interval>", "xferops=<n>", "xferbytes=<n>", "fsync=<policy>" and "offheap=<MB>"
 				portStr = args[0];
 				cacheSizeStr = args[1];
 				strategy = args[2];
@@ -1152,7 +1774,14 @@ public class KVServer extends Thread {
 				new KVServer(port, id);
 			}
 			else{
-				new KVServer(port, cacheSize, strategy, id);
+				KVServer server = new KVServer(port, cacheSize, strategy, id);
+				try {
+					server.applyOptions(options);
+				} catch (IOException e) {
+					System.out.println("Error! Unable to apply options " + options);
+					e.printStackTrace();
+					System.exit(1);
+				}
 			}
 
 		} catch (IOException e) {
@@ -0,0 +1,956 @@
+package app_kvServer;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import org.apache.log4j.Logger;
+
+import common.Crc32c;
+import common.HashRing;
+import common.Utf8Bytes;
+
+/**
+ * Storage engine behind a KVServer. Key value pairs are kept in a map and every key is
+ * indexed by its position on the hash ring, so all the keys in a hash range can be found
+ * with a range scan of the index instead of hashing every stored key.
+ * On disk the ring is split into a fixed number of partitions (the same partitions the
+ * HashRing places servers on, see setPartitions) and each partition is stored in its own file
+ * in the storage directory. A change only rewrites the file of the partition it touches, and ownership
+ * changes can ship whole partition files.
+ * Once a write-ahead log is opened changes are appended to it instead, and the partition
+ * files are only rewritten, durably, when the log has grown past CHECKPOINT_BYTES. Loading
+ * replays whatever the log holds on top of the partition files.
+ * In mapped mode values are not kept on the heap once their partition file is written. The
+ * partition files are memory-mapped and the map only holds where each value lies in them,
+ * so a get decodes the value straight from the mapped region and the heap grows with the
+ * number of keys rather than the size of the values. Values changed since their partition
+ * was last written stay on the heap until the next write of the partition.
+ * Keys and values are kept and written as the UTF-8 bytes they arrive as, see Utf8Bytes.
+ * Partition files and snapshot segments start with SEGMENT_MAGIC followed by one record per
+ * pair, "<key length><value length><crc><key><value>" where the CRC-32C covers the lengths,
+ * key and value. Loading skips a damaged record and everything after it in its file rather
+ * than the whole storage, and rewrites the file. Files in the old text format, key and value
+ * each on a line, are still read and are rewritten in the new one.
+ */
+public class KVStorage {
+	private static Logger logger = Logger.getRootLogger();
+	private static final String PARTITION_PREFIX = "partition_";
+	private static final String PARTITION_SUFFIX = ".seg";
+	private static final String LEGACY_PARTITION_SUFFIX = ".txt";
+	// No key starts with a zero byte, so text files never start with the magic
+	private static final byte[] SEGMENT_MAGIC = {0, 'K', 'V', 1};
+	// key length, value length and crc before every key and value
+	private static final int RECORD_HEADER = 12;
+	private static final String LOG_NAME = "wal.log";
+	// The log is folded into the partition files once it holds this many bytes
+	public static final long CHECKPOINT_BYTES = 4 * 1024 * 1024;
+	// This is the directory holding one file per non-empty partition
+	private File m_directory;
+	// Storage from before partitioning was a single file next to the directory
+	private File m_legacyFile;
+	private int m_partitions;
+	// This map stores the key pairs with key, value. In mapped mode the value is replaced by
+	// its Location once it has been written to its partition file
+	private Map<Utf8Bytes, Object> m_valueMap;
+	private boolean m_mapped;
+	private boolean m_loaded;
+	// This map stores the same keys ordered by their hash ring position
+	private TreeMap<BigInteger, Utf8Bytes> m_hashIndex;
+	// Partitions changed since their file was last written
+	private Set<Integer> m_dirtyPartitions;
+	// Only used for its key hash function, which must match the servers' metadata
+	private HashRing m_hasher;
+	// The log changes are appended to, null until openLog is called
+	private volatile WriteAheadLog m_log;
+	// Partition files forced to disk, for checking durability
+	private long m_syncedWrites;
+
+	/**
+	 * Create the storage in the given directory, creating the directory if it does not
+	 * exist yet. Nothing is read until load() is called.
+	 */
+	public KVStorage(File directory) {
+		this.m_directory = directory;
+		this.m_legacyFile = new File(directory.getPath() + ".txt");
+		this.m_partitions = HashRing.DEFAULT_PARTITIONS;
+		this.m_valueMap = new HashMap<Utf8Bytes, Object>();
+		this.m_hashIndex = new TreeMap<BigInteger, Utf8Bytes>();
+		this.m_dirtyPartitions = new TreeSet<Integer>();
+		this.m_hasher = new HashRing();
+		if (m_directory.mkdirs()) {
+			logger.info("Created New Hard disk directory " + m_directory.getName());
+		} else {
+			logger.info("Hard disk directory " + m_directory.getName() + " already exists");
+		}
+	}
+
+	/**
+	 * Where a value lies in a mapped partition file. The segment is the mapping of the file
+	 * as it was when the value was written, which stays readable after the file is replaced.
+	 */
+	private static final class Location {
+		final MappedByteBuffer segment;
+		final int offset;
+		final int length;
+
+		Location(MappedByteBuffer segment, int offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		Utf8Bytes read() {
+			ByteBuffer value = segment.duplicate();
+			value.position(offset);
+			return Utf8Bytes.read(value, length);
+		}
+	}
+
+	/**
+	 * Switch mapped mode on or off. Switching it on writes every changed partition and maps
+	 * all partition files, switching it off reads all values back onto the heap. Before load
+	 * it only sets how load reads the files. Returns false if a partition file could not be
+	 * written or mapped, the storage then keeps the values it could not map on the heap.
+	 */
+	public synchronized boolean setMapped(boolean mapped) {
+		if (mapped == m_mapped) {
+			return true;
+		}
+		m_mapped = mapped;
+		if (!m_loaded) {
+			return true;
+		}
+		if (!mapped) {
+			for (Map.Entry<Utf8Bytes, Object> entry : m_valueMap.entrySet()) {
+				entry.setValue(valueOf(entry.getValue()));
+			}
+			return true;
+		}
+		if (!writePartitions(m_log != null)) {
+			return false;
+		}
+		boolean success = true;
+		for (int partition = 0; partition < m_partitions; partition++) {
+			File file = partitionFile(partition);
+			if (file.isFile()) {
+				success = mapPartition(file, false) && success;
+			}
+		}
+		return success;
+	}
+
+	public synchronized boolean isMapped() {
+		return m_mapped;
+	}
+
+	/**
+	 * Map a partition file and point the keys in it at their values in the mapping, adding
+	 * the keys which are not in the map yet. Damaged records at the end of the file are
+	 * skipped. The partitions of the file's keys are marked for rewriting if there were any
+	 * or if rewrite is set, eg for a file in the old format. Returns false if the file could
+	 * not be mapped.
+	 */
+	private boolean mapPartition(File file, boolean rewrite) {
+		final MappedByteBuffer segment;
+		try {
+			segment = map(file);
+		} catch (IOException e) {
+			logger.error("Unable to map " + file.getName() + ": " + e.getMessage());
+			return false;
+		}
+		final List<Utf8Bytes> keys = new ArrayList<Utf8Bytes>();
+		int skipped = parseSegment(segment, new PairVisitor() {
+			@Override
+			public void visit(ByteBuffer buffer, int keyOffset, int keyLength, int valueOffset, int valueLength) {
+				ByteBuffer keyBytes = buffer.duplicate();
+				keyBytes.position(keyOffset);
+				Utf8Bytes key = Utf8Bytes.read(keyBytes, keyLength);
+				keys.add(key);
+				Location location = new Location(segment, valueOffset, valueLength);
+				if (m_valueMap.put(key, location) == null) {
+					m_hashIndex.put(m_hasher.objectHash(key), key);
+				}
+			}
+		});
+		if (skipped > 0) {
+			logger.warn("Skipping " + skipped + " bytes of damaged records at the end of " + file.getName());
+			markDamaged(file);
+		}
+		if (rewrite || skipped > 0) {
+			for (Utf8Bytes key : keys) {
+				m_dirtyPartitions.add(partitionOf(key));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Map the whole file read-only. The mapping stays valid after the file is closed, renamed
+	 * over or deleted.
+	 */
+	private static MappedByteBuffer map(File file) throws IOException {
+		FileChannel channel = new FileInputStream(file).getChannel();
+		try {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Receives the pairs of a segment as the places their key and value lie in it.
+	 */
+	private interface PairVisitor {
+		void visit(ByteBuffer segment, int keyOffset, int keyLength, int valueOffset, int valueLength);
+	}
+
+	/**
+	 * Feed every valid pair of the segment, in either format, to the visitor. Reading stops at
+	 * the first record which is cut short or fails its checksum, as the lengths in it and so
+	 * where the next record starts cannot be trusted. Returns the number of bytes skipped.
+	 */
+	private static int parseSegment(ByteBuffer segment, PairVisitor visitor) {
+		int end = segment.limit();
+		if (!isBinary(segment)) {
+			return parseText(segment, visitor);
+		}
+		Crc32c crc = new Crc32c();
+		int position = SEGMENT_MAGIC.length;
+		while (end - position >= RECORD_HEADER) {
+			int keyLength = segment.getInt(position);
+			int valueLength = segment.getInt(position + 4);
+			int keyOffset = position + RECORD_HEADER;
+			if (keyLength < 0 || valueLength < 0 || (long) keyLength + valueLength > end - keyOffset) {
+				break;
+			}
+			crc.reset();
+			crc.update(segment, position, 8);
+			crc.update(segment, keyOffset, keyLength + valueLength);
+			if ((int) crc.getValue() != segment.getInt(position + 8)) {
+				break;
+			}
+			visitor.visit(segment, keyOffset, keyLength, keyOffset + keyLength, valueLength);
+			position = keyOffset + keyLength + valueLength;
+		}
+		return end - position;
+	}
+
+	private static boolean isBinary(ByteBuffer segment) {
+		if (segment.limit() < SEGMENT_MAGIC.length) {
+			return false;
+		}
+		for (int i = 0; i < SEGMENT_MAGIC.length; i++) {
+			if (segment.get(i) != SEGMENT_MAGIC[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Walk a segment in the old text format, where every pair is "<key>\n<value>\n". Returns
+	 * the number of bytes of a key left without a value at the end.
+	 */
+	private static int parseText(ByteBuffer segment, PairVisitor visitor) {
+		int position = 0;
+		int end = segment.limit();
+		while (position < end) {
+			int keyEnd = lineEnd(segment, position);
+			int valueEnd = keyEnd < 0 ? -1 : lineEnd(segment, keyEnd + 1);
+			if (valueEnd < 0) {
+				break;
+			}
+			visitor.visit(segment, position, keyEnd - position, keyEnd + 1, valueEnd - keyEnd - 1);
+			position = valueEnd + 1;
+		}
+		return end - position;
+	}
+
+	/**
+	 * Return the index of the first line feed at or after start, or -1 if there is none.
+	 */
+	private static int lineEnd(ByteBuffer segment, int start) {
+		for (int i = start; i < segment.limit(); i++) {
+			if (segment.get(i) == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static Utf8Bytes valueOf(Object value) {
+		if (value instanceof Location) {
+			return ((Location) value).read();
+		}
+		return (Utf8Bytes) value;
+	}
+
+	/**
+	 * Read every partition file into the map, or map it in mapped mode. Files in the old text
+	 * format, including a single file left by the unpartitioned format, and files with damaged
+	 * records are rewritten as partition files in the current format. Returns false and
+	 * empties the storage if any file could not be read.
+	 */
+	public synchronized boolean load() {
+		m_loaded = true;
+		File[] files = m_directory.listFiles();
+		if (files == null) {
+			logger.error("Unable to list hard disk directory " + m_directory.getName());
+			return false;
+		}
+		// Old files are read first, so if a crash left one next to its rewritten partition
+		// file the rewritten one wins
+		List<File> legacy = new ArrayList<File>();
+		List<File> partitions = new ArrayList<File>();
+		if (m_legacyFile.isFile()) {
+			logger.info("Splitting " + m_legacyFile.getName() + " into partition files");
+			legacy.add(m_legacyFile);
+		}
+		for (File file : files) {
+			if (file.getName().startsWith(PARTITION_PREFIX)) {
+				if (file.getName().endsWith(PARTITION_SUFFIX)) {
+					partitions.add(file);
+				} else if (file.getName().endsWith(LEGACY_PARTITION_SUFFIX)) {
+					legacy.add(file);
+				}
+			}
+		}
+		List<File> all = new ArrayList<File>(legacy);
+		all.addAll(partitions);
+		for (File file : all) {
+			boolean rewrite = legacy.contains(file);
+			if (!(m_mapped ? mapPartition(file, rewrite) : readInto(file, rewrite))) {
+				m_valueMap.clear();
+				m_hashIndex.clear();
+				m_dirtyPartitions.clear();
+				return false;
+			}
+		}
+		File logFile = new File(m_directory, LOG_NAME);
+		try {
+			int records = WriteAheadLog.replay(logFile, new WriteAheadLog.Replayer() {
+				@Override
+				public void put(Utf8Bytes key, Utf8Bytes value) {
+					apply(key, value);
+				}
+				@Override
+				public void remove(Utf8Bytes key) {
+					apply(key, null);
+				}
+			});
+			if (records > 0) {
+				logger.info("Replayed " + records + " changes from " + logFile.getName());
+				if (!writePartitions(true)) {
+					return false;
+				}
+			}
+			logFile.delete();
+		} catch (IOException e) {
+			logger.error("Unable to replay " + logFile.getName() + ": " + e.getMessage());
+			return false;
+		}
+		if (!m_dirtyPartitions.isEmpty()) {
+			if (!writePartitions(true)) {
+				return false;
+			}
+		}
+		for (File file : legacy) {
+			file.delete();
+		}
+		return true;
+	}
+
+	/**
+	 * Read a partition file into the map, skipping damaged records at its end. Like
+	 * mapPartition, marks the partitions of its keys for rewriting if there were any or if
+	 * rewrite is set.
+	 */
+	private boolean readInto(File file, boolean rewrite) {
+		Map<Utf8Bytes, Utf8Bytes> entries = new HashMap<Utf8Bytes, Utf8Bytes>();
+		int skipped = readPairs(file, entries);
+		if (skipped < 0) {
+			return false;
+		}
+		if (skipped > 0) {
+			logger.warn("Skipping " + skipped + " bytes of damaged records at the end of " + file.getName());
+			markDamaged(file);
+		}
+		for (Map.Entry<Utf8Bytes, Utf8Bytes> entry : entries.entrySet()) {
+			if (m_valueMap.put(entry.getKey(), entry.getValue()) == null) {
+				m_hashIndex.put(m_hasher.objectHash(entry.getKey()), entry.getKey());
+			}
+			if (rewrite || skipped > 0) {
+				m_dirtyPartitions.add(partitionOf(entry.getKey()));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Start appending changes to the write-ahead log instead of rewriting partition files.
+	 * Must be called after load, which replays and empties the log.
+	 */
+	public synchronized void openLog(WriteAheadLog.SyncPolicy policy, long intervalMs) throws IOException {
+		if (m_log == null) {
+			m_log = new WriteAheadLog(new File(m_directory, LOG_NAME));
+		}
+		m_log.setSyncPolicy(policy, intervalMs);
+	}
+
+	/**
+	 * Force the log to disk and close it, eg when the server shuts down. The log is replayed by
+	 * the next load, changes made after closing fail.
+	 */
+	public synchronized void closeLog() {
+		if (m_log != null) {
+			m_log.close();
+		}
+	}
+
+	public WriteAheadLog getLog() {
+		return m_log;
+	}
+
+	/**
+	 * Return how many partition files have been written and forced to disk.
+	 */
+	public synchronized long getSyncedWrites() {
+		return m_syncedWrites;
+	}
+
+	/**
+	 * Return the position a caller must pass to awaitDurable to wait for the changes it has
+	 * made so far, 0 without a log.
+	 */
+	public synchronized long logPosition() {
+		return m_log == null ? 0 : m_log.position();
+	}
+
+	/**
+	 * Wait until the changes up to the given log position are durable, as far as the sync
+	 * policy of the log asks for. Not synchronized, so writers waiting for the disk do not
+	 * hold up the ones appending meanwhile, which then share their fsync.
+	 */
+	public void awaitDurable(long position) throws IOException {
+		WriteAheadLog log = m_log;
+		if (log != null) {
+			log.awaitDurable(position);
+		}
+	}
+
+	/**
+	 * Make the changes since the last flush recoverable. Without a log, this rewrites the file
+	 * of every changed partition. With one, the changes are in the log already and the
+	 * partition files are only rewritten when the log is due for a checkpoint.
+	 * Returns false if a file could not be written.
+	 */
+	public synchronized boolean flush() {
+		if (m_log == null) {
+			return writePartitions(false);
+		}
+		try {
+			if (m_log.size() < CHECKPOINT_BYTES) {
+				return true;
+			}
+		} catch (IOException e) {
+			logger.error("Unable to read the size of the write-ahead log: " + e.getMessage());
+		}
+		return checkpoint();
+	}
+
+	/**
+	 * Write every changed partition to disk durably and empty the log, eg after bulk changes
+	 * which would only bloat it. Returns false if a file could not be written.
+	 */
+	public synchronized boolean checkpoint() {
+		if (!writePartitions(true)) {
+			return false;
+		}
+		if (m_log != null) {
+			try {
+				m_log.reset();
+			} catch (IOException e) {
+				logger.error("Unable to empty the write-ahead log: " + e.getMessage());
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Rewrite the file of every partition changed since the last write. Each file is written
+	 * to a temporary file first and renamed over the old one, so readers holding the old file
+	 * open keep seeing its previous contents. If durable, the files and the directory are
+	 * forced to disk before returning.
+	 */
+	private boolean writePartitions(boolean durable) {
+		Iterator<Integer> dirty = m_dirtyPartitions.iterator();
+		while (dirty.hasNext()) {
+			int partition = dirty.next();
+			File file = partitionFile(partition);
+			// Partitions left over from a larger count lose their files
+			Map<Utf8Bytes, Utf8Bytes> entries = partition < m_partitions
+					? getPartition(partition) : Collections.<Utf8Bytes, Utf8Bytes>emptyMap();
+			try {
+				if (entries.isEmpty()) {
+					file.delete();
+				} else {
+					File tmp = new File(m_directory, file.getName() + ".tmp");
+					if (!writeSegment(tmp, entries, durable)) {
+						return false;
+					}
+					Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					if (durable) {
+						m_syncedWrites++;
+					}
+					if (m_mapped && !mapPartition(file, false)) {
+						return false;
+					}
+				}
+			} catch (IOException e) {
+				logger.error("Encountered Error while trying to write partition " + partition + ": " + e.getMessage());
+				return false;
+			}
+			dirty.remove();
+		}
+		if (durable) {
+			syncDirectory();
+		}
+		return true;
+	}
+
+	/**
+	 * Force the renames in the directory to disk. Not every platform can open a directory,
+	 * there the renames are left to the operating system.
+	 */
+	private void syncDirectory() {
+		try {
+			FileChannel directory = FileChannel.open(m_directory.toPath(), StandardOpenOption.READ);
+			try {
+				directory.force(true);
+			} finally {
+				directory.close();
+			}
+		} catch (IOException e) {
+			logger.debug("Unable to sync directory " + m_directory.getName() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Switch the hash function keys are indexed and partitioned by to the one of the ring.
+	 * Every key is rehashed and, as keys move between partitions, every partition is rewritten
+	 * by the next flush. Does nothing if the function is unchanged.
+	 */
+	public synchronized void setHashFunction(HashRing.HashFunction hashFunction) {
+		if (m_hasher.getHashFunction() == hashFunction) {
+			return;
+		}
+		logger.info("Rehashing " + m_valueMap.size() + " keys with " + hashFunction.getName());
+		m_hasher.setHashFunction(hashFunction);
+		m_hashIndex.clear();
+		for (Utf8Bytes key : m_valueMap.keySet()) {
+			m_hashIndex.put(m_hasher.objectHash(key), key);
+		}
+		for (int partition = 0; partition < m_partitions; partition++) {
+			m_dirtyPartitions.add(partition);
+		}
+	}
+
+	/**
+	 * Split the storage into the same number of partitions as the ring, so the ranges the
+	 * servers hand over on partition bounds are whole partition files. Every partition is
+	 * rewritten by the next write of the partition files, which deletes the files of the
+	 * partitions beyond the new count. Does nothing for a ring without partitions or if the
+	 * count is unchanged.
+	 */
+	public synchronized void setPartitions(int partitions) {
+		if (partitions <= 0 || partitions == m_partitions) {
+			return;
+		}
+		logger.info("Repartitioning " + m_valueMap.size() + " keys from " + m_partitions + " into " + partitions + " partitions");
+		int previous = m_partitions;
+		m_partitions = partitions;
+		for (int partition = 0; partition < Math.max(previous, partitions); partition++) {
+			m_dirtyPartitions.add(partition);
+		}
+	}
+
+	public synchronized int getPartitions() {
+		return m_partitions;
+	}
+
+	public synchronized Utf8Bytes get(Utf8Bytes key) {
+		return valueOf(m_valueMap.get(key));
+	}
+
+	public synchronized boolean containsKey(Utf8Bytes key) {
+		return m_valueMap.containsKey(key);
+	}
+
+	public synchronized int size() {
+		return m_valueMap.size();
+	}
+
+	/**
+	 * Store the pair in the map and append it to the log if there is one, without writing the
+	 * partition file.
+	 */
+	public synchronized void put(Utf8Bytes key, Utf8Bytes value) throws IOException {
+		if (m_log != null) {
+			m_log.appendPut(key, value);
+		}
+		apply(key, value);
+	}
+
+	/**
+	 * Put the pair, or remove the key if value is null, in the map and the index only.
+	 */
+	private void apply(Utf8Bytes key, Utf8Bytes value) {
+		if (value == null) {
+			if (m_valueMap.remove(key) != null) {
+				BigInteger hash = m_hasher.objectHash(key);
+				m_hashIndex.remove(hash);
+				m_dirtyPartitions.add(HashRing.getPartition(hash, m_partitions));
+			}
+			return;
+		}
+		BigInteger hash = m_hasher.objectHash(key);
+		if (m_valueMap.put(key, value) == null) {
+			m_hashIndex.put(hash, key);
+		}
+		m_dirtyPartitions.add(HashRing.getPartition(hash, m_partitions));
+	}
+
+	/**
+	 * Store all the pairs without logging them, call checkpoint to make them durable.
+	 */
+	public synchronized void putAll(Map<Utf8Bytes, Utf8Bytes> entries) {
+		for (Map.Entry<Utf8Bytes, Utf8Bytes> entry : entries.entrySet()) {
+			apply(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Remove the key from the map and log the removal if there is a log, without writing the
+	 * partition file.
+	 */
+	public synchronized void remove(Utf8Bytes key) throws IOException {
+		if (m_log != null && m_valueMap.containsKey(key)) {
+			m_log.appendRemove(key);
+		}
+		apply(key, null);
+	}
+
+	/**
+	 * Remove every pair whose key hash lies in one of the ranges without writing the files.
+	 * The keys are found by a range scan of the hash index and removed in one go, and only 
+	 * the partitions which lost keys are marked for the next flush, which deletes the files of
+	 * the partitions left empty instead of rewriting them. Returns the number of removed pairs.
+	 */
+	public synchronized int removeRanges(List<HashRing.Range> ranges) {
+		int removed = 0;
+		for (HashRing.Range range : ranges) {
+			if (range.isFullRing()) {
+				removed += removeIndexed(m_hashIndex);
+			} else if (range.low.compareTo(range.high) < 0) {
+				removed += removeIndexed(m_hashIndex.subMap(range.low, false, range.high, true));
+			} else {
+				// The range wraps around the top of the ring
+				removed += removeIndexed(m_hashIndex.tailMap(range.low, false));
+				removed += removeIndexed(m_hashIndex.headMap(range.high, true));
+			}
+		}
+		if (removed > m_valueMap.size()) {
+			// A HashMap never shrinks its table, so copy the pairs left into a right-sized one
+			m_valueMap = new HashMap<Utf8Bytes, Object>(m_valueMap);
+		}
+		return removed;
+	}
+
+	/**
+	 * Remove the keys of a view of the hash index from the map and the index.
+	 */
+	private int removeIndexed(SortedMap<BigInteger, Utf8Bytes> keys) {
+		int count = keys.size();
+		for (Map.Entry<BigInteger, Utf8Bytes> entry : keys.entrySet()) {
+			m_valueMap.remove(entry.getValue());
+			m_dirtyPartitions.add(HashRing.getPartition(entry.getKey(), m_partitions));
+		}
+		keys.clear();
+		return count;
+	}
+
+	/**
+	 * Return a copy of every pair whose key hash lies in the given range, found by
+	 * scanning the hash index.
+	 */
+	public synchronized Map<Utf8Bytes, Utf8Bytes> getRange(HashRing.Range range) {
+		Map<Utf8Bytes, Utf8Bytes> entries = new LinkedHashMap<Utf8Bytes, Utf8Bytes>();
+		for (Utf8Bytes key : keysInRange(range)) {
+			entries.put(key, valueOf(m_valueMap.get(key)));
+		}
+		return entries;
+	}
+
+	/**
+	 * Return a copy of every pair whose key hash lies in any of the given ranges.
+	 */
+	public synchronized Map<Utf8Bytes, Utf8Bytes> getRange(List<HashRing.Range> ranges) {
+		Map<Utf8Bytes, Utf8Bytes> entries = new LinkedHashMap<Utf8Bytes, Utf8Bytes>();
+		for (HashRing.Range range : ranges) {
+			entries.putAll(getRange(range));
+		}
+		return entries;
+	}
+
+	/**
+	 * Return the number of keys whose hash lies in the given range.
+	 */
+	public synchronized int countRange(HashRing.Range range) {
+		return keysInRange(range).size();
+	}
+
+	private Collection<Utf8Bytes> keysInRange(HashRing.Range range) {
+		if (range.isFullRing()) {
+			return m_hashIndex.values();
+		}
+		if (range.low.compareTo(range.high) < 0) {
+			return m_hashIndex.subMap(range.low, false, range.high, true).values();
+		}
+		// The range wraps around the top of the ring
+		List<Utf8Bytes> keys = new ArrayList<Utf8Bytes>(m_hashIndex.tailMap(range.low, false).values());
+		keys.addAll(m_hashIndex.headMap(range.high, true).values());
+		return keys;
+	}
+
+	/**
+	 * Return a copy of the pairs in the given partition.
+	 */
+	private Map<Utf8Bytes, Utf8Bytes> getPartition(int partition) {
+		return getRange(HashRing.getPartitionRange(partition, m_partitions));
+	}
+
+	/**
+	 * Take a point-in-time snapshot of the pairs in the given ranges as a list of open segment
+	 * files. Partitions which lie completely inside a range are shipped as their partition
+	 * file, the pairs of partitions cut by a range boundary are written to one extra segment.
+	 * Holding the files open keeps their contents even if the partitions are rewritten later.
+	 */
+	public synchronized Snapshot snapshot(List<HashRing.Range> ranges) throws IOException {
+		// With a log the changes may only be in the log, which the next checkpoint empties
+		// without rewriting the partitions written here, so they must reach the disk now
+		if (!writePartitions(m_log != null)) {
+			throw new IOException("Unable to write partition files for snapshot");
+		}
+		Snapshot snapshot = new Snapshot();
+		Map<Utf8Bytes, Utf8Bytes> partial = new LinkedHashMap<Utf8Bytes, Utf8Bytes>();
+		try {
+			for (int partition = 0; partition < m_partitions; partition++) {
+				HashRing.Range range = HashRing.getPartitionRange(partition, m_partitions);
+				int count = keysInRange(range).size();
+				if (count == 0) {
+					continue;
+				}
+				if (containsPartition(ranges, partition)) {
+					snapshot.add(partitionFile(partition), count);
+				} else {
+					for (Map.Entry<Utf8Bytes, Utf8Bytes> entry : getRange(range).entrySet()) {
+						if (inRanges(ranges, m_hasher.objectHash(entry.getKey()))) {
+							partial.put(entry.getKey(), entry.getValue());
+						}
+					}
+				}
+			}
+			if (!partial.isEmpty()) {
+				File segment = File.createTempFile("snapshot_", ".seg", m_directory);
+				if (!writeSegment(segment, partial)) {
+					segment.delete();
+					throw new IOException("Unable to write snapshot segment");
+				}
+				snapshot.add(segment, partial.size());
+				// The open channel keeps the data readable until the snapshot is closed
+				segment.delete();
+			}
+		} catch (IOException e) {
+			snapshot.close();
+			throw e;
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Return true if every hash in the partition lies inside one of the ranges.
+	 */
+	private boolean containsPartition(List<HashRing.Range> ranges, int partition) {
+		BigInteger high = HashRing.getPartitionBound(partition, m_partitions);
+		for (HashRing.Range range : ranges) {
+			if (range.isFullRing()) {
+				return true;
+			}
+			// The range covers the partition's last hash and neither starts nor ends inside it
+			if (range.contains(high)
+					&& HashRing.getPartition(range.low, m_partitions) != partition
+					&& (HashRing.getPartition(range.high, m_partitions) != partition || range.high.equals(high))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean inRanges(List<HashRing.Range> ranges, BigInteger hash) {
+		for (HashRing.Range range : ranges) {
+			if (range.contains(hash)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int partitionOf(Utf8Bytes key) {
+		return HashRing.getPartition(m_hasher.objectHash(key), m_partitions);
+	}
+
+	private File partitionFile(int partition) {
+		return new File(m_directory, PARTITION_PREFIX + partition + PARTITION_SUFFIX);
+	}
+
+	/**
+	 * Mark the partition a file with damaged records is named after for rewriting. Marking the
+	 * partitions of the keys read from it is not enough, if the first record is damaged there
+	 * are none and the file would stay as it is.
+	 */
+	private void markDamaged(File file) {
+		String name = file.getName();
+		if (!name.startsWith(PARTITION_PREFIX) || !name.endsWith(PARTITION_SUFFIX)) {
+			return;
+		}
+		try {
+			m_dirtyPartitions.add(Integer.parseInt(
+					name.substring(PARTITION_PREFIX.length(), name.length() - PARTITION_SUFFIX.length())));
+		} catch (NumberFormatException e) {
+			logger.warn("Unable to tell the partition of " + name);
+		}
+	}
+
+	/**
+	 * Write the entries to a segment file, one checksummed record per pair.
+	 */
+	public static boolean writeSegment(File segment, Map<Utf8Bytes, Utf8Bytes> entries) {
+		return writeSegment(segment, entries, false);
+	}
+
+	/**
+	 * Write the entries to a segment file, forcing it to disk before closing it if durable.
+	 * The keys and values are already UTF-8, so their bytes are written as they are.
+	 */
+	private static boolean writeSegment(File segment, Map<Utf8Bytes, Utf8Bytes> entries, boolean durable) {
+		try {
+			FileOutputStream file = new FileOutputStream(segment);
+			try {
+				BufferedOutputStream out = new BufferedOutputStream(file, 64 * 1024);
+				out.write(SEGMENT_MAGIC);
+				Crc32c crc = new Crc32c();
+				// Every record is put together here first, reused while it is large enough
+				byte[] record = new byte[1024];
+				for (Map.Entry<Utf8Bytes, Utf8Bytes> entry : entries.entrySet()) {
+					Utf8Bytes key = entry.getKey();
+					Utf8Bytes value = entry.getValue();
+					int length = RECORD_HEADER + key.length() + value.length();
+					if (record.length < length) {
+						record = new byte[Math.max(length, record.length * 2)];
+					}
+					ByteBuffer header = ByteBuffer.wrap(record);
+					header.putInt(0, key.length()).putInt(4, value.length());
+					key.copyTo(record, RECORD_HEADER);
+					value.copyTo(record, RECORD_HEADER + key.length());
+					crc.reset();
+					crc.update(record, 0, 8);
+					crc.update(record, RECORD_HEADER, key.length() + value.length());
+					header.putInt(8, (int) crc.getValue());
+					out.write(record, 0, length);
+				}
+				out.flush();
+				if (durable) {
+					file.getFD().sync();
+				}
+			} finally {
+				file.close();
+			}
+			return true;
+		} catch (IOException e) {
+			logger.error("Unable to write segment "+segment.getName()+": "+e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Read the entries of a segment file into the given map. Returns false if the file could
+	 * not be read or holds damaged records, eg one cut short in transfer.
+	 */
+	public static boolean readSegment(File segment, Map<Utf8Bytes, Utf8Bytes> entries) {
+		int skipped = readPairs(segment, entries);
+		if (skipped > 0) {
+			logger.error("Segment "+segment.getName()+" ends with "+skipped+" bytes of damaged records");
+		}
+		return skipped == 0;
+	}
+
+	/**
+	 * Read the valid entries of a segment file into the given map. Returns the number of
+	 * bytes of damaged records skipped at its end, or -1 if it could not be read.
+	 */
+	private static int readPairs(File segment, final Map<Utf8Bytes, Utf8Bytes> entries) {
+		try {
+			return parseSegment(map(segment), new PairVisitor() {
+				@Override
+				public void visit(ByteBuffer buffer, int keyOffset, int keyLength, int valueOffset, int valueLength) {
+					ByteBuffer bytes = buffer.duplicate();
+					bytes.position(keyOffset);
+					Utf8Bytes key = Utf8Bytes.read(bytes, keyLength);
+					bytes.position(valueOffset);
+					entries.put(key, Utf8Bytes.read(bytes, valueLength));
+				}
+			});
+		} catch (IOException e) {
+			logger.error("Unable to read segment "+segment.getName()+": "+e.getMessage());
+			return -1;
+		}
+	}
+
+	/**
+	 * Segment files making up a point-in-time copy of a range. close() must be called
+	 * once the segments have been shipped.
+	 */
+	public static class Snapshot {
+		private List<FileChannel> segments = new ArrayList<FileChannel>();
+		private int keys = 0;
+
+		private void add(File file, int count) throws IOException {
+			segments.add(new FileInputStream(file).getChannel());
+			keys += count;
+		}
+
+		public List<FileChannel> getSegments() {
+			return segments;
+		}
+
+		public int size() {
+			return keys;
+		}
+
+		public void close() {
+			for (FileChannel segment : segments) {
+				try {
+					segment.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+}
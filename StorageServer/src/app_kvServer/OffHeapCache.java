@@ -0,0 +1,338 @@
+package app_kvServer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import common.Utf8Bytes;
+
+/**
+ * Cache which keeps its values outside of the Java heap, so a large cache neither grows the
+ * old generation nor lengthens garbage collections. Memory is taken from the operating
+ * system in slabs of direct ByteBuffers. Like memcached, every slab is cut into chunks of one
+ * size class, the classes growing by a quarter from 64 bytes to a whole slab, and a value is
+ * stored in a free chunk of the smallest class it fits in. The heap only holds the keys and
+ * a long per entry packing the slab, offset and length of its value.
+ * Once all slabs are taken, a value evicts the least recently used entry of its size class.
+ * If its class has no slab at all, the slab of the least recently used entry is emptied and
+ * handed over to the class. Like memcached every class keeps its own LRU list, and every slab
+ * knows the entry in each of its chunks, so neither eviction walks the other entries.
+ */
+public class OffHeapCache {
+	public static final int SLAB_SIZE = 1 << 20;
+	private static final int MIN_CHUNK = 64;
+	// A handle is <slab:22 bits><offset:21 bits><length:21 bits>
+	private static final int FIELD_BITS = 21;
+	private static final long FIELD_MASK = (1L << FIELD_BITS) - 1;
+	private static final int[] CHUNK_SIZES = chunkSizes();
+
+	private final ByteBuffer[] m_slabs;
+	private final int[] m_slabClass;
+	private int m_allocated;
+	// Per size class, a stack of the free chunks as <slab><offset> handles
+	private final long[][] m_free = new long[CHUNK_SIZES.length][];
+	private final int[] m_freeCount = new int[CHUNK_SIZES.length];
+	private final HashMap<Utf8Bytes, Entry> m_index = new HashMap<Utf8Bytes, Entry>();
+	// Per size class, its entries from the least to the most recently used
+	private final Entry[] m_oldest = new Entry[CHUNK_SIZES.length];
+	private final Entry[] m_newest = new Entry[CHUNK_SIZES.length];
+	// Per slab, the entry stored in each of its chunks
+	private final Entry[][] m_chunkEntries;
+	// Counts the accesses, to compare how recently entries of different classes were used
+	private long m_clock;
+	private long m_usedBytes;
+	private long m_evictions;
+
+	/**
+	 * Create a cache of at most capacityBytes, rounded up to a whole number of slabs. Slabs
+	 * are only allocated when needed.
+	 */
+	public OffHeapCache(long capacityBytes) {
+		int slabs = (int) Math.max(1, (capacityBytes + SLAB_SIZE - 1) / SLAB_SIZE);
+		this.m_slabs = new ByteBuffer[slabs];
+		this.m_slabClass = new int[slabs];
+		this.m_chunkEntries = new Entry[slabs][];
+		for (int c = 0; c < CHUNK_SIZES.length; c++) {
+			m_free[c] = new long[16];
+		}
+	}
+
+	/**
+	 * A cached value, linked into the LRU list of its size class.
+	 */
+	private static final class Entry {
+		final Utf8Bytes key;
+		final long handle;
+		final int sizeClass;
+		long lastUsed;
+		Entry older;
+		Entry newer;
+
+		Entry(Utf8Bytes key, long handle, int sizeClass) {
+			this.key = key;
+			this.handle = handle;
+			this.sizeClass = sizeClass;
+		}
+	}
+
+	private static int[] chunkSizes() {
+		List<Integer> sizes = new ArrayList<Integer>();
+		int size = MIN_CHUNK;
+		while (size < SLAB_SIZE) {
+			sizes.add(size);
+			// Grow by a quarter, rounded up to a multiple of 8 bytes
+			size = (size + size / 4 + 7) & ~7;
+		}
+		sizes.add(SLAB_SIZE);
+		int[] result = new int[sizes.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = sizes.get(i);
+		}
+		return result;
+	}
+
+	private static int classOf(int length) {
+		int c = Arrays.binarySearch(CHUNK_SIZES, Math.max(length, 1));
+		return c >= 0 ? c : -c - 1;
+	}
+
+	private static long chunk(long handle) {
+		return handle >>> FIELD_BITS;
+	}
+
+	private static int slabOf(long chunk) {
+		return (int) (chunk >>> FIELD_BITS);
+	}
+
+	private static int offsetOf(long chunk) {
+		return (int) (chunk & FIELD_MASK);
+	}
+
+	/**
+	 * Return the cached value of the key, or null if it is not cached, and mark it as the most
+	 * recently used entry.
+	 */
+	public synchronized Utf8Bytes get(Utf8Bytes key) {
+		Entry entry = m_index.get(key);
+		if (entry == null) {
+			return null;
+		}
+		unlink(entry);
+		link(entry);
+		long chunk = chunk(entry.handle);
+		ByteBuffer value = m_slabs[slabOf(chunk)].duplicate();
+		value.position(offsetOf(chunk));
+		return Utf8Bytes.read(value, (int) (entry.handle & FIELD_MASK));
+	}
+
+	public synchronized boolean containsKey(Utf8Bytes key) {
+		return m_index.containsKey(key);
+	}
+
+	/**
+	 * Cache the pair, replacing the key's previous value and evicting other entries if there
+	 * is no room. Returns false if the value is larger than a slab and was not cached.
+	 */
+	public synchronized boolean put(Utf8Bytes key, Utf8Bytes value) {
+		remove(key);
+		if (value.length() > SLAB_SIZE) {
+			return false;
+		}
+		int sizeClass = classOf(value.length());
+		long chunk = allocate(sizeClass);
+		if (chunk < 0) {
+			return false;
+		}
+		ByteBuffer slab = m_slabs[slabOf(chunk)].duplicate();
+		slab.position(offsetOf(chunk));
+		value.writeTo(slab);
+		Entry entry = new Entry(key, (chunk << FIELD_BITS) | value.length(), sizeClass);
+		m_index.put(key, entry);
+		m_chunkEntries[slabOf(chunk)][offsetOf(chunk) / CHUNK_SIZES[sizeClass]] = entry;
+		link(entry);
+		m_usedBytes += CHUNK_SIZES[sizeClass];
+		return true;
+	}
+
+	/**
+	 * Remove the key from the cache. Returns true if it was cached.
+	 */
+	public synchronized boolean remove(Utf8Bytes key) {
+		Entry entry = m_index.get(key);
+		if (entry == null) {
+			return false;
+		}
+		drop(entry);
+		return true;
+	}
+
+	/**
+	 * Make the entry the most recently used of its size class.
+	 */
+	private void link(Entry entry) {
+		entry.lastUsed = ++m_clock;
+		entry.older = m_newest[entry.sizeClass];
+		entry.newer = null;
+		if (entry.older != null) {
+			entry.older.newer = entry;
+		} else {
+			m_oldest[entry.sizeClass] = entry;
+		}
+		m_newest[entry.sizeClass] = entry;
+	}
+
+	private void unlink(Entry entry) {
+		if (entry.older != null) {
+			entry.older.newer = entry.newer;
+		} else {
+			m_oldest[entry.sizeClass] = entry.newer;
+		}
+		if (entry.newer != null) {
+			entry.newer.older = entry.older;
+		} else {
+			m_newest[entry.sizeClass] = entry.older;
+		}
+	}
+
+	/**
+	 * Remove the entry from the cache and free its chunk.
+	 */
+	private void drop(Entry entry) {
+		m_index.remove(entry.key);
+		unlink(entry);
+		long chunk = chunk(entry.handle);
+		m_chunkEntries[slabOf(chunk)][offsetOf(chunk) / CHUNK_SIZES[entry.sizeClass]] = null;
+		push(entry.sizeClass, chunk);
+		m_usedBytes -= CHUNK_SIZES[entry.sizeClass];
+	}
+
+	/**
+	 * Return a free chunk of the size class, taking a new slab or evicting entries if there
+	 * is none. Returns -1 if the cache holds nothing which could make room.
+	 */
+	private long allocate(int sizeClass) {
+		if (m_freeCount[sizeClass] == 0 && m_allocated < m_slabs.length) {
+			int slab = m_allocated++;
+			m_slabs[slab] = ByteBuffer.allocateDirect(SLAB_SIZE);
+			assign(slab, sizeClass);
+		}
+		if (m_freeCount[sizeClass] == 0) {
+			evictFrom(sizeClass);
+		}
+		if (m_freeCount[sizeClass] == 0) {
+			if (!reassignLeastRecentlyUsedSlab(sizeClass)) {
+				return -1;
+			}
+		}
+		return m_free[sizeClass][--m_freeCount[sizeClass]];
+	}
+
+	/**
+	 * Evict the least recently used entry of the size class, if it has any.
+	 */
+	private void evictFrom(int sizeClass) {
+		if (m_oldest[sizeClass] != null) {
+			drop(m_oldest[sizeClass]);
+			m_evictions++;
+		}
+	}
+
+	/**
+	 * Empty the slab holding the least recently used entry and give it to the size class.
+	 * Returns false if the cache is empty.
+	 */
+	private boolean reassignLeastRecentlyUsedSlab(int sizeClass) {
+		// The least recently used entry is the oldest of one of the classes
+		Entry lru = null;
+		for (Entry oldest : m_oldest) {
+			if (oldest != null && (lru == null || oldest.lastUsed < lru.lastUsed)) {
+				lru = oldest;
+			}
+		}
+		if (lru == null) {
+			return false;
+		}
+		int slab = slabOf(chunk(lru.handle));
+		for (Entry entry : m_chunkEntries[slab]) {
+			if (entry != null) {
+				drop(entry);
+				m_evictions++;
+			}
+		}
+		// Take the slab's chunks off the free list of its old class
+		int oldClass = m_slabClass[slab];
+		int kept = 0;
+		for (int i = 0; i < m_freeCount[oldClass]; i++) {
+			if (slabOf(m_free[oldClass][i]) != slab) {
+				m_free[oldClass][kept++] = m_free[oldClass][i];
+			}
+		}
+		m_freeCount[oldClass] = kept;
+		assign(slab, sizeClass);
+		return true;
+	}
+
+	/**
+	 * Cut the slab into chunks of the size class and add them to its free list.
+	 */
+	private void assign(int slab, int sizeClass) {
+		m_slabClass[slab] = sizeClass;
+		int size = CHUNK_SIZES[sizeClass];
+		m_chunkEntries[slab] = new Entry[SLAB_SIZE / size];
+		// Pushed from the end so chunks are handed out from the start of the slab
+		for (int offset = (SLAB_SIZE / size - 1) * size; offset >= 0; offset -= size) {
+			push(sizeClass, ((long) slab << FIELD_BITS) | offset);
+		}
+	}
+
+	private void push(int sizeClass, long chunk) {
+		if (m_freeCount[sizeClass] == m_free[sizeClass].length) {
+			m_free[sizeClass] = Arrays.copyOf(m_free[sizeClass], m_free[sizeClass].length * 2);
+		}
+		m_free[sizeClass][m_freeCount[sizeClass]++] = chunk;
+	}
+
+	/**
+	 * Return a copy of the cached keys, from the least to the most recently used.
+	 */
+	public synchronized List<Utf8Bytes> keys() {
+		List<Entry> entries = new ArrayList<Entry>(m_index.values());
+		Collections.sort(entries, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				return a.lastUsed < b.lastUsed ? -1 : (a.lastUsed == b.lastUsed ? 0 : 1);
+			}
+		});
+		List<Utf8Bytes> keys = new ArrayList<Utf8Bytes>(entries.size());
+		for (Entry entry : entries) {
+			keys.add(entry.key);
+		}
+		return keys;
+	}
+
+	public synchronized int size() {
+		return m_index.size();
+	}
+
+	/**
+	 * Return the bytes of the chunks holding values.
+	 */
+	public synchronized long getUsedBytes() {
+		return m_usedBytes;
+	}
+
+	/**
+	 * Return the bytes of direct memory taken by the slabs allocated so far.
+	 */
+	public synchronized long getAllocatedBytes() {
+		return (long) m_allocated * SLAB_SIZE;
+	}
+
+	public synchronized long getEvictions() {
+		return m_evictions;
+	}
+}
@@ -0,0 +1,117 @@
+package app_kvServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import common.HashRing.Server;
+import common.messages.KVAdminMessage;
+import common.messages.KVMessage;
+
+/**
+ * Ships storage segment files between servers.
+ * For each segment the sender writes a "snapshot" message whose key is the length of the
+ * segment, followed directly by the raw segment bytes, and waits for the receiver's response. The bytes are pushed from the file to
+ * the socket with FileChannel.transferTo so they never pass through the Java heap.
+ * The receiver copies them back into a segment file on its own disk before loading it.
+ */
+public class SegmentTransfer {
+	private static Logger logger = Logger.getRootLogger();
+	// Segments can be large, so use the same timeout as the ECS uses for addNode/removeNode
+	private static final int TIMEOUT = 30000;
+	// Bytes pushed at a time when the transfer is throttled
+	private static final long THROTTLED_CHUNK = 64 * 1024;
+
+	/**
+	 * Send the given segments to server over one connection, one snapshot message
+	 * each, within the limits of the throttle. Returns the response to the first segment that 
+	 * failed to load, or to the last one. The channels are read from position 0 and are not closed.
+	 */
+	public static KVMessage send(Server server, List<FileChannel> segments, String sender, TransferThrottle throttle) throws IOException, InterruptedException {
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress(server.ipAddress, server.port));
+		try {
+			channel.socket().setSoTimeout(TIMEOUT);
+			InputStream input = channel.socket().getInputStream();
+			//wait for "connection successful" response
+			KVMessage response = readMessage(input);
+			if (!response.getStatus().equals("CONNECT_SUCCESS")) {
+				throw new IOException("Unable to connect to server "+server.toString()+" for snapshot transfer");
+			}
+
+			response = new KVAdminMessage("snapshot", "SUCCESS", "0", sender);
+			for (FileChannel file : segments) {
+				long length = file.size();
+				KVMessage header = new KVAdminMessage("snapshot", "", String.valueOf(length), sender);
+				ByteBuffer headerBytes = ByteBuffer.wrap(header.getMsgBytes());
+				while (headerBytes.hasRemaining()) {
+					channel.write(headerBytes);
+				}
+				long position = 0;
+				while (position < length) {
+					long chunk = length - position;
+					if (!throttle.isUnlimited()) {
+						chunk = Math.min(chunk, THROTTLED_CHUNK);
+						throttle.acquire(0, chunk);
+					}
+					position += file.transferTo(position, chunk, channel);
+				}
+				logger.info("Shipped "+length+" byte segment to server "+server.toString());
+				response = readMessage(input);
+				if (!response.getStatus().equals("SUCCESS")) {
+					break;
+				}
+			}
+			return response;
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Copy exactly length bytes of a segment from the input stream into the given file.
+	 */
+	public static void receive(InputStream input, long length, File segment) throws IOException {
+		ReadableByteChannel source = Channels.newChannel(input);
+		FileChannel file = new FileOutputStream(segment).getChannel();
+		try {
+			long position = 0;
+			while (position < length) {
+				long received = file.transferFrom(source, position, length - position);
+				if (received <= 0) {
+					throw new EOFException("Connection closed after "+position+" of "+length+" segment bytes");
+				}
+				position += received;
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Read a single newline terminated message from the stream.
+	 */
+	private static KVMessage readMessage(InputStream input) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		int read = input.read();
+		while (read != 10) {
+			if (read == -1) {
+				throw new EOFException("Connection closed while waiting for a response");
+			}
+			bytes.write(read);
+			read = input.read();
+		}
+		return new KVAdminMessage(bytes.toByteArray());
+	}
+}
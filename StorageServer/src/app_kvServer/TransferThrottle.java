@@ -0,0 +1,72 @@
+package app_kvServer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate at which a server sends data to other servers while rebalancing, in keys
+ * (operations) and bytes per second, so a transfer leaves enough of the server's disk and
+ * network to its clients. A token bucket per limit holds up to a tenth of a second worth of
+ * tokens. A caller takes what it sends and, if that leaves the bucket in debt, sleeps until
+ * the debt is paid off, so one throttle can be shared by all transfers of a server. A limit
+ * of 0 means unlimited.
+ */
+public class TransferThrottle {
+	public static final TransferThrottle UNLIMITED = new TransferThrottle(0, 0);
+	private static final double BURST_SECONDS = 0.1;
+	private final long m_opsPerSecond;
+	private final long m_bytesPerSecond;
+	private double m_ops;
+	private double m_bytes;
+	private long m_last;
+
+	public TransferThrottle(long opsPerSecond, long bytesPerSecond) {
+		this.m_opsPerSecond = opsPerSecond;
+		this.m_bytesPerSecond = bytesPerSecond;
+		this.m_ops = burst(opsPerSecond);
+		this.m_bytes = burst(bytesPerSecond);
+		this.m_last = System.nanoTime();
+	}
+
+	private static double burst(long perSecond) {
+		return Math.max(perSecond * BURST_SECONDS, 1);
+	}
+
+	public long getOpsPerSecond() {
+		return m_opsPerSecond;
+	}
+
+	public long getBytesPerSecond() {
+		return m_bytesPerSecond;
+	}
+
+	public boolean isUnlimited() {
+		return m_opsPerSecond <= 0 && m_bytesPerSecond <= 0;
+	}
+
+	/**
+	 * Take ops operations and the given number of bytes, sleeping as long as needed to stay
+	 * within the limits.
+	 */
+	public void acquire(int ops, long bytes) throws InterruptedException {
+		if (isUnlimited()) {
+			return;
+		}
+		double waitSeconds = 0;
+		synchronized (this) {
+			long now = System.nanoTime();
+			double elapsed = (now - m_last) / 1e9;
+			m_last = now;
+			if (m_opsPerSecond > 0) {
+				m_ops = Math.min(m_ops + elapsed * m_opsPerSecond, burst(m_opsPerSecond)) - ops;
+				waitSeconds = Math.max(waitSeconds, -m_ops / m_opsPerSecond);
+			}
+			if (m_bytesPerSecond > 0) {
+				m_bytes = Math.min(m_bytes + elapsed * m_bytesPerSecond, burst(m_bytesPerSecond)) - bytes;
+				waitSeconds = Math.max(waitSeconds, -m_bytes / m_bytesPerSecond);
+			}
+		}
+		if (waitSeconds > 0) {
+			TimeUnit.NANOSECONDS.sleep((long) (waitSeconds * 1e9));
+		}
+	}
+}
@@ -0,0 +1,286 @@
+package app_kvServer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import common.Utf8Bytes;
+
+/**
+ * Log of the changes made to a KVStorage since its partition files were last written.
+ * A change is appended as one record and is recoverable as soon as the record reaches the
+ * disk, so a put costs one append instead of rewriting a partition file. Every record is
+ * "<length> <crc> <payload>" where the CRC32 covers the payload, so replay stops at a record
+ * torn by a crash instead of applying garbage.
+ * How soon records reach the disk is set by the sync policy: ALWAYS makes every writer wait
+ * for an fsync covering its record, INTERVAL fsyncs every few milliseconds from a background
+ * thread, and NEVER leaves it to the operating system. With ALWAYS the fsyncs are shared
+ * (group commit): one writer forces the log for every record appended so far while the
+ * writers which arrive in the meantime wait for it and are covered by the next one.
+ */
+public class WriteAheadLog {
+	private static Logger logger = Logger.getRootLogger();
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	// length and crc before every payload
+	private static final int HEADER = 8;
+
+	public enum SyncPolicy { ALWAYS, INTERVAL, NEVER }
+
+	/**
+	 * Receives the records of a log being replayed, in the order they were appended.
+	 */
+	public interface Replayer {
+		void put(Utf8Bytes key, Utf8Bytes value);
+		void remove(Utf8Bytes key);
+	}
+
+	private final File m_file;
+	private final FileChannel m_channel;
+	// Positions are counted in bytes ever appended, so they stay ordered across resets
+	private long m_appended;
+	private final Object m_syncLock = new Object();
+	private long m_synced;
+	private boolean m_syncing;
+	private long m_syncCount;
+	private volatile SyncPolicy m_policy = SyncPolicy.NEVER;
+	private volatile long m_interval;
+	private Thread m_syncer;
+
+	/**
+	 * Open the log for appending after its valid records. Replay it first, see replay.
+	 */
+	public WriteAheadLog(File file) throws IOException {
+		this.m_file = file;
+		this.m_channel = new RandomAccessFile(file, "rw").getChannel();
+		this.m_channel.position(m_channel.size());
+		this.m_appended = m_channel.size();
+		this.m_synced = m_appended;
+	}
+
+	/**
+	 * Feed every valid record of the log file to the replayer and cut off the rest, ie the
+	 * tail a crash left behind mid-append. Returns the number of records replayed.
+	 */
+	public static int replay(File file, Replayer replayer) throws IOException {
+		if (!file.isFile()) {
+			return 0;
+		}
+		int records = 0;
+		RandomAccessFile log = new RandomAccessFile(file, "rw");
+		try {
+			long valid = 0;
+			try {
+				while (true) {
+					int length = log.readInt();
+					long crc = log.readInt() & 0xffffffffL;
+					if (length < 5 || length > log.length() - log.getFilePointer()) {
+						break;
+					}
+					byte[] payload = new byte[length];
+					log.readFully(payload);
+					CRC32 check = new CRC32();
+					check.update(payload);
+					if (check.getValue() != crc) {
+						break;
+					}
+					ByteBuffer buffer = ByteBuffer.wrap(payload);
+					byte op = buffer.get();
+					int keyLength = buffer.getInt();
+					if (keyLength < 0 || keyLength > buffer.remaining()) {
+						break;
+					}
+					Utf8Bytes key = Utf8Bytes.read(buffer, keyLength);
+					if (op == PUT) {
+						replayer.put(key, Utf8Bytes.read(buffer, buffer.remaining()));
+					} else if (op == REMOVE) {
+						replayer.remove(key);
+					} else {
+						break;
+					}
+					valid = log.getFilePointer();
+					records++;
+				}
+			} catch (EOFException e) {
+				// The last record was cut short
+			}
+			if (valid < log.length()) {
+				logger.warn("Discarding " + (log.length() - valid) + " bytes of torn records at the end of " + file.getName());
+				log.setLength(valid);
+			}
+		} finally {
+			log.close();
+		}
+		return records;
+	}
+
+	/**
+	 * Append a put, returning the position the log must be synced up to for it to be durable.
+	 */
+	public synchronized long appendPut(Utf8Bytes key, Utf8Bytes value) throws IOException {
+		return append(PUT, key, value);
+	}
+
+	public synchronized long appendRemove(Utf8Bytes key) throws IOException {
+		return append(REMOVE, key, Utf8Bytes.EMPTY);
+	}
+
+	private long append(byte op, Utf8Bytes key, Utf8Bytes value) throws IOException {
+		int length = 1 + 4 + key.length() + value.length();
+		ByteBuffer payload = ByteBuffer.allocate(HEADER + length);
+		payload.position(HEADER);
+		payload.put(op).putInt(key.length());
+		key.writeTo(payload);
+		value.writeTo(payload);
+		CRC32 crc = new CRC32();
+		crc.update(payload.array(), HEADER, length);
+		payload.putInt(0, length).putInt(4, (int) crc.getValue());
+		payload.flip();
+		while (payload.hasRemaining()) {
+			m_channel.write(payload);
+		}
+		m_appended += HEADER + length;
+		return m_appended;
+	}
+
+	/**
+	 * Return the position of the end of the last record appended.
+	 */
+	public synchronized long position() {
+		return m_appended;
+	}
+
+	/**
+	 * Return the number of bytes of records in the log file.
+	 */
+	public long size() throws IOException {
+		return m_channel.size();
+	}
+
+	/**
+	 * Return how many times the log was forced to disk, for monitoring group commit.
+	 */
+	public long getSyncCount() {
+		synchronized (m_syncLock) {
+			return m_syncCount;
+		}
+	}
+
+	/**
+	 * Set when records are forced to disk. intervalMs is only used by INTERVAL.
+	 */
+	public synchronized void setSyncPolicy(SyncPolicy policy, long intervalMs) {
+		m_policy = policy;
+		m_interval = Math.max(intervalMs, 1);
+		if (policy == SyncPolicy.INTERVAL && m_syncer == null) {
+			m_syncer = new Thread("wal-sync") {
+				public void run() {
+					while (m_policy == SyncPolicy.INTERVAL && m_channel.isOpen()) {
+						try {
+							Thread.sleep(m_interval);
+							sync(position());
+						} catch (InterruptedException e) {
+							// Woken up by close or a policy change
+						} catch (IOException e) {
+							if (m_channel.isOpen()) {
+								logger.error("Unable to sync " + m_file.getName() + ": " + e.getMessage());
+							}
+						}
+					}
+				}
+			};
+			m_syncer.setDaemon(true);
+			m_syncer.start();
+		} else if (policy != SyncPolicy.INTERVAL && m_syncer != null) {
+			m_syncer.interrupt();
+			m_syncer = null;
+		}
+	}
+
+	public SyncPolicy getSyncPolicy() {
+		return m_policy;
+	}
+
+	/**
+	 * Wait until the record ending at the given position is durable, as far as the sync
+	 * policy asks for. Must not be called while holding a lock appenders need, or the writers
+	 * arriving during an fsync could not join the next one.
+	 */
+	public void awaitDurable(long position) throws IOException {
+		if (m_policy == SyncPolicy.ALWAYS) {
+			sync(position);
+		}
+	}
+
+	/**
+	 * Force the log to disk at least up to the given position. If another thread is forcing it
+	 * already, wait for that and only force again if it did not cover the position.
+	 */
+	public void sync(long position) throws IOException {
+		synchronized (m_syncLock) {
+			while (m_synced < position && m_syncing) {
+				try {
+					m_syncLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for the log to sync");
+				}
+			}
+			if (m_synced >= position) {
+				return;
+			}
+			m_syncing = true;
+		}
+		long target = position();
+		boolean forced = false;
+		try {
+			m_channel.force(false);
+			forced = true;
+		} finally {
+			synchronized (m_syncLock) {
+				m_syncing = false;
+				if (forced) {
+					m_synced = Math.max(m_synced, target);
+					m_syncCount++;
+				}
+				m_syncLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Empty the log once everything in it has been written to the partition files durably.
+	 * Positions handed out before count as synced.
+	 */
+	public synchronized void reset() throws IOException {
+		m_channel.truncate(0);
+		m_channel.position(0);
+		m_channel.force(true);
+		synchronized (m_syncLock) {
+			m_synced = Math.max(m_synced, m_appended);
+			m_syncLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Force what is left to disk, stop the sync thread and close the file.
+	 */
+	public void close() {
+		setSyncPolicy(SyncPolicy.NEVER, 0);
+		if (!m_channel.isOpen()) {
+			return;
+		}
+		try {
+			sync(position());
+			m_channel.close();
+		} catch (IOException e) {
+			logger.error("Unable to close " + m_file.getName() + ": " + e.getMessage());
+		}
+	}
+}
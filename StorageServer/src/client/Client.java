@@ -138,7 +138,9 @@ public class Client {
 		byte[] msgBytes = msg.getMsgBytes();
 		output.write(msgBytes, 0, msgBytes.length);
 		output.flush();
-		logger.debug("Send message:\t '" + msg.getMsg() + "'");
+		if (logger.isDebugEnabled()) {
+			logger.debug("Send message:\t '" + msg.getMsg() + "'");
+		}
     }
 	
 	
@@ -170,8 +172,8 @@ public class Client {
 				index = 0;
 			} 
 			
-			/* only read valid characters, i.e. letters and numbers */
-			if((read > 31 && read < 127)) {
+			/* only read valid characters, i.e. printable ASCII and the bytes of UTF-8 coded characters */
+			if((read > 31 && read < 127) || read < 0) {
 				bufferBytes[index] = read;
 				index++;
 			}
@@ -202,7 +204,9 @@ public class Client {
 			logger.error("Client: Received invalid message from server: "+msg.getMsg());
 			logger.error(msg.getError());
 		}
-		logger.debug("Receive message:\t '" + msg.getMsg() + "'");
+		if (logger.isDebugEnabled()) {
+			logger.debug("Receive message:\t '" + msg.getMsg() + "'");
+		}
 		return msg;
     }
  	
@@ -7,6 +7,7 @@ import java.util.List;
 import java.util.concurrent.TimeUnit;
 import org.apache.log4j.Logger;
 
+import common.messages.KVAdminMessage;
 import common.messages.KVMessage;
 import common.messages.MessageType;
 import common.HashRing;
@@ -34,6 +35,8 @@ public class KVStore implements KVCommInterface {
 		this.metadata = new HashRing();
 		//add the given server to the metadata. This will be KVStore's first try when doing a request.
 		this.metadata.addServer(new Server(address,port));
+		//this ring is only a guess, make sure the first redirect fetches the real one
+		this.metadata.setEpoch(HashRing.UNKNOWN_EPOCH);
 	}
 	
 	@Override
@@ -200,8 +203,8 @@ public class KVStore implements KVCommInterface {
 	/**
 	 * Try to send the request to the server. 
 	 * If the server replies with SERVER_WRITE_LOCK or SERVER_STOPPED, wait and then try again. 
-	 * If the server replies with SERVER_NOT_RESPONSIBLE, update the metadata, determine what server
-	 * should be responsible, connect to it, and try again. 
+	 * If the server replies with SERVER_NOT_RESPONSIBLE, update the metadata if its epoch differs
+	 * from ours, determine what server should be responsible, connect to it, and try again. 
 	 */
 	private KVMessage sendRequest(KVMessage request) {
 		KVMessage response = new MessageType(request.getHeader(), "sendRequest_NOT_PROCESSED", "", "");
@@ -242,9 +245,11 @@ public class KVStore implements KVCommInterface {
 				} catch (InterruptedException e){}
 				
 			} else if (response.getStatus().equals("SERVER_NOT_RESPONSIBLE")) {
-				// get update metadata and determine responsible server
-				String mdata = response.getValue(); 
-				this.metadata = new HashRing(mdata);
+				// the reply only holds the epoch of the server's metadata, fetch it if ours is different
+				// and determine responsible server
+				if (!response.getValue().trim().equals(String.valueOf(this.metadata.getEpoch()))) {
+					refreshMetadata();
+				}
 				HashRing.Server responsibleServer = metadata.getResponsible(request.getKey());
 
 				logger.info("Received SERVER_NOT_RESPONSIBLE. Connecting to server "+responsibleServer.toString());
@@ -290,6 +295,11 @@ public class KVStore implements KVCommInterface {
 			
 		} while (attemptCount-- > 0);
 		
+		if (response.getHint().length() > 0 && !response.getHint().equals(String.valueOf(this.metadata.getEpoch()))){
+			//a server in proxy mode forwarded the request for us, catch up with its metadata so
+			//the next request goes straight to the responsible server
+			refreshMetadata();
+		}
 		if (response.getStatus().equals("sendRequest_NOT_PROCESSED")){
 			logger.info("KVStore: no response received");
 		}				
@@ -301,6 +311,35 @@ public class KVStore implements KVCommInterface {
 		return response;
 	}
 	
+	/**
+	 * Fetch the metadata from the connected server, sending the epoch of our metadata so the
+	 * server only has to send what changed since. Keeps the current metadata if the fetch fails.
+	 */
+	private void refreshMetadata() {
+		long epoch = this.metadata.getEpoch();
+		try {
+			client.sendMessage(new KVAdminMessage("getMetadata", "", "", String.valueOf(epoch)));
+			KVMessage response = client.getResponse();
+			if (response.getStatus().equals("METADATA_DIFF")) {
+				try {
+					this.metadata = this.metadata.applyDiff(response.getValue());
+					logger.info("KVStore: updated metadata from epoch "+epoch+" to "+this.metadata.getEpoch());
+					return;
+				} catch (IllegalArgumentException e) {
+					//the diff does not fit our ring after all, ask for all of it
+					client.sendMessage(new KVAdminMessage("getMetadata", "", "", String.valueOf(HashRing.UNKNOWN_EPOCH)));
+					response = client.getResponse();
+				}
+			}
+			if (response.getStatus().equals("METADATA_FULL")) {
+				this.metadata = new HashRing(response.getValue());
+				logger.info("KVStore: received metadata at epoch "+this.metadata.getEpoch());
+			}
+		} catch (IOException e) {
+			logger.warn("KVStore: unable to fetch metadata: "+e.getMessage());
+		}
+	}
+	
 	/**
 	 * Run through all the known servers in the metadata, trying to connect to any of them.
 	 * Returns true if successful.
@@ -0,0 +1,87 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli), the checksum of iSCSI, ext4 and most storage formats, which detects
+ * more of the errors disks make than the CRC32 of java.util.zip. java.util.zip.CRC32C only
+ * exists from Java 9, so this is the table driven software version, eight bytes at a time
+ * (slicing-by-8) so it keeps up with reading a segment from the page cache.
+ */
+public final class Crc32c implements Checksum {
+	// The Castagnoli polynomial, bit reversed
+	private static final int POLYNOMIAL = 0x82f63b78;
+	// TABLES[k][b] is the crc of byte b followed by k zero bytes
+	private static final int[][] TABLES = tables();
+
+	private int crc = 0xffffffff;
+
+	private static int[][] tables() {
+		int[][] tables = new int[8][256];
+		for (int b = 0; b < 256; b++) {
+			int crc = b;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+			}
+			tables[0][b] = crc;
+		}
+		for (int k = 1; k < 8; k++) {
+			for (int b = 0; b < 256; b++) {
+				int previous = tables[k - 1][b];
+				tables[k][b] = (previous >>> 8) ^ tables[0][previous & 0xff];
+			}
+		}
+		return tables;
+	}
+
+	@Override
+	public void update(int b) {
+		crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xff];
+	}
+
+	@Override
+	public void update(byte[] bytes, int offset, int length) {
+		update(ByteBuffer.wrap(bytes), offset, length);
+	}
+
+	public void update(byte[] bytes) {
+		update(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Add length bytes of the buffer starting at the absolute index offset. The buffer's
+	 * position and byte order are left as they are.
+	 */
+	public void update(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer in = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int c = crc;
+		int i = offset;
+		int end = offset + length;
+		//body, 8 bytes at a time read as two little endian ints
+		for (; i + 8 <= end; i += 8) {
+			int one = in.getInt(i) ^ c;
+			int two = in.getInt(i + 4);
+			c = TABLES[7][one & 0xff] ^ TABLES[6][(one >>> 8) & 0xff]
+					^ TABLES[5][(one >>> 16) & 0xff] ^ TABLES[4][one >>> 24]
+					^ TABLES[3][two & 0xff] ^ TABLES[2][(two >>> 8) & 0xff]
+					^ TABLES[1][(two >>> 16) & 0xff] ^ TABLES[0][two >>> 24];
+		}
+		//tail, the last 0 to 7 bytes
+		for (; i < end; i++) {
+			c = (c >>> 8) ^ TABLES[0][(c ^ in.get(i)) & 0xff];
+		}
+		crc = c;
+	}
+
+	@Override
+	public long getValue() {
+		return ~crc & 0xffffffffL;
+	}
+
+	@Override
+	public void reset() {
+		crc = 0xffffffff;
+	}
+}
@@ -1,7 +1,9 @@
 package common;
 
 import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.math.BigInteger;
 import java.util.*;
 
@@ -10,24 +12,217 @@ import client.Client;
 /**
  * Class to manage the mapping of servers to hash ranges
  * and the hash ring. 
+ * The ring can optionally be split into a fixed number of equal partitions. Servers are 
+ * then placed on partition boundaries so that each partition belongs to exactly one server 
+ * and ownership changes always hand over whole partitions.
+ * Each server can be placed at several points (virtual nodes) so that its share of the ring 
+ * is the sum of many small ranges. A server's number of virtual nodes is the ring's 
+ * virtual node count times the server's weight. Responsibility, replication and transfers 
+ * always count distinct physical servers, never virtual nodes.
+ * In bounded-load mode the ECS measures the load of every arc of the ring (the hashes up to 
+ * a virtual node) and caps each server at (1+epsilon) times the average load. Arcs which 
+ * would push their owner over the cap are assigned clockwise to the next server of the key's 
+ * replica set with room. Only the server coordinating the key's writes changes, the key is 
+ * still stored on the same 3 servers.
+ * Keys and servers are hashed with MD5 unless the ring selects a cheaper hash function,
+ * which is then written into the metadata so every server and client hashes the same way.
+ * The servers, assignments and options (partitions, virtual nodes, load bound and hash
+ * function) are held in an immutable snapshot which is replaced as a whole whenever the ring
+ * changes, so lookups from many threads never take a lock and always see one consistent ring
+ * whose keys are hashed the way its servers were placed. Changes are serialized with each other.
+ * Every change also increments the ring's epoch, which is written into the metadata. Servers
+ * and clients compare epochs to tell whether their metadata is stale, and a newer ring can be
+ * sent as a diff against an older epoch instead of in full.
  */
 public class HashRing{
-	private MessageDigest hasher;
-	private TreeMap<BigInteger,Server> serverMap;
+	public static final int DEFAULT_PARTITIONS = 1024;
+	public static final int DEFAULT_VNODES = 1;
+	//epoch of a ring whose real epoch is not known, never equal to the epoch of any metadata
+	public static final long UNKNOWN_EPOCH = -1;
+	private static final BigInteger RING_SIZE = BigInteger.ONE.shiftLeft(128);
+	private static final BigInteger HALF_RING = BigInteger.ONE.shiftLeft(127);
 	
-	public HashRing(){
-		try{
-			this.hasher = MessageDigest.getInstance("MD5");
-			this.serverMap = new TreeMap<BigInteger,Server>();
+	//digests and their buffers are not thread safe, so every thread hashes with its own
+	private static final ThreadLocal<KeyHasher> hashers = new ThreadLocal<KeyHasher>() {
+		@Override
+		protected KeyHasher initialValue() {
+			return new KeyHasher();
+		}
+	};
+	//empty ring with the default options
+	private static final Snapshot DEFAULTS = new Snapshot(new TreeMap<BigInteger,Server>(), new TreeMap<BigInteger,Server>(), 0,
+			0, DEFAULT_VNODES, 0, HashFunction.MD5);
+	//the current ring, never modified once published
+	private volatile Snapshot snapshot = DEFAULTS;
+	
+	/**
+	 * The hash functions a ring can place keys and servers with. MD5 is the default, 
+	 * Murmur3 (128-bit x64 MurmurHash3) is much cheaper and spreads keys just as evenly.
+	 */
+	public enum HashFunction {
+		MD5, MURMUR3;
+		
+		/**
+		 * Return the function with the given (case insensitive) name as written in metadata.
+		 */
+		public static HashFunction fromName(String name) {
+			return valueOf(name.toUpperCase());
+		}
+		
+		public String getName() {
+			return name().toLowerCase();
+		}
+	}
+	
+	/**
+	 * An immutable state of the ring: the virtual nodes by token, the arcs (by the token 
+	 * ending them) whose keys are coordinated by a server other than their owner, the 
+	 * epoch of this state and the options the servers were placed with. The array-backed 
+	 * lookup is built the first time a key is looked up.
+	 */
+	private static final class Snapshot {
+		final TreeMap<BigInteger,Server> serverMap;
+		final TreeMap<BigInteger,Server> assignments;
+		final long epoch;
+		final int partitions; //0 if servers are placed at their exact hash
+		final int vnodes; //points on the ring per unit of server weight
+		final double loadBound; //epsilon of bounded-load mode, 0 if it is off
+		final HashFunction hashFunction; //places both keys and servers
+		private volatile Lookup lookup;
+		
+		Snapshot(TreeMap<BigInteger,Server> serverMap, TreeMap<BigInteger,Server> assignments, long epoch,
+				int partitions, int vnodes, double loadBound, HashFunction hashFunction) {
+			this.serverMap = serverMap;
+			this.assignments = assignments;
+			this.epoch = epoch;
+			this.partitions = partitions;
+			this.vnodes = vnodes;
+			this.loadBound = loadBound;
+			this.hashFunction = hashFunction;
 		}
-		catch (Exception e){
-			e.printStackTrace();
+		
+		/**
+		 * Return a snapshot with the options of this one and the given servers.
+		 */
+		Snapshot with(TreeMap<BigInteger,Server> serverMap, TreeMap<BigInteger,Server> assignments, long epoch) {
+			return new Snapshot(serverMap, assignments, epoch, partitions, vnodes, loadBound, hashFunction);
+		}
+		
+		Lookup getLookup() {
+			Lookup current = lookup;
+			if (current == null){
+				//building it twice in a race is harmless, both copies are identical
+				current = new Lookup(this);
+				lookup = current;
+			}
+			return current;
 		}
 	}
 	
-	public void ClearHashRing() {
-		this.hasher.reset();
-		this.serverMap.clear();
+	public HashRing(){
+	}
+	
+	public synchronized void ClearHashRing() {
+		this.snapshot = snapshot.with(new TreeMap<BigInteger,Server>(), new TreeMap<BigInteger,Server>(), snapshot.epoch + 1);
+	}
+	
+	/**
+	 * Return the epoch of the ring, which every change increments.
+	 */
+	public long getEpoch() {
+		return snapshot.epoch;
+	}
+	
+	/**
+	 * Set the epoch of the ring without changing it, eg to UNKNOWN_EPOCH for a ring which 
+	 * was not built from metadata.
+	 */
+	public synchronized void setEpoch(long epoch) {
+		Snapshot current = snapshot;
+		this.snapshot = current.with(current.serverMap, current.assignments, epoch);
+	}
+	
+	/**
+	 * Split the ring into the given number of partitions (0 to disable). Servers already in
+	 * the ring are placed again, on partition boundaries.
+	 */
+	public synchronized void setPartitions(int partitions) {
+		Snapshot current = snapshot;
+		reconfigure(partitions, current.vnodes, current.loadBound, current.hashFunction);
+	}
+	
+	public int getPartitions() {
+		return snapshot.partitions;
+	}
+	
+	/**
+	 * Set the number of virtual nodes a server of weight 1 is placed at. Servers already in
+	 * the ring are placed again with it.
+	 */
+	public synchronized void setVirtualNodes(int vnodes) {
+		Snapshot current = snapshot;
+		reconfigure(current.partitions, Math.max(1, vnodes), current.loadBound, current.hashFunction);
+	}
+	
+	public int getVirtualNodes() {
+		return snapshot.vnodes;
+	}
+	
+	/**
+	 * Turn on bounded-load mode with the given epsilon, or turn it off with 0. Assignments
+	 * are only made by assignBoundedLoads, those made under another epsilon are dropped.
+	 */
+	public synchronized void setLoadBound(double epsilon) {
+		Snapshot current = snapshot;
+		reconfigure(current.partitions, current.vnodes, Math.max(0, epsilon), current.hashFunction);
+	}
+	
+	public double getLoadBound() {
+		return snapshot.loadBound;
+	}
+	
+	/**
+	 * Set the function keys and servers are hashed with. Every server and client using the 
+	 * ring must hash the same way, so it is part of the metadata. Servers already in the ring
+	 * are placed again with it.
+	 */
+	public synchronized void setHashFunction(HashFunction hashFunction) {
+		Snapshot current = snapshot;
+		reconfigure(current.partitions, current.vnodes, current.loadBound, hashFunction);
+	}
+	
+	public HashFunction getHashFunction() {
+		return snapshot.hashFunction;
+	}
+	
+	/**
+	 * Publish the ring with the given options. If they change where servers go, the servers
+	 * in the ring are placed again in ring order, so their tokens always match how keys are
+	 * hashed. Changing the options of a ring with servers starts a new epoch and, like any
+	 * other change, drops the bounded-load assignments.
+	 */
+	private void reconfigure(int partitions, int vnodes, double loadBound, HashFunction hashFunction) {
+		Snapshot current = snapshot;
+		Snapshot options = new Snapshot(current.serverMap, current.assignments, current.epoch,
+				partitions, vnodes, loadBound, hashFunction);
+		if (current.serverMap.isEmpty()) {
+			snapshot = options;
+			return;
+		}
+		boolean moved = partitions != current.partitions || vnodes != current.vnodes || hashFunction != current.hashFunction;
+		if (!moved && loadBound == current.loadBound) {
+			return;
+		}
+		TreeMap<BigInteger,Server> serverMap = current.serverMap;
+		if (moved) {
+			serverMap = new TreeMap<BigInteger,Server>();
+			for (Server server : getAllServers(current.serverMap)) {
+				for (BigInteger hash : getTokens(options, serverMap, server)) {
+					serverMap.put(hash, server);
+				}
+			}
+		}
+		snapshot = options.with(serverMap, new TreeMap<BigInteger,Server>(), current.epoch + 1);
 	}
 	
 	/**
@@ -36,64 +231,370 @@ public class HashRing{
 	 * Parses the data and loads it into the hash ring.
 	 */
 	public HashRing(String data) {
-		try{
-			this.hasher = MessageDigest.getInstance("MD5");
-			this.serverMap = new TreeMap<BigInteger,Server>();
-		}
-		catch (Exception e){
-			e.printStackTrace();
-		}
+		TreeMap<BigInteger,Server> serverMap = new TreeMap<BigInteger,Server>();
+		TreeMap<BigInteger,Server> assignments = new TreeMap<BigInteger,Server>();
 		
 		//parse data and load into serverMap
+		Snapshot options = DEFAULTS;
+		Map<Server,Server> known = new HashMap<Server,Server>();
+		Map<BigInteger,Integer> assignedIds = new HashMap<BigInteger,Integer>();
 		String[] servers = data.split(",");
 		for (String server : servers){
-			String[] tokens = server.split("\\s+");
+			if (server.startsWith("#")){
+				options = parseOptions(server.substring(1));
+				continue;
+			}
 			//ignore invalid servers (usually empty)
-			if (tokens.length >= 3){
-				BigInteger hash = new BigInteger(tokens[0]);
-				int port = Integer.parseInt(tokens[2]);
-				Server newServer = new Server(tokens[1], port);
-				if (tokens.length >= 4){
-					newServer.id = Integer.parseInt(tokens[3]);
+			parseEntry(server, serverMap, known, assignedIds);
+		}
+		resolveAssignments(serverMap, assignments, assignedIds);
+		this.snapshot = options.with(serverMap, assignments, options.epoch);
+	}
+	
+	/**
+	 * Parse one "<hash> <IP address> <port> <id> [<assigned id>]" entry into the map. Every
+	 * virtual node of a server shares the same Server object, kept in known. The id of the
+	 * server the arc is assigned to goes into assignedIds. Returns the hash, or null if the
+	 * entry is invalid.
+	 */
+	private static BigInteger parseEntry(String entry, TreeMap<BigInteger,Server> serverMap, Map<Server,Server> known, Map<BigInteger,Integer> assignedIds){
+		String[] tokens = entry.trim().split("\\s+");
+		if (tokens.length < 3){
+			return null;
+		}
+		BigInteger hash = new BigInteger(tokens[0]);
+		int port = Integer.parseInt(tokens[2]);
+		Server newServer = new Server(tokens[1], port);
+		if (tokens.length >= 4){
+			newServer.id = Integer.parseInt(tokens[3]);
+		}
+		if (tokens.length >= 5){
+			//id of the server this arc is assigned to in bounded-load mode
+			assignedIds.put(hash, Integer.parseInt(tokens[4]));
+		}
+		//every virtual node of a server has its own entry
+		Server existing = known.get(newServer);
+		if (existing == null){
+			known.put(newServer, newServer);
+			existing = newServer;
+		}
+		serverMap.put(hash, existing);
+		return hash;
+	}
+	
+	/**
+	 * Put the server with the assigned id of every arc into assignments.
+	 */
+	private static void resolveAssignments(TreeMap<BigInteger,Server> serverMap, TreeMap<BigInteger,Server> assignments, Map<BigInteger,Integer> assignedIds){
+		for (Map.Entry<BigInteger,Integer> assigned : assignedIds.entrySet()){
+			for (Server server : serverMap.values()){
+				if (server.id == assigned.getValue()){
+					assignments.put(assigned.getKey(), server);
+					break;
 				}
-				serverMap.put(hash, newServer);
 			}
 		}
 	}
 	
 	/**
-	 * Return a 128-bit (BigInteger) MD5 hash of the given IP address and port
+	 * Parse the space-delimited "name=value" ring options which toString() writes
+	 * at the front of the data. Returns an empty ring with the options and the epoch.
+	 */
+	private static Snapshot parseOptions(String options){
+		long epoch = 0;
+		int partitions = DEFAULTS.partitions;
+		int vnodes = DEFAULTS.vnodes;
+		double loadBound = DEFAULTS.loadBound;
+		HashFunction hashFunction = DEFAULTS.hashFunction;
+		for (String option : options.trim().split("\\s+")){
+			String[] pair = option.split("=");
+			if (pair.length != 2){
+				continue;
+			}
+			if (pair[0].equals("partitions")){
+				partitions = Integer.parseInt(pair[1]);
+			}
+			else if (pair[0].equals("vnodes")){
+				vnodes = Integer.parseInt(pair[1]);
+			}
+			else if (pair[0].equals("bound")){
+				loadBound = Double.parseDouble(pair[1]);
+			}
+			else if (pair[0].equals("hash")){
+				hashFunction = HashFunction.fromName(pair[1]);
+			}
+			else if (pair[0].equals("epoch")){
+				epoch = Long.parseLong(pair[1]);
+			}
+		}
+		return new Snapshot(DEFAULTS.serverMap, DEFAULTS.assignments, epoch, partitions, vnodes, loadBound, hashFunction);
+	}
+	
+	/**
+	 * Return a 128-bit (BigInteger) hash of the given IP address and port
 	 */
 	public BigInteger serverHash(Server server){
-		hasher.update(server.ipAddress.getBytes());
-		byte[] portBytes = ByteBuffer.allocate(4).putInt(server.port).array(); //convert int to byte array
-		hasher.update(portBytes); 
-		byte[] hash = hasher.digest();
-		hasher.reset();
-		return new BigInteger(hash);
+		return serverHash(server, snapshot.hashFunction);
 	}
 	
+	private static BigInteger serverHash(Server server, HashFunction hashFunction){
+		byte[] address = server.ipAddress.getBytes();
+		byte[] bytes = ByteBuffer.allocate(address.length + 4).put(address).putInt(server.port).array();
+		KeyHasher hasher = hashers.get();
+		hasher.hash(bytes, bytes.length, hashFunction);
+		return new BigInteger(hasher.digest);
+	}
+	
+	/**
+	 * Return the hash of the given virtual node of the server. The first virtual node 
+	 * is at the server's own hash so a ring with one virtual node per server is unchanged.
+	 */
+	private static BigInteger vnodeHash(Server server, int vnode, HashFunction hashFunction){
+		if (vnode == 0){
+			return serverHash(server, hashFunction);
+		}
+		byte[] address = server.ipAddress.getBytes();
+		byte[] bytes = ByteBuffer.allocate(address.length + 8).put(address).putInt(server.port).putInt(vnode).array();
+		KeyHasher hasher = hashers.get();
+		hasher.hash(bytes, bytes.length, hashFunction);
+		return new BigInteger(hasher.digest);
+	}
+	
+	/**
+	 * Return the 128-bit (BigInteger) hash of the key. Lookups use hashKey instead,
+	 * which does not allocate.
+	 */
 	public BigInteger objectHash(String key){
-		hasher.update(key.getBytes());
-		byte[] hash = hasher.digest();
-		hasher.reset();
-		return new BigInteger(hash);
+		return new BigInteger(hashKey(snapshot, key).digest);
+	}
+	
+	/**
+	 * Return the 128-bit hash of the UTF-8 encoded key, the same as the hash of the String.
+	 */
+	public BigInteger objectHash(Utf8Bytes key){
+		return new BigInteger(hashKey(snapshot, key).digest);
+	}
+	
+	/**
+	 * Hash the key with this thread's hasher and the ring's hash function, leaving the hash
+	 * in its high and low fields.
+	 */
+	private static KeyHasher hashKey(Snapshot ring, String key){
+		KeyHasher hasher = hashers.get();
+		hasher.hash(key, ring.hashFunction);
+		return hasher;
+	}
+	
+	private static KeyHasher hashKey(Snapshot ring, Utf8Bytes key){
+		KeyHasher hasher = hashers.get();
+		hasher.hash(key.array(), key.length(), ring.hashFunction);
+		return hasher;
+	}
+	
+	/**
+	 * Per thread hashing state. The key bytes and the digest go into reused buffers and the
+	 * hash is kept as two longs: high holds the signed top 64 bits and low the bottom 64 bits
+	 * compared unsigned, which orders hashes the same way as their BigInteger values.
+	 */
+	private static final class KeyHasher {
+		private final MessageDigest md5;
+		private byte[] input = new byte[64];
+		private final byte[] digest = new byte[16];
+		private final long[] murmur = new long[2];
+		private long high;
+		private long low;
+		
+		KeyHasher() {
+			try {
+				md5 = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		
+		void hash(String key, HashFunction function) {
+			int length = key.length();
+			if (input.length < length) {
+				input = new byte[Math.max(length, input.length * 2)];
+			}
+			boolean ascii = true;
+			for (int i = 0; i < length && ascii; i++) {
+				char c = key.charAt(i);
+				ascii = c < 0x80;
+				input[i] = (byte) c;
+			}
+			if (ascii) {
+				hash(input, length, function);
+			} else {
+				//keys are hashed as UTF-8 whatever the platform's charset, like Utf8Bytes keys
+				byte[] bytes = key.getBytes(Utf8Bytes.UTF8);
+				hash(bytes, bytes.length, function);
+			}
+		}
+		
+		void hash(byte[] bytes, int length, HashFunction function) {
+			if (function == HashFunction.MURMUR3) {
+				Murmur3.hash128(bytes, 0, length, murmur);
+				high = murmur[0];
+				low = murmur[1];
+				putLong(digest, 0, high);
+				putLong(digest, 8, low);
+				return;
+			}
+			md5.update(bytes, 0, length);
+			try {
+				md5.digest(digest, 0, 16);
+			} catch (DigestException e) {
+				throw new IllegalStateException(e);
+			}
+			high = toLong(digest, 0);
+			low = toLong(digest, 8);
+		}
+	}
+	
+	private static long toLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 8; i++) {
+			value = (value << 8) | (bytes[i] & 0xff);
+		}
+		return value;
+	}
+	
+	private static void putLong(byte[] bytes, int offset, long value) {
+		for (int i = offset + 7; i >= offset; i--) {
+			bytes[i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+	
+	/**
+	 * Compare the hash (high, low) to the hash at index of the lookup arrays.
+	 */
+	private static int compare(long high, long low, long[] highs, long[] lows, int index) {
+		if (high != highs[index]) {
+			return high < highs[index] ? -1 : 1;
+		}
+		//unsigned comparison of the bottom 64 bits
+		long a = low + Long.MIN_VALUE;
+		long b = lows[index] + Long.MIN_VALUE;
+		return (a == b) ? 0 : (a < b ? -1 : 1);
+	}
+	
+	/**
+	 * Return the partition (0 to partitions-1) which contains the given hash.
+	 * Partitions are numbered in ring order.
+	 */
+	public static int getPartition(BigInteger hash, int partitions){
+		return hash.add(HALF_RING).multiply(BigInteger.valueOf(partitions)).divide(RING_SIZE).intValue();
+	}
+	
+	/**
+	 * Return the last (largest) hash in the given partition. The partition covers the hashes
+	 * (getPartitionBound(partition-1), getPartitionBound(partition)].
+	 */
+	public static BigInteger getPartitionBound(int partition, int partitions){
+		BigInteger count = BigInteger.valueOf(partitions);
+		//the first offset in the next partition is ceil((partition+1) * 2^128 / partitions)
+		BigInteger next = BigInteger.valueOf(partition + 1).multiply(RING_SIZE).add(count).subtract(BigInteger.ONE).divide(count);
+		return next.subtract(BigInteger.ONE).subtract(HALF_RING);
+	}
+
+	/**
+	 * Return the range of hashes in the given partition. The first partition wraps
+	 * around from the top of the ring.
+	 */
+	public static Range getPartitionRange(int partition, int partitions){
+		int previous = (partition + partitions - 1) % partitions;
+		return new Range(getPartitionBound(previous, partitions), getPartitionBound(partition, partitions));
+	}
+
+	/**
+	 * Return the positions of the server's virtual nodes on the ring in ring order. With 
+	 * partitions these are the bounds of the partitions they were placed on, which can differ 
+	 * from their hashes if two virtual nodes hash into the same partition. Servers not in the 
+	 * ring get the positions they would be added at.
+	 */
+	public List<BigInteger> getTokens(Server server){
+		Snapshot ring = snapshot;
+		return getTokens(ring, ring.serverMap, server);
+	}
+	
+	/**
+	 * Return the server's tokens in serverMap, or where it would be placed among them with
+	 * the options of the given ring.
+	 */
+	private static List<BigInteger> getTokens(Snapshot ring, TreeMap<BigInteger,Server> serverMap, Server server){
+		int partitions = ring.partitions;
+		List<BigInteger> tokens = new ArrayList<BigInteger>();
+		for (Map.Entry<BigInteger,Server> entry : serverMap.entrySet()) {
+			if (entry.getValue().equals(server)){
+				tokens.add(entry.getKey());
+			}
+		}
+		if (!tokens.isEmpty()){
+			return tokens;
+		}
+		int count = ring.vnodes * Math.max(1, server.weight);
+		for (int vnode = 0; vnode < count; vnode++){
+			BigInteger hash = vnodeHash(server, vnode, ring.hashFunction);
+			if (partitions > 0){
+				hash = freeBound(serverMap, hash, partitions, tokens);
+			}
+			if (!tokens.contains(hash)){
+				tokens.add(hash);
+			}
+		}
+		Collections.sort(tokens);
+		return tokens;
+	}
+	
+	/**
+	 * Return the first partition bound at or after the hash which neither a server nor 
+	 * one of the given tokens is placed on.
+	 */
+	private static BigInteger freeBound(TreeMap<BigInteger,Server> serverMap, BigInteger hash, int partitions, List<BigInteger> taken){
+		int partition = getPartition(hash, partitions);
+		for (int i = 0; i < partitions; i++){
+			BigInteger bound = getPartitionBound((partition + i) % partitions, partitions);
+			if (!serverMap.containsKey(bound) && !taken.contains(bound)){
+				return bound;
+			}
+		}
+		return getPartitionBound(partition, partitions);
 	}
 	
 	/**
-	 * Add the given server to the hash ring
+	 * Add the given server to the hash ring at all of its virtual nodes
 	 */
-	public void addServer(Server server){
-		BigInteger hash = serverHash(server);
-		serverMap.put(hash, server);
+	public synchronized void addServer(Server server){
+		Snapshot current = snapshot;
+		if (current.serverMap.containsValue(server)){
+			//already in the ring, nothing changes so the epoch stays the same
+			return;
+		}
+		TreeMap<BigInteger,Server> serverMap = new TreeMap<BigInteger,Server>(current.serverMap);
+		for (BigInteger hash : getTokens(current, serverMap, server)){
+			serverMap.put(hash, server);
+		}
+		//the ring changed, so the bounded-load assignments are out of date
+		snapshot = current.with(serverMap, new TreeMap<BigInteger,Server>(), current.epoch + 1);
 	}
 	
 	/**
-	 * Remove the given server from the hash ring
+	 * Remove the given server (all of its virtual nodes) from the hash ring
 	 */
-	public void removeServer(Server server){
-		BigInteger hash = serverHash(server);
-		serverMap.remove(hash);
+	public synchronized void removeServer(Server server){
+		if (!snapshot.serverMap.containsValue(server)){
+			return;
+		}
+		TreeMap<BigInteger,Server> serverMap = new TreeMap<BigInteger,Server>(snapshot.serverMap);
+		Iterator<Server> it = serverMap.values().iterator();
+		while (it.hasNext()){
+			if (it.next().equals(server)){
+				it.remove();
+			}
+		}
+		snapshot = snapshot.with(serverMap, new TreeMap<BigInteger,Server>(), snapshot.epoch + 1);
 	}
 	
 	/**
@@ -101,74 +602,317 @@ public class HashRing{
 	 * ring is empty. 
 	 */
 	public Server getResponsible(String key){
-		BigInteger keyHash = objectHash(key);
-		Map.Entry<BigInteger,Server> entry = serverMap.ceilingEntry(keyHash);
-		if (entry == null){
-			//key is past the last server - wrap around to first
-			entry = serverMap.firstEntry();
-			if (entry == null){
-				//serverMap is empty
-				return null;
+		Snapshot ring = snapshot;
+		return getResponsible(ring, hashKey(ring, key));
+	}
+	
+	public Server getResponsible(Utf8Bytes key){
+		Snapshot ring = snapshot;
+		return getResponsible(ring, hashKey(ring, key));
+	}
+	
+	private static Server getResponsible(Snapshot ring, KeyHasher hash){
+		Lookup lookup = ring.getLookup();
+		if (lookup.size() == 0){
+			//serverMap is empty
+			return null;
+		}
+		return lookup.coordinators[lookup.ceiling(hash.high, hash.low)];
+	}
+	
+	/**
+	 * Immutable array-backed copy of the ring used by the per-request lookups. Tokens are 
+	 * stored as two longs each and found with a binary search. The coordinator, the read set
+	 * (first 3 distinct physical servers from the token on) and the replicas of every ring 
+	 * position are computed once per snapshot instead of on every request.
+	 */
+	private static final class Lookup {
+		final long[] highs;
+		final long[] lows;
+		final Server[] coordinators;
+		final Server[][] readSets;
+		final Replicas[] replicas;
+		
+		Lookup(Snapshot ring) {
+			int size = ring.serverMap.size();
+			highs = new long[size];
+			lows = new long[size];
+			coordinators = new Server[size];
+			readSets = new Server[size][];
+			replicas = new Replicas[size];
+			int i = 0;
+			for (Map.Entry<BigInteger,Server> entry : ring.serverMap.entrySet()){
+				BigInteger token = entry.getKey();
+				highs[i] = token.shiftRight(64).longValue();
+				lows[i] = token.longValue();
+				Server assigned = ring.assignments.get(token);
+				coordinators[i] = (assigned != null) ? assigned : entry.getValue();
+				List<Server> servers = walk(ring.serverMap, token, true, 3, true);
+				readSets[i] = servers.toArray(new Server[servers.size()]);
+				if (servers.remove(coordinators[i])){
+					servers.add(0, coordinators[i]);
+				}
+				replicas[i] = new Replicas(servers.get(1 % servers.size()), servers.get(2 % servers.size()));
+				i++;
 			}
 		}
-		return entry.getValue();
+		
+		int size() {
+			return highs.length;
+		}
+		
+		/**
+		 * Index of the first token at or after the hash, wrapping around to the first token.
+		 */
+		int ceiling(long high, long low) {
+			int lo = 0;
+			int hi = highs.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (compare(high, low, highs, lows, mid) > 0) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return (lo == highs.length) ? 0 : lo;
+		}
+		
+		/**
+		 * Index of the first token after the hash, wrapping around to the first token.
+		 */
+		int higher(long high, long low) {
+			int lo = 0;
+			int hi = highs.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (compare(high, low, highs, lows, mid) >= 0) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return (lo == highs.length) ? 0 : lo;
+		}
+	}
+	
+	/**
+	 * Return the range of hashes whose keys belong to the virtual node at token.
+	 */
+	public Range getArc(BigInteger token){
+		return new Range(lowerToken(snapshot.serverMap, token), token);
+	}
+	
+	/**
+	 * Return the tokens of all virtual nodes owned by the server with the given id.
+	 */
+	public List<BigInteger> getTokens(int serverid){
+		List<BigInteger> tokens = new ArrayList<BigInteger>();
+		for (Map.Entry<BigInteger,Server> entry : snapshot.serverMap.entrySet()) {
+			if (entry.getValue().id == serverid){
+				tokens.add(entry.getKey());
+			}
+		}
+		return tokens;
+	}
+	
+	/**
+	 * Compute the bounded-load assignments from the load of every arc, given by the token
+	 * ending it (arcs without a load count as 0). Arcs are visited in ring order and each
+	 * goes to the first server of its replica set, starting with the owner, whose load stays
+	 * within (1+epsilon) times the average. If none has room it goes to the least loaded one.
+	 * Does nothing unless bounded-load mode is on.
+	 */
+	public synchronized void assignBoundedLoads(Map<BigInteger,Long> loads){
+		Snapshot ring = snapshot;
+		TreeMap<BigInteger,Server> serverMap = ring.serverMap;
+		TreeMap<BigInteger,Server> assignments = new TreeMap<BigInteger,Server>();
+		double loadBound = ring.loadBound;
+		if (loadBound <= 0 || serverMap.isEmpty()){
+			snapshot = ring.with(serverMap, assignments, ring.epoch + 1);
+			return;
+		}
+		long total = 0;
+		for (BigInteger token : serverMap.keySet()){
+			Long load = loads.get(token);
+			total += (load == null) ? 0 : load;
+		}
+		double capacity = Math.ceil((1 + loadBound) * total / getAllServers(serverMap).size());
+		Map<Server,Long> assigned = new HashMap<Server,Long>();
+		for (Map.Entry<BigInteger,Server> entry : serverMap.entrySet()){
+			Long load = loads.get(entry.getKey());
+			long arcLoad = (load == null) ? 0 : load;
+			Server chosen = null;
+			Server leastLoaded = null;
+			long leastLoad = Long.MAX_VALUE;
+			for (Server candidate : walk(serverMap, entry.getKey(), true, 3, true)){
+				long current = assigned.containsKey(candidate) ? assigned.get(candidate) : 0;
+				if (current + arcLoad <= capacity){
+					chosen = candidate;
+					break;
+				}
+				if (current < leastLoad){
+					leastLoaded = candidate;
+					leastLoad = current;
+				}
+			}
+			if (chosen == null){
+				chosen = leastLoaded;
+			}
+			long current = assigned.containsKey(chosen) ? assigned.get(chosen) : 0;
+			assigned.put(chosen, current + arcLoad);
+			if (!chosen.equals(entry.getValue())){
+				assignments.put(entry.getKey(), chosen);
+			}
+		}
+		snapshot = ring.with(serverMap, assignments, ring.epoch + 1);
 	}
 	
 	/**
-	 * Returns the server which comes after the given one in the ring.
+	 * Returns the server which comes after the given one in the ring, ie the first other
+	 * physical server after its first virtual node. The server itself is returned if it is alone.
 	 * If the given server is not in the ring, returns whichever servers comes
 	 * after its hypothetical position if it were in the ring. 
 	 */
 	public Server getSuccessor(Server server) {
-		BigInteger hash = serverHash(server);
-		Map.Entry<BigInteger,Server> entry = serverMap.higherEntry(hash);
-		if (entry == null){
-			entry = serverMap.firstEntry();
-			if (entry == null) {
-				return null;
+		Snapshot ring = snapshot;
+		TreeMap<BigInteger,Server> serverMap = ring.serverMap;
+		if (serverMap.isEmpty()){
+			return null;
+		}
+		for (Server next : walk(serverMap, getTokens(ring, serverMap, server).get(0), false, 2, true)){
+			if (!next.equals(server)){
+				return next;
 			}
 		}
-		return entry.getValue();
+		return server;
 	}
 	
 	/**
-	 * Returns the server which comes before the given one in the ring.
+	 * Returns the server which comes before the given one in the ring, ie the first other
+	 * physical server before its first virtual node. The server itself is returned if it is alone.
 	 * If the given server is not in the ring, returns whichever servers comes
 	 * before its hypothetical position if it were in the ring. 
 	 */
 	public Server getPredecessor(Server server) {
-		BigInteger hash = serverHash(server);
-		Map.Entry<BigInteger,Server> entry = serverMap.lowerEntry(hash);
-		if (entry == null){
-			entry = serverMap.lastEntry();
-			if (entry == null) {
-				return null;
+		Snapshot ring = snapshot;
+		TreeMap<BigInteger,Server> serverMap = ring.serverMap;
+		if (serverMap.isEmpty()){
+			return null;
+		}
+		for (Server previous : walk(serverMap, getTokens(ring, serverMap, server).get(0), false, 2, false)){
+			if (!previous.equals(server)){
+				return previous;
+			}
+		}
+		return server;
+	}
+	
+	/**
+	 * Returns the distinct physical servers which come directly after any of the given
+	 * server's virtual nodes, excluding the server itself. These are the servers which held
+	 * the data of its ranges before it joined.
+	 */
+	public List<Server> getSuccessors(Server server) {
+		Snapshot ring = snapshot;
+		TreeMap<BigInteger,Server> serverMap = ring.serverMap;
+		List<Server> successors = new ArrayList<Server>();
+		for (BigInteger token : getTokens(ring, serverMap, server)){
+			for (Server next : walk(serverMap, token, false, 2, true)){
+				if (!next.equals(server)){
+					if (!successors.contains(next)){
+						successors.add(next);
+					}
+					break;
+				}
+			}
+		}
+		return successors;
+	}
+	
+	/**
+	 * Return the servers holding a copy of the keys with the given hash: the server of the 
+	 * first virtual node at or after it and the next two other physical servers.
+	 */
+	public List<Server> getHolders(BigInteger hash) {
+		return walk(snapshot.serverMap, hash, true, 3, true);
+	}
+
+	/**
+	 * Return the tokens of all virtual nodes in ring order.
+	 */
+	public List<BigInteger> getAllTokens() {
+		return new ArrayList<BigInteger>(snapshot.serverMap.keySet());
+	}
+
+	/**
+	 * Return up to count distinct physical servers, walking clockwise from (but not including)
+	 * the given hash.
+	 */
+	public List<Server> getServersAfter(BigInteger hash, int count) {
+		return walk(snapshot.serverMap, hash, false, count, true);
+	}
+	
+	/**
+	 * Return up to count distinct physical servers, walking counterclockwise from (but not 
+	 * including) the given hash.
+	 */
+	public List<Server> getServersBefore(BigInteger hash, int count) {
+		return walk(snapshot.serverMap, hash, false, count, false);
+	}
+	
+	/**
+	 * Walk the ring from hash collecting distinct physical servers until count are found
+	 * or every virtual node has been visited.
+	 */
+	private static List<Server> walk(TreeMap<BigInteger,Server> serverMap, BigInteger hash, boolean inclusive, int count, boolean clockwise) {
+		List<Server> servers = new ArrayList<Server>();
+		if (serverMap.isEmpty()){
+			return servers;
+		}
+		NavigableMap<BigInteger,Server> map = clockwise ? serverMap : serverMap.descendingMap();
+		Iterator<Server> it = map.tailMap(hash, inclusive).values().iterator();
+		boolean wrapped = false;
+		for (int visited = 0; visited < serverMap.size() && servers.size() < count; visited++){
+			if (!it.hasNext()){
+				if (wrapped){
+					break;
+				}
+				//wrap around to the other end of the ring
+				it = map.values().iterator();
+				wrapped = true;
+			}
+			Server server = it.next();
+			if (!servers.contains(server)){
+				servers.add(server);
 			}
 		}
-		return entry.getValue();
+		return servers;
 	}
 	
 	/**
 	 * Return true if the given server is contained in the hash ring
 	 */
 	public boolean contains(Server server) {
-		BigInteger hash = serverHash(server);
-		return serverMap.containsKey(hash);
+		return snapshot.serverMap.containsValue(server);
 	}
 	
 	/**
 	 * Convert the entire mapping to a String. String is formatted as a comma-delimited
 	 * list of entries, where each entry is a space-delimited list of the form 
-	 * "<hash> <IP address> <port>"
+	 * "<hash> <IP address> <port> <id>"
+	 * If the ring has options (eg partitions, the epoch) they come first, as an entry of the form
+	 * "#<name>=<value> ..."
 	 */
 	public String toString() {
+		Snapshot ring = snapshot;
 		String ret = "";
-		for (Map.Entry<BigInteger,Server> entry : serverMap.entrySet()) {
-			ret += entry.getKey().toString() + " ";
-			ret += entry.getValue().ipAddress + " ";
-			ret += String.valueOf(entry.getValue().port)+" ";
-			ret += String.valueOf(entry.getValue().id);
-			ret += ",";
+		String options = options(ring);
+		if (options.length() > 0) {
+			ret += "#" + options + ",";
+		}
+		for (Map.Entry<BigInteger,Server> entry : ring.serverMap.entrySet()) {
+			ret += entryString(ring, entry.getKey()) + ",";
 		}
 		
 		if (ret.length() > 0){
@@ -179,12 +923,140 @@ public class HashRing{
 	}
 	
 	/**
-	 * Returns a list of all servers in the ring
+	 * Return the entry of the virtual node at the given token, as written by toString.
+	 */
+	private static String entryString(Snapshot ring, BigInteger token) {
+		Server server = ring.serverMap.get(token);
+		String ret = token.toString() + " " + server.ipAddress + " " + String.valueOf(server.port) + " " + String.valueOf(server.id);
+		Server assigned = ring.assignments.get(token);
+		if (assigned != null) {
+			ret += " " + String.valueOf(assigned.id);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Return the space-delimited options of the ring, empty if all have their defaults.
+	 */
+	private static String options(Snapshot ring) {
+		String options = "";
+		if (ring.partitions > 0) {
+			options += " partitions=" + ring.partitions;
+		}
+		if (ring.vnodes != DEFAULT_VNODES) {
+			options += " vnodes=" + ring.vnodes;
+		}
+		if (ring.loadBound > 0) {
+			options += " bound=" + ring.loadBound;
+		}
+		if (ring.hashFunction != HashFunction.MD5) {
+			options += " hash=" + ring.hashFunction.getName();
+		}
+		if (ring.epoch > 0) {
+			options += " epoch=" + ring.epoch;
+		}
+		return options.trim();
+	}
+	
+	/**
+	 * Return the changes from the given older ring to this one as a String, which
+	 * applyDiff turns back into this ring when applied to a ring at the older epoch. 
+	 * The diff is a comma-delimited list whose first entry holds this ring's options and the 
+	 * older epoch, "#<name>=<value> ... from=<epoch>". It is followed by "+<entry>" for every 
+	 * virtual node which was added or whose owner or assignment changed, and "-<hash>" for
+	 * every virtual node which was removed. A change of a few servers costs a few entries
+	 * instead of the whole ring.
+	 */
+	public String diff(HashRing older) {
+		Snapshot ring = snapshot;
+		Snapshot old = older.snapshot;
+		StringBuilder ret = new StringBuilder("#");
+		ret.append(options(ring)).append(" from=").append(old.epoch);
+		for (Map.Entry<BigInteger,Server> entry : ring.serverMap.entrySet()) {
+			BigInteger token = entry.getKey();
+			Server before = old.serverMap.get(token);
+			Server assigned = ring.assignments.get(token);
+			Server assignedBefore = old.assignments.get(token);
+			boolean sameOwner = before != null && before.equals(entry.getValue()) && before.id == entry.getValue().id;
+			boolean sameAssignment = (assigned == null) ? assignedBefore == null : assignedBefore != null && assigned.id == assignedBefore.id;
+			if (!sameOwner || !sameAssignment) {
+				ret.append(",+").append(entryString(ring, token));
+			}
+		}
+		for (BigInteger token : old.serverMap.keySet()) {
+			if (!ring.serverMap.containsKey(token)) {
+				ret.append(",-").append(token.toString());
+			}
+		}
+		return ret.toString();
+	}
+	
+	/**
+	 * Return the ring made by applying a diff (see diff) to this ring. This ring is left
+	 * unchanged. Throws an IllegalArgumentException if the diff was not made against this 
+	 * ring's epoch.
+	 */
+	public HashRing applyDiff(String diff) {
+		Snapshot old = snapshot;
+		String[] entries = diff.split(",");
+		if (entries.length == 0 || !entries[0].startsWith("#")) {
+			throw new IllegalArgumentException("Metadata diff has no options entry");
+		}
+		HashRing ring = new HashRing();
+		long from = UNKNOWN_EPOCH;
+		String options = "";
+		for (String option : entries[0].substring(1).trim().split("\\s+")) {
+			if (option.startsWith("from=")) {
+				from = Long.parseLong(option.substring("from=".length()));
+			} else {
+				options += " " + option;
+			}
+		}
+		if (from != old.epoch) {
+			throw new IllegalArgumentException("Metadata diff is from epoch " + from + " but the ring is at epoch " + old.epoch);
+		}
+		Snapshot parsed = parseOptions(options);
+		
+		TreeMap<BigInteger,Server> serverMap = new TreeMap<BigInteger,Server>(old.serverMap);
+		TreeMap<BigInteger,Server> assignments = new TreeMap<BigInteger,Server>(old.assignments);
+		Map<Server,Server> known = new HashMap<Server,Server>();
+		for (Server server : serverMap.values()) {
+			known.put(server, server);
+		}
+		Map<BigInteger,Integer> assignedIds = new HashMap<BigInteger,Integer>();
+		for (int i = 1; i < entries.length; i++) {
+			String entry = entries[i].trim();
+			if (entry.startsWith("-")) {
+				BigInteger token = new BigInteger(entry.substring(1));
+				serverMap.remove(token);
+				assignments.remove(token);
+			} else if (entry.startsWith("+")) {
+				BigInteger token = parseEntry(entry.substring(1), serverMap, known, assignedIds);
+				if (token != null) {
+					//the entry lists the assignment if the arc has one
+					assignments.remove(token);
+				}
+			}
+		}
+		resolveAssignments(serverMap, assignments, assignedIds);
+		ring.snapshot = parsed.with(serverMap, assignments, parsed.epoch);
+		return ring;
+	}
+	
+	/**
+	 * Returns a list of all (physical) servers in the ring, in the order of their first
+	 * virtual node.
 	 */
 	public List<Server> getAllServers() {
+		return getAllServers(snapshot.serverMap);
+	}
+	
+	private static List<Server> getAllServers(TreeMap<BigInteger,Server> serverMap) {
 		List<Server> allServers = new LinkedList<Server>();
 		for (Map.Entry<BigInteger,Server> entry : serverMap.entrySet()) {
-			allServers.add(entry.getValue());
+			if (!allServers.contains(entry.getValue())){
+				allServers.add(entry.getValue());
+			}
 		}
 		return allServers;
 	}
@@ -196,6 +1068,8 @@ public class HashRing{
 		public String ipAddress;
 		public int port;
 		public int id;
+		//relative share of the ring, the server gets weight times the ring's virtual nodes
+		public int weight = 1;
 		
 		public Server(String ipAddress, int port){
 			this.ipAddress = ipAddress;
@@ -228,37 +1102,38 @@ public class HashRing{
 			Server other = (Server)ob;
 			return other.ipAddress.equals(this.ipAddress) && other.port == this.port;
 		}
+		
+		@Override
+		public int hashCode() {
+			return ipAddress.hashCode() * 31 + port;
+		}
 	}	
 	
 	
 	// For milestone 3
 	/**
 	 * Given key and server, returns if the server can perform get operations
-	 * on key. Returns false if ring is empty
+	 * on key, ie it is one of the first 3 distinct physical servers after the key. 
+	 * Returns false if ring is empty
 	 */
 	public boolean canGet(int serverid, String key){
-		BigInteger keyHash = objectHash(key);
-		for(int i = 0; i < 3; i++) {
-			// Go "up" three times to check if server can be responsible for get
-			/**
-			 * Using higherEntry(keyHash) here since we compare both key-to-server
-			 * as well as server-to-server. Assuming that key hash does not ever
-			 * equal server hash.
-			 */
-			Map.Entry<BigInteger,Server> entry = serverMap.higherEntry(keyHash);
-			
-			if (entry == null){
-				//key is past the last server - wrap around to first
-				entry = serverMap.firstEntry();
-				if (entry == null){
-					//serverMap is empty
-					return false;
-				}
-			}
-			
-			if(entry.getValue().id == serverid) return true;
-			
-			keyHash = entry.getKey();
+		Snapshot ring = snapshot;
+		return canGet(serverid, ring, hashKey(ring, key));
+	}
+	
+	public boolean canGet(int serverid, Utf8Bytes key){
+		Snapshot ring = snapshot;
+		return canGet(serverid, ring, hashKey(ring, key));
+	}
+	
+	private static boolean canGet(int serverid, Snapshot ring, KeyHasher hash){
+		/**
+		 * Searching for the first token after (not at) the key hash since we compare both 
+		 * key-to-server as well as server-to-server. Assuming that key hash does not ever
+		 * equal server hash.
+		 */
+		for (Server server : readSet(ring, hash)){
+			if(server.id == serverid) return true;
 		}
 		return false;
 	}
@@ -267,30 +1142,185 @@ public class HashRing{
 	 * Same function except overloaded using address and port
 	 */
 	public boolean canGet(String address, int port, String key){
-		BigInteger keyHash = objectHash(key);
-		for(int i = 0; i < 3; i++) {
-			// Go "up" three times to check if server can be responsible for get
-			/**
-			 * Using higherEntry(keyHash) here since we compare both key-to-server
-			 * as well as server-to-server. Assuming that key hash does not ever
-			 * equal server hash.
-			 */
-			Map.Entry<BigInteger,Server> entry = serverMap.higherEntry(keyHash);
-			
-			if (entry == null){
-				//key is past the last server - wrap around to first
-				entry = serverMap.firstEntry();
-				if (entry == null){
-					//serverMap is empty
-					return false;
+		Snapshot ring = snapshot;
+		for (Server server : readSet(ring, hashKey(ring, key))){
+			if(server.ipAddress.equals(address) && server.port == port) return true;
+		}
+		return false;
+	}
+	
+	private static final Server[] NO_SERVERS = new Server[0];
+	
+	/**
+	 * Return the first 3 distinct physical servers after the key.
+	 */
+	private static Server[] readSet(Snapshot ring, KeyHasher hash){
+		Lookup lookup = ring.getLookup();
+		if (lookup.size() == 0){
+			return NO_SERVERS;
+		}
+		return lookup.readSets[lookup.higher(hash.high, hash.low)];
+	}
+	
+	/**
+	 * A range of hashes on the ring, (low, high]. The range wraps around the top of the
+	 * ring when low >= high, and covers the full ring when low equals high.
+	 */
+	public static class Range{
+		public BigInteger low;
+		public BigInteger high;
+		
+		public Range(BigInteger low, BigInteger high){
+			this.low = low;
+			this.high = high;
+		}
+		
+		public boolean isFullRing(){
+			return low.equals(high);
+		}
+		
+		public boolean contains(BigInteger hash){
+			if (isFullRing()){
+				return true;
+			}
+			if (low.compareTo(high) < 0){
+				return hash.compareTo(low) > 0 && hash.compareTo(high) <= 0;
+			}
+			return hash.compareTo(low) > 0 || hash.compareTo(high) <= 0;
+		}
+		
+		/**
+		 * Return the number of hashes in the range.
+		 */
+		public BigInteger width(){
+			if (isFullRing()){
+				return RING_SIZE;
+			}
+			return high.subtract(low).mod(RING_SIZE);
+		}
+		
+		public String toString(){
+			return "("+low.toString()+", "+high.toString()+"]";
+		}
+	}
+	
+	/**
+	 * Write ranges as "low:high,low:high", eg to tell a server exactly which keys to transfer.
+	 */
+	public static String formatRanges(List<Range> ranges){
+		StringBuilder builder = new StringBuilder();
+		for (Range range : ranges){
+			if (builder.length() > 0){
+				builder.append(',');
+			}
+			builder.append(range.low.toString()).append(':').append(range.high.toString());
+		}
+		return builder.toString();
+	}
+	
+	/**
+	 * Read ranges written by formatRanges. Throws NumberFormatException if data is malformed.
+	 */
+	public static List<Range> parseRanges(String data){
+		List<Range> ranges = new ArrayList<Range>();
+		for (String range : data.trim().split(",")){
+			if (range.isEmpty()){
+				continue;
+			}
+			String[] bounds = range.split(":");
+			if (bounds.length != 2){
+				throw new NumberFormatException("Malformed range "+range);
+			}
+			ranges.add(new Range(new BigInteger(bounds[0]), new BigInteger(bounds[1])));
+		}
+		return ranges;
+	}
+	
+	/**
+	 * Return the ranges of the ring not covered by any of the given ranges, which must not 
+	 * overlap, eg the keys a server neither owns nor replicates given its read ranges.
+	 */
+	public static List<Range> complement(List<Range> ranges){
+		List<Range> sorted = new ArrayList<Range>(ranges);
+		List<Range> gaps = new ArrayList<Range>();
+		for (Range range : sorted){
+			if (range.isFullRing()){
+				return gaps;
+			}
+		}
+		if (sorted.isEmpty()){
+			//the whole ring, as a range starting and ending anywhere
+			gaps.add(new Range(BigInteger.ZERO, BigInteger.ZERO));
+			return gaps;
+		}
+		Collections.sort(sorted, new Comparator<Range>(){
+			@Override
+			public int compare(Range a, Range b){
+				return a.low.compareTo(b.low);
+			}
+		});
+		//disjoint ranges sorted by their start are in ring order, so the gaps lie between neighbours
+		for (int i=0; i<sorted.size(); i++){
+			Range range = sorted.get(i);
+			Range next = sorted.get((i + 1) % sorted.size());
+			if (!range.high.equals(next.low)){
+				gaps.add(new Range(range.high, next.low));
+			}
+		}
+		return gaps;
+	}
+	
+	/**
+	 * Return the ranges of key hashes the given server can perform get operations on, 
+	 * ie the keys it is responsible for plus the keys it replicates for the two physical servers
+	 * before it, one range per virtual node. Matches canGet for every key. 
+	 * Returns an empty list if the ring is empty.
+	 */
+	public List<Range> getReadRanges(Server server){
+		Snapshot ring = snapshot;
+		TreeMap<BigInteger,Server> serverMap = ring.serverMap;
+		List<Range> ranges = new ArrayList<Range>();
+		if (serverMap.isEmpty()){
+			return ranges;
+		}
+		if (!serverMap.containsValue(server)){
+			//work out the ranges as if the server had been added
+			serverMap = new TreeMap<BigInteger,Server>(serverMap);
+			for (BigInteger hash : getTokens(ring, serverMap, server)){
+				serverMap.put(hash, server);
+			}
+		}
+		List<BigInteger> tokens = getTokens(ring, serverMap, server);
+		if (getAllServers(serverMap).size() <= 3){
+			//every server holds a copy of every key
+			ranges.add(new Range(tokens.get(0), tokens.get(0)));
+			return ranges;
+		}
+		for (BigInteger high : tokens){
+			//walk back until a third other server or one of this server's own virtual nodes
+			List<Server> others = new ArrayList<Server>();
+			BigInteger low = lowerToken(serverMap, high);
+			while (true){
+				Server owner = serverMap.get(low);
+				if (owner.equals(server)){
+					break;
 				}
+				if (!others.contains(owner)){
+					if (others.size() == 2){
+						break;
+					}
+					others.add(owner);
+				}
+				low = lowerToken(serverMap, low);
 			}
-			
-			if(entry.getValue().ipAddress.equals(address) && entry.getValue().port == port) return true;
-			
-			keyHash = entry.getKey();
+			ranges.add(new Range(low, high));
 		}
-		return false;
+		return ranges;
+	}
+	
+	private static BigInteger lowerToken(TreeMap<BigInteger,Server> serverMap, BigInteger hash){
+		BigInteger lower = serverMap.lowerKey(hash);
+		return (lower == null) ? serverMap.lastKey() : lower;
 	}
 	
 	/**
@@ -310,38 +1340,26 @@ public class HashRing{
 	
 	/**
 	 * Get the REPLICA SERVERS for a key only. The main responsible server is not returned.
+	 * Replicas are the next distinct physical servers after the responsible one; with fewer
+	 * than 3 servers they wrap around to the same servers again. If the key's arc is assigned
+	 * to another server of its replica set, the owner becomes a replica instead.
 	 */
 	public Replicas getReplicas(String key) {
-		BigInteger keyHash = objectHash(key);
-		// First we get the responsible server, then we go up
-		Map.Entry<BigInteger,Server> entry = serverMap.ceilingEntry(keyHash);
-		if (entry == null){
-			//key is past the last server - wrap around to first
-			entry = serverMap.firstEntry();
-			if (entry == null){
-				//serverMap is empty
-				return null;
-			}
-		}
-		// Set the hash to the hash of the responsible server
-		keyHash = entry.getKey();
-		entry = serverMap.higherEntry(keyHash);
-		if (entry == null){
-			//key is past the last server - wrap around to first
-			entry = serverMap.firstEntry();
-			// serverMap cannot be empty here
-		}
-		// Now entry contains the first higher server
-		keyHash = entry.getKey();
-		Map.Entry<BigInteger,Server> entry2 = serverMap.higherEntry(keyHash);
-		if (entry2 == null){
-			//key is past the last server - wrap around to first
-			entry2 = serverMap.firstEntry();
-			// serverMap cannot be empty here
-		}
-		// Now entry2 contains the second higher server
-		
-		return new Replicas(entry.getValue(), entry2.getValue());
+		Snapshot ring = snapshot;
+		return getReplicas(ring, hashKey(ring, key));
+	}
+	
+	public Replicas getReplicas(Utf8Bytes key) {
+		Snapshot ring = snapshot;
+		return getReplicas(ring, hashKey(ring, key));
+	}
+	
+	private static Replicas getReplicas(Snapshot ring, KeyHasher hash) {
+		Lookup lookup = ring.getLookup();
+		if (lookup.size() == 0){
+			//serverMap is empty
+			return null;
+		}
+		return lookup.replicas[lookup.ceiling(hash.high, hash.low)];
 	}
 }
-
@@ -0,0 +1,115 @@
+package common;
+
+/**
+ * The 128-bit x64 variant of MurmurHash3 (public domain, by Austin Appleby). A fast
+ * non-cryptographic hash which spreads keys over the ring as evenly as MD5 for a fraction
+ * of the cost. The two 64-bit halves are the ones of the reference implementation, h1 being
+ * the top half of the ring position.
+ */
+public final class Murmur3 {
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	private Murmur3() {
+	}
+
+	/**
+	 * Hash length bytes of data starting at offset with seed 0, leaving h1 in out[0] and h2
+	 * in out[1]. Nothing is allocated so it can be used on every request.
+	 */
+	@SuppressWarnings("fallthrough")
+	public static void hash128(byte[] data, int offset, int length, long[] out) {
+		long h1 = 0;
+		long h2 = 0;
+		int blocks = length / 16;
+
+		//body, 16 bytes at a time read as two little endian longs
+		for (int i = 0; i < blocks; i++) {
+			int block = offset + i * 16;
+			long k1 = getLong(data, block);
+			long k2 = getLong(data, block + 8);
+
+			h1 ^= mixK1(k1);
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+
+			h2 ^= mixK2(k2);
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		//tail, the last 0 to 15 bytes. Every case falls through on purpose to add the bytes
+		//below it, as in the reference implementation
+		int tail = offset + blocks * 16;
+		long k1 = 0;
+		long k2 = 0;
+		switch (length & 15) {
+		case 15: k2 ^= (long) (data[tail + 14] & 0xff) << 48;
+		case 14: k2 ^= (long) (data[tail + 13] & 0xff) << 40;
+		case 13: k2 ^= (long) (data[tail + 12] & 0xff) << 32;
+		case 12: k2 ^= (long) (data[tail + 11] & 0xff) << 24;
+		case 11: k2 ^= (long) (data[tail + 10] & 0xff) << 16;
+		case 10: k2 ^= (long) (data[tail + 9] & 0xff) << 8;
+		case 9:
+			k2 ^= (long) (data[tail + 8] & 0xff);
+			h2 ^= mixK2(k2);
+		case 8: k1 ^= (long) (data[tail + 7] & 0xff) << 56;
+		case 7: k1 ^= (long) (data[tail + 6] & 0xff) << 48;
+		case 6: k1 ^= (long) (data[tail + 5] & 0xff) << 40;
+		case 5: k1 ^= (long) (data[tail + 4] & 0xff) << 32;
+		case 4: k1 ^= (long) (data[tail + 3] & 0xff) << 24;
+		case 3: k1 ^= (long) (data[tail + 2] & 0xff) << 16;
+		case 2: k1 ^= (long) (data[tail + 1] & 0xff) << 8;
+		case 1:
+			k1 ^= (long) (data[tail] & 0xff);
+			h1 ^= mixK1(k1);
+		default:
+			break;
+		}
+
+		//finalization
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix(h1);
+		h2 = fmix(h2);
+		h1 += h2;
+		h2 += h1;
+		out[0] = h1;
+		out[1] = h2;
+	}
+
+	private static long mixK1(long k1) {
+		k1 *= C1;
+		k1 = Long.rotateLeft(k1, 31);
+		k1 *= C2;
+		return k1;
+	}
+
+	private static long mixK2(long k2) {
+		k2 *= C2;
+		k2 = Long.rotateLeft(k2, 33);
+		k2 *= C1;
+		return k2;
+	}
+
+	private static long fmix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	private static long getLong(byte[] data, int index) {
+		long value = 0;
+		for (int i = 7; i >= 0; i--) {
+			value = (value << 8) | (data[index + i] & 0xff);
+		}
+		return value;
+	}
+}
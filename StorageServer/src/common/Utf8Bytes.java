@@ -0,0 +1,147 @@
+package common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Immutable UTF-8 encoded text, the type keys and values have from the message codec through
+ * the cache to the storage and its files. Keeping them as the bytes they travel and are stored
+ * as means they are encoded once, by the client, and never decoded by the server. It also
+ * halves their size on heaps which keep Strings as UTF-16.
+ * Instances compare byte by byte, which for UTF-8 is the same order as comparing the code
+ * points. Unlike String they do not cache their hash: keys are at most 20 bytes, so hashing
+ * them again is cheaper than the 8 bytes the field takes on every key and value.
+ */
+public final class Utf8Bytes implements Comparable<Utf8Bytes> {
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+	public static final Utf8Bytes EMPTY = new Utf8Bytes(new byte[0]);
+	private final byte[] bytes;
+
+	private Utf8Bytes(byte[] bytes) {
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Return the UTF-8 encoding of the string, null for null.
+	 */
+	public static Utf8Bytes of(String string) {
+		if (string == null) {
+			return null;
+		}
+		return string.isEmpty() ? EMPTY : new Utf8Bytes(string.getBytes(UTF8));
+	}
+
+	/**
+	 * Return the bytes as a Utf8Bytes without copying them. The caller must not change the
+	 * array afterwards.
+	 */
+	public static Utf8Bytes wrap(byte[] bytes) {
+		return bytes.length == 0 ? EMPTY : new Utf8Bytes(bytes);
+	}
+
+	public static Utf8Bytes copyOf(byte[] bytes, int offset, int length) {
+		return wrap(Arrays.copyOfRange(bytes, offset, offset + length));
+	}
+
+	/**
+	 * Return the next length bytes of the buffer, advancing its position past them.
+	 */
+	public static Utf8Bytes read(ByteBuffer buffer, int length) {
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return wrap(bytes);
+	}
+
+	/**
+	 * Return the number of bytes, not characters.
+	 */
+	public int length() {
+		return bytes.length;
+	}
+
+	public byte byteAt(int index) {
+		return bytes[index];
+	}
+
+	public boolean isEmpty() {
+		return bytes.length == 0;
+	}
+
+	/**
+	 * Return true if there are only spaces and control characters, ie if String.trim() would
+	 * return an empty string.
+	 */
+	public boolean isBlank() {
+		for (byte b : bytes) {
+			// bytes of multi-byte characters are negative
+			if (b < 0 || b > ' ') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(bytes);
+	}
+
+	public void writeTo(ByteBuffer buffer) {
+		buffer.put(bytes);
+	}
+
+	public void copyTo(byte[] destination, int offset) {
+		System.arraycopy(bytes, 0, destination, offset, bytes.length);
+	}
+
+	/**
+	 * Return a copy of the bytes.
+	 */
+	public byte[] toByteArray() {
+		return bytes.clone();
+	}
+
+	/**
+	 * Return the bytes themselves for hashing within the package. Must not be changed.
+	 */
+	byte[] array() {
+		return bytes;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (this == other) {
+			return true;
+		}
+		return other instanceof Utf8Bytes && Arrays.equals(bytes, ((Utf8Bytes) other).bytes);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(bytes);
+	}
+
+	@Override
+	public int compareTo(Utf8Bytes other) {
+		int length = Math.min(bytes.length, other.bytes.length);
+		for (int i = 0; i < length; i++) {
+			int a = bytes[i] & 0xff;
+			int b = other.bytes[i] & 0xff;
+			if (a != b) {
+				return a - b;
+			}
+		}
+		return bytes.length - other.bytes.length;
+	}
+
+	/**
+	 * Decode the bytes. Only meant for the edges of the system, eg returning a value to the
+	 * user of KVStore, and for logging.
+	 */
+	@Override
+	public String toString() {
+		return new String(bytes, UTF8);
+	}
+}
@@ -0,0 +1,284 @@
+package common;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Coordinates the ECS and the storage servers through ZooKeeper instead of TCP broadcasts,
+ * probing and a metadata file. The ring metadata is the data of the persistent znode
+ * /kvstore/metadata, which every server watches. Every live server has an ephemeral znode
+ * /kvstore/servers/<id>, which disappears when its session ends. Its data is the epoch of the
+ * last metadata the server applied, so the ECS can wait until every server has seen a change.
+ * ZooKeeper failures are reported as IOExceptions.
+ */
+public class ZooKeeperCoordinator {
+	private static Logger logger = Logger.getRootLogger();
+	public static final String ROOT = "/kvstore";
+	public static final String METADATA = ROOT + "/metadata";
+	public static final String SERVERS = ROOT + "/servers";
+	private static final String UTF8 = "UTF-8";
+
+	private ZooKeeper m_zooKeeper;
+
+	/**
+	 * Called with the metadata when the metadata znode is first read and on every change.
+	 */
+	public interface MetadataListener {
+		public void metadataChanged(String metadata);
+	}
+
+	/**
+	 * Called with the ids of the live servers whenever a server joins or leaves.
+	 */
+	public interface MembershipListener {
+		public void membershipChanged(Collection<Integer> liveServers);
+	}
+
+	/**
+	 * Connect to the ZooKeeper ensemble, waiting up to the session timeout for the session
+	 * to be established.
+	 */
+	public ZooKeeperCoordinator(String connectString, int sessionTimeout) throws IOException {
+		final CountDownLatch connected = new CountDownLatch(1);
+		m_zooKeeper = new ZooKeeper(connectString, sessionTimeout, new Watcher() {
+			@Override
+			public void process(WatchedEvent event) {
+				if (event.getState() == Event.KeeperState.SyncConnected) {
+					connected.countDown();
+				} else if (event.getState() == Event.KeeperState.Expired) {
+					logger.error("ZooKeeper session expired");
+				}
+			}
+		});
+		try {
+			if (!connected.await(sessionTimeout, TimeUnit.MILLISECONDS)) {
+				close();
+				throw new IOException("Unable to connect to ZooKeeper at " + connectString);
+			}
+			ensurePath(ROOT);
+			ensurePath(SERVERS);
+		} catch (InterruptedException e) {
+			close();
+			throw new IOException("Interrupted while connecting to ZooKeeper", e);
+		}
+	}
+
+	private void ensurePath(String path) throws IOException {
+		try {
+			m_zooKeeper.create(path, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+		} catch (KeeperException.NodeExistsException e) {
+			// Created by another server or an earlier run
+		} catch (KeeperException e) {
+			throw new IOException("Unable to create znode " + path, e);
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while creating znode " + path, e);
+		}
+	}
+
+	/**
+	 * Store the metadata in the metadata znode, which notifies every server watching it.
+	 * Nothing is written if the znode already holds the same metadata.
+	 */
+	public void publishMetadata(String metadata) throws IOException {
+		try {
+			byte[] data = metadata.getBytes(UTF8);
+			try {
+				m_zooKeeper.create(METADATA, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+			} catch (KeeperException.NodeExistsException e) {
+				if (!metadata.equals(readMetadata())) {
+					m_zooKeeper.setData(METADATA, data, -1);
+				}
+			}
+		} catch (KeeperException e) {
+			throw new IOException("Unable to publish metadata", e);
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while publishing metadata", e);
+		}
+	}
+
+	/**
+	 * Return the metadata stored in the metadata znode, or null if there is none yet.
+	 */
+	public String readMetadata() throws IOException {
+		try {
+			return new String(m_zooKeeper.getData(METADATA, false, null), UTF8);
+		} catch (KeeperException.NoNodeException e) {
+			return null;
+		} catch (KeeperException e) {
+			throw new IOException("Unable to read metadata", e);
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while reading metadata", e);
+		}
+	}
+
+	/**
+	 * Call the listener with the current metadata, if there is any, and again every time it
+	 * changes. ZooKeeper watches only fire once, so the watch is set again on every event.
+	 */
+	public void watchMetadata(final MetadataListener listener) throws IOException {
+		Watcher watcher = new Watcher() {
+			@Override
+			public void process(WatchedEvent event) {
+				if (event.getType() == Event.EventType.None) {
+					return;
+				}
+				try {
+					watchMetadata(listener);
+				} catch (IOException e) {
+					logger.error("Unable to watch metadata: " + e.getMessage());
+				}
+			}
+		};
+		try {
+			Stat stat = m_zooKeeper.exists(METADATA, watcher);
+			if (stat == null) {
+				// The exists watch fires when the metadata is first published
+				return;
+			}
+			byte[] data = m_zooKeeper.getData(METADATA, watcher, null);
+			listener.metadataChanged(new String(data, UTF8));
+		} catch (KeeperException.NoNodeException e) {
+			// Deleted between exists and getData, the exists watch fires on the next publish
+		} catch (KeeperException e) {
+			throw new IOException("Unable to watch metadata", e);
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while watching metadata", e);
+		}
+	}
+
+	/**
+	 * Announce the server as live with an ephemeral znode, which ZooKeeper removes when this
+	 * session ends, eg because the server crashed.
+	 */
+	public void registerServer(int id) throws IOException {
+		try {
+			m_zooKeeper.create(SERVERS + "/" + id, "0".getBytes(UTF8), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+		} catch (KeeperException.NodeExistsException e) {
+			// Left by a previous session of this server which has not expired yet
+			try {
+				m_zooKeeper.delete(SERVERS + "/" + id, -1);
+			} catch (Exception deleteError) {
+				throw new IOException("Unable to replace znode of server " + id, deleteError);
+			}
+			registerServer(id);
+		} catch (KeeperException e) {
+			throw new IOException("Unable to register server " + id, e);
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while registering server " + id, e);
+		}
+	}
+
+	/**
+	 * Record that the server has applied the metadata of the given epoch.
+	 */
+	public void acknowledgeEpoch(int id, long epoch) throws IOException {
+		try {
+			m_zooKeeper.setData(SERVERS + "/" + id, String.valueOf(epoch).getBytes(UTF8), -1);
+		} catch (KeeperException e) {
+			throw new IOException("Unable to acknowledge epoch " + epoch, e);
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while acknowledging epoch " + epoch, e);
+		}
+	}
+
+	/**
+	 * Return the ids of the live servers with the epoch each one last acknowledged.
+	 */
+	public Map<Integer, Long> liveServers() throws IOException {
+		Map<Integer, Long> servers = new HashMap<Integer, Long>();
+		try {
+			for (String child : m_zooKeeper.getChildren(SERVERS, false)) {
+				try {
+					byte[] data = m_zooKeeper.getData(SERVERS + "/" + child, false, null);
+					servers.put(Integer.parseInt(child), Long.parseLong(new String(data, UTF8).trim()));
+				} catch (KeeperException.NoNodeException e) {
+					// The server left while we were listing
+				}
+			}
+		} catch (KeeperException e) {
+			throw new IOException("Unable to list live servers", e);
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while listing live servers", e);
+		}
+		return servers;
+	}
+
+	/**
+	 * Call the listener with the live servers every time a server joins or leaves.
+	 */
+	public void watchServers(final MembershipListener listener) throws IOException {
+		Watcher watcher = new Watcher() {
+			@Override
+			public void process(WatchedEvent event) {
+				if (event.getType() != Event.EventType.NodeChildrenChanged) {
+					return;
+				}
+				try {
+					watchServers(listener);
+					listener.membershipChanged(liveServers().keySet());
+				} catch (IOException e) {
+					logger.error("Unable to watch live servers: " + e.getMessage());
+				}
+			}
+		};
+		try {
+			m_zooKeeper.getChildren(SERVERS, watcher);
+		} catch (KeeperException e) {
+			throw new IOException("Unable to watch live servers", e);
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while watching live servers", e);
+		}
+	}
+
+	/**
+	 * Wait until every one of the given servers which is live has acknowledged at least the
+	 * given epoch. Returns the servers which did not within the timeout.
+	 */
+	public List<Integer> awaitEpoch(Collection<Integer> ids, long epoch, long timeoutMs) throws IOException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		while (true) {
+			List<Integer> behind = new ArrayList<Integer>();
+			Map<Integer, Long> live = liveServers();
+			for (Integer id : ids) {
+				Long acknowledged = live.get(id);
+				if (acknowledged != null && acknowledged < epoch) {
+					behind.add(id);
+				}
+			}
+			if (behind.isEmpty() || System.currentTimeMillis() >= deadline) {
+				return behind;
+			}
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+				return behind;
+			}
+		}
+	}
+
+	/**
+	 * End the session, which removes the ephemeral znode of a registered server.
+	 */
+	public void close() {
+		try {
+			m_zooKeeper.close();
+		} catch (InterruptedException e) {
+			logger.warn("Interrupted while closing ZooKeeper session");
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package common.messages;
 
+import common.Utf8Bytes;
+
 /**
  * This class is essentially the same as MessageType but allows more valid 
  * message headers. 
@@ -15,6 +17,11 @@ public class KVAdminMessage extends MessageType {
 		super(header, status, key, value);
 	}
 	
+	public KVAdminMessage(String header, String status, Utf8Bytes key, Utf8Bytes value)
+	{
+		super(header, status, key, value);
+	}
+	
 	public KVAdminMessage(byte[] bytes) {
 		super(bytes);
 	}
@@ -27,7 +34,7 @@ public class KVAdminMessage extends MessageType {
 	{
 		switch (header) {
 		case "connect": 
-			if (!status.equals("CONNECT_SUCCESS") && (key.trim().equals("") || value.trim().equals(""))){
+			if (!status.equals("CONNECT_SUCCESS") && (key.isBlank() || value.isBlank())){
 				return "Key and value must not be empty for message "+header;
 			}
 			break;
@@ -35,20 +42,27 @@ public class KVAdminMessage extends MessageType {
 		case "put":
 		case "admin_put":
 			//use IP address and port as key & value
-			if (key.trim().equals("") || value.trim().equals("")){
+			if (key.isBlank() || value.isBlank()){
 				return "Key and value must not be empty for message "+header;
 			}
 			break;
 		case "logLevel":
-			System.out.println(key.trim());
-			if (!key.trim().equals("ALL") && !key.trim().equals("DEBUG") && !key.trim().equals("INFO") && !key.trim().equals("WARN") && !key.trim().equals("ERROR") && !key.trim().equals("FATAL") && !key.trim().equals("OFF")) {
+			String level = getKey().trim();
+			System.out.println(level);
+			if (!level.equals("ALL") && !level.equals("DEBUG") && !level.equals("INFO") && !level.equals("WARN") && !level.equals("ERROR") && !level.equals("FATAL") && !level.equals("OFF")) {
 				return "Log level must be equal to a valid log level.";
 			}
 			break;
+		case "snapshot":
+			//key holds the length of the segment which follows the message
+			if (!getKey().trim().matches("[0-9]+")){
+				return "Key must be the segment length for message "+header;
+			}
+			break;
 		case "get":
 		case "addNode":
 		case "removeNode":
-			if (key.trim().equals("")){
+			if (key.isBlank()){
 				return "Key must not be empty for message "+header;
 			}
 			break;
@@ -58,12 +72,27 @@ public class KVAdminMessage extends MessageType {
 		case "init":
 		case "start":
 		case "stop":
-			if (!key.trim().equals("") || !value.trim().equals("")){
+			if (!key.isBlank() || !value.isBlank()){
 				return "Key and value must be empty for message "+header;
 			}
 			break;
+		case "cleanup":
+			//the response holds the number of keys the server dropped
+			if (!key.isBlank()){
+				return "Key must be empty for message "+header;
+			}
+			break;
+		case "load":
+			//the response lists "<token>:<keys>" for every virtual node of the server
+			break;
+		case "getMetadata":
+			//a request holds the epoch of the client's ring, the reply the metadata or a diff
+			if (status.equals("") && !getValue().trim().matches("-?[0-9]+")) {
+				return "Value must be the epoch of the ring for message "+header;
+			}
+			break;
 		case "metadata":
-			if (value.trim().equals("") && !status.equals("SUCCESS")) {
+			if (value.isBlank() && !status.equals("SUCCESS")) {
 				return "Value must not be empty for message "+header;
 			}
 			break;
@@ -1,5 +1,7 @@
 package common.messages;
 
+import common.Utf8Bytes;
+
 public interface KVMessage {
 	public String originalMsg=null;
 	public boolean isValid=false;
@@ -33,6 +35,16 @@ public interface KVMessage {
 	 */
 	public String getValue();
 	
+	/**
+	 * @return the key as the UTF-8 bytes it was sent as, which the server uses as is.
+	 */
+	public Utf8Bytes getKeyBytes();
+	
+	/**
+	 * @return the value as the UTF-8 bytes it was sent as.
+	 */
+	public Utf8Bytes getValueBytes();
+	
 	/**
 	 * @return a status string that is used to identify request types, 
 	 * response types and error types associated to the message.
@@ -47,12 +59,20 @@ public interface KVMessage {
 	 */
 	public String getHeader();
 	
+	/**
+	 * @return the optional hint sent after the 4 fields, eg the metadata epoch of a server
+	 * 		which forwarded the request. Empty if there is none.
+	 */
+	public String getHint();
+	
+	public void setHint(String hint);
+	
 	public String getMsg();
 	
 	public String getError();
 	
 	/**
-	 * Returns an array of bytes that represent the ASCII coded message content.
+	 * Returns an array of bytes that represent the UTF-8 coded message content.
 	 */
 	public byte[] getMsgBytes();
 	
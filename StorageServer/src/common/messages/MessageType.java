@@ -3,6 +3,8 @@ package common.messages;
 import java.io.Serializable;
 import java.util.*;
 
+import common.Utf8Bytes;
+
 /**
  * Implementation of KVMessage interface which is used to store messages between
  * any client and server. These messages are used to between the kvclient and kvserver
@@ -24,16 +26,20 @@ import java.util.*;
  *  	- logLevel: for changing the kvClient log verbosity
  *  	- quit: for exiting the kvClient
  *  	- help: print help
+ * Keys and values are kept as the UTF-8 bytes they are sent as, see Utf8Bytes. A message is
+ * read from and written to bytes directly, so the server never decodes them into Strings.
  */
 public class MessageType implements KVMessage {
 	public String error;
 	private byte[] msgBytes;
-	private static final char LINE_FEED = 0x0A;
-	private static final char RETURN = 0x0D;
-	protected String key;
-	protected String value;
+	private static final byte LINE_FEED = 0x0A;
+	private static final byte RETURN = 0x0D;
+	private static final byte QUOTE = '"';
+	protected Utf8Bytes key;
+	protected Utf8Bytes value;
 	protected String header;
 	protected String status;
+	protected String hint = "";
 	
 	/**
 	 * Replace all single quotes in the string with double quotes
@@ -67,6 +73,14 @@ public class MessageType implements KVMessage {
 	 * given with single quotes. Empty strings are acceptable now. 
 	 */
 	public MessageType(String header, String status, String key, String value)
+	{
+		this(header, status, Utf8Bytes.of(key), Utf8Bytes.of(value));
+	}
+
+	/**
+	 * Construct a MessageType with a key and value which are already encoded.
+	 */
+	public MessageType(String header, String status, Utf8Bytes key, Utf8Bytes value)
 	{
 		this.header = header;
 		this.status = status;
@@ -76,16 +90,15 @@ public class MessageType implements KVMessage {
 	}
 
 	/***
-	Construct MessageType from a byte array (ASCII-coded).
+	Construct MessageType from a byte array (UTF-8 coded).
 	***/
 	public MessageType(byte[] bytes) {
 		this.msgBytes = bytes;
-		String str = new String(this.msgBytes);
 		this.header = "";
 		this.status = "";
-		this.key = "";
-		this.value = "";
-		parse(str.trim());
+		this.key = Utf8Bytes.EMPTY;
+		this.value = Utf8Bytes.EMPTY;
+		parse(bytes);
 		this.error = validityCheck();
 	}	
 
@@ -95,7 +108,7 @@ public class MessageType implements KVMessage {
 	 */
 	@Override
 	public String getKey() {
-		return this.key;
+		return this.key.toString();
 	}
 
 	/**
@@ -104,6 +117,16 @@ public class MessageType implements KVMessage {
 	 */
 	@Override
 	public String getValue() {
+		return this.value.toString();
+	}
+
+	@Override
+	public Utf8Bytes getKeyBytes() {
+		return this.key;
+	}
+
+	@Override
+	public Utf8Bytes getValueBytes() {
 		return this.value;
 	}
 
@@ -137,85 +160,132 @@ public class MessageType implements KVMessage {
 		return this.error;
 	}
 	
+	@Override
+	public String getHint() {
+		return this.hint;
+	}
+	
+	@Override
+	public void setHint(String hint) {
+		this.hint = (hint == null) ? "" : hint;
+	}
+	
 	/**
 	 * Returns the content of this message as a String. All fields (header, status,
 	 * key, value) are surrounded by quotes. Any quotes in these values are replaced
-	 * with double quotes.
+	 * with double quotes. A hint, if there is one, follows as a fifth field.
+	 * Decodes the key and value, so only meant for logging and tests.
 	 */
 	public String getMsg() {
-		return 	"\""+doubleQuotes(header)+"\" " +
+		String msg = "\""+doubleQuotes(header)+"\" " +
 				"\""+doubleQuotes(status)+"\" " + 
-				"\""+doubleQuotes(key)+"\" " + 
-				"\""+doubleQuotes(value)+"\"";
+				"\""+doubleQuotes(key.toString())+"\" " + 
+				"\""+doubleQuotes(value.toString())+"\"";
+		if (hint.length() > 0) {
+			msg += " \""+doubleQuotes(hint)+"\"";
+		}
+		return msg;
 	}
 
 	/***
-	Returns an array of bytes that represent the ASCII coded message content.
-	Byte array is terminated by a '\n' character.
+	Returns an array of bytes that represent the UTF-8 coded message content, the same
+	as getMsg() would encode to. Byte array is terminated by a '\n' character.
 	***/
 	public byte[] getMsgBytes() {
-		this.msgBytes = toByteArray(this.getMsg());
+		Utf8Bytes[] fields = new Utf8Bytes[] {Utf8Bytes.of(header), Utf8Bytes.of(status), key, value,
+				hint.length() > 0 ? Utf8Bytes.of(hint) : null};
+		int length = 0;
+		for (Utf8Bytes field : fields) {
+			if (field != null) {
+				//quotes around the field and a space or the line feed after it
+				length += field.length() + 3;
+				for (int i=0; i<field.length(); i++) {
+					if (field.byteAt(i) == QUOTE) {
+						length++;
+					}
+				}
+			}
+		}
+		byte[] bytes = new byte[length];
+		int position = 0;
+		for (Utf8Bytes field : fields) {
+			if (field != null) {
+				if (position > 0) {
+					bytes[position++] = ' ';
+				}
+				bytes[position++] = QUOTE;
+				for (int i=0; i<field.length(); i++) {
+					byte b = field.byteAt(i);
+					bytes[position++] = b;
+					if (b == QUOTE) {
+						bytes[position++] = QUOTE;
+					}
+				}
+				bytes[position++] = QUOTE;
+			}
+		}
+		bytes[position] = LINE_FEED;
+		this.msgBytes = bytes;
 		return this.msgBytes;
 	}
 	
-	/**
-	 * Returns the given string as an ASCII-coded byte array
-	 */
-	private byte[] toByteArray(String s){
-		byte[] bytes = s.getBytes();
-		byte[] ctrBytes = new byte[]{LINE_FEED};
-		byte[] tmp = new byte[bytes.length + ctrBytes.length];
-		
-		System.arraycopy(bytes, 0, tmp, 0, bytes.length);
-		System.arraycopy(ctrBytes, 0, tmp, bytes.length, ctrBytes.length);
-		
-		return tmp;		
-	}
-	
 	/**
 	 * Parse the given string into the header, status, key, and value fields.
 	 * The given string MUST have the following format:
 	 * "header" "status" "key" "value"
-	 * where each of those fields can have quotes, but doubled. 
+	 * where each of those fields can have quotes, but doubled. An optional fifth
+	 * field holds the hint.
 	 */
 	public void parse(String msg){
-		msg = msg.trim();
-		List<String> tokens = new ArrayList<String>();
+		parse(msg.getBytes(Utf8Bytes.UTF8));
+	}
+
+	/**
+	 * Parse the fields from the UTF-8 coded message. Quotes are ASCII, so they never occur
+	 * inside a multi-byte character and the bytes can be scanned without decoding them.
+	 */
+	private void parse(byte[] msg){
+		List<Utf8Bytes> tokens = new ArrayList<Utf8Bytes>();
 		
-		//iterate though string character-by-character. 
-		//inData - boolean flag indicating whether the current character is part of a data field or between data fields
+		//iterate though the message byte-by-byte. 
+		//inData - boolean flag indicating whether the current byte is part of a data field or between data fields
 		boolean inData = false; 
-		int start = -1;
-		for (int i=0; i<msg.length(); i++){
+		//the field being read, with its doubled quotes made single
+		byte[] token = new byte[msg.length];
+		int length = 0;
+		for (int i=0; i<msg.length; i++){
 			if (!inData){
-				if (msg.charAt(i) == '"'){
+				if (msg[i] == QUOTE){
 					inData = true;
-					start = i;
+					length = 0;
 				}
 			}
 			else{
-				if (msg.charAt(i) == '"'){
-					//data field ends when current character is quote but next is not
-					if (i+1 == msg.length() || msg.charAt(i+1) != '"'){
+				if (msg[i] == QUOTE){
+					//data field ends when current byte is quote but next is not
+					if (i+1 == msg.length || msg[i+1] != QUOTE){
 						inData = false;
-						tokens.add(msg.substring(start+1,i));
-					}
-					else{
-						//next character is quote. Double quotes only occur in data field
-						i++; //don't process 2nd quote of double pair
+						tokens.add(Utf8Bytes.copyOf(token, 0, length));
+						continue;
 					}
+					//next byte is quote. Double quotes only occur in data field
+					i++; //don't process 2nd quote of double pair
 				}
+				token[length++] = msg[i];
 			}
 		}
 		
-		if (tokens.size() != 4){
+		if (tokens.size() != 4 && tokens.size() != 5){
 			this.error = "Invalid message format";
 			return;
 		}
-		this.header = singleQuotes(tokens.get(0));
-		this.status = singleQuotes(tokens.get(1));
-		this.key = singleQuotes(tokens.get(2));
-		this.value = singleQuotes(tokens.get(3));
+		if (tokens.size() == 5){
+			this.hint = tokens.get(4).toString();
+		}
+		this.header = tokens.get(0).toString();
+		this.status = tokens.get(1).toString();
+		this.key = tokens.get(2);
+		this.value = tokens.get(3);
 		
 		this.error = validityCheck();
 	}
@@ -228,36 +298,37 @@ public class MessageType implements KVMessage {
 	{
 		switch (this.header) {
 		case "connect": 
-			if (!this.status.trim().equals("CONNECT_SUCCESS") && (this.key.trim().equals("") || this.value.trim().equals(""))){
+			if (!this.status.trim().equals("CONNECT_SUCCESS") && (this.key.isBlank() || this.value.isBlank())){
 				return "Validity Check: Key and value must not be empty for message "+this.header;
 			}
 			break;
 		case "put":
 			//use IP address and port as key & value
-			if (this.key.trim().equals("") || this.value.trim().equals("")){
+			if (this.key.isBlank() || this.value.isBlank()){
 				return "Validity Check: Key and value must not be empty for message "+header;
 			}
 			break;
 		case "logLevel":
-			System.out.println(key.trim());
-			if (!this.key.trim().equals("ALL") && !this.key.trim().equals("DEBUG") && !this.key.trim().equals("INFO") && !this.key.trim().equals("WARN") && !this.key.trim().equals("ERROR") && !this.key.trim().equals("FATAL") && !this.key.trim().equals("OFF")) {
+			String level = getKey().trim();
+			System.out.println(level);
+			if (!level.equals("ALL") && !level.equals("DEBUG") && !level.equals("INFO") && !level.equals("WARN") && !level.equals("ERROR") && !level.equals("FATAL") && !level.equals("OFF")) {
 				return "Validity Check: Log level must be equal to a valid log level.";
 			}
 			break;
 		case "get":
-			if (this.key.trim().equals("")){
+			if (this.key.isBlank()){
 				return "Validity Check: Key must not be empty for message "+header;
 			}
 			break;
 		case "disconnect":
 		case "help":
 		case "quit":
-			if (!this.key.trim().equals("") || !this.value.trim().equals("")){
+			if (!this.key.isBlank() || !this.value.isBlank()){
 				return "Validity Check: Key and value must be empty for message "+header;
 			}
 			break;
 		case "metadata":
-			if (this.value.trim().equals("") && !this.status.trim().equals("SUCCESS")) {
+			if (this.value.isBlank() && !this.status.trim().equals("SUCCESS")) {
 				return "Validity Check: Value must not be empty for message "+header;
 			}
 			break;
@@ -228,4 +228,174 @@ public class AdditionalTest extends TestCase {
 		assertEquals("GET_SUCCESS",response.getStatus());
 		assertEquals(x,response.getValue());
 	}
+	
+	//tests that a snapshot bootstrap ships the keys the new server can get, including
+	//writes made after the snapshot segment was taken
+	public void testSnapshotAddNode() throws Exception {
+		AllTests.closeServers(servers);
+		servers = AllTests.createAndStartServers(2, 54940);
+		final KVServer sender = servers.get(0);
+		KVServer receiver = servers.get(1);
+		for (int i=0; i<20; i++) {
+			sender.handleAdminPut(new MessageType("put","","snap"+i,"value"+i));
+		}
+		//slow enough that the shipping takes a second or more
+		sender.setTransferLimit(0, 500);
+		final KVMessage[] result = new KVMessage[1];
+		Thread transfer = new Thread() {
+			public void run() {
+				result[0] = sender.handleAddNode(new KVAdminMessage("addNode","SNAPSHOT",new Server("localhost",54941,1).toString(),""));
+			}
+		};
+		transfer.start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (sender.getSnapshotTransfers() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		assertEquals(1, sender.getSnapshotTransfers());
+		//these writes are not in the snapshot and must be forwarded after it
+		sender.handleAdminPut(new MessageType("put","","snap0","changed"));
+		sender.handleAdminPut(new MessageType("put","","snapLate","late"));
+		assertTrue(transfer.isAlive());
+		transfer.join(10000);
+		
+		assertEquals("SUCCESS",result[0].getStatus());
+		assertEquals(0, sender.getSnapshotTransfers());
+		assertEquals("changed",receiver.handleGet(new MessageType("get","","snap0","")).getValue());
+		assertEquals("late",receiver.handleGet(new MessageType("get","","snapLate","")).getValue());
+		for (int i=1; i<20; i++) {
+			KVMessage response = receiver.handleGet(new MessageType("get","","snap"+i,""));
+			assertEquals("GET_SUCCESS",response.getStatus());
+			assertEquals("value"+i,response.getValue());
+		}
+	}
+	
+	//tests that a throttled transfer keeps to its rate without write locking the sender, and
+	//that writes made during the transfer reach the receiver
+	public void testThrottledTransferWithoutWriteLock() throws Exception {
+		AllTests.closeServers(servers);
+		servers = AllTests.createAndStartServers(2, 54942);
+		final KVServer sender = servers.get(0);
+		KVServer receiver = servers.get(1);
+		for (int i=0; i<100; i++) {
+			sender.handleAdminPut(new MessageType("put","","throttled"+i,"value"+i));
+		}
+		sender.setTransferLimit(100, 0);
+		final KVMessage[] result = new KVMessage[1];
+		Thread transfer = new Thread() {
+			public void run() {
+				result[0] = sender.handleAddNode(new KVAdminMessage("addNode","",new Server("localhost",54943,1).toString(),""));
+			}
+		};
+		long start = System.nanoTime();
+		transfer.start();
+		Thread.sleep(200);
+		assertTrue(transfer.isAlive());
+		assertFalse("WRITE_LOCKED".equals(sender.getStatus()));
+		sender.handleAdminPut(new MessageType("put","","throttled0","changed"));
+		sender.handleAdminPut(new MessageType("put","","throttledLate","late"));
+		transfer.join(10000);
+		long elapsedMs = (System.nanoTime() - start) / 1000000;
+		assertEquals("SUCCESS",result[0].getStatus());
+		//100 keys at 100 per second with a burst of 10
+		assertTrue("transfer took " + elapsedMs + "ms", elapsedMs >= 800);
+		assertEquals("changed",receiver.handleGet(new MessageType("get","","throttled0","")).getValue());
+		assertEquals("late",receiver.handleGet(new MessageType("get","","throttledLate","")).getValue());
+		assertEquals("value99",receiver.handleGet(new MessageType("get","","throttled99","")).getValue());
+	}
+	
+	//tests that redirects only carry the epoch, that servers answer metadata fetches with a
+	//diff when they know the client's ring, and that a client follows a redirect
+	public void testEpochRedirectAndMetadataDiff() {
+		AllTests.closeServers(servers);
+		servers = AllTests.createAndStartServers(5, 54950);
+		KVServer first = servers.get(0);
+		HashRing ring = new HashRing(first.handleGetMetadata(new KVAdminMessage("getMetadata","","","-1")).getValue());
+		assertEquals(5, ring.getAllServers().size());
+		
+		//find a key another server is responsible for
+		String key = null;
+		for (int i=0; key == null; i++) {
+			if (ring.getResponsible("k"+i).id != 0) {
+				key = "k"+i;
+			}
+		}
+		KVMessage response = first.handlePut(new MessageType("put","",key,"v"));
+		assertEquals("SERVER_NOT_RESPONSIBLE", response.getStatus());
+		assertEquals(String.valueOf(ring.getEpoch()), response.getValue());
+		response = first.handleGetMetadata(new KVAdminMessage("getMetadata","","",String.valueOf(ring.getEpoch())));
+		assertEquals("METADATA_CURRENT", response.getStatus());
+		
+		//a client which only knows server 0 is redirected and fetches the metadata
+		KVStore store = new KVStore("localhost", 54950);
+		try {
+			assertTrue(store.connect());
+			assertTrue("PUT_SUCCESS PUT_UPDATE".contains(store.put(key, "v").getStatus()));
+			assertEquals("v", store.get(key).getValue());
+		} catch (Exception e) {
+			ex = e;
+		} finally {
+			store.disconnect();
+		}
+		assertNull(ex);
+		
+		//remove a server with a diff, then fetch the change with the old epoch
+		HashRing smaller = new HashRing(ring.toString());
+		smaller.removeServer(new Server("localhost", 54954, 4));
+		for (KVServer server : servers) {
+			response = server.handleMetadata(new KVAdminMessage("metadata","METADATA_DIFF","",smaller.diff(ring)));
+			assertEquals("SUCCESS", response.getStatus());
+		}
+		response = first.handleGetMetadata(new KVAdminMessage("getMetadata","","",String.valueOf(ring.getEpoch())));
+		assertEquals("METADATA_DIFF", response.getStatus());
+		assertEquals(smaller.toString(), ring.applyDiff(response.getValue()).toString());
+		assertTrue(response.getValue().length() < smaller.toString().length());
+		
+		//a diff against a ring the server does not have is refused
+		response = first.handleMetadata(new KVAdminMessage("metadata","METADATA_DIFF","",smaller.diff(ring)));
+		assertEquals("METADATA_STALE", response.getStatus());
+	}
+	
+	//tests that in proxy mode a server forwards requests for other servers' keys and
+	//hints its metadata epoch, and that a forwarded request is never forwarded again
+	public void testProxyForwarding() {
+		AllTests.closeServers(servers);
+		servers = AllTests.createAndStartServers(5, 54960);
+		for (KVServer server : servers) {
+			server.setProxyMode(true);
+		}
+		KVServer first = servers.get(0);
+		HashRing ring = new HashRing(first.handleGetMetadata(new KVAdminMessage("getMetadata","","","-1")).getValue());
+		String key = null;
+		for (int i=0; key == null; i++) {
+			if (!ring.canGet(0, "k"+i)) {
+				key = "k"+i;
+			}
+		}
+		
+		KVMessage response = first.handlePut(new MessageType("put","",key,"v1"));
+		assertEquals("PUT_SUCCESS", response.getStatus());
+		assertEquals(String.valueOf(ring.getEpoch()), response.getHint());
+		response = first.handleGet(new MessageType("get","",key,""));
+		assertEquals("GET_SUCCESS", response.getStatus());
+		assertEquals("v1", response.getValue());
+		response = servers.get(ring.getResponsible(key).id).handleGet(new MessageType("get","",key,""));
+		assertEquals("v1", response.getValue());
+		
+		response = first.handlePut(new KVAdminMessage("put",KVServer.FORWARDED,key,"v2"));
+		assertEquals("SERVER_NOT_RESPONSIBLE", response.getStatus());
+		
+		//a client which only knows server 0 gets its answer from server 0
+		KVStore store = new KVStore("localhost", 54960);
+		try {
+			assertTrue(store.connect());
+			assertEquals("PUT_UPDATE", store.put(key, "v3").getStatus());
+			assertEquals("v3", store.get(key).getValue());
+		} catch (Exception e) {
+			ex = e;
+		} finally {
+			store.disconnect();
+		}
+		assertNull(ex);
+	}
 }
@@ -32,13 +32,23 @@ public class AllTests {
 		TestSuite clientSuite = new TestSuite("Basic Storage ServerTest-Suite");
 		clientSuite.addTestSuite(TestKVMessage.class);
 		clientSuite.addTestSuite(TestHashRing.class);
+		clientSuite.addTestSuite(TestKVStorage.class);
 		clientSuite.addTestSuite(ConnectionTest.class);
 		clientSuite.addTestSuite(InteractionTest.class); 
 		clientSuite.addTestSuite(KVStoreTest.class); 
 		clientSuite.addTestSuite(AdditionalTest.class); 
+		clientSuite.addTestSuite(TestZooKeeper.class);
+		clientSuite.addTestSuite(TestECS.class);
+		clientSuite.addTestSuite(TestPhiAccrualDetector.class);
+		clientSuite.addTestSuite(TestTransferThrottle.class);
+		clientSuite.addTestSuite(TestWriteAheadLog.class);
+		clientSuite.addTestSuite(TestOffHeapCache.class);
 		clientSuite.addTestSuite(IntegrationTest.class);
 		//clientSuite.addTestSuite(EnronTest.class); 
 		//clientSuite.addTestSuite(PerformanceTest.class); 
+		//clientSuite.addTestSuite(HashBenchmark.class); 
+		//clientSuite.addTestSuite(StorageBenchmark.class); 
+		//clientSuite.addTestSuite(CacheBenchmark.class); 
 		return clientSuite;
 	}
 	
@@ -62,6 +72,10 @@ public class AllTests {
 		
 		KVServer s = servers.get(0);
 		s.startServer();
+		//the tests connect right away, so wait for the servers to listen
+		for (KVServer server : servers) {
+			server.awaitReady(5000);
+		}
 		return servers;
 	}	
 	
@@ -79,15 +93,26 @@ public class AllTests {
 	}
 	
 	/**
-	 * Delete all storage files numbered from 0 to 9 on the local path.
+	 * Delete all storage directories numbered from 0 to 9 on the local path.
 	 * Used to make sure tests start from a fresh state. 
 	 */
 	public static void deleteLocalStorageFiles() {
 		for (int i=0; i<10; i++) {
-			String fileName = "storage_"+i+".txt";
-			File file = new File(fileName);
-			file.delete();
+			deleteStorage(new File("storage_"+i));
+			new File("storage_"+i+".txt").delete();
 		}
 	}
+	
+	/**
+	 * Delete a storage directory and the partition files in it.
+	 */
+	public static void deleteStorage(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
 }
-
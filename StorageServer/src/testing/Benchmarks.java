@@ -0,0 +1,74 @@
+package testing;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measuring code the benchmarks of this package share. A benchmark is a TestCase which, like
+ * PerformanceTest, is not part of AllTests: run it on its own, with a fixed heap such as
+ * -Xms1g -Xmx1g so runs are comparable, and compare the lines it reports.
+ */
+public final class Benchmarks {
+	private Benchmarks() {
+	}
+
+	/**
+	 * A value of at least the given number of ASCII characters.
+	 */
+	public static String value(int bytes) {
+		StringBuilder value = new StringBuilder();
+		while (value.length() < bytes) {
+			value.append("value");
+		}
+		return value.toString();
+	}
+
+	/**
+	 * The heap in use after collecting the garbage, so the difference of two calls is the heap
+	 * the objects allocated in between still hold.
+	 */
+	public static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i=0; i<3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * The average time of an operation since start, a System.nanoTime().
+	 */
+	public static double nsPerOp(long start, long operations) {
+		return (double)(System.nanoTime() - start) / operations;
+	}
+
+	/**
+	 * The number of garbage collections so far, of all collectors.
+	 */
+	public static long collections() {
+		long count = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(collector.getCollectionCount(), 0);
+		}
+		return count;
+	}
+
+	/**
+	 * The time spent in garbage collections so far, in milliseconds, of all collectors.
+	 */
+	public static long collectionMs() {
+		long ms = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			ms += Math.max(collector.getCollectionTime(), 0);
+		}
+		return ms;
+	}
+
+	/**
+	 * Print one line of results.
+	 */
+	public static void report(String format, Object... args) {
+		System.out.println(String.format(format, args));
+	}
+}
@@ -0,0 +1,109 @@
+package testing;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import app_kvServer.OffHeapCache;
+
+import common.Utf8Bytes;
+
+/**
+ * Compares the off-heap cache with an LRU map of values on the heap holding 200MB of values:
+ * the heap each takes, how long a full collection takes with it, the cost of a hit, and the
+ * number and time of the collections a workload of nine hits to one replacing put causes.
+ * Collections depend on the size of the young generation, so the fixed heap {@link Benchmarks}
+ * asks for matters most here.
+ */
+public class CacheBenchmark extends TestCase {
+	private static final int KEYS = 200000;
+	private static final int VALUE_BYTES = 1000;
+	private static final int OPERATIONS = 2000000;
+
+	/**
+	 * The two caches behind one interface, the on-heap one being an LRU map like
+	 * the server's cache.
+	 */
+	private interface Cache {
+		Utf8Bytes get(Utf8Bytes key);
+		void put(Utf8Bytes key, Utf8Bytes value);
+	}
+
+	@Test
+	public void testHitCostAndGarbageCollectionOffHeapVsHeap() throws Exception {
+		String value = Benchmarks.value(VALUE_BYTES);
+
+		for (boolean offHeap : new boolean[] {false, true}) {
+			long before = Benchmarks.usedHeap();
+			Cache cache = offHeap ? offHeapCache() : heapCache();
+			for (int i=0; i<KEYS; i++) {
+				cache.put(Utf8Bytes.of("key" + i), Utf8Bytes.of(i + value));
+			}
+			long heap = Benchmarks.usedHeap() - before;
+			//an old generation collection has to trace every object of the cache
+			long fullGcStart = System.nanoTime();
+			System.gc();
+			double fullGcMs = (System.nanoTime() - fullGcStart) / 1e6;
+
+			Random random = new Random(42);
+			long checksum = 0;
+			for (int i=0; i<OPERATIONS/10; i++) {
+				checksum += cache.get(Utf8Bytes.of("key" + random.nextInt(KEYS))).length();
+			}
+			long start = System.nanoTime();
+			for (int i=0; i<OPERATIONS; i++) {
+				checksum += cache.get(Utf8Bytes.of("key" + random.nextInt(KEYS))).length();
+			}
+			double getNs = Benchmarks.nsPerOp(start, OPERATIONS);
+
+			//one in ten operations replaces a value, the rest are hits
+			long collections = Benchmarks.collections(), collectionMs = Benchmarks.collectionMs();
+			start = System.nanoTime();
+			for (int i=0; i<OPERATIONS; i++) {
+				Utf8Bytes key = Utf8Bytes.of("key" + random.nextInt(KEYS));
+				if (i % 10 == 0) {
+					cache.put(key, Utf8Bytes.of(i + value));
+				} else {
+					checksum += cache.get(key).length();
+				}
+			}
+			double mixedNs = Benchmarks.nsPerOp(start, OPERATIONS);
+			Benchmarks.report("%-8s %d values of %d bytes: heap %6.1f MB   full gc %6.1f ms   hit %7.1f ns/op   mixed %7.1f ns/op   %d collections taking %d ms   (checksum %d)",
+					offHeap ? "off-heap" : "heap", KEYS, VALUE_BYTES, heap / 1e6, fullGcMs, getNs, mixedNs,
+					Benchmarks.collections() - collections, Benchmarks.collectionMs() - collectionMs, checksum);
+			cache = null;
+		}
+	}
+
+	private static Cache heapCache() {
+		final Map<Utf8Bytes, Utf8Bytes> map = new LinkedHashMap<Utf8Bytes, Utf8Bytes>(16, 0.75f, true);
+		return new Cache() {
+			public Utf8Bytes get(Utf8Bytes key) {
+				synchronized (map) {
+					return map.get(key);
+				}
+			}
+			public void put(Utf8Bytes key, Utf8Bytes value) {
+				synchronized (map) {
+					map.put(key, value);
+				}
+			}
+		};
+	}
+
+	private static Cache offHeapCache() {
+		final OffHeapCache cache = new OffHeapCache((long) KEYS * VALUE_BYTES * 2);
+		return new Cache() {
+			public Utf8Bytes get(Utf8Bytes key) {
+				return cache.get(key);
+			}
+			public void put(Utf8Bytes key, Utf8Bytes value) {
+				cache.put(key, value);
+			}
+		};
+	}
+}
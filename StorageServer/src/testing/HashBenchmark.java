@@ -0,0 +1,73 @@
+package testing;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import common.HashRing;
+import common.HashRing.Server;
+
+/**
+ * Measures, for every hash function the ring supports, the cost of a key lookup (hashing the
+ * key and finding its coordinator on a ring of 8 servers) and of hashing a key on its own.
+ * See {@link Benchmarks} for how to run it.
+ */
+public class HashBenchmark extends TestCase {
+	private static final int SERVERS = 8;
+	private static final int VNODES = 16;
+	private static final int KEYS = 10000;
+	private static final int WARMUP_ROUNDS = 50;
+	private static final int ROUNDS = 200;
+	
+	@Test
+	public void testLookupCostPerHashFunction() {
+		String[] keys = new String[KEYS];
+		for (int i=0; i<KEYS; i++) {
+			keys[i] = "user" + i + "_key";
+		}
+		for (HashRing.HashFunction function : HashRing.HashFunction.values()) {
+			HashRing ring = new HashRing();
+			ring.setHashFunction(function);
+			ring.setPartitions(HashRing.DEFAULT_PARTITIONS);
+			ring.setVirtualNodes(VNODES);
+			for (int i=0; i<SERVERS; i++) {
+				ring.addServer(new Server("localhost", 50000+i, i));
+			}
+			
+			//warm up so both functions are measured after compilation
+			lookups(ring, keys, WARMUP_ROUNDS);
+			hashes(ring, keys, WARMUP_ROUNDS);
+			
+			long start = System.nanoTime();
+			int checksum = lookups(ring, keys, ROUNDS);
+			double lookupNs = Benchmarks.nsPerOp(start, (long)ROUNDS * KEYS);
+			start = System.nanoTime();
+			checksum += hashes(ring, keys, ROUNDS);
+			double hashNs = Benchmarks.nsPerOp(start, (long)ROUNDS * KEYS);
+			
+			Benchmarks.report("%-8s lookup %8.1f ns/op   objectHash %8.1f ns/op   (checksum %d)",
+					function.getName(), lookupNs, hashNs, checksum);
+			assertTrue(checksum != 0);
+		}
+	}
+	
+	private int lookups(HashRing ring, String[] keys, int rounds) {
+		int checksum = 0;
+		for (int round=0; round<rounds; round++) {
+			for (String key : keys) {
+				checksum += ring.getResponsible(key).id;
+			}
+		}
+		return checksum;
+	}
+	
+	private int hashes(HashRing ring, String[] keys, int rounds) {
+		int checksum = 0;
+		for (int round=0; round<rounds; round++) {
+			for (String key : keys) {
+				checksum += ring.objectHash(key).intValue();
+			}
+		}
+		return checksum;
+	}
+}
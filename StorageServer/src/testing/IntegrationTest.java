@@ -94,8 +94,8 @@ public class IntegrationTest extends TestCase {
 		try {
 			//delete all storage files
 			for (Server server : allServers) {
-				String fileName = "~/storage_"+server.id+".txt";
-				String cmd = "ssh -n "+server.ipAddress+" nohup rm -f "+fileName;
+				String fileName = "~/storage_"+server.id;
+				String cmd = "ssh -n "+server.ipAddress+" nohup rm -rf "+fileName;
 				//System.out.println("Running "+cmd);
 				Runtime.getRuntime().exec(cmd);
 			}
@@ -0,0 +1,103 @@
+package testing;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import app_kvServer.KVStorage;
+
+import common.Utf8Bytes;
+
+/**
+ * Measures what memory-mapping the partition files saves: the heap a storage of 100MB of
+ * values takes once loaded and the cost of a random get, with the values read onto the heap
+ * and with them left in the mapped files. Also measures the heap a million small keys and values
+ * take as Strings, as UTF-8 bytes and in a KVStorage. See {@link Benchmarks} for how to run it.
+ */
+public class StorageBenchmark extends TestCase {
+	private static final int KEYS = 100000;
+	private static final int VALUE_BYTES = 1000;
+	private static final int GETS = 1000000;
+	private static final int SMALL_KEYS = 1000000;
+	private File directory = new File("storage_benchmark");
+
+	public void tearDown() {
+		AllTests.deleteStorage(directory);
+	}
+
+	@Test
+	public void testHeapAndGetCostMappedVsHeap() throws Exception {
+		AllTests.deleteStorage(directory);
+		KVStorage storage = new KVStorage(directory);
+		assertTrue(storage.load());
+		String value = Benchmarks.value(VALUE_BYTES);
+		for (int i=0; i<KEYS; i++) {
+			storage.put(Utf8Bytes.of("key" + i), Utf8Bytes.of(i + value));
+		}
+		assertTrue(storage.flush());
+		storage = null;
+
+		for (boolean mapped : new boolean[] {false, true}) {
+			long before = Benchmarks.usedHeap();
+			KVStorage loaded = new KVStorage(directory);
+			assertTrue(loaded.setMapped(mapped));
+			assertTrue(loaded.load());
+			long heap = Benchmarks.usedHeap() - before;
+
+			Random random = new Random(42);
+			long checksum = 0;
+			for (int i=0; i<GETS/10; i++) {
+				checksum += loaded.get(Utf8Bytes.of("key" + random.nextInt(KEYS))).length();
+			}
+			long start = System.nanoTime();
+			for (int i=0; i<GETS; i++) {
+				checksum += loaded.get(Utf8Bytes.of("key" + random.nextInt(KEYS))).length();
+			}
+			double getNs = Benchmarks.nsPerOp(start, GETS);
+			Benchmarks.report("%-6s %d keys of %d bytes: heap %6.1f MB   get %8.1f ns/op   (checksum %d)",
+					mapped ? "mapped" : "heap", KEYS, VALUE_BYTES, heap / 1e6, getNs, checksum);
+			assertEquals(KEYS, loaded.size());
+		}
+	}
+
+	@Test
+	public void testHeapOfMillionKeysStringVsUtf8() throws Exception {
+		//keys and short values as the server used to hold them and as it holds them now, an
+		//ASCII and a non-ASCII set since Java 9 keeps Latin-1 Strings at a byte per character
+		for (String suffix : new String[] {"", "\u00e9\u4e2d"}) {
+			long before = Benchmarks.usedHeap();
+			Map<String,String> strings = new HashMap<String,String>();
+			for (int i=0; i<SMALL_KEYS; i++) {
+				strings.put("key" + i + suffix, "value" + i + suffix);
+			}
+			long stringHeap = Benchmarks.usedHeap() - before;
+			int size = strings.size();
+			strings = null;
+
+			before = Benchmarks.usedHeap();
+			Map<Utf8Bytes,Utf8Bytes> bytes = new HashMap<Utf8Bytes,Utf8Bytes>();
+			for (int i=0; i<SMALL_KEYS; i++) {
+				bytes.put(Utf8Bytes.of("key" + i + suffix), Utf8Bytes.of("value" + i + suffix));
+			}
+			long bytesHeap = Benchmarks.usedHeap() - before;
+			assertEquals(size, bytes.size());
+			bytes = null;
+
+			before = Benchmarks.usedHeap();
+			KVStorage storage = new KVStorage(directory);
+			for (int i=0; i<SMALL_KEYS; i++) {
+				storage.put(Utf8Bytes.of("key" + i + suffix), Utf8Bytes.of("value" + i + suffix));
+			}
+			long storageHeap = Benchmarks.usedHeap() - before;
+			assertEquals(size, storage.size());
+			storage = null;
+			Benchmarks.report("%-9s %d keys: String map %6.1f MB   Utf8Bytes map %6.1f MB   KVStorage %6.1f MB",
+					suffix.isEmpty() ? "ascii" : "non-ascii", SMALL_KEYS, stringHeap / 1e6, bytesHeap / 1e6, storageHeap / 1e6);
+		}
+	}
+}
@@ -0,0 +1,493 @@
+package testing;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+import app_kvEcs.ECS;
+import app_kvEcs.ECSFailureDetect;
+import app_kvEcs.ProcessLauncher;
+import app_kvEcs.RebalancePlanner;
+import app_kvServer.KVServer;
+import app_kvServer.KVStorage;
+import client.KVStore;
+
+import common.HashRing;
+import common.HashRing.Server;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the parts of the ECS which do not need servers to be launched over ssh.
+ */
+public class TestECS extends TestCase {
+	private static Logger logger = Logger.getRootLogger();
+
+	private File config;
+	private ECS ecs;
+
+	public void setUp() throws Exception {
+		config = new File("ecs_lock_test.config");
+		PrintWriter writer = new PrintWriter(config, "UTF-8");
+		writer.println("server0 localhost 54985");
+		writer.println("server1 localhost 54986");
+		writer.close();
+		ecs = new ECS(config.getPath());
+		ecs.clearMetaData();
+	}
+
+	public void tearDown() {
+		ecs.close();
+		config.delete();
+		new File("ecs_config_backup.txt").delete();
+		new File("ecs_metadata.txt").delete();
+		new File("ECSMetadataLock.txt").delete();
+	}
+
+	//Tests that reading unchanged metadata is cheap now that it no longer polls a lock file
+	public void testReadUnchangedMetadata() {
+		long start = System.nanoTime();
+		for (int i=0; i<1000; i++) {
+			assertEquals(0, ecs.getMetaData().getAllServers().size());
+		}
+		long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("1000 metadata reads took " + elapsedMs + "ms", elapsedMs < 1000);
+	}
+
+	//Tests that metadata written by another process is picked up on the next read
+	public void testReadsMetadataWrittenElsewhere() throws Exception {
+		HashRing ring = new HashRing();
+		ring.addServer(new Server("localhost", 54985, 0));
+		PrintWriter writer = new PrintWriter("ecs_metadata.txt", "UTF-8");
+		writer.println(ring.toString());
+		writer.close();
+		assertEquals(1, ecs.getMetaData().getAllServers().size());
+	}
+
+	//Tests that metadata reads wait while another thread holds the write lock
+	public void testReadWaitsForWriteLock() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final AtomicReference<HashRing> seen = new AtomicReference<HashRing>();
+		ecs.LockMetadata();
+		Thread reader = new Thread() {
+			public void run() {
+				started.countDown();
+				seen.set(ecs.getMetaData());
+			}
+		};
+		try {
+			reader.start();
+			started.await();
+			reader.join(200);
+			assertTrue(reader.isAlive());
+			assertNull(seen.get());
+		} finally {
+			ecs.UnlockMetadata();
+		}
+		reader.join(5000);
+		assertNotNull(seen.get());
+	}
+
+	//Tests that servers are contacted in parallel, so unreachable servers cost their timeout once
+	//in total instead of once each, and that the reachable ones still process the broadcast
+	public void testBroadcastWaitsForSlowestServerOnly() throws Exception {
+		List<KVServer> servers = AllTests.createAndStartServers(2, 54987);
+		try {
+			HashRing ring = new HashRing();
+			for (int i=0; i<4; i++) {
+				//nothing listens on the ports of servers 2 and 3
+				ring.addServer(new Server("localhost", 54987+i, i));
+			}
+			PrintWriter writer = new PrintWriter("ecs_metadata.txt", "UTF-8");
+			writer.println(ring.toString());
+			writer.close();
+
+			long start = System.nanoTime();
+			ecs.stop();
+			long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			//stop gives each server 3 seconds, sequentially the two dead servers took 6
+			assertTrue("stop took " + elapsedMs + "ms", elapsedMs < 5000);
+			for (KVServer server : servers) {
+				assertEquals("STOPPED", server.getStatus());
+			}
+		} finally {
+			AllTests.closeServers(servers);
+			AllTests.deleteLocalStorageFiles();
+		}
+	}
+
+	//Tests that a server whose heartbeats stop is detected as failed within a few intervals,
+	//and reports the measured detection time
+	public void testHeartbeatDetectionTime() throws Exception {
+		File heartbeatConfig = new File("ecs_heartbeat_test.config");
+		PrintWriter writer = new PrintWriter(heartbeatConfig, "UTF-8");
+		writer.println("heartbeat localhost:54996 100 8");
+		writer.println("server0 localhost 54989");
+		writer.close();
+		ECS heartbeatEcs = new ECS(heartbeatConfig.getPath());
+		KVServer server = new KVServer(54989, 10, "FIFO", 0);
+		try {
+			HashRing ring = new HashRing();
+			ring.addServer(new Server("localhost", 54989, 0));
+			writer = new PrintWriter("ecs_metadata.txt", "UTF-8");
+			writer.println(ring.toString());
+			writer.close();
+			ECSFailureDetect detector = new ECSFailureDetect(heartbeatEcs);
+
+			server.startHeartbeat("localhost", 54996, 100);
+			Thread.sleep(1000);
+			assertTrue(heartbeatEcs.getHeartbeatDetector().isTracked(0));
+			assertTrue(detector.detectFailures().isEmpty());
+
+			server.closeServer();
+			long start = System.nanoTime();
+			while (detector.detectFailures().isEmpty()) {
+				Thread.sleep(10);
+			}
+			long detectionMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			//probing took 10 to 40 seconds
+			assertTrue("detection took " + detectionMs + "ms", detectionMs < 2000);
+			
+			//a server taken out of the ring is not tracked any more
+			List<Server> failed = detector.detectFailures();
+			heartbeatEcs.recoverServers(failed, false);
+			assertFalse(heartbeatEcs.getHeartbeatDetector().isTracked(0));
+		} finally {
+			server.closeServer();
+			heartbeatEcs.close();
+			heartbeatConfig.delete();
+			AllTests.deleteLocalStorageFiles();
+		}
+	}
+
+	//Tests that servers are probed in parallel, so several dead servers are found as quickly as one
+	public void testParallelProbes() throws Exception {
+		HashRing ring = new HashRing();
+		for (int i=0; i<4; i++) {
+			//nothing listens on these ports
+			ring.addServer(new Server("localhost", 54991+i, i));
+		}
+		PrintWriter writer = new PrintWriter("ecs_metadata.txt", "UTF-8");
+		writer.println(ring.toString());
+		writer.close();
+		ECSFailureDetect detector = new ECSFailureDetect(ecs);
+		long start = System.nanoTime();
+		assertEquals(4, detector.detectFailures().size());
+		long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		//each server takes 3 tries 1 second apart, sequentially the 4 took 8 seconds
+		assertTrue("probing took " + elapsedMs + "ms", elapsedMs < 4000);
+	}
+
+	private static HashRing ring(int numServers, int vnodes) {
+		HashRing ring = new HashRing();
+		ring.setVirtualNodes(vnodes);
+		for (int i=0; i<numServers; i++) {
+			ring.addServer(new Server("10.0.0."+i, 50000, i));
+		}
+		return ring;
+	}
+
+	//Checks that every key gets to each of its new holders exactly once, from a holder which survived
+	private static void assertMovesRestoreAllKeys(HashRing before, HashRing after, List<Server> failed, List<RebalancePlanner.Move> moves) {
+		for (int i=0; i<2000; i++) {
+			BigInteger hash = after.objectHash("key"+i);
+			List<Server> previousHolders = before.getHolders(hash);
+			for (Server receiver : after.getHolders(hash)) {
+				int sent = 0;
+				for (RebalancePlanner.Move move : moves) {
+					if (!move.destination.equals(receiver)) {
+						continue;
+					}
+					for (HashRing.Range range : move.ranges) {
+						if (range.contains(hash)) {
+							assertTrue(previousHolders.contains(move.source));
+							assertFalse(failed.contains(move.source));
+							sent++;
+						}
+					}
+				}
+				assertEquals("key"+i+" sent to "+receiver, previousHolders.contains(receiver) ? 0 : 1, sent);
+			}
+		}
+	}
+
+	//Tests the moves planned when two servers fail together and are removed in one ring change
+	public void testPlanForCombinedFailure() {
+		HashRing before = ring(8, 4);
+		HashRing after = new HashRing(before.toString());
+		List<Server> failed = Arrays.asList(before.getAllServers().get(1), before.getAllServers().get(5));
+		for (Server server : failed) {
+			after.removeServer(server);
+		}
+		List<RebalancePlanner.Move> moves = RebalancePlanner.plan(before, after, failed);
+		assertFalse(moves.isEmpty());
+		Set<String> pairs = new HashSet<String>();
+		for (RebalancePlanner.Move move : moves) {
+			assertFalse(failed.contains(move.source));
+			assertFalse(failed.contains(move.destination));
+			assertTrue(pairs.add(move.source+" > "+move.destination));
+		}
+		assertMovesRestoreAllKeys(before, after, failed, moves);
+	}
+
+	//Tests the moves planned when the failed servers are replaced in the same ring change, and
+	//when servers are added or removed one at a time
+	public void testPlanForReplacementsAndSingleChanges() {
+		HashRing before = ring(6, 4);
+		HashRing after = new HashRing(before.toString());
+		List<Server> failed = Arrays.asList(before.getAllServers().get(0), before.getAllServers().get(3));
+		for (Server server : failed) {
+			after.removeServer(server);
+		}
+		after.addServer(new Server("10.0.0.6", 50000, 6));
+		after.addServer(new Server("10.0.0.7", 50000, 7));
+		assertMovesRestoreAllKeys(before, after, failed, RebalancePlanner.plan(before, after, failed));
+
+		List<Server> none = new ArrayList<Server>();
+		HashRing added = new HashRing(before.toString());
+		added.addServer(new Server("10.0.0.9", 50000, 9));
+		List<RebalancePlanner.Move> moves = RebalancePlanner.plan(before, added, none);
+		assertMovesRestoreAllKeys(before, added, none, moves);
+		//a new server only receives its own ranges, which are a small part of the ring
+		BigInteger moved = BigInteger.ZERO;
+		for (RebalancePlanner.Move move : moves) {
+			moved = moved.add(move.width());
+		}
+		assertTrue(moved.compareTo(BigInteger.ONE.shiftLeft(127)) < 0);
+
+		//a server which leaves gracefully is not used as a sender
+		List<Server> leaving = Arrays.asList(before.getAllServers().get(2));
+		HashRing removed = new HashRing(before.toString());
+		removed.removeServer(leaving.get(0));
+		assertMovesRestoreAllKeys(before, removed, leaving, RebalancePlanner.plan(before, removed, leaving));
+
+		//nothing is planned when the ring does not change
+		assertTrue(RebalancePlanner.plan(after, after, none).isEmpty());
+	}
+
+	//Tests that the sending is spread over the replicas of the moved ranges
+	public void testPlanUsesLeastLoadedReplicas() {
+		HashRing before = ring(10, 8);
+		HashRing after = new HashRing(before.toString());
+		Server added = new Server("10.0.0.10", 50000, 10);
+		after.addServer(added);
+		List<RebalancePlanner.Move> moves = RebalancePlanner.plan(before, after, new ArrayList<Server>());
+		Set<Server> sources = new HashSet<Server>();
+		BigInteger total = BigInteger.ZERO, largest = BigInteger.ZERO;
+		for (RebalancePlanner.Move move : moves) {
+			assertEquals(added, move.destination);
+			sources.add(move.source);
+			total = total.add(move.width());
+			largest = largest.max(move.width());
+		}
+		//the new server's 8 virtual nodes each have 3 previous holders to choose from
+		assertTrue(sources.size() > 3);
+		assertTrue(largest.multiply(BigInteger.valueOf(2)).compareTo(total) < 0);
+	}
+
+	//Tests that adding and removing nodes moves the data to the servers which then hold it
+	public void testAddAndRemoveNodeKeepData() throws Exception {
+		File threadConfig = new File("ecs_thread_test.config");
+		PrintWriter writer = new PrintWriter(threadConfig, "UTF-8");
+		writer.println("launcher thread");
+		for (int i=0; i<6; i++) {
+			writer.println("server"+i+" localhost "+(55020+i));
+		}
+		writer.close();
+		ECS threadEcs = new ECS(threadConfig.getPath());
+		try {
+			threadEcs.clearMetaData();
+			threadEcs.initService(4, 10, "FIFO");
+			threadEcs.start();
+			Server first = threadEcs.getMetaData().getAllServers().get(0);
+			KVStore store = new KVStore(first.ipAddress, first.port);
+			store.connect();
+			for (int i=0; i<50; i++) {
+				assertEquals("PUT_SUCCESS", store.put("key"+i, "value"+i).getStatus());
+			}
+			store.disconnect();
+
+			assertTrue(threadEcs.addRandomNode(10, "FIFO"));
+			assertTrue(threadEcs.removeNode(threadEcs.getMetaData().getAllServers().get(1).id));
+			assertEquals(4, threadEcs.getMetaData().getAllServers().size());
+			for (Server server : threadEcs.getMetaData().getAllServers()) {
+				store = new KVStore(server.ipAddress, server.port);
+				store.connect();
+				for (int i=0; i<50; i++) {
+					assertEquals("value"+i, store.get("key"+i).getValue());
+				}
+				store.disconnect();
+			}
+		} finally {
+			threadEcs.shutDown();
+			threadEcs.close();
+			threadConfig.delete();
+			AllTests.deleteLocalStorageFiles();
+		}
+	}
+
+	//Tests that once nodes are added every key is left on its three holders only, so the
+	//servers which held everything before scaling out drop the ranges they handed off
+	public void testScaleOutDropsMovedKeys() throws Exception {
+		File threadConfig = new File("ecs_thread_test.config");
+		PrintWriter writer = new PrintWriter(threadConfig, "UTF-8");
+		writer.println("launcher thread");
+		for (int i=0; i<6; i++) {
+			writer.println("server"+i+" localhost "+(55030+i));
+		}
+		writer.close();
+		ECS threadEcs = new ECS(threadConfig.getPath());
+		try {
+			threadEcs.clearMetaData();
+			threadEcs.initService(3, 10, "FIFO");
+			threadEcs.start();
+			List<Server> initial = threadEcs.getMetaData().getAllServers();
+			KVStore store = new KVStore(initial.get(0).ipAddress, initial.get(0).port);
+			store.connect();
+			for (int i=0; i<100; i++) {
+				assertEquals("PUT_SUCCESS", store.put("key"+i, "value"+i).getStatus());
+			}
+			store.disconnect();
+			for (Server server : initial) {
+				assertEquals(100, storedKeys(server));
+			}
+
+			for (int i=0; i<3; i++) {
+				assertTrue(threadEcs.addRandomNode(10, "FIFO"));
+			}
+			int total = 0;
+			for (Server server : threadEcs.getMetaData().getAllServers()) {
+				total += storedKeys(server);
+			}
+			assertEquals(300, total);
+			for (Server server : initial) {
+				assertTrue(storedKeys(server) < 100);
+			}
+			for (Server server : threadEcs.getMetaData().getAllServers()) {
+				store = new KVStore(server.ipAddress, server.port);
+				store.connect();
+				for (int i=0; i<100; i++) {
+					assertEquals("value"+i, store.get("key"+i).getValue());
+				}
+				store.disconnect();
+			}
+		} finally {
+			threadEcs.shutDown();
+			threadEcs.close();
+			threadConfig.delete();
+			AllTests.deleteLocalStorageFiles();
+		}
+	}
+
+	//Returns the number of keys a server has on disk
+	private int storedKeys(Server server) {
+		KVStorage storage = new KVStorage(new File("storage_"+server.id));
+		assertTrue(storage.load());
+		return storage.size();
+	}
+
+	//Tests that a failure detector built on the ECS shares its metadata instead of reading its own
+	public void testFailureDetectorSharesEcs() throws Exception {
+		ECSFailureDetect detector = new ECSFailureDetect(ecs);
+		//nothing is in the metadata, so nothing can have failed
+		assertTrue(detector.detectFailures().isEmpty());
+		assertTrue(detector.restoreService(detector.detectFailures(), false));
+	}
+
+	//Tests that servers launched in this JVM signal when they listen, so initializing a service
+	//of 8 nodes does not wait for the once a second connection attempts
+	public void testInitServiceWithThreadLauncher() throws Exception {
+		File threadConfig = new File("ecs_thread_test.config");
+		PrintWriter writer = new PrintWriter(threadConfig, "UTF-8");
+		writer.println("launcher thread");
+		for (int i=0; i<8; i++) {
+			writer.println("server"+i+" localhost "+(55000+i));
+		}
+		writer.close();
+		ECS threadEcs = new ECS(threadConfig.getPath());
+		try {
+			threadEcs.clearMetaData();
+			long start = System.nanoTime();
+			threadEcs.initService(8, 10, "FIFO");
+			long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			assertTrue("initService took " + elapsedMs + "ms", elapsedMs < 1000);
+			assertEquals(8, threadEcs.getMetaData().getAllServers().size());
+		} finally {
+			threadEcs.shutDown();
+			threadEcs.close();
+			threadConfig.delete();
+			AllTests.deleteLocalStorageFiles();
+		}
+	}
+
+	//Tests that reinitializing the service on other servers moves the data of the servers which
+	//ran before with one ring change, and retires the ones which were not chosen again
+	public void testReinitServiceKeepsData() throws Exception {
+		File threadConfig = new File("ecs_thread_test.config");
+		PrintWriter writer = new PrintWriter(threadConfig, "UTF-8");
+		writer.println("launcher thread");
+		for (int i=0; i<8; i++) {
+			writer.println("server"+i+" localhost "+(55010+i));
+		}
+		writer.close();
+		ECS threadEcs = new ECS(threadConfig.getPath());
+		try {
+			threadEcs.clearMetaData();
+			threadEcs.initService(2, 10, "FIFO");
+			threadEcs.start();
+			Server first = threadEcs.getMetaData().getAllServers().get(0);
+			KVStore store = new KVStore(first.ipAddress, first.port);
+			store.connect();
+			for (int i=0; i<50; i++) {
+				assertEquals("PUT_SUCCESS", store.put("key"+i, "value"+i).getStatus());
+			}
+			store.disconnect();
+			threadEcs.shutDown();
+
+			long start = System.nanoTime();
+			threadEcs.initService(6, 10, "FIFO");
+			long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			logger.debug("Reinitializing 6 nodes from 2 took " + elapsedMs + "ms");
+			assertEquals(6, threadEcs.getMetaData().getAllServers().size());
+			threadEcs.start();
+			for (Server server : threadEcs.getMetaData().getAllServers()) {
+				store = new KVStore(server.ipAddress, server.port);
+				store.connect();
+				for (int i=0; i<50; i++) {
+					assertEquals("value"+i, store.get("key"+i).getValue());
+				}
+				store.disconnect();
+			}
+		} finally {
+			threadEcs.shutDown();
+			threadEcs.close();
+			threadConfig.delete();
+			AllTests.deleteLocalStorageFiles();
+		}
+	}
+
+	//Tests that a server launched as a separate process is seen to come online through its output
+	public void testProcessLauncherReadiness() throws Exception {
+		ProcessLauncher launcher = new ProcessLauncher();
+		Server server = new Server("localhost", 54997, 9);
+		try {
+			assertFalse(launcher.awaitReady(server, 10));
+			launcher.launch(server, 10, "FIFO", new ArrayList<String>());
+			assertTrue(launcher.awaitReady(server, 10000));
+		} finally {
+			launcher.kill(server);
+			AllTests.deleteLocalStorageFiles();
+		}
+		assertFalse(launcher.awaitReady(server, 10));
+	}
+}
@@ -7,9 +7,18 @@ import app_kvServer.KVServer;
 
 import common.HashRing;
 import common.HashRing.Server;
+import common.Murmur3;
+import common.Utf8Bytes;
 import common.messages.KVAdminMessage;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import junit.framework.TestCase;
 
@@ -32,19 +41,19 @@ public class TestHashRing extends TestCase {
 		md.addServer(new Server("localhost",50000));
 		md.addServer(new Server("127.0.0.01",50001));
 		md.addServer(new Server("localhost",50000)); 
-		assertEquals(md.toString(), "-134847710425560069445028245650825152028 localhost 50000 0,-2960810945850692900445322256017604746 127.0.0.01 50001 0");
+		assertEquals(md.toString(), "#epoch=2,-134847710425560069445028245650825152028 localhost 50000 0,-2960810945850692900445322256017604746 127.0.0.01 50001 0");
 	}
 	
 	public void testRemoveServerPresent() {
 		md.addServer(new Server("localhost",50000));
 		md.removeServer(new Server("localhost",50000)); 
-		assertEquals(md.toString(), "");
+		assertEquals(md.toString(), "#epoch=2");
 	}
 	
 	public void testRemoveServerNotPresent() {
 		md.addServer(new Server("localhost",50000));
 		md.removeServer(new Server("localhost",50001)); 
-		assertEquals(md.toString(), "-134847710425560069445028245650825152028 localhost 50000 0");
+		assertEquals(md.toString(), "#epoch=1,-134847710425560069445028245650825152028 localhost 50000 0");
 	}
 	
 	public void testGetResponsible() {
@@ -105,4 +114,431 @@ public class TestHashRing extends TestCase {
 		assertFalse(md.canGet("localhost", 50004,  key));
 		assertFalse(md.canGet("localhost", 50006,  key));
 	}
-}
\ No newline at end of file
+	
+	//Tests that the read range of every server contains exactly the keys canGet allows
+	public void testReadRangeMatchesCanGet() {
+		for (int port=50000; port<50008; port++) {
+			md.addServer(new Server("localhost",port,port-50000));
+		}
+		assertReadRangesMatchCanGet(md);
+	}
+	
+	private void assertReadRangesMatchCanGet(HashRing ring) {
+		for (Server server : ring.getAllServers()) {
+			List<HashRing.Range> ranges = ring.getReadRanges(server);
+			for (int i=0; i<200; i++) {
+				String key = String.valueOf(i);
+				boolean inRange = false;
+				for (HashRing.Range range : ranges) {
+					inRange = inRange || range.contains(ring.objectHash(key));
+				}
+				assertEquals(ring.canGet(server.id, key), inRange);
+			}
+		}
+	}
+	
+	public void testReadRangeSmallRing() {
+		md.addServer(new Server("localhost",50000));
+		md.addServer(new Server("localhost",50001));
+		assertTrue(md.getReadRanges(new Server("localhost",50000)).get(0).isFullRing());
+		assertTrue(new HashRing().getReadRanges(new Server("localhost",50000)).isEmpty());
+	}
+	
+	//Tests that with partitions servers sit on partition bounds and a partition has one owner
+	public void testPartitionedRing() {
+		md.setPartitions(HashRing.DEFAULT_PARTITIONS);
+		for (int port=50000; port<50008; port++) {
+			md.addServer(new Server("localhost",port,port-50000));
+		}
+		HashRing parsed = new HashRing(md.toString());
+		assertEquals(HashRing.DEFAULT_PARTITIONS, parsed.getPartitions());
+		assertEquals(md.toString(), parsed.toString());
+		for (int i=0; i<200; i++) {
+			BigInteger hash = md.objectHash(String.valueOf(i));
+			int partition = HashRing.getPartition(hash, HashRing.DEFAULT_PARTITIONS);
+			//every hash in a partition, including its bound, maps to the same server
+			BigInteger bound = HashRing.getPartitionBound(partition, HashRing.DEFAULT_PARTITIONS);
+			assertTrue(HashRing.getPartitionRange(partition, HashRing.DEFAULT_PARTITIONS).contains(hash));
+			assertEquals(partition, HashRing.getPartition(bound, HashRing.DEFAULT_PARTITIONS));
+			assertEquals(md.getResponsible(String.valueOf(i)), parsed.getResponsible(String.valueOf(i)));
+		}
+		assertTrue(md.contains(new Server("localhost",50003)));
+		md.removeServer(new Server("localhost",50003));
+		assertFalse(md.contains(new Server("localhost",50003)));
+		assertEquals(7, md.getAllServers().size());
+	}
+	
+	//Tests that virtual nodes spread each server over many ranges and keep the ring consistent
+	public void testVirtualNodes() {
+		md.setVirtualNodes(16);
+		for (int port=50000; port<50008; port++) {
+			md.addServer(new Server("localhost",port,port-50000));
+		}
+		assertEquals(8, md.getAllServers().size());
+		assertEquals(16, md.getTokens(new Server("localhost",50003)).size());
+		
+		HashRing parsed = new HashRing(md.toString());
+		assertEquals(16, parsed.getVirtualNodes());
+		assertEquals(md.toString(), parsed.toString());
+		assertEquals(8, parsed.getAllServers().size());
+		
+		for (int i=0; i<200; i++) {
+			String key = String.valueOf(i);
+			//replicas are distinct physical servers
+			Server responsible = md.getResponsible(key);
+			HashRing.Replicas replicas = md.getReplicas(key);
+			assertFalse(responsible.equals(replicas.first));
+			assertFalse(responsible.equals(replicas.second));
+			assertFalse(replicas.first.equals(replicas.second));
+			assertTrue(md.canGet(responsible.id, key));
+			assertTrue(md.canGet(replicas.first.id, key));
+			assertTrue(md.canGet(replicas.second.id, key));
+		}
+		assertReadRangesMatchCanGet(md);
+		assertReadRangesMatchCanGet(parsed);
+		
+		Server removed = new Server("localhost",50003);
+		assertFalse(md.getSuccessor(removed).equals(removed));
+		md.removeServer(removed);
+		assertFalse(md.contains(removed));
+		assertEquals(7, md.getAllServers().size());
+		assertReadRangesMatchCanGet(md);
+	}
+	
+	//Tests that virtual nodes even out ownership and weights scale a server's share
+	public void testVirtualNodeBalanceAndWeights() {
+		md.setVirtualNodes(64);
+		for (int port=50000; port<50008; port++) {
+			Server server = new Server("localhost",port,port-50000);
+			if (port == 50000) {
+				server.weight = 2;
+			}
+			md.addServer(server);
+		}
+		int[] owned = new int[8];
+		for (int i=0; i<9000; i++) {
+			owned[md.getResponsible(String.valueOf(i)).id]++;
+		}
+		int min = Integer.MAX_VALUE;
+		int max = 0;
+		for (int id=1; id<8; id++) {
+			min = Math.min(min, owned[id]);
+			max = Math.max(max, owned[id]);
+		}
+		//without virtual nodes the skew between servers is above 3x
+		assertTrue("max "+max+" min "+min, max < 2 * min);
+		assertTrue("weighted "+owned[0]+" max "+max, owned[0] > max);
+	}
+	
+	//Tests that bounded-load mode moves a hot server's arcs to its replicas until it is under the cap
+	public void testBoundedLoads() {
+		md.setVirtualNodes(16);
+		md.setLoadBound(0.25);
+		for (int port=50000; port<50008; port++) {
+			md.addServer(new Server("localhost",port,port-50000));
+		}
+		//count the keys of every arc, the keys owned by server 0 are 5 times as hot
+		Map<BigInteger,Long> loads = new HashMap<BigInteger,Long>();
+		long total = 0;
+		for (int i=0; i<2000; i++) {
+			String key = String.valueOf(i);
+			long weight = (md.getResponsible(key).id == 0) ? 5 : 1;
+			BigInteger token = arcOf(md, key);
+			loads.put(token, (loads.containsKey(token) ? loads.get(token) : 0) + weight);
+			total += weight;
+		}
+		md.assignBoundedLoads(loads);
+		HashRing parsed = new HashRing(md.toString());
+		
+		long[] coordinated = new long[8];
+		for (int i=0; i<2000; i++) {
+			String key = String.valueOf(i);
+			Server responsible = md.getResponsible(key);
+			assertEquals(responsible, parsed.getResponsible(key));
+			//the key is still stored on the same 3 servers
+			assertTrue(md.canGet(responsible.id, key));
+			HashRing.Replicas replicas = md.getReplicas(key);
+			assertFalse(responsible.equals(replicas.first));
+			assertFalse(responsible.equals(replicas.second));
+			coordinated[responsible.id] += md.getTokens(0).contains(arcOf(md, key)) ? 5 : 1;
+		}
+		long capacity = (long)Math.ceil(1.25 * total / 8);
+		for (int id=0; id<8; id++) {
+			assertTrue("server "+id+" coordinates "+coordinated[id]+" over "+capacity, coordinated[id] <= capacity);
+		}
+		
+		//changing the ring drops the assignments until the ECS recomputes them
+		md.removeServer(new Server("localhost",50007));
+		for (String entry : md.toString().split(",")) {
+			assertTrue(entry.split(" ").length <= 4);
+		}
+	}
+	
+	private BigInteger arcOf(HashRing ring, String key) {
+		for (Server server : ring.getAllServers()) {
+			for (BigInteger token : ring.getTokens(server)) {
+				if (ring.getArc(token).contains(ring.objectHash(key))) {
+					return token;
+				}
+			}
+		}
+		return null;
+	}
+	
+	//Tests that the array lookups agree with walking the ring, including hashes right at a token
+	public void testLookupMatchesRing() {
+		BigInteger hash = md.objectHash("17");
+		BigInteger low64 = BigInteger.ONE.shiftLeft(64);
+		HashRing ring = new HashRing(hash.subtract(BigInteger.ONE)+" localhost 50000 0,"
+				+hash+" localhost 50001 1,"
+				+hash.add(BigInteger.ONE)+" localhost 50002 2,"
+				+hash.add(low64)+" localhost 50003 3,"
+				+hash.subtract(low64)+" localhost 50004 4");
+		//the key's own hash is its responsible token, canGet starts after it
+		assertEquals(1, ring.getResponsible("17").id);
+		assertEquals(2, ring.getReplicas("17").first.id);
+		assertEquals(3, ring.getReplicas("17").second.id);
+		assertFalse(ring.canGet(1, "17"));
+		assertTrue(ring.canGet(2, "17"));
+		assertTrue(ring.canGet(4, "17"));
+		
+		md.setVirtualNodes(16);
+		for (int port=50000; port<50008; port++) {
+			md.addServer(new Server("localhost",port,port-50000));
+		}
+		for (int i=0; i<2000; i++) {
+			String key = String.valueOf(i);
+			BigInteger keyHash = md.objectHash(key);
+			assertEquals(md.getServersAfter(keyHash.subtract(BigInteger.ONE), 1).get(0), md.getResponsible(key));
+			assertEquals(md.getResponsible(key), md.getResponsible(Utf8Bytes.of(key)));
+			List<Server> readSet = md.getServersAfter(keyHash, 3);
+			for (Server server : md.getAllServers()) {
+				assertEquals(readSet.contains(server), md.canGet(server.id, key));
+			}
+		}
+		assertEquals(md.getResponsible("\u00e9t\u00e9"), md.getServersAfter(md.objectHash("\u00e9t\u00e9").subtract(BigInteger.ONE), 1).get(0));
+		assertEquals(md.objectHash("\u00e9t\u00e9"), md.objectHash(Utf8Bytes.of("\u00e9t\u00e9")));
+		assertEquals(md.getReplicas("\u00e9t\u00e9").first, md.getReplicas(Utf8Bytes.of("\u00e9t\u00e9")).first);
+	}
+	
+	//Tests that lookups running alongside ring changes always see either the old or the new ring
+	public void testConcurrentLookupsDuringChanges() throws Exception {
+		final HashRing ring = new HashRing();
+		ring.setVirtualNodes(8);
+		for (int port=50000; port<50004; port++) {
+			ring.addServer(new Server("localhost",port,port-50000));
+		}
+		final Server joining = new Server("localhost",50004,4);
+		final HashRing before = new HashRing(ring.toString());
+		final HashRing after = new HashRing(ring.toString());
+		after.addServer(joining);
+		
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		Thread[] readers = new Thread[4];
+		for (int t=0; t<readers.length; t++) {
+			readers[t] = new Thread() {
+				public void run() {
+					for (int i=0; failure.get() == null; i++) {
+						if (done.get() && i % 500 == 0) {
+							return;
+						}
+						String key = String.valueOf(i % 500);
+						Server responsible = ring.getResponsible(key);
+						if (!responsible.equals(before.getResponsible(key)) && !responsible.equals(after.getResponsible(key))) {
+							failure.set("key "+key+" went to "+responsible);
+						}
+					}
+				}
+			};
+			readers[t].start();
+		}
+		for (int i=0; i<200; i++) {
+			ring.addServer(joining);
+			ring.removeServer(joining);
+		}
+		done.set(true);
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		assertNull(failure.get(), failure.get());
+		assertEquals(before.getEpoch() + 400, ring.getEpoch());
+		before.setEpoch(ring.getEpoch());
+		assertEquals(before.toString(), ring.toString());
+	}
+	
+	//Tests the in-tree MurmurHash3 against the reference x64 128-bit values
+	public void testMurmur3KnownValues() {
+		long[] out = new long[2];
+		Murmur3.hash128(new byte[0], 0, 0, out);
+		assertEquals(0L, out[0]);
+		assertEquals(0L, out[1]);
+		byte[] hello = "hello".getBytes();
+		Murmur3.hash128(hello, 0, hello.length, out);
+		assertEquals(0xcbd8a7b341bd9b02L, out[0]);
+		assertEquals(0x5b1e906a48ae1d19L, out[1]);
+		byte[] fox = "The quick brown fox jumps over the lazy dog".getBytes();
+		Murmur3.hash128(fox, 0, fox.length, out);
+		assertEquals(0xe34bbc7bbc071b6cL, out[0]);
+		assertEquals(0x7a433ca9c49a9347L, out[1]);
+	}
+	
+	//Tests that a Murmur3 ring is carried by its metadata and looks keys up with Murmur3
+	public void testMurmur3Ring() {
+		HashRing ring = new HashRing();
+		ring.setHashFunction(HashRing.HashFunction.MURMUR3);
+		ring.setVirtualNodes(16);
+		for (int port=50000; port<50008; port++) {
+			ring.addServer(new Server("localhost",port,port-50000));
+		}
+		HashRing parsed = new HashRing(ring.toString());
+		assertEquals(HashRing.HashFunction.MURMUR3, parsed.getHashFunction());
+		assertEquals(ring.toString(), parsed.toString());
+		
+		long[] out = new long[2];
+		byte[] key = "hello".getBytes();
+		Murmur3.hash128(key, 0, key.length, out);
+		BigInteger expected = BigInteger.valueOf(out[0]).shiftLeft(64).or(BigInteger.valueOf(out[1]).and(BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE)));
+		assertEquals(expected, parsed.objectHash("hello"));
+		assertFalse(expected.equals(md.objectHash("hello")));
+		
+		int[] counts = new int[8];
+		for (int i=0; i<2000; i++) {
+			String k = String.valueOf(i);
+			Server responsible = parsed.getResponsible(k);
+			assertEquals(parsed.getServersAfter(parsed.objectHash(k).subtract(BigInteger.ONE), 1).get(0), responsible);
+			counts[responsible.id]++;
+		}
+		for (int count : counts) {
+			assertTrue(count > 0);
+		}
+		assertReadRangesMatchCanGet(parsed);
+	}
+	
+	//Tests that changing the hash function or the virtual nodes of a ring with servers places
+	//them again, as if the ring had been configured before they were added
+	public void testReconfigurePlacesServersAgain() {
+		HashRing configured = new HashRing();
+		configured.setHashFunction(HashRing.HashFunction.MURMUR3);
+		configured.setVirtualNodes(8);
+		for (int port=50000; port<50008; port++) {
+			md.addServer(new Server("localhost",port,port-50000));
+			configured.addServer(new Server("localhost",port,port-50000));
+		}
+		long epoch = md.getEpoch();
+		md.setHashFunction(HashRing.HashFunction.MURMUR3);
+		md.setVirtualNodes(8);
+		assertEquals(epoch + 2, md.getEpoch());
+		assertEquals(configured.getAllTokens(), md.getAllTokens());
+		for (int i=0; i<200; i++) {
+			String k = String.valueOf(i);
+			assertEquals(configured.getResponsible(k), md.getResponsible(k));
+		}
+		assertReadRangesMatchCanGet(md);
+		
+		//options which do not move servers leave the ring as it is
+		md.setVirtualNodes(8);
+		assertEquals(epoch + 2, md.getEpoch());
+	}
+	
+	//Tests that every change moves the ring to a new epoch which its metadata carries
+	public void testEpoch() {
+		assertEquals(0, md.getEpoch());
+		md.addServer(new Server("localhost",50000,0));
+		md.addServer(new Server("localhost",50001,1));
+		assertEquals(2, md.getEpoch());
+		md.removeServer(new Server("localhost",50001,1));
+		assertEquals(3, md.getEpoch());
+		assertEquals(3, new HashRing(md.toString()).getEpoch());
+		assertEquals(md.toString(), new HashRing(md.toString()).toString());
+		md.ClearHashRing();
+		assertEquals(4, md.getEpoch());
+		md.setEpoch(HashRing.UNKNOWN_EPOCH);
+		assertEquals(HashRing.UNKNOWN_EPOCH, md.getEpoch());
+	}
+	
+	//Tests that applying a diff to the older ring reproduces the newer ring
+	public void testDiff() {
+		md.setPartitions(HashRing.DEFAULT_PARTITIONS);
+		md.setVirtualNodes(8);
+		md.setLoadBound(0.25);
+		for (int port=50000; port<50006; port++) {
+			md.addServer(new Server("localhost",port,port-50000));
+		}
+		HashRing older = new HashRing(md.toString());
+		
+		//a join, a leave and new bounded-load assignments
+		md.addServer(new Server("localhost",50006,6));
+		md.removeServer(new Server("localhost",50002,2));
+		Map<BigInteger,Long> loads = new HashMap<BigInteger,Long>();
+		for (BigInteger token : md.getTokens(0)) {
+			loads.put(token, 100L);
+		}
+		md.assignBoundedLoads(loads);
+		
+		String diff = md.diff(older);
+		assertTrue(diff.length() < md.toString().length());
+		HashRing applied = older.applyDiff(diff);
+		assertEquals(md.toString(), applied.toString());
+		assertEquals(md.getEpoch(), applied.getEpoch());
+		assertEquals(HashRing.DEFAULT_PARTITIONS, applied.getPartitions());
+		for (int i=0; i<500; i++) {
+			String key = String.valueOf(i);
+			assertEquals(md.getResponsible(key), applied.getResponsible(key));
+		}
+		//the older ring is unchanged
+		assertEquals(older.toString(), new HashRing(older.toString()).toString());
+		assertEquals(6, older.getAllServers().size());
+		
+		try {
+			applied.applyDiff(diff);
+			fail("a diff from another epoch must be refused");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	//Tests that ranges survive being written into a message and report their width
+	public void testFormatRanges() {
+		List<HashRing.Range> ranges = new ArrayList<HashRing.Range>();
+		ranges.add(new HashRing.Range(BigInteger.valueOf(-5), BigInteger.valueOf(10)));
+		ranges.add(new HashRing.Range(BigInteger.valueOf(20), BigInteger.valueOf(-30)));
+		List<HashRing.Range> parsed = HashRing.parseRanges(HashRing.formatRanges(ranges));
+		assertEquals(2, parsed.size());
+		for (int i=0; i<2; i++) {
+			assertEquals(ranges.get(i).low, parsed.get(i).low);
+			assertEquals(ranges.get(i).high, parsed.get(i).high);
+		}
+		assertEquals(BigInteger.valueOf(15), parsed.get(0).width());
+		assertEquals(BigInteger.ONE.shiftLeft(128).subtract(BigInteger.valueOf(50)), parsed.get(1).width());
+		assertEquals(BigInteger.ONE.shiftLeft(128), new HashRing.Range(BigInteger.ONE, BigInteger.ONE).width());
+		assertTrue(HashRing.parseRanges("").isEmpty());
+		try {
+			HashRing.parseRanges("1:2:3");
+			fail("a malformed range must be refused");
+		} catch (NumberFormatException e) {
+		}
+	}
+	
+	//Tests that the complement covers exactly the hashes outside the ranges, across the top of the ring
+	public void testComplement() {
+		List<HashRing.Range> ranges = new ArrayList<HashRing.Range>();
+		ranges.add(new HashRing.Range(BigInteger.valueOf(30), BigInteger.valueOf(-20)));
+		ranges.add(new HashRing.Range(BigInteger.valueOf(-5), BigInteger.valueOf(10)));
+		ranges.add(new HashRing.Range(BigInteger.valueOf(10), BigInteger.valueOf(20)));
+		List<HashRing.Range> gaps = HashRing.complement(ranges);
+		assertEquals(2, gaps.size());
+		for (long hash = -40; hash <= 40; hash++) {
+			BigInteger h = BigInteger.valueOf(hash);
+			boolean inRanges = false, inGaps = false;
+			for (HashRing.Range range : ranges) {
+				inRanges |= range.contains(h);
+			}
+			for (HashRing.Range gap : gaps) {
+				inGaps |= gap.contains(h);
+			}
+			assertTrue(inRanges != inGaps);
+		}
+		assertTrue(HashRing.complement(Arrays.asList(new HashRing.Range(BigInteger.ONE, BigInteger.ONE))).isEmpty());
+		assertTrue(HashRing.complement(new ArrayList<HashRing.Range>()).get(0).isFullRing());
+	}
+}
@@ -6,6 +6,7 @@ import org.junit.Assert;
 import app_kvServer.KVServer;
 
 import common.HashRing;
+import common.Utf8Bytes;
 import common.messages.KVAdminMessage;
 import common.messages.MessageType;
 
@@ -78,4 +79,36 @@ public class TestKVMessage extends TestCase {
 		assertEquals(message.getKey(), "key");
 		assertEquals(message.getValue(), "");
 	}
+	
+	public void testHint(){
+		MessageType message = new MessageType("put","PUT_SUCCESS","key","value");
+		assertEquals("",message.getHint());
+		message.setHint("12");
+		assertEquals("\"put\" \"PUT_SUCCESS\" \"key\" \"value\" \"12\"",message.getMsg());
+		
+		KVAdminMessage parsed = new KVAdminMessage(message.getMsgBytes());
+		assertNull(parsed.error);
+		assertEquals("value",parsed.getValue());
+		assertEquals("12",parsed.getHint());
+		assertEquals("",new KVAdminMessage(new MessageType("get","","key","").getMsgBytes()).getHint());
+	}
+	
+	//Tests that keys and values are sent as UTF-8 and read back as the same bytes
+	public void testUtf8RoundTrip(){
+		String value = "\u00e9t\u00e9 \"\u4e2d\u6587\" \ud83d\ude00";
+		MessageType message = new MessageType("put"," ","cl\u00e9",value);
+		assertNull(message.error);
+		byte[] bytes = message.getMsgBytes();
+		Assert.assertArrayEquals("\"put\" \" \" \"cl\u00e9\" \"\u00e9t\u00e9 \"\"\u4e2d\u6587\"\" \ud83d\ude00\"\n".getBytes(Utf8Bytes.UTF8), bytes);
+		
+		MessageType parsed = new MessageType(bytes);
+		assertNull(parsed.error);
+		assertEquals(Utf8Bytes.of("cl\u00e9"),parsed.getKeyBytes());
+		assertEquals(Utf8Bytes.of(value),parsed.getValueBytes());
+		assertEquals(value,parsed.getValue());
+		
+		//the key limit is in bytes, which is what the server stores
+		assertNull(new MessageType("get"," ","\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9"," ").error);
+		assertNotNull(new MessageType("get"," ","\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9"," ").error);
+	}
 }
@@ -0,0 +1,369 @@
+package testing;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import app_kvServer.KVStorage;
+
+import common.Crc32c;
+import common.HashRing;
+import common.Utf8Bytes;
+
+import junit.framework.TestCase;
+
+public class TestKVStorage extends TestCase {
+	private File file;
+	private KVStorage storage;
+	private HashRing hasher;
+	
+	public void setUp() throws Exception {
+		file = new File("storage_test");
+		AllTests.deleteStorage(file);
+		storage = new KVStorage(file);
+		hasher = new HashRing();
+		for (int i=0; i<100; i++) {
+			storage.put(Utf8Bytes.of(String.valueOf(i)), Utf8Bytes.of("value"+i));
+		}
+	}
+	
+	public void tearDown() {
+		AllTests.deleteStorage(file);
+		new File("storage_test.txt").delete();
+	}
+	
+	//Tests that a range scan returns exactly the keys whose hash lies in the range
+	public void testGetRange() {
+		HashRing.Range range = new HashRing.Range(hasher.objectHash("10"), hasher.objectHash("20"));
+		assertRangeMatches(range);
+	}
+	
+	public void testGetRangeWrapAround() {
+		BigInteger a = hasher.objectHash("10");
+		BigInteger b = hasher.objectHash("20");
+		//swap the bounds so the range crosses the top of the ring
+		HashRing.Range range = new HashRing.Range(a.max(b), a.min(b));
+		assertRangeMatches(range);
+	}
+	
+	public void testGetRangeFullRing() {
+		BigInteger a = hasher.objectHash("10");
+		assertEquals(100, storage.getRange(new HashRing.Range(a, a)).size());
+	}
+	
+	public void testRemovedKeysLeaveIndex() throws Exception {
+		BigInteger a = hasher.objectHash("10");
+		storage.remove(Utf8Bytes.of("10"));
+		storage.remove(Utf8Bytes.of("11"));
+		Map<Utf8Bytes,Utf8Bytes> entries = storage.getRange(new HashRing.Range(a, a));
+		assertEquals(98, entries.size());
+		assertFalse(entries.containsKey(Utf8Bytes.of("11")));
+	}
+	
+	public void testFlushAndLoad() {
+		assertTrue(storage.flush());
+		KVStorage reloaded = new KVStorage(file);
+		assertTrue(reloaded.load());
+		assertEquals(100, reloaded.size());
+		assertEquals(Utf8Bytes.of("value42"), reloaded.get(Utf8Bytes.of("42")));
+	}
+	
+	//Tests that each partition is written to its own file and emptied partitions lose theirs
+	public void testFlushWritesPartitionFiles() throws Exception {
+		assertTrue(storage.flush());
+		Set<Integer> partitions = new HashSet<Integer>();
+		for (int i=0; i<100; i++) {
+			partitions.add(HashRing.getPartition(hasher.objectHash(String.valueOf(i)), HashRing.DEFAULT_PARTITIONS));
+		}
+		assertEquals(partitions.size(), file.listFiles().length);
+		
+		int partition = HashRing.getPartition(hasher.objectHash("42"), HashRing.DEFAULT_PARTITIONS);
+		File partitionFile = new File(file, "partition_"+partition+".seg");
+		assertTrue(partitionFile.isFile());
+		for (Utf8Bytes key : storage.getRange(HashRing.getPartitionRange(partition, HashRing.DEFAULT_PARTITIONS)).keySet()) {
+			storage.remove(key);
+		}
+		assertTrue(storage.flush());
+		assertFalse(partitionFile.exists());
+	}
+	
+	//Tests that a range delete drops exactly the keys in the ranges and the files of emptied partitions
+	public void testRemoveRanges() {
+		assertTrue(storage.flush());
+		int files = file.listFiles().length;
+		BigInteger a = hasher.objectHash("10");
+		BigInteger b = hasher.objectHash("20");
+		List<HashRing.Range> ranges = Arrays.asList(new HashRing.Range(a.min(b), a.max(b)), new HashRing.Range(a.max(b), a.min(b)));
+		Map<Utf8Bytes,Utf8Bytes> kept = storage.getRange(ranges.get(1));
+		assertEquals(100 - kept.size(), storage.removeRanges(ranges.subList(0, 1)));
+		assertEquals(kept, storage.getRange(new HashRing.Range(a, a)));
+		assertTrue(storage.flush());
+		assertTrue(file.listFiles().length < files);
+		KVStorage reloaded = new KVStorage(file);
+		assertTrue(reloaded.load());
+		assertEquals(kept.size(), reloaded.size());
+		
+		//the second range wraps around the top of the ring, together they cover all of it
+		assertEquals(kept.size(), storage.removeRanges(ranges.subList(1, 2)));
+		assertEquals(0, storage.size());
+		assertTrue(storage.flush());
+		assertEquals(0, file.listFiles().length);
+	}
+	
+	//Tests that in mapped mode values are read from the mapped partition files, also after the
+	//files are rewritten and when loading
+	public void testMappedMode() throws Exception {
+		storage.put(Utf8Bytes.of("utf"), Utf8Bytes.of("\u00e9t\u00e9 \u4e2d\u6587"));
+		assertTrue(storage.setMapped(true));
+		assertTrue(storage.isMapped());
+		assertEquals(Utf8Bytes.of("value42"), storage.get(Utf8Bytes.of("42")));
+		assertEquals(Utf8Bytes.of("\u00e9t\u00e9 \u4e2d\u6587"), storage.get(Utf8Bytes.of("utf")));
+		
+		storage.put(Utf8Bytes.of("42"), Utf8Bytes.of("changed"));
+		storage.remove(Utf8Bytes.of("43"));
+		assertEquals(Utf8Bytes.of("changed"), storage.get(Utf8Bytes.of("42")));
+		assertTrue(storage.flush());
+		assertEquals(Utf8Bytes.of("changed"), storage.get(Utf8Bytes.of("42")));
+		assertNull(storage.get(Utf8Bytes.of("43")));
+		//rehashing rewrites every partition while the old mappings are still read from
+		storage.setHashFunction(HashRing.HashFunction.MURMUR3);
+		assertTrue(storage.flush());
+		assertEquals(Utf8Bytes.of("value10"), storage.get(Utf8Bytes.of("10")));
+		
+		KVStorage mapped = new KVStorage(file);
+		mapped.setHashFunction(HashRing.HashFunction.MURMUR3);
+		assertTrue(mapped.setMapped(true));
+		assertTrue(mapped.load());
+		assertEquals(100, mapped.size());
+		assertEquals(Utf8Bytes.of("\u00e9t\u00e9 \u4e2d\u6587"), mapped.get(Utf8Bytes.of("utf")));
+		assertEquals(storage.getRange(new HashRing.Range(BigInteger.ONE, BigInteger.ONE)), mapped.getRange(new HashRing.Range(BigInteger.ONE, BigInteger.ONE)));
+		assertTrue(mapped.setMapped(false));
+		assertEquals(Utf8Bytes.of("changed"), mapped.get(Utf8Bytes.of("42")));
+	}
+	
+	//Tests that a storage file from before partitioning is split into partition files
+	public void testLegacyFileMigrated() throws Exception {
+		File legacy = new File("storage_test.txt");
+		FileOutputStream out = new FileOutputStream(legacy);
+		out.write("legacy\nvalue\n".getBytes(Utf8Bytes.UTF8));
+		out.close();
+		
+		KVStorage migrated = new KVStorage(file);
+		assertTrue(migrated.load());
+		assertEquals(Utf8Bytes.of("value"), migrated.get(Utf8Bytes.of("legacy")));
+		assertFalse(legacy.exists());
+		assertTrue(new KVStorage(file).load());
+	}
+	
+	//Tests that partition files in the old text format are read, in both modes, and rewritten
+	public void testLegacyPartitionFilesRewritten() throws Exception {
+		int partition = HashRing.getPartition(hasher.objectHash("42"), HashRing.DEFAULT_PARTITIONS);
+		for (boolean mapped : new boolean[] {false, true}) {
+			AllTests.deleteStorage(file);
+			file.mkdirs();
+			File legacy = new File(file, "partition_"+partition+".txt");
+			FileOutputStream out = new FileOutputStream(legacy);
+			out.write("42\nvalue42\n".getBytes(Utf8Bytes.UTF8));
+			out.close();
+			
+			KVStorage migrated = new KVStorage(file);
+			assertTrue(migrated.setMapped(mapped));
+			assertTrue(migrated.load());
+			assertEquals(Utf8Bytes.of("value42"), migrated.get(Utf8Bytes.of("42")));
+			assertFalse(legacy.exists());
+			assertTrue(new File(file, "partition_"+partition+".seg").isFile());
+		}
+	}
+	
+	//Tests that values with line breaks and any other bytes survive a reload
+	public void testValuesWithLineBreaks() throws Exception {
+		storage.put(Utf8Bytes.of("lines"), Utf8Bytes.of("one\ntwo\r\n\nthree"));
+		storage.put(Utf8Bytes.of("empty"), Utf8Bytes.EMPTY);
+		assertTrue(storage.flush());
+		for (boolean mapped : new boolean[] {false, true}) {
+			KVStorage reloaded = new KVStorage(file);
+			assertTrue(reloaded.setMapped(mapped));
+			assertTrue(reloaded.load());
+			assertEquals(102, reloaded.size());
+			assertEquals(Utf8Bytes.of("one\ntwo\r\n\nthree"), reloaded.get(Utf8Bytes.of("lines")));
+			assertEquals(Utf8Bytes.EMPTY, reloaded.get(Utf8Bytes.of("empty")));
+		}
+	}
+	
+	//Tests that a damaged record only loses itself and the records after it in its file, and
+	//that the file is rewritten without them
+	public void testDamagedRecordSkipped() throws Exception {
+		for (int i=100; i<1000; i++) {
+			storage.put(Utf8Bytes.of(String.valueOf(i)), Utf8Bytes.of("value"+i));
+		}
+		assertTrue(storage.flush());
+		int partition = HashRing.getPartition(hasher.objectHash("42"), HashRing.DEFAULT_PARTITIONS);
+		File partitionFile = new File(file, "partition_"+partition+".seg");
+		Map<Utf8Bytes,Utf8Bytes> entries = new HashMap<Utf8Bytes,Utf8Bytes>();
+		assertTrue(KVStorage.readSegment(partitionFile, entries));
+		assertTrue(entries.size() > 1);
+		//flip a byte of the last value
+		RandomAccessFile damaged = new RandomAccessFile(partitionFile, "rw");
+		damaged.seek(damaged.length() - 1);
+		int last = damaged.read();
+		damaged.seek(damaged.length() - 1);
+		damaged.write(last ^ 1);
+		damaged.close();
+		Map<Utf8Bytes,Utf8Bytes> read = new HashMap<Utf8Bytes,Utf8Bytes>();
+		assertFalse(KVStorage.readSegment(partitionFile, read));
+		assertEquals(entries.size() - 1, read.size());
+		
+		for (boolean mapped : new boolean[] {false, true}) {
+			KVStorage reloaded = new KVStorage(file);
+			assertTrue(reloaded.setMapped(mapped));
+			assertTrue(reloaded.load());
+			assertEquals(999, reloaded.size());
+			for (Map.Entry<Utf8Bytes,Utf8Bytes> entry : read.entrySet()) {
+				assertEquals(entry.getValue(), reloaded.get(entry.getKey()));
+			}
+		}
+		read.clear();
+		assertTrue(KVStorage.readSegment(partitionFile, read));
+		assertEquals(entries.size() - 1, read.size());
+	}
+	
+	//Tests that a partition file whose first record is damaged is rewritten, here removed as
+	//no record of it is left, though no key read from it marks its partition
+	public void testDamagedFirstRecordSkipped() throws Exception {
+		assertTrue(storage.flush());
+		int partition = HashRing.getPartition(hasher.objectHash("42"), HashRing.DEFAULT_PARTITIONS);
+		File partitionFile = new File(file, "partition_"+partition+".seg");
+		Map<Utf8Bytes,Utf8Bytes> entries = new HashMap<Utf8Bytes,Utf8Bytes>();
+		assertTrue(KVStorage.readSegment(partitionFile, entries));
+		//flip a byte of the first key, which follows the magic and the record header
+		byte[] damaged = Files.readAllBytes(partitionFile.toPath());
+		damaged[4 + 12] ^= 1;
+		
+		for (boolean mapped : new boolean[] {false, true}) {
+			Files.write(partitionFile.toPath(), damaged);
+			KVStorage reloaded = new KVStorage(file);
+			assertTrue(reloaded.setMapped(mapped));
+			assertTrue(reloaded.load());
+			assertEquals(100 - entries.size(), reloaded.size());
+			assertFalse(partitionFile.exists());
+		}
+	}
+	
+	//Tests the CRC-32C check values of RFC 3720 and the usual "123456789"
+	public void testCrc32c() {
+		Crc32c crc = new Crc32c();
+		crc.update("123456789".getBytes(Utf8Bytes.UTF8));
+		assertEquals(0xe3069283L, crc.getValue());
+		crc.reset();
+		crc.update(new byte[32]);
+		assertEquals(0x8a9136aaL, crc.getValue());
+		byte[] ones = new byte[32];
+		Arrays.fill(ones, (byte) 0xff);
+		crc.reset();
+		crc.update(ones, 0, 5);
+		crc.update(ones, 5, 27);
+		assertEquals(0x62a8ab43L, crc.getValue());
+	}
+	
+	//Tests that a snapshot holds exactly the range, shipping whole partitions as their files
+	public void testSnapshot() throws Exception {
+		//a range of a few partitions which is cut in the middle of a partition at both ends
+		BigInteger low = HashRing.getPartitionBound(100, HashRing.DEFAULT_PARTITIONS).subtract(BigInteger.TEN);
+		BigInteger high = HashRing.getPartitionBound(700, HashRing.DEFAULT_PARTITIONS).subtract(BigInteger.TEN);
+		HashRing.Range range = new HashRing.Range(low, high);
+		Map<Utf8Bytes,Utf8Bytes> expected = storage.getRange(range);
+		
+		KVStorage.Snapshot snapshot = storage.snapshot(Arrays.asList(range));
+		try {
+			assertEquals(expected.size(), snapshot.size());
+			Map<Utf8Bytes,Utf8Bytes> shipped = new HashMap<Utf8Bytes,Utf8Bytes>();
+			for (FileChannel segment : snapshot.getSegments()) {
+				File copy = File.createTempFile("segment", ".seg");
+				FileChannel out = new FileOutputStream(copy).getChannel();
+				segment.transferTo(0, segment.size(), out);
+				out.close();
+				assertTrue(KVStorage.readSegment(copy, shipped));
+				copy.delete();
+			}
+			assertEquals(expected, shipped);
+			assertTrue(snapshot.getSegments().size() > 1);
+		} finally {
+			snapshot.close();
+		}
+	}
+	
+	//Tests that switching hash function reindexes the keys and moves them to their new partitions
+	public void testSetHashFunction() {
+		assertTrue(storage.flush());
+		hasher.setHashFunction(HashRing.HashFunction.MURMUR3);
+		storage.setHashFunction(HashRing.HashFunction.MURMUR3);
+		assertRangeMatches(new HashRing.Range(hasher.objectHash("10"), hasher.objectHash("20")));
+		assertTrue(storage.flush());
+		
+		int partition = HashRing.getPartition(hasher.objectHash("42"), HashRing.DEFAULT_PARTITIONS);
+		Map<Utf8Bytes,Utf8Bytes> entries = new HashMap<Utf8Bytes,Utf8Bytes>();
+		assertTrue(KVStorage.readSegment(new File(file, "partition_"+partition+".seg"), entries));
+		assertEquals(Utf8Bytes.of("value42"), entries.get(Utf8Bytes.of("42")));
+		Set<Integer> partitions = new HashSet<Integer>();
+		for (int i=0; i<100; i++) {
+			partitions.add(HashRing.getPartition(hasher.objectHash(String.valueOf(i)), HashRing.DEFAULT_PARTITIONS));
+		}
+		assertEquals(partitions.size(), file.listFiles().length);
+		
+		KVStorage reloaded = new KVStorage(file);
+		assertTrue(reloaded.load());
+		assertEquals(100, reloaded.size());
+	}
+	
+	//Tests that changing the partition count rewrites the files on the new partitions and
+	//deletes the ones beyond the new count
+	public void testSetPartitions() {
+		assertTrue(storage.flush());
+		storage.setPartitions(16);
+		assertEquals(16, storage.getPartitions());
+		assertTrue(storage.flush());
+		Set<Integer> partitions = new HashSet<Integer>();
+		for (int i=0; i<100; i++) {
+			partitions.add(HashRing.getPartition(hasher.objectHash(String.valueOf(i)), 16));
+		}
+		assertEquals(partitions.size(), file.listFiles().length);
+		for (int partition : partitions) {
+			assertTrue(new File(file, "partition_"+partition+".seg").isFile());
+		}
+		HashRing.Range range = HashRing.getPartitionRange(3, 16);
+		Map<Utf8Bytes,Utf8Bytes> entries = new HashMap<Utf8Bytes,Utf8Bytes>();
+		assertTrue(KVStorage.readSegment(new File(file, "partition_3.seg"), entries));
+		assertEquals(storage.getRange(range), entries);
+		
+		KVStorage reloaded = new KVStorage(file);
+		assertTrue(reloaded.load());
+		assertEquals(100, reloaded.size());
+		storage.setPartitions(0);
+		assertEquals(16, storage.getPartitions());
+	}
+	
+	private void assertRangeMatches(HashRing.Range range) {
+		Map<Utf8Bytes,Utf8Bytes> entries = storage.getRange(range);
+		int expected = 0;
+		for (int i=0; i<100; i++) {
+			String key = String.valueOf(i);
+			boolean inRange = range.contains(hasher.objectHash(key));
+			assertEquals(inRange, entries.containsKey(Utf8Bytes.of(key)));
+			if (inRange) {
+				expected++;
+				assertEquals(Utf8Bytes.of("value"+i), entries.get(Utf8Bytes.of(key)));
+			}
+		}
+		assertEquals(expected, entries.size());
+		assertTrue(expected > 0);
+	}
+}
@@ -0,0 +1,103 @@
+package testing;
+
+import java.util.List;
+
+import app_kvServer.OffHeapCache;
+
+import common.Utf8Bytes;
+
+import junit.framework.TestCase;
+
+public class TestOffHeapCache extends TestCase {
+
+	private static Utf8Bytes value(int length, char c) {
+		StringBuilder value = new StringBuilder();
+		while (value.length() < length) {
+			value.append(c);
+		}
+		return Utf8Bytes.of(value.toString());
+	}
+
+	//Tests that values are read back as written, replaced and removed
+	public void testPutGetRemove() {
+		OffHeapCache cache = new OffHeapCache(4 << 20);
+		assertNull(cache.get(Utf8Bytes.of("key")));
+		assertTrue(cache.put(Utf8Bytes.of("key"), Utf8Bytes.of("value")));
+		assertTrue(cache.put(Utf8Bytes.of("unicode"), Utf8Bytes.of("v\u00e4lue \u4e2d\u6587\n")));
+		assertTrue(cache.put(Utf8Bytes.of("empty"), Utf8Bytes.of("")));
+		assertEquals(Utf8Bytes.of("value"), cache.get(Utf8Bytes.of("key")));
+		assertEquals(Utf8Bytes.of("v\u00e4lue \u4e2d\u6587\n"), cache.get(Utf8Bytes.of("unicode")));
+		assertEquals(Utf8Bytes.of(""), cache.get(Utf8Bytes.of("empty")));
+		assertTrue(cache.put(Utf8Bytes.of("key"), value(5000, 'x')));
+		assertEquals(value(5000, 'x'), cache.get(Utf8Bytes.of("key")));
+		assertEquals(3, cache.size());
+		assertTrue(cache.remove(Utf8Bytes.of("key")));
+		assertFalse(cache.remove(Utf8Bytes.of("key")));
+		assertNull(cache.get(Utf8Bytes.of("key")));
+		assertFalse(cache.containsKey(Utf8Bytes.of("key")));
+		assertEquals(2, cache.keys().size());
+	}
+
+	//Tests that a full cache evicts the least recently used value of the same size class
+	public void testEvictsLeastRecentlyUsed() {
+		OffHeapCache cache = new OffHeapCache(1 << 20);
+		int keys = 0;
+		while (cache.getEvictions() == 0) {
+			assertTrue(cache.put(Utf8Bytes.of("key" + keys), Utf8Bytes.of(keys + value(1000, 'v').toString())));
+			keys++;
+			//keep the first key recently used
+			assertNotNull(cache.get(Utf8Bytes.of("key0")));
+		}
+		assertTrue("only " + keys + " values fit", keys > 500);
+		assertEquals(keys - 1, cache.size());
+		assertNotNull(cache.get(Utf8Bytes.of("key0")));
+		assertNull(cache.get(Utf8Bytes.of("key1")));
+		assertEquals("2" + value(1000, 'v'), cache.get(Utf8Bytes.of("key2")).toString());
+		assertTrue(cache.getUsedBytes() <= cache.getAllocatedBytes());
+		assertEquals(1 << 20, cache.getAllocatedBytes());
+	}
+
+	//Tests that eviction only takes entries of the value's own size class, and that the keys
+	//are still listed from the least to the most recently used
+	public void testEvictsWithinSizeClass() {
+		OffHeapCache cache = new OffHeapCache(2 << 20);
+		assertTrue(cache.put(Utf8Bytes.of("large"), value(100000, 'l')));
+		int keys = 0;
+		while (cache.getEvictions() < 100) {
+			assertTrue(cache.put(Utf8Bytes.of("small" + keys), Utf8Bytes.of("value" + keys)));
+			keys++;
+		}
+		assertEquals(value(100000, 'l'), cache.get(Utf8Bytes.of("large")));
+		assertNull(cache.get(Utf8Bytes.of("small0")));
+		assertNotNull(cache.get(Utf8Bytes.of("small" + (keys - 1))));
+		List<Utf8Bytes> lru = cache.keys();
+		assertEquals(cache.size(), lru.size());
+		assertEquals(Utf8Bytes.of("small" + (keys - 1)), lru.get(lru.size() - 1));
+		assertEquals(Utf8Bytes.of("large"), lru.get(lru.size() - 2));
+		assertEquals(Utf8Bytes.of("small100"), lru.get(0));
+	}
+
+	//Tests that a size class without memory takes over the slab of the least recently used value
+	public void testReassignsSlab() {
+		OffHeapCache cache = new OffHeapCache(2 << 20);
+		for (int i=0; i<20000; i++) {
+			assertTrue(cache.put(Utf8Bytes.of("small" + i), Utf8Bytes.of("value" + i)));
+		}
+		assertEquals(2 << 20, cache.getAllocatedBytes());
+		assertTrue(cache.put(Utf8Bytes.of("large"), value(300000, 'l')));
+		assertEquals(value(300000, 'l'), cache.get(Utf8Bytes.of("large")));
+		assertNull(cache.get(Utf8Bytes.of("small0")));
+		assertEquals(Utf8Bytes.of("value19999"), cache.get(Utf8Bytes.of("small19999")));
+		assertTrue(cache.getUsedBytes() <= cache.getAllocatedBytes());
+	}
+
+	//Tests that values larger than a slab are not cached
+	public void testValueLargerThanSlab() {
+		OffHeapCache cache = new OffHeapCache(4 << 20);
+		assertTrue(cache.put(Utf8Bytes.of("key"), Utf8Bytes.of("value")));
+		assertFalse(cache.put(Utf8Bytes.of("key"), value(OffHeapCache.SLAB_SIZE + 1, 'x')));
+		assertNull(cache.get(Utf8Bytes.of("key")));
+		assertTrue(cache.put(Utf8Bytes.of("key"), value(OffHeapCache.SLAB_SIZE, 'x')));
+		assertEquals(OffHeapCache.SLAB_SIZE, cache.get(Utf8Bytes.of("key")).length());
+	}
+}
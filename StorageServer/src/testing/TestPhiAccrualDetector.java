@@ -0,0 +1,87 @@
+package testing;
+
+import app_kvEcs.PhiAccrualDetector;
+
+import junit.framework.TestCase;
+
+public class TestPhiAccrualDetector extends TestCase {
+	private PhiAccrualDetector detector;
+
+	public void setUp() {
+		detector = new PhiAccrualDetector(8, 100);
+	}
+
+	//Sends heartbeats at the given intervals, starting at time 0, and returns the time of the last one
+	private long beat(int id, long[] intervals, int count) {
+		long now = 0;
+		detector.heartbeat(id, now);
+		for (int i=0; i<count; i++) {
+			now += intervals[i % intervals.length];
+			detector.heartbeat(id, now);
+		}
+		return now;
+	}
+
+	//Tests that a server is not suspected while its heartbeats arrive on time, and is once they stop
+	public void testSuspectedWhenHeartbeatsStop() {
+		long last = beat(0, new long[] {100}, 50);
+		assertTrue(detector.phi(0, last + 100) < 1);
+		assertFalse(detector.isSuspected(0, last + 150));
+		assertTrue(detector.isSuspected(0, last + 1000));
+	}
+
+	//Tests that suspicion only grows while no heartbeat arrives and drops again when one does
+	public void testPhiGrowsWithSilence() {
+		long last = beat(0, new long[] {100}, 50);
+		double previous = -1;
+		for (long elapsed = 0; elapsed <= 600; elapsed += 50) {
+			double phi = detector.phi(0, last + elapsed);
+			assertTrue(phi >= previous);
+			previous = phi;
+		}
+		detector.heartbeat(0, last + 600);
+		assertTrue(detector.phi(0, last + 600) < 1);
+	}
+
+	//Tests that a server with jittery heartbeats is given more time than a regular one
+	public void testJitterGivesMoreTime() {
+		long regular = beat(0, new long[] {100}, 50);
+		long jittery = beat(1, new long[] {20, 180}, 50);
+		assertEquals(regular, jittery);
+		assertTrue(detector.phi(1, jittery + 300) < detector.phi(0, regular + 300));
+		assertTrue(detector.isSuspected(0, regular + 300));
+		assertFalse(detector.isSuspected(1, jittery + 300));
+	}
+
+	//Tests that a server which is expected but never sends a heartbeat is suspected
+	public void testExpectedServerWithoutHeartbeat() {
+		assertFalse(detector.isTracked(3));
+		assertEquals(0.0, detector.phi(3, 1000));
+		detector.expect(3, 0);
+		assertTrue(detector.isTracked(3));
+		assertFalse(detector.isSuspected(3, 100));
+		assertTrue(detector.isSuspected(3, 2000));
+		detector.remove(3);
+		assertFalse(detector.isTracked(3));
+	}
+
+	//Tests that a higher threshold tolerates longer silences
+	public void testConfigurableThreshold() {
+		PhiAccrualDetector lenient = new PhiAccrualDetector(16, 100);
+		long last = beat(0, new long[] {100}, 50);
+		long now = 0;
+		lenient.heartbeat(0, now);
+		for (int i=0; i<50; i++) {
+			now += 100;
+			lenient.heartbeat(0, now);
+		}
+		long strictDetection = last, lenientDetection = last;
+		while (!detector.isSuspected(0, strictDetection)) {
+			strictDetection += 10;
+		}
+		while (!lenient.isSuspected(0, lenientDetection)) {
+			lenientDetection += 10;
+		}
+		assertTrue(lenientDetection > strictDetection);
+	}
+}
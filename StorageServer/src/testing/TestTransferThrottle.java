@@ -0,0 +1,65 @@
+package testing;
+
+import java.util.concurrent.TimeUnit;
+
+import app_kvServer.TransferThrottle;
+
+import junit.framework.TestCase;
+
+public class TestTransferThrottle extends TestCase {
+
+	private static long timeMs(TransferThrottle throttle, int calls, int ops, long bytes) throws InterruptedException {
+		long start = System.nanoTime();
+		for (int i=0; i<calls; i++) {
+			throttle.acquire(ops, bytes);
+		}
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+
+	//Tests that an unlimited throttle never waits
+	public void testUnlimited() throws Exception {
+		assertTrue(TransferThrottle.UNLIMITED.isUnlimited());
+		assertTrue(timeMs(TransferThrottle.UNLIMITED, 100000, 1, 1 << 20) < 500);
+	}
+
+	//Tests that operations are limited to the given rate after the initial burst
+	public void testOpsLimit() throws Exception {
+		TransferThrottle throttle = new TransferThrottle(200, 0);
+		//a burst of 20, then 80 more at 200 per second
+		long elapsedMs = timeMs(throttle, 100, 1, 1000);
+		assertTrue("took " + elapsedMs + "ms", elapsedMs >= 350 && elapsedMs < 1000);
+	}
+
+	//Tests that bytes are limited to the given rate, also when one call takes more than a burst
+	public void testBytesLimit() throws Exception {
+		TransferThrottle throttle = new TransferThrottle(0, 100000);
+		long elapsedMs = timeMs(throttle, 5, 0, 10000);
+		assertTrue("took " + elapsedMs + "ms", elapsedMs >= 350 && elapsedMs < 1000);
+		elapsedMs = timeMs(throttle, 1, 0, 50000);
+		assertTrue("took " + elapsedMs + "ms", elapsedMs >= 400 && elapsedMs < 1000);
+	}
+
+	//Tests that threads sharing a throttle share its rate
+	public void testShared() throws Exception {
+		final TransferThrottle throttle = new TransferThrottle(400, 0);
+		Thread[] threads = new Thread[4];
+		long start = System.nanoTime();
+		for (int t=0; t<threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						timeMs(throttle, 50, 1, 0);
+					} catch (InterruptedException e) {
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		//200 operations at 400 per second after a burst of 40
+		assertTrue("took " + elapsedMs + "ms", elapsedMs >= 350 && elapsedMs < 1000);
+	}
+}
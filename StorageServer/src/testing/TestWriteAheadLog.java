@@ -0,0 +1,189 @@
+package testing;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import app_kvServer.KVStorage;
+import app_kvServer.WriteAheadLog;
+
+import common.HashRing;
+import common.Utf8Bytes;
+
+import junit.framework.TestCase;
+
+public class TestWriteAheadLog extends TestCase {
+	private File file;
+	private Map<Utf8Bytes,Utf8Bytes> replayed;
+	private WriteAheadLog.Replayer replayer;
+
+	public void setUp() {
+		file = new File("wal_test.log");
+		file.delete();
+		replayed = new HashMap<Utf8Bytes,Utf8Bytes>();
+		replayer = new WriteAheadLog.Replayer() {
+			@Override
+			public void put(Utf8Bytes key, Utf8Bytes value) {
+				replayed.put(key, value);
+			}
+			@Override
+			public void remove(Utf8Bytes key) {
+				replayed.remove(key);
+			}
+		};
+	}
+
+	public void tearDown() {
+		file.delete();
+		AllTests.deleteStorage(new File("storage_test"));
+	}
+
+	//Tests that puts and removes are replayed in order, including values with line breaks
+	public void testReplay() throws Exception {
+		WriteAheadLog log = new WriteAheadLog(file);
+		log.appendPut(Utf8Bytes.of("a"), Utf8Bytes.of("1"));
+		log.appendPut(Utf8Bytes.of("b"), Utf8Bytes.of("two\nlines"));
+		log.appendRemove(Utf8Bytes.of("a"));
+		log.appendPut(Utf8Bytes.of("c"), Utf8Bytes.of("3"));
+		log.close();
+		assertEquals(4, WriteAheadLog.replay(file, replayer));
+		assertEquals(2, replayed.size());
+		assertEquals(Utf8Bytes.of("two\nlines"), replayed.get(Utf8Bytes.of("b")));
+		assertEquals(Utf8Bytes.of("3"), replayed.get(Utf8Bytes.of("c")));
+	}
+
+	//Tests that a record cut short by a crash is dropped and cut off, and appending carries on after it
+	public void testTornTail() throws Exception {
+		WriteAheadLog log = new WriteAheadLog(file);
+		log.appendPut(Utf8Bytes.of("a"), Utf8Bytes.of("1"));
+		long valid = log.appendPut(Utf8Bytes.of("b"), Utf8Bytes.of("2"));
+		log.appendPut(Utf8Bytes.of("c"), Utf8Bytes.of("3"));
+		log.close();
+		RandomAccessFile raw = new RandomAccessFile(file, "rw");
+		raw.setLength(raw.length() - 2);
+		raw.close();
+
+		assertEquals(2, WriteAheadLog.replay(file, replayer));
+		assertFalse(replayed.containsKey(Utf8Bytes.of("c")));
+		assertEquals(valid, file.length());
+		log = new WriteAheadLog(file);
+		log.appendPut(Utf8Bytes.of("d"), Utf8Bytes.of("4"));
+		log.close();
+		replayed.clear();
+		assertEquals(3, WriteAheadLog.replay(file, replayer));
+		assertEquals(Utf8Bytes.of("4"), replayed.get(Utf8Bytes.of("d")));
+	}
+
+	//Tests that replay stops at a record whose checksum does not match
+	public void testCorruptRecord() throws Exception {
+		WriteAheadLog log = new WriteAheadLog(file);
+		long first = log.appendPut(Utf8Bytes.of("a"), Utf8Bytes.of("1"));
+		log.appendPut(Utf8Bytes.of("b"), Utf8Bytes.of("2"));
+		log.appendPut(Utf8Bytes.of("c"), Utf8Bytes.of("3"));
+		log.close();
+		RandomAccessFile raw = new RandomAccessFile(file, "rw");
+		raw.seek(raw.length() - 20);
+		raw.write('x');
+		raw.close();
+		assertEquals(1, WriteAheadLog.replay(file, replayer));
+		assertEquals(first, file.length());
+	}
+
+	//Tests that with ALWAYS concurrent writers share fsyncs, and every write is durable when it returns
+	public void testGroupCommit() throws Exception {
+		final WriteAheadLog log = new WriteAheadLog(file);
+		log.setSyncPolicy(WriteAheadLog.SyncPolicy.ALWAYS, 0);
+		final int threads = 8, writes = 200;
+		Thread[] writers = new Thread[threads];
+		final Exception[] failure = new Exception[1];
+		for (int t=0; t<threads; t++) {
+			final int id = t;
+			writers[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i=0; i<writes; i++) {
+							log.awaitDurable(log.appendPut(Utf8Bytes.of("key"+id+"_"+i), Utf8Bytes.of("value"+i)));
+						}
+					} catch (Exception e) {
+						failure[0] = e;
+					}
+				}
+			};
+			writers[t].start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		assertNull(failure[0]);
+		long syncs = log.getSyncCount();
+		assertTrue(syncs > 0);
+		//concurrent writers shared at least one fsync
+		assertTrue(syncs+" fsyncs for "+threads*writes+" puts", syncs < threads*writes);
+		log.close();
+		assertEquals(threads*writes, WriteAheadLog.replay(file, replayer));
+	}
+
+	//Tests that with INTERVAL writers do not wait and the log is forced in the background
+	public void testIntervalPolicy() throws Exception {
+		WriteAheadLog log = new WriteAheadLog(file);
+		log.setSyncPolicy(WriteAheadLog.SyncPolicy.INTERVAL, 20);
+		log.awaitDurable(log.appendPut(Utf8Bytes.of("a"), Utf8Bytes.of("1")));
+		long deadline = System.currentTimeMillis() + 2000;
+		while (log.getSyncCount() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(log.getSyncCount() > 0);
+		log.setSyncPolicy(WriteAheadLog.SyncPolicy.NEVER, 0);
+		long syncs = log.getSyncCount();
+		log.awaitDurable(log.appendPut(Utf8Bytes.of("b"), Utf8Bytes.of("2")));
+		assertEquals(syncs, log.getSyncCount());
+		log.close();
+	}
+
+	//Tests that a storage recovers the changes in its log and a checkpoint empties the log
+	public void testStorageRecoversFromLog() throws Exception {
+		File directory = new File("storage_test");
+		AllTests.deleteStorage(directory);
+		KVStorage storage = new KVStorage(directory);
+		assertTrue(storage.load());
+		storage.openLog(WriteAheadLog.SyncPolicy.ALWAYS, 0);
+		storage.put(Utf8Bytes.of("a"), Utf8Bytes.of("1"));
+		storage.put(Utf8Bytes.of("b"), Utf8Bytes.of("2"));
+		assertTrue(storage.flush());
+		assertTrue(storage.checkpoint());
+		storage.put(Utf8Bytes.of("c"), Utf8Bytes.of("3"));
+		storage.remove(Utf8Bytes.of("a"));
+		assertTrue(storage.flush());
+		storage.awaitDurable(storage.logPosition());
+		//a crash now leaves the partition files without c but the log with it
+
+		KVStorage recovered = new KVStorage(directory);
+		assertTrue(recovered.load());
+		assertEquals(2, recovered.size());
+		assertNull(recovered.get(Utf8Bytes.of("a")));
+		assertEquals(Utf8Bytes.of("3"), recovered.get(Utf8Bytes.of("c")));
+		assertFalse(new File(directory, "wal.log").exists());
+		storage.getLog().close();
+	}
+
+	//Tests that partitions written for a snapshot while the log is open are forced to disk,
+	//as the checkpoint after it empties the log without rewriting them
+	public void testSnapshotWritesDurably() throws Exception {
+		File directory = new File("storage_test");
+		AllTests.deleteStorage(directory);
+		KVStorage storage = new KVStorage(directory);
+		assertTrue(storage.load());
+		storage.openLog(WriteAheadLog.SyncPolicy.ALWAYS, 0);
+		storage.put(Utf8Bytes.of("a"), Utf8Bytes.of("1"));
+		storage.put(Utf8Bytes.of("b"), Utf8Bytes.of("2"));
+		BigInteger top = BigInteger.ONE;
+		storage.snapshot(Arrays.asList(new HashRing.Range(top, top))).close();
+		assertTrue(storage.checkpoint());
+		assertEquals(0, storage.getLog().size());
+		assertEquals(directory.listFiles().length - 1, storage.getSyncedWrites());
+		storage.getLog().close();
+	}
+}
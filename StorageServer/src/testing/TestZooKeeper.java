@@ -0,0 +1,187 @@
+package testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+import app_kvEcs.ECSFailureDetect;
+import app_kvServer.KVServer;
+
+import common.HashRing;
+import common.HashRing.Server;
+import common.ZooKeeperCoordinator;
+import common.messages.KVAdminMessage;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the ZooKeeper coordination against a ZooKeeper server running in this JVM.
+ */
+public class TestZooKeeper extends TestCase {
+	private static final int ZOOKEEPER_PORT = 54990;
+	private static final String CONNECT = "localhost:" + ZOOKEEPER_PORT;
+	private File dataDir;
+	private ServerCnxnFactory factory;
+	private ZooKeeperCoordinator coordinator;
+	private List<KVServer> servers;
+
+	public void setUp() throws Exception {
+		dataDir = new File("zookeeper_test");
+		AllTests.deleteLocalStorageFiles();
+		deleteRecursively(dataDir);
+		dataDir.mkdirs();
+		ZooKeeperServer zooKeeperServer = new ZooKeeperServer(dataDir, dataDir, 500);
+		factory = ServerCnxnFactory.createFactory(ZOOKEEPER_PORT, 60);
+		factory.startup(zooKeeperServer);
+		coordinator = new ZooKeeperCoordinator(CONNECT, 5000);
+	}
+
+	public void tearDown() {
+		if (servers != null) {
+			AllTests.closeServers(servers);
+			servers = null;
+		}
+		if (coordinator != null) {
+			coordinator.close();
+		}
+		if (factory != null) {
+			factory.shutdown();
+		}
+		if (dataDir != null) {
+			deleteRecursively(dataDir);
+		}
+		AllTests.deleteLocalStorageFiles();
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+
+	private static HashRing ring(int numServers, int basePort) {
+		HashRing ring = new HashRing();
+		for (int i=0; i<numServers; i++) {
+			ring.addServer(new Server("localhost", basePort+i, i));
+		}
+		return ring;
+	}
+
+	/**
+	 * Start servers on ports from basePort which join ZooKeeper but have no metadata yet.
+	 */
+	private void startServers(int numServers, int basePort) throws IOException {
+		servers = AllTests.createAndStartServers(numServers, basePort);
+		for (KVServer server : servers) {
+			server.connectZooKeeper(CONNECT);
+		}
+	}
+
+	private static long epochOf(KVServer server) {
+		return new HashRing(server.handleGetMetadata(new KVAdminMessage("getMetadata","","","-1")).getValue()).getEpoch();
+	}
+
+	//Tests that published metadata can be read back and reaches a watcher, including later changes
+	public void testPublishAndWatchMetadata() throws Exception {
+		assertNull(coordinator.readMetadata());
+		final LinkedBlockingQueue<String> seen = new LinkedBlockingQueue<String>();
+		coordinator.watchMetadata(new ZooKeeperCoordinator.MetadataListener() {
+			@Override
+			public void metadataChanged(String metadata) {
+				seen.add(metadata);
+			}
+		});
+		HashRing ring = ring(3, 54970);
+		coordinator.publishMetadata(ring.toString());
+		assertEquals(ring.toString(), coordinator.readMetadata());
+		assertEquals(ring.toString(), seen.poll(5, TimeUnit.SECONDS));
+
+		ring.removeServer(new Server("localhost", 54971, 1));
+		coordinator.publishMetadata(ring.toString());
+		assertEquals(ring.toString(), seen.poll(5, TimeUnit.SECONDS));
+
+		//publishing the same metadata again does not notify anyone
+		coordinator.publishMetadata(ring.toString());
+		assertNull(seen.poll(500, TimeUnit.MILLISECONDS));
+	}
+
+	//Tests that servers apply the metadata published in the znode and acknowledge its epoch
+	public void testServersFollowMetadataZnode() throws Exception {
+		startServers(3, 54970);
+		List<Integer> ids = Arrays.asList(0, 1, 2);
+		HashRing ring = ring(3, 54970);
+		ring.setEpoch(40);
+		coordinator.publishMetadata(ring.toString());
+		assertTrue(coordinator.awaitEpoch(ids, 40, 5000).isEmpty());
+		for (KVServer server : servers) {
+			assertEquals(40, epochOf(server));
+		}
+
+		ring.removeServer(new Server("localhost", 54972, 2));
+		coordinator.publishMetadata(ring.toString());
+		assertTrue(coordinator.awaitEpoch(ids, ring.getEpoch(), 5000).isEmpty());
+		for (KVServer server : servers) {
+			assertEquals(ring.getEpoch(), epochOf(server));
+		}
+		//a server which never acknowledges is reported once the timeout expires
+		assertEquals(Arrays.asList(0, 1, 2), coordinator.awaitEpoch(ids, ring.getEpoch()+1, 200));
+	}
+
+	//Tests that a server's ephemeral znode goes away with it and that membership watchers hear of it
+	public void testEphemeralMembership() throws Exception {
+		final LinkedBlockingQueue<Collection<Integer>> changes = new LinkedBlockingQueue<Collection<Integer>>();
+		coordinator.watchServers(new ZooKeeperCoordinator.MembershipListener() {
+			@Override
+			public void membershipChanged(Collection<Integer> liveServers) {
+				changes.add(liveServers);
+			}
+		});
+		startServers(2, 54975);
+		assertEquals(2, coordinator.liveServers().size());
+
+		changes.clear();
+		servers.get(1).closeServer();
+		Collection<Integer> live = changes.poll(5, TimeUnit.SECONDS);
+		while (live != null && live.contains(1)) {
+			live = changes.poll(5, TimeUnit.SECONDS);
+		}
+		assertNotNull(live);
+		assertTrue(live.contains(0));
+		assertEquals(live, coordinator.liveServers().keySet());
+	}
+
+	//Tests that the failure detector finds crashed servers by their missing znode without probing them
+	public void testFailureDetectionWithoutProbing() throws Exception {
+		File config = new File("ecs_zookeeper_test.config");
+		PrintWriter writer = new PrintWriter(config, "UTF-8");
+		writer.println("zookeeper " + CONNECT);
+		writer.println("server0 localhost 54980");
+		writer.println("server1 localhost 54981");
+		writer.close();
+		try {
+			ECSFailureDetect detector = new ECSFailureDetect(config.getPath());
+			HashRing ring = ring(2, 54980);
+			coordinator.publishMetadata(ring.toString());
+			//neither server is listening, only server 0 is live according to ZooKeeper
+			coordinator.registerServer(0);
+			List<Server> failed = detector.detectFailures();
+			assertEquals(1, failed.size());
+			assertEquals(1, failed.get(0).id);
+		} finally {
+			config.delete();
+			new File("ecs_config_backup.txt").delete();
+		}
+	}
+}